@@ -0,0 +1,41 @@
+#!/bin/bash
+
+if [[ -z "$JAVA_HOME" ]]
+then
+	JAVA_HOME="/Library/Java/JavaVirtualMachines/jdk-11.0.2.jdk/Contents/Home"
+fi
+
+if [[ -z "$OPENSSL_HOME" ]]
+then
+	OPENSSL_HOME="/usr"
+fi
+
+os=`uname`
+
+target="vopenssl"
+include_platform_dir=""
+
+if [[ "Linux" == "$os" ]]
+then
+	target="lib$target.so"
+	include_platform_dir="linux"
+elif [[ "Darwin" == "$os" ]]
+then
+	target="lib$target.dylib"
+	include_platform_dir="darwin"
+else
+	echo "unsupported platform $os"
+	exit 1
+fi
+
+rm -f "$target"
+
+gcc -std=gnu99 \
+    -I "$JAVA_HOME/include" \
+    -I "$JAVA_HOME/include/$include_platform_dir" \
+    -I "$OPENSSL_HOME/include" \
+    -L "$OPENSSL_HOME/lib" \
+    -shared -Werror -fPIC \
+    vproxy_openssl_OpenSSL.c \
+    -lssl -lcrypto \
+    -o "$target"
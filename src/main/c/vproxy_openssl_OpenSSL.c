@@ -0,0 +1,724 @@
+#include "vproxy_openssl_OpenSSL.h"
+#include "exception.h"
+
+#include <stdlib.h>
+#include <string.h>
+#include <stdio.h>
+
+#include <openssl/ssl.h>
+#include <openssl/err.h>
+#include <openssl/pem.h>
+
+// max plain bytes in one record
+#define V_MAX_PLAIN 16384
+// max bytes of one encrypted record, same as the jdk packet buffer size
+#define V_PACKET_SIZE 16709
+
+typedef struct {
+    SSL* ssl;
+
+    // input of the current call, read by the bio
+    const unsigned char* in;
+    int in_len;
+    int in_off;
+
+    // output of the current call, written by the bio
+    // NULL when output should go to the pending buffer
+    unsigned char* out;
+    int out_len;
+    int out_off;
+
+    // encrypted bytes which cannot be written into the output of the call
+    // they are flushed before any new bytes are produced
+    unsigned char* pending;
+    int pending_cap;
+    int pending_start;
+    int pending_end;
+
+    // the handshake record to be handled by the delegated task
+    unsigned char* stash;
+    int stash_cap;
+    int stash_len;
+
+    int failed;
+
+    // only set when running the handshake, used by the alpn callback
+    JNIEnv* env;
+    jobject self;
+} vssl_t;
+
+static BIO_METHOD* v_bio_method = NULL;
+
+static void v_reset_io(vssl_t* v) {
+    v->in = NULL;
+    v->in_len = 0;
+    v->in_off = 0;
+    v->out = NULL;
+    v->out_len = 0;
+    v->out_off = 0;
+}
+
+static int v_pending_append(vssl_t* v, const unsigned char* data, int len) {
+    int used = v->pending_end - v->pending_start;
+    if (v->pending_end + len > v->pending_cap) {
+        if (v->pending_start > 0) {
+            memmove(v->pending, v->pending + v->pending_start, used);
+            v->pending_start = 0;
+            v->pending_end = used;
+        }
+        if (used + len > v->pending_cap) {
+            int cap = v->pending_cap * 2;
+            if (cap < used + len) {
+                cap = used + len;
+            }
+            if (cap < 4096) {
+                cap = 4096;
+            }
+            unsigned char* p = realloc(v->pending, cap);
+            if (p == NULL) {
+                return 0;
+            }
+            v->pending = p;
+            v->pending_cap = cap;
+        }
+    }
+    memcpy(v->pending + v->pending_end, data, len);
+    v->pending_end += len;
+    return 1;
+}
+
+static int v_bio_write(BIO* bio, const char* data, int len) {
+    vssl_t* v = BIO_get_data(bio);
+    BIO_clear_retry_flags(bio);
+    int n = 0;
+    // keep the order of bytes: write directly only when nothing is pending
+    if (v->out != NULL && v->pending_end == v->pending_start) {
+        n = v->out_len - v->out_off;
+        if (n > len) {
+            n = len;
+        }
+        memcpy(v->out + v->out_off, data, n);
+        v->out_off += n;
+    }
+    if (n < len) {
+        if (!v_pending_append(v, (const unsigned char*) data + n, len - n)) {
+            return -1;
+        }
+    }
+    return len;
+}
+
+static int v_bio_read(BIO* bio, char* buf, int len) {
+    vssl_t* v = BIO_get_data(bio);
+    BIO_clear_retry_flags(bio);
+    int n = v->in_len - v->in_off;
+    if (n <= 0) {
+        BIO_set_retry_read(bio);
+        return -1;
+    }
+    if (n > len) {
+        n = len;
+    }
+    memcpy(buf, v->in + v->in_off, n);
+    v->in_off += n;
+    return n;
+}
+
+static long v_bio_ctrl(BIO* bio, int cmd, long num, void* ptr) {
+    if (cmd == BIO_CTRL_FLUSH) {
+        return 1;
+    }
+    return 0;
+}
+
+static int v_bio_create(BIO* bio) {
+    BIO_set_init(bio, 1);
+    return 1;
+}
+
+static int v_bio_destroy(BIO* bio) {
+    // the data is freed with the engine
+    return 1;
+}
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
+    v_bio_method = BIO_meth_new(BIO_get_new_index() | BIO_TYPE_SOURCE_SINK, "vproxy");
+    if (v_bio_method == NULL) {
+        return JNI_ERR;
+    }
+    BIO_meth_set_write(v_bio_method, v_bio_write);
+    BIO_meth_set_read(v_bio_method, v_bio_read);
+    BIO_meth_set_ctrl(v_bio_method, v_bio_ctrl);
+    BIO_meth_set_create(v_bio_method, v_bio_create);
+    BIO_meth_set_destroy(v_bio_method, v_bio_destroy);
+    return JNI_VERSION_1_8;
+}
+
+static void throwSSLException(JNIEnv* env, vssl_t* v, int sslErr, char* msgPrefix) {
+    if (v != NULL) {
+        v->failed = 1;
+    }
+    char errMsg[512];
+    unsigned long e = ERR_get_error();
+    if (e != 0) {
+        char reason[256];
+        ERR_error_string_n(e, reason, sizeof(reason));
+        snprintf(errMsg, sizeof(errMsg), "%s: %s", msgPrefix, reason);
+    } else {
+        snprintf(errMsg, sizeof(errMsg), "%s: ssl error %d", msgPrefix, sslErr);
+    }
+    ERR_clear_error();
+    throwException(env, "javax/net/ssl/SSLException", errMsg);
+}
+
+static unsigned char* v_buf_get(JNIEnv* env, jobject buf, jbyteArray array, jint off) {
+    if (array != NULL) {
+        return ((unsigned char*) (*env)->GetPrimitiveArrayCritical(env, array, NULL)) + off;
+    }
+    return ((unsigned char*) (*env)->GetDirectBufferAddress(env, buf)) + off;
+}
+
+static void v_buf_release(JNIEnv* env, jbyteArray array, unsigned char* addr, jint off) {
+    if (array != NULL) {
+        (*env)->ReleasePrimitiveArrayCritical(env, array, addr - off, 0);
+    }
+}
+
+static int v_alpn_select(SSL* ssl, const unsigned char** out, unsigned char* outlen,
+                         const unsigned char* in, unsigned int inlen, void* arg) {
+    vssl_t* v = SSL_get_app_data(ssl);
+    if (v == NULL || v->env == NULL) {
+        return SSL_TLSEXT_ERR_NOACK;
+    }
+    JNIEnv* env = v->env;
+
+    int count = 0;
+    unsigned int i = 0;
+    while (i < inlen) {
+        i += 1 + in[i];
+        ++count;
+    }
+    if (i != inlen) {
+        return SSL_TLSEXT_ERR_ALERT_FATAL;
+    }
+    jclass strCls = (*env)->FindClass(env, "java/lang/String");
+    jobjectArray arr = (*env)->NewObjectArray(env, count, strCls, NULL);
+    if (arr == NULL) {
+        (*env)->ExceptionClear(env);
+        return SSL_TLSEXT_ERR_ALERT_FATAL;
+    }
+    char name[256];
+    i = 0;
+    for (int idx = 0; idx < count; ++idx) {
+        int len = in[i];
+        memcpy(name, in + i + 1, len);
+        name[len] = '\0';
+        jstring s = (*env)->NewStringUTF(env, name);
+        (*env)->SetObjectArrayElement(env, arr, idx, s);
+        (*env)->DeleteLocalRef(env, s);
+        i += 1 + len;
+    }
+    jclass selfCls = (*env)->GetObjectClass(env, v->self);
+    jmethodID mid = (*env)->GetMethodID(env, selfCls, "selectApplicationProtocol", "([Ljava/lang/String;)Ljava/lang/String;");
+    jstring selected = (*env)->CallObjectMethod(env, v->self, mid, arr);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+        return SSL_TLSEXT_ERR_ALERT_FATAL;
+    }
+    if (selected == NULL) {
+        return SSL_TLSEXT_ERR_ALERT_FATAL;
+    }
+    const char* sel = (*env)->GetStringUTFChars(env, selected, NULL);
+    size_t selLen = strlen(sel);
+    int ret = SSL_TLSEXT_ERR_ALERT_FATAL;
+    if (selLen == 0) {
+        ret = SSL_TLSEXT_ERR_NOACK;
+    } else {
+        i = 0;
+        while (i < inlen) {
+            int len = in[i];
+            if ((size_t) len == selLen && memcmp(in + i + 1, sel, len) == 0) {
+                // the returned pointer must stay valid, so point into the input
+                *out = in + i + 1;
+                *outlen = len;
+                ret = SSL_TLSEXT_ERR_OK;
+                break;
+            }
+            i += 1 + len;
+        }
+    }
+    (*env)->ReleaseStringUTFChars(env, selected, sel);
+    return ret;
+}
+
+JNIEXPORT jlong JNICALL Java_vproxy_openssl_OpenSSL_newContext
+  (JNIEnv* env, jclass cls, jobjectArray certs, jstring key) {
+    ERR_clear_error();
+    SSL_CTX* ctx = SSL_CTX_new(TLS_method());
+    if (ctx == NULL) {
+        throwSSLException(env, NULL, 0, "create ssl ctx failed");
+        return 0;
+    }
+    SSL_CTX_set_min_proto_version(ctx, TLS1_2_VERSION);
+    SSL_CTX_set_options(ctx, SSL_OP_NO_COMPRESSION | SSL_OP_NO_RENEGOTIATION | SSL_OP_CIPHER_SERVER_PREFERENCE);
+    // idle connections do not hold the read/write buffers
+    SSL_CTX_set_mode(ctx, SSL_MODE_RELEASE_BUFFERS);
+    SSL_CTX_set_alpn_select_cb(ctx, v_alpn_select, NULL);
+
+    int certCount = certs == NULL ? 0 : (*env)->GetArrayLength(env, certs);
+    for (int i = 0; i < certCount; ++i) {
+        jstring pem = (*env)->GetObjectArrayElement(env, certs, i);
+        const char* pemChars = (*env)->GetStringUTFChars(env, pem, NULL);
+        BIO* bio = BIO_new_mem_buf(pemChars, -1);
+        X509* x509 = PEM_read_bio_X509(bio, NULL, NULL, NULL);
+        BIO_free(bio);
+        (*env)->ReleaseStringUTFChars(env, pem, pemChars);
+        (*env)->DeleteLocalRef(env, pem);
+        if (x509 == NULL) {
+            SSL_CTX_free(ctx);
+            throwSSLException(env, NULL, 0, "reading certificate failed");
+            return 0;
+        }
+        int ok;
+        if (i == 0) {
+            ok = SSL_CTX_use_certificate(ctx, x509);
+        } else {
+            ok = SSL_CTX_add1_chain_cert(ctx, x509);
+        }
+        X509_free(x509);
+        if (!ok) {
+            SSL_CTX_free(ctx);
+            throwSSLException(env, NULL, 0, "using certificate failed");
+            return 0;
+        }
+    }
+    if (key != NULL) {
+        const char* keyChars = (*env)->GetStringUTFChars(env, key, NULL);
+        BIO* bio = BIO_new_mem_buf(keyChars, -1);
+        EVP_PKEY* pkey = PEM_read_bio_PrivateKey(bio, NULL, NULL, NULL);
+        BIO_free(bio);
+        (*env)->ReleaseStringUTFChars(env, key, keyChars);
+        if (pkey == NULL) {
+            SSL_CTX_free(ctx);
+            throwSSLException(env, NULL, 0, "reading private key failed");
+            return 0;
+        }
+        int ok = SSL_CTX_use_PrivateKey(ctx, pkey);
+        EVP_PKEY_free(pkey);
+        if (!ok || !SSL_CTX_check_private_key(ctx)) {
+            SSL_CTX_free(ctx);
+            throwSSLException(env, NULL, 0, "using private key failed");
+            return 0;
+        }
+    }
+    return (jlong) ctx;
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_freeContext
+  (JNIEnv* env, jclass cls, jlong ctx) {
+    SSL_CTX_free((SSL_CTX*) ctx);
+}
+
+JNIEXPORT jlong JNICALL Java_vproxy_openssl_OpenSSL_newEngine
+  (JNIEnv* env, jclass cls, jlong ctx) {
+    ERR_clear_error();
+    vssl_t* v = calloc(1, sizeof(vssl_t));
+    if (v == NULL) {
+        throwException(env, "javax/net/ssl/SSLException", "allocating engine failed");
+        return 0;
+    }
+    v->ssl = SSL_new((SSL_CTX*) ctx);
+    if (v->ssl == NULL) {
+        free(v);
+        throwSSLException(env, NULL, 0, "create ssl failed");
+        return 0;
+    }
+    BIO* bio = BIO_new(v_bio_method);
+    if (bio == NULL) {
+        SSL_free(v->ssl);
+        free(v);
+        throwSSLException(env, NULL, 0, "create bio failed");
+        return 0;
+    }
+    BIO_set_data(bio, v);
+    // the same bio is used for reading and writing, only one reference is taken by the ssl
+    SSL_set_bio(v->ssl, bio, bio);
+    SSL_set_app_data(v->ssl, v);
+    return (jlong) v;
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_freeEngine
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    SSL_free(v->ssl);
+    free(v->pending);
+    free(v->stash);
+    free(v);
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_setClientMode
+  (JNIEnv* env, jclass cls, jlong ptr, jboolean client) {
+    vssl_t* v = (vssl_t*) ptr;
+    if (client) {
+        SSL_set_connect_state(v->ssl);
+    } else {
+        SSL_set_accept_state(v->ssl);
+    }
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_setServerName
+  (JNIEnv* env, jclass cls, jlong ptr, jstring serverName) {
+    vssl_t* v = (vssl_t*) ptr;
+    ERR_clear_error();
+    const char* name = (*env)->GetStringUTFChars(env, serverName, NULL);
+    int ok = SSL_set_tlsext_host_name(v->ssl, name);
+    (*env)->ReleaseStringUTFChars(env, serverName, name);
+    if (!ok) {
+        throwSSLException(env, NULL, 0, "setting server name failed");
+    }
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_setAlpnProtocols
+  (JNIEnv* env, jclass cls, jlong ptr, jbyteArray protocols) {
+    vssl_t* v = (vssl_t*) ptr;
+    ERR_clear_error();
+    int len = (*env)->GetArrayLength(env, protocols);
+    jbyte* bytes = (*env)->GetByteArrayElements(env, protocols, NULL);
+    // returns 0 on success
+    int err = SSL_set_alpn_protos(v->ssl, (const unsigned char*) bytes, len);
+    (*env)->ReleaseByteArrayElements(env, protocols, bytes, JNI_ABORT);
+    if (err) {
+        throwSSLException(env, NULL, 0, "setting alpn protocols failed");
+    }
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_setProtocolVersions
+  (JNIEnv* env, jclass cls, jlong ptr, jint min, jint max) {
+    vssl_t* v = (vssl_t*) ptr;
+    ERR_clear_error();
+    if (!SSL_set_min_proto_version(v->ssl, min) || !SSL_set_max_proto_version(v->ssl, max)) {
+        throwSSLException(env, NULL, 0, "setting protocol versions failed");
+    }
+}
+
+static int v_is_tls13_suite(const char* name) {
+    return strncmp(name, "TLS_AES_", 8) == 0 || strcmp(name, "TLS_CHACHA20_POLY1305_SHA256") == 0;
+}
+
+static void v_append_name(char* list, size_t cap, const char* name) {
+    if (list[0] != '\0') {
+        strncat(list, ":", cap - strlen(list) - 1);
+    }
+    strncat(list, name, cap - strlen(list) - 1);
+}
+
+JNIEXPORT jboolean JNICALL Java_vproxy_openssl_OpenSSL_setCipherSuites
+  (JNIEnv* env, jclass cls, jlong ptr, jobjectArray suites) {
+    vssl_t* v = (vssl_t*) ptr;
+    char tls12[4096] = {0};
+    char tls13[512] = {0};
+    int count = (*env)->GetArrayLength(env, suites);
+    for (int i = 0; i < count; ++i) {
+        jstring s = (*env)->GetObjectArrayElement(env, suites, i);
+        const char* name = (*env)->GetStringUTFChars(env, s, NULL);
+        if (v_is_tls13_suite(name)) {
+            v_append_name(tls13, sizeof(tls13), name);
+        } else {
+            // java uses the rfc names, which should be converted to openssl names
+            const char* opensslName = OPENSSL_cipher_name(name);
+            if (strcmp(opensslName, "(NONE)") != 0) {
+                v_append_name(tls12, sizeof(tls12), opensslName);
+            }
+        }
+        (*env)->ReleaseStringUTFChars(env, s, name);
+        (*env)->DeleteLocalRef(env, s);
+    }
+    if (tls12[0] == '\0' && tls13[0] == '\0') {
+        return JNI_FALSE;
+    }
+    ERR_clear_error();
+    int ok = 1;
+    if (tls12[0] != '\0') {
+        ok = SSL_set_cipher_list(v->ssl, tls12);
+    }
+    if (ok && tls13[0] != '\0') {
+        ok = SSL_set_ciphersuites(v->ssl, tls13);
+    }
+    ERR_clear_error();
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_vproxy_openssl_OpenSSL_getCipherSuites
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    STACK_OF(SSL_CIPHER)* ciphers = SSL_get_ciphers(v->ssl);
+    int count = ciphers == NULL ? 0 : sk_SSL_CIPHER_num(ciphers);
+    jclass strCls = (*env)->FindClass(env, "java/lang/String");
+    jobjectArray arr = (*env)->NewObjectArray(env, count, strCls, NULL);
+    if (arr == NULL) {
+        return NULL;
+    }
+    for (int i = 0; i < count; ++i) {
+        const char* name = SSL_CIPHER_standard_name(sk_SSL_CIPHER_value(ciphers, i));
+        jstring s = (*env)->NewStringUTF(env, name == NULL ? "" : name);
+        (*env)->SetObjectArrayElement(env, arr, i, s);
+        (*env)->DeleteLocalRef(env, s);
+    }
+    return arr;
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_stash
+  (JNIEnv* env, jclass cls, jlong ptr, jobject src, jbyteArray srcArray, jint srcOff, jint srcLen) {
+    vssl_t* v = (vssl_t*) ptr;
+    if (v->stash_cap < srcLen) {
+        unsigned char* p = realloc(v->stash, srcLen);
+        if (p == NULL) {
+            throwException(env, "javax/net/ssl/SSLException", "allocating handshake buffer failed");
+            return;
+        }
+        v->stash = p;
+        v->stash_cap = srcLen;
+    }
+    unsigned char* s = v_buf_get(env, src, srcArray, srcOff);
+    memcpy(v->stash, s, srcLen);
+    v_buf_release(env, srcArray, s, srcOff);
+    v->stash_len = srcLen;
+}
+
+JNIEXPORT jboolean JNICALL Java_vproxy_openssl_OpenSSL_handshake
+  (JNIEnv* env, jclass cls, jlong ptr, jobject self) {
+    vssl_t* v = (vssl_t*) ptr;
+    v->in = v->stash;
+    v->in_len = v->stash_len;
+    v->in_off = 0;
+    v->env = env;
+    v->self = self;
+
+    ERR_clear_error();
+    int r = SSL_do_handshake(v->ssl);
+    int err = r == 1 ? SSL_ERROR_NONE : SSL_get_error(v->ssl, r);
+
+    v->env = NULL;
+    v->self = NULL;
+    v->stash_len = 0;
+    v_reset_io(v);
+
+    if (r == 1) {
+        // the stash is no longer used
+        free(v->stash);
+        v->stash = NULL;
+        v->stash_cap = 0;
+        return JNI_TRUE;
+    }
+    if (err == SSL_ERROR_WANT_READ) {
+        return JNI_FALSE;
+    }
+    // the alert (if any) is kept in the pending buffer
+    throwSSLException(env, v, err, "handshake failed");
+    return JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_vproxy_openssl_OpenSSL_flush
+  (JNIEnv* env, jclass cls, jlong ptr, jobject dst, jbyteArray dstArray, jint dstOff, jint dstLen) {
+    vssl_t* v = (vssl_t*) ptr;
+    int n = v->pending_end - v->pending_start;
+    if (n == 0) {
+        return 0;
+    }
+    if (n > dstLen) {
+        n = dstLen;
+    }
+    unsigned char* d = v_buf_get(env, dst, dstArray, dstOff);
+    memcpy(d, v->pending + v->pending_start, n);
+    v_buf_release(env, dstArray, d, dstOff);
+    v->pending_start += n;
+    if (v->pending_start == v->pending_end) {
+        // bytes are usually pending only when handshaking, so release the memory
+        free(v->pending);
+        v->pending = NULL;
+        v->pending_cap = 0;
+        v->pending_start = 0;
+        v->pending_end = 0;
+    }
+    return n;
+}
+
+JNIEXPORT jint JNICALL Java_vproxy_openssl_OpenSSL_pending
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    return v->pending_end - v->pending_start;
+}
+
+JNIEXPORT jlong JNICALL Java_vproxy_openssl_OpenSSL_write
+  (JNIEnv* env, jclass cls, jlong ptr,
+   jobject src, jbyteArray srcArray, jint srcOff, jint srcLen,
+   jobject dst, jbyteArray dstArray, jint dstOff, jint dstLen) {
+    vssl_t* v = (vssl_t*) ptr;
+    unsigned char* s = v_buf_get(env, src, srcArray, srcOff);
+    unsigned char* d = v_buf_get(env, dst, dstArray, dstOff);
+    v->out = d;
+    v->out_len = dstLen;
+    v->out_off = 0;
+
+    ERR_clear_error();
+    int consumed = 0;
+    int err = SSL_ERROR_NONE;
+    // each record is written directly into the output
+    while (consumed < srcLen && v->out_len - v->out_off >= V_PACKET_SIZE) {
+        int n = srcLen - consumed;
+        if (n > V_MAX_PLAIN) {
+            n = V_MAX_PLAIN;
+        }
+        int r = SSL_write(v->ssl, s + consumed, n);
+        if (r <= 0) {
+            err = SSL_get_error(v->ssl, r);
+            break;
+        }
+        consumed += r;
+    }
+    int produced = v->out_off;
+    v_reset_io(v);
+    v_buf_release(env, dstArray, d, dstOff);
+    v_buf_release(env, srcArray, s, srcOff);
+
+    if (err != SSL_ERROR_NONE) {
+        throwSSLException(env, v, err, "write failed");
+        return 0;
+    }
+    return (((jlong) consumed) << 32) | (jlong) produced;
+}
+
+JNIEXPORT jlong JNICALL Java_vproxy_openssl_OpenSSL_read
+  (JNIEnv* env, jclass cls, jlong ptr,
+   jobject src, jbyteArray srcArray, jint srcOff, jint srcLen,
+   jobject dst, jbyteArray dstArray, jint dstOff, jint dstLen) {
+    vssl_t* v = (vssl_t*) ptr;
+    unsigned char* s = v_buf_get(env, src, srcArray, srcOff);
+    unsigned char* d = v_buf_get(env, dst, dstArray, dstOff);
+    v->in = s;
+    v->in_len = srcLen;
+    v->in_off = 0;
+
+    ERR_clear_error();
+    int produced = 0;
+    int err = SSL_ERROR_NONE;
+    // one record is decrypted in each round, and the output always has room for the whole record
+    while (dstLen - produced >= V_MAX_PLAIN) {
+        int r = SSL_read(v->ssl, d + produced, dstLen - produced);
+        if (r <= 0) {
+            err = SSL_get_error(v->ssl, r);
+            break;
+        }
+        produced += r;
+    }
+    int consumed = v->in_off;
+    v_reset_io(v);
+    v_buf_release(env, dstArray, d, dstOff);
+    v_buf_release(env, srcArray, s, srcOff);
+
+    if (err != SSL_ERROR_NONE && err != SSL_ERROR_WANT_READ && err != SSL_ERROR_ZERO_RETURN) {
+        throwSSLException(env, v, err, "read failed");
+        return 0;
+    }
+    return (((jlong) consumed) << 32) | (jlong) produced;
+}
+
+JNIEXPORT void JNICALL Java_vproxy_openssl_OpenSSL_shutdown
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    if (v->failed || !SSL_is_init_finished(v->ssl)) {
+        return;
+    }
+    // close_notify goes to the pending buffer
+    ERR_clear_error();
+    SSL_shutdown(v->ssl);
+    ERR_clear_error();
+}
+
+JNIEXPORT jboolean JNICALL Java_vproxy_openssl_OpenSSL_isInboundClosed
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    return (SSL_get_shutdown(v->ssl) & SSL_RECEIVED_SHUTDOWN) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jstring JNICALL Java_vproxy_openssl_OpenSSL_getProtocol
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    return (*env)->NewStringUTF(env, SSL_get_version(v->ssl));
+}
+
+JNIEXPORT jstring JNICALL Java_vproxy_openssl_OpenSSL_getCipherSuite
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    const SSL_CIPHER* cipher = SSL_get_current_cipher(v->ssl);
+    if (cipher == NULL) {
+        return NULL;
+    }
+    return (*env)->NewStringUTF(env, SSL_CIPHER_standard_name(cipher));
+}
+
+JNIEXPORT jstring JNICALL Java_vproxy_openssl_OpenSSL_getApplicationProtocol
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    const unsigned char* data;
+    unsigned int len;
+    SSL_get0_alpn_selected(v->ssl, &data, &len);
+    char name[256];
+    memcpy(name, data, len);
+    name[len] = '\0';
+    return (*env)->NewStringUTF(env, name);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_vproxy_openssl_OpenSSL_getSessionId
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    SSL_SESSION* session = SSL_get_session(v->ssl);
+    unsigned int len = 0;
+    const unsigned char* id = session == NULL ? NULL : SSL_SESSION_get_id(session, &len);
+    jbyteArray arr = (*env)->NewByteArray(env, len);
+    if (arr != NULL && len > 0) {
+        (*env)->SetByteArrayRegion(env, arr, 0, len, (const jbyte*) id);
+    }
+    return arr;
+}
+
+static jbyteArray v_x509_to_der(JNIEnv* env, X509* x509) {
+    unsigned char* der = NULL;
+    int len = i2d_X509(x509, &der);
+    if (len < 0) {
+        return NULL;
+    }
+    jbyteArray arr = (*env)->NewByteArray(env, len);
+    if (arr != NULL) {
+        (*env)->SetByteArrayRegion(env, arr, 0, len, (const jbyte*) der);
+    }
+    OPENSSL_free(der);
+    return arr;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_vproxy_openssl_OpenSSL_getPeerCertificates
+  (JNIEnv* env, jclass cls, jlong ptr) {
+    vssl_t* v = (vssl_t*) ptr;
+    // the chain of a server does not contain the peer certificate
+    X509* leaf = SSL_is_server(v->ssl) ? SSL_get0_peer_certificate(v->ssl) : NULL;
+    STACK_OF(X509)* chain = SSL_get_peer_cert_chain(v->ssl);
+    int chainCount = chain == NULL ? 0 : sk_X509_num(chain);
+    int count = chainCount + (leaf == NULL ? 0 : 1);
+    jclass bytesCls = (*env)->FindClass(env, "[B");
+    jobjectArray arr = (*env)->NewObjectArray(env, count, bytesCls, NULL);
+    if (arr == NULL) {
+        return NULL;
+    }
+    int idx = 0;
+    if (leaf != NULL) {
+        jbyteArray der = v_x509_to_der(env, leaf);
+        (*env)->SetObjectArrayElement(env, arr, idx++, der);
+        (*env)->DeleteLocalRef(env, der);
+    }
+    for (int i = 0; i < chainCount; ++i) {
+        jbyteArray der = v_x509_to_der(env, sk_X509_value(chain, i));
+        (*env)->SetObjectArrayElement(env, arr, idx++, der);
+        (*env)->DeleteLocalRef(env, der);
+    }
+    return arr;
+}
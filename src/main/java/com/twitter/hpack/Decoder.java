@@ -36,6 +36,7 @@ public final class Decoder {
   private static final byte[] EMPTY = {};
 
   private final DynamicTable dynamicTable;
+  private final boolean fastHuffman;
 
   private int maxHeaderSize;
   private int maxDynamicTableSize;
@@ -71,6 +72,15 @@ public final class Decoder {
    * Creates a new decoder.
    */
   public Decoder(int maxHeaderSize, int maxHeaderTableSize) {
+    this(maxHeaderSize, maxHeaderTableSize, false);
+  }
+
+  /**
+   * Creates a new decoder.
+   * @param fastHuffman use the table driven Huffman decoder
+   */
+  public Decoder(int maxHeaderSize, int maxHeaderTableSize, boolean fastHuffman) {
+    this.fastHuffman = fastHuffman;
     dynamicTable = new DynamicTable(maxHeaderTableSize);
     this.maxHeaderSize = maxHeaderSize;
     maxDynamicTableSize = maxHeaderTableSize;
@@ -522,7 +532,7 @@ public final class Decoder {
     }
 
     if (huffmanEncoded) {
-      return Huffman.DECODER.decode(buf);
+      return fastHuffman ? Huffman.FAST_DECODER.decode(buf) : Huffman.DECODER.decode(buf);
     } else {
       return buf;
     }
@@ -30,6 +30,7 @@ public final class Encoder {
   private final boolean useIndexing;
   private final boolean forceHuffmanOn;
   private final boolean forceHuffmanOff;
+  private final boolean fastHuffman;
 
   // a linked hash map of header fields
   private final HeaderEntry[] headerFields = new HeaderEntry[BUCKET_SIZE];
@@ -41,7 +42,15 @@ public final class Encoder {
    * Creates a new encoder.
    */
   public Encoder(int maxHeaderTableSize) {
-    this(maxHeaderTableSize, true, false, false);
+    this(maxHeaderTableSize, false);
+  }
+
+  /**
+   * Creates a new encoder.
+   * @param fastHuffman use the Huffman encoder writing into byte arrays
+   */
+  public Encoder(int maxHeaderTableSize, boolean fastHuffman) {
+    this(maxHeaderTableSize, true, false, false, fastHuffman);
   }
 
   /**
@@ -52,6 +61,16 @@ public final class Encoder {
       boolean useIndexing,
       boolean forceHuffmanOn,
       boolean forceHuffmanOff
+  ) {
+    this(maxHeaderTableSize, useIndexing, forceHuffmanOn, forceHuffmanOff, false);
+  }
+
+  private Encoder(
+      int maxHeaderTableSize,
+      boolean useIndexing,
+      boolean forceHuffmanOn,
+      boolean forceHuffmanOff,
+      boolean fastHuffman
   ) {
     if (maxHeaderTableSize < 0) {
       throw new IllegalArgumentException("Illegal Capacity: " + maxHeaderTableSize);
@@ -59,6 +78,7 @@ public final class Encoder {
     this.useIndexing = useIndexing;
     this.forceHuffmanOn = forceHuffmanOn;
     this.forceHuffmanOff = forceHuffmanOff;
+    this.fastHuffman = fastHuffman;
     this.capacity = maxHeaderTableSize;
     head.before = head.after = head;
   }
@@ -174,7 +194,13 @@ public final class Encoder {
     int huffmanLength = Huffman.ENCODER.getEncodedLength(string);
     if ((huffmanLength < string.length && !forceHuffmanOff) || forceHuffmanOn) {
       encodeInteger(out, 0x80, 7, huffmanLength);
-      Huffman.ENCODER.encode(out, string);
+      if (fastHuffman) {
+        byte[] buf = new byte[huffmanLength];
+        Huffman.FAST_ENCODER.encode(string, 0, string.length, buf, 0);
+        out.write(buf, 0, huffmanLength);
+      } else {
+        Huffman.ENCODER.encode(out, string);
+      }
     } else {
       encodeInteger(out, 0x00, 7, string.length);
       out.write(string, 0, string.length);
@@ -0,0 +1,175 @@
+package com.twitter.hpack;
+
+import vproxy.util.ByteArray;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A Huffman decoder driven by a finite state machine, one byte is consumed at a time.
+ * The states are the internal nodes of the Huffman tree, and each transition emits at most two symbols,
+ * because the shortest code has 5 bits. The table has 256 transitions for each of the 256 states (256KB).
+ * Unlike {@link HuffmanDecoder}, a padding longer than 7 bits is treated as a decoding error,
+ * see Section 5.2. String Literal Representation.
+ */
+final class FastHuffmanDecoder {
+
+  private static final IOException EOS_DECODED = new IOException("EOS Decoded");
+  private static final IOException INVALID_PADDING = new IOException("Invalid Padding");
+
+  // a transition: second symbol(8 bits) | first symbol(8 bits) | next state(8 bits) | flags(8 bits)
+  private static final int EMIT = 0x1; // a symbol is decoded
+  private static final int FAIL = 0x2; // EOS is decoded
+  private static final int ACCEPT = 0x4; // the bits after the last symbol are a valid padding
+  private static final int EMIT2 = 0x8; // two symbols are decoded
+  private static final int MIN_CODE_LENGTH = 5;
+
+  // 256 transitions for each state, the state 0 is the root
+  private final int[] transitions;
+
+  /**
+   * Creates a new Huffman decoder with the specified Huffman coding.
+   * @param codes   the Huffman codes indexed by symbol
+   * @param lengths the length of each Huffman code
+   */
+  FastHuffmanDecoder(int[] codes, byte[] lengths) {
+    if (codes.length != 257 || codes.length != lengths.length) {
+      throw new IllegalArgumentException("invalid Huffman coding");
+    }
+    for (byte length : lengths) {
+      if (length < MIN_CODE_LENGTH) {
+        throw new IllegalArgumentException("invalid Huffman coding: code shorter than " + MIN_CODE_LENGTH + " bits");
+      }
+    }
+    transitions = buildTransitions(codes, lengths);
+  }
+
+  /**
+   * Decompresses the given Huffman coded string literal.
+   * @param  buf the string literal to be decoded
+   * @return the decoded bytes
+   * @throws IOException if the EOS symbol is decoded or the padding is invalid
+   */
+  public byte[] decode(byte[] buf) throws IOException {
+    return decode(buf, 0, buf.length);
+  }
+
+  /**
+   * Decompresses the given Huffman coded string literal.
+   * @param  buf the string literal to be decoded
+   * @return the decoded bytes
+   * @throws IOException if the EOS symbol is decoded or the padding is invalid
+   */
+  public byte[] decode(ByteArray buf) throws IOException {
+    return decode(buf.toJavaArray());
+  }
+
+  /**
+   * Decompresses the given Huffman coded string literal.
+   * @param  buf the buffer holding the string literal
+   * @param  off the start offset in the buffer
+   * @param  len the number of bytes to decode
+   * @return the decoded bytes
+   * @throws IOException if the EOS symbol is decoded or the padding is invalid
+   */
+  public byte[] decode(byte[] buf, int off, int len) throws IOException {
+    final int[] transitions = this.transitions;
+    byte[] out = new byte[len * 8 / MIN_CODE_LENGTH];
+    int n = 0;
+
+    int t = ACCEPT; // the transition to the root
+    for (int i = off, end = off + len; i < end; i++) {
+      t = transitions[(t & 0xFF00) | (buf[i] & 0xFF)];
+      if ((t & (EMIT | EMIT2 | FAIL)) != 0) {
+        if ((t & FAIL) != 0) {
+          throw EOS_DECODED;
+        }
+        out[n++] = (byte) (t >>> 16);
+        if ((t & EMIT2) != 0) {
+          out[n++] = (byte) (t >>> 24);
+        }
+      }
+    }
+
+    // Section 5.2. String Literal Representation
+    // A padding strictly longer than 7 bits MUST be treated as a decoding error.
+    // A padding not corresponding to the most significant bits of the code
+    // for the EOS symbol MUST be treated as a decoding error.
+    if ((t & ACCEPT) == 0) {
+      throw INVALID_PADDING;
+    }
+
+    return n == out.length ? out : Arrays.copyOf(out, n);
+  }
+
+  private static int[] buildTransitions(int[] codes, byte[] lengths) {
+    // build the binary tree
+    // children[node * 2 + bit] is the child node, or ~symbol for a leaf
+    int[] children = new int[2 * 256];
+    int nodes = 1;
+    for (int symbol = 0; symbol < codes.length; symbol++) {
+      int node = 0;
+      for (int i = lengths[symbol] - 1; i >= 0; i--) {
+        int idx = node * 2 + ((codes[symbol] >>> i) & 1);
+        if (i == 0) {
+          if (children[idx] != 0) {
+            throw new IllegalStateException("invalid Huffman code: prefix not unique");
+          }
+          children[idx] = ~symbol;
+        } else {
+          if (children[idx] < 0) {
+            throw new IllegalStateException("invalid Huffman code: prefix not unique");
+          }
+          if (children[idx] == 0) {
+            if (nodes == 256) {
+              throw new IllegalStateException("invalid Huffman code: too many nodes");
+            }
+            children[idx] = nodes++;
+          }
+          node = children[idx];
+        }
+      }
+    }
+
+    // the states which can be reached from the root with at most 7 bits of 1
+    boolean[] accept = new boolean[nodes];
+    {
+      int node = 0;
+      accept[0] = true;
+      for (int i = 0; i < 7; i++) {
+        node = children[node * 2 + 1];
+        if (node <= 0) {
+          break;
+        }
+        accept[node] = true;
+      }
+    }
+
+    int[] transitions = new int[nodes * 256];
+    for (int state = 0; state < nodes; state++) {
+      for (int b = 0; b < 256; b++) {
+        int node = state;
+        int symbols = 0;
+        int count = 0;
+        boolean fail = false;
+        for (int i = 7; i >= 0; i--) {
+          int child = children[node * 2 + ((b >>> i) & 1)];
+          if (child < 0) {
+            if (~child == HpackUtil.HUFFMAN_EOS) {
+              fail = true;
+            }
+            // at most two symbols, the codes are not shorter than 5 bits
+            symbols |= (~child & 0xFF) << (8 * count);
+            ++count;
+            node = 0;
+          } else {
+            node = child;
+          }
+        }
+        int flags = (count > 0 ? EMIT : 0) | (count > 1 ? EMIT2 : 0) | (fail ? FAIL : 0) | (accept[node] ? ACCEPT : 0);
+        transitions[state * 256 + b] = symbols << 16 | node << 8 | flags;
+      }
+    }
+    return transitions;
+  }
+}
@@ -0,0 +1,120 @@
+package com.twitter.hpack;
+
+import vproxy.util.ByteArray;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A Huffman encoder writing into byte arrays.
+ * The codes are collected in a long accumulator and written 32 bits at a time,
+ * and the encoded string is written into the output stream with one call.
+ */
+final class FastHuffmanEncoder {
+
+  private final int[] codes;
+  private final byte[] lengths;
+
+  /**
+   * Creates a new Huffman encoder with the specified Huffman coding.
+   * @param codes   the Huffman codes indexed by symbol
+   * @param lengths the length of each Huffman code
+   */
+  FastHuffmanEncoder(int[] codes, byte[] lengths) {
+    this.codes = codes;
+    this.lengths = lengths;
+  }
+
+  /**
+   * Compresses the input string literal using the Huffman coding.
+   * @param  out  the output stream for the compressed data
+   * @param  data the string literal to be Huffman encoded
+   * @throws IOException if an I/O error occurs.
+   */
+  public void encode(OutputStream out, byte[] data) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("out");
+    }
+    byte[] buf = new byte[getEncodedLength(data)];
+    int len = encode(data, 0, data.length, buf, 0);
+    out.write(buf, 0, len);
+  }
+
+  /**
+   * Compresses the input string literal using the Huffman coding.
+   * @param  data the string literal to be Huffman encoded
+   * @return the encoded string literal
+   */
+  public ByteArray encode(ByteArray data) {
+    byte[] bytes = data.toJavaArray();
+    byte[] buf = new byte[getEncodedLength(bytes)];
+    encode(bytes, 0, bytes.length, buf, 0);
+    return ByteArray.from(buf);
+  }
+
+  /**
+   * Compresses the input string literal using the Huffman coding.
+   * @param  data the string literal to be Huffman encoded
+   * @param  off  the start offset in the data
+   * @param  len  the number of bytes to encode
+   * @param  dst  the array to write the compressed data, see {@link #getEncodedLength(byte[])}
+   * @param  dstOff the start offset in the dst
+   * @return the offset in the dst after the compressed data
+   */
+  public int encode(byte[] data, int off, int len, byte[] dst, int dstOff) {
+    if (data == null) {
+      throw new NullPointerException("data");
+    } else if (dst == null) {
+      throw new NullPointerException("dst");
+    } else if (off < 0 || len < 0 || (off + len) < 0 || off > data.length || (off + len) > data.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    final int[] codes = this.codes;
+    final byte[] lengths = this.lengths;
+
+    long current = 0;
+    int n = 0; // bits in the accumulator, always less than 32 after writing
+    int p = dstOff;
+    for (int i = off, end = off + len; i < end; i++) {
+      int b = data[i] & 0xFF;
+      current = (current << lengths[b]) | codes[b];
+      n += lengths[b];
+      if (n >= 32) {
+        n -= 32;
+        int v = (int) (current >>> n);
+        dst[p] = (byte) (v >>> 24);
+        dst[p + 1] = (byte) (v >>> 16);
+        dst[p + 2] = (byte) (v >>> 8);
+        dst[p + 3] = (byte) v;
+        p += 4;
+      }
+    }
+    while (n >= 8) {
+      n -= 8;
+      dst[p++] = (byte) (current >>> n);
+    }
+
+    if (n > 0) {
+      current <<= (8 - n);
+      current |= (0xFF >>> n); // this should be EOS symbol
+      dst[p++] = (byte) current;
+    }
+    return p;
+  }
+
+  /**
+   * Returns the number of bytes required to Huffman encode the input string literal.
+   * @param  data the string literal to be Huffman encoded
+   * @return the number of bytes required to Huffman encode <code>data</code>
+   */
+  public int getEncodedLength(byte[] data) {
+    if (data == null) {
+      throw new NullPointerException("data");
+    }
+    long len = 0;
+    for (byte b : data) {
+      len += lengths[b & 0xFF];
+    }
+    return (int)((len + 7) >> 3);
+  }
+}
@@ -30,6 +30,16 @@ public final class Huffman {
    */
   public static final HuffmanEncoder ENCODER = new HuffmanEncoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS);
 
+  /**
+   * Table driven Huffman Decoder
+   */
+  public static final FastHuffmanDecoder FAST_DECODER = new FastHuffmanDecoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS);
+
+  /**
+   * Huffman Encoder writing into byte arrays
+   */
+  public static final FastHuffmanEncoder FAST_ENCODER = new FastHuffmanEncoder(HUFFMAN_CODES, HUFFMAN_CODE_LENGTHS);
+
   private Huffman() {
     // utility class
   }
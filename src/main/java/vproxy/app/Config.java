@@ -71,6 +71,88 @@ public class Config {
     // -DmirrorConf=...
     public static final String mirrorConfigPath;
 
+    // the jsse provider name used to create ssl contexts for tls termination
+    // e.g. a provider backed by openssl, which must be registered in java.security
+    // empty for the jdk default provider
+    // -DsslProvider=...
+    public static final String sslProvider;
+
+    // the ssl engine used for tls termination: jdk or openssl
+    // openssl requires the vopenssl lib (make openssl), and the sslProvider is ignored
+    // -DsslEngine=...
+    public static final String sslEngine;
+
+    // thread count of the pool running ssl handshake tasks
+    // -DsslTaskThreads=...
+    public static final int sslTaskThreads;
+
+    // max handshakes running tasks at the same time for each event loop
+    // -DsslMaxConcurrentHandshakesPerLoop=...
+    public static final int sslMaxConcurrentHandshakesPerLoop;
+
+    // max health check probes running at the same time for each event loop
+    // -DhcMaxConcurrentProbesPerLoop=...
+    public static final int hcMaxConcurrentProbesPerLoop;
+
+    // max attempts of connecting to backends for one proxied connection of a tcp-lb
+    // default 1, which means no retry.
+    // when retry is enabled, an attempt is given up if not connected in (proxyConnectRetryDeadline / proxyConnectAttempts) ms,
+    // which is usually shorter than the connect timeout of the tcp-lb
+    // -DproxyConnectAttempts=...
+    public static int proxyConnectAttempts = Math.max(1, Integer.getInteger("proxyConnectAttempts", 1));
+
+    // milliseconds since the first attempt, the proxy only retries within this time
+    // -DproxyConnectRetryDeadline=...
+    public static int proxyConnectRetryDeadline = Integer.getInteger("proxyConnectRetryDeadline", 3000);
+
+    // max idle backend connections kept for each server on each event loop
+    // the connections are shared by frontend connections of processors supporting connection reuse (e.g. http/1.x)
+    // 0 to disable the pool
+    // -DprocessorBackendPoolSize=...
+    public static final int processorBackendPoolSize;
+
+    // milliseconds before an idle backend connection in the pool is closed
+    // also used for the http/2 backend connections shared by http/1.x frontends (h1-to-h2)
+    // -DprocessorBackendPoolMaxIdle=...
+    public static final int processorBackendPoolMaxIdle;
+
+    // milliseconds since a backend connection is created, it's closed instead of returning to the pool after this time
+    // -DprocessorBackendPoolMaxAge=...
+    public static final int processorBackendPoolMaxAge;
+
+    // max count of requests dispatched but not responded on one frontend connection of processors
+    // requiring responses in request order (e.g. http/1.x pipelining)
+    // the frontend connection stops reading when reaching the limit
+    // -DprocessorMaxPipelinedRequests=...
+    public static final int processorMaxPipelinedRequests;
+
+    // max count of concurrent streams on one http/2 backend connection shared by http/1.x frontends (h1-to-h2)
+    // a lower value from the SETTINGS of the server takes effect
+    // -Dh1ToH2MaxStreams=...
+    public static final int h1ToH2MaxStreams;
+
+    // max bytes of an http/1.x request translated to http/2 (h1-to-h2), the request is buffered before sending
+    // -Dh1ToH2MaxRequestSize=...
+    public static final int h1ToH2MaxRequestSize;
+
+    // the SETTINGS_INITIAL_WINDOW_SIZE advertised to clients and servers by the http/2 processor,
+    // at most this many bytes of one stream are held when the receiving side has no window left
+    // -Dhttp2StreamWindow=...
+    public static final int http2StreamWindow;
+
+    // the connection window advertised to clients and servers by the http/2 processor
+    // -Dhttp2ConnectionWindow=...
+    public static final int http2ConnectionWindow;
+
+    // use the table driven huffman coder when encoding and decoding http/2 header blocks
+    // -Dhttp2FastHuffman=false to use the original one
+    public static final boolean http2FastHuffman;
+
+    // max bytes of one cached http response, including the headers
+    // the cache is enabled for each tcp-lb with param http-cache-size
+    // -DhttpCacheMaxEntrySize=...
+    public static final int httpCacheMaxEntrySize = Integer.getInteger("httpCacheMaxEntrySize", 1024 * 1024);
+
     static {
         appClass = System.getProperty("eploy"); // -Deploy
         String probeConf = System.getProperty("probe", "");
@@ -81,6 +163,20 @@ public class Config {
         }
         domainWhichShouldResolve = System.getProperty("omainWhichShouldResolve", "www.qq.com");
         mirrorConfigPath = System.getProperty("mirrorConf", "");
+        sslProvider = System.getProperty("sslProvider", "");
+        sslEngine = System.getProperty("sslEngine", "jdk");
+        sslTaskThreads = Integer.getInteger("sslTaskThreads", Runtime.getRuntime().availableProcessors());
+        sslMaxConcurrentHandshakesPerLoop = Integer.getInteger("sslMaxConcurrentHandshakesPerLoop", 16);
+        hcMaxConcurrentProbesPerLoop = Integer.getInteger("hcMaxConcurrentProbesPerLoop", 64);
+        processorBackendPoolSize = Integer.getInteger("processorBackendPoolSize", 64);
+        processorBackendPoolMaxIdle = Integer.getInteger("processorBackendPoolMaxIdle", 10_000);
+        processorBackendPoolMaxAge = Integer.getInteger("processorBackendPoolMaxAge", 300_000);
+        processorMaxPipelinedRequests = Math.max(1, Integer.getInteger("processorMaxPipelinedRequests", 16));
+        h1ToH2MaxStreams = Math.max(1, Integer.getInteger("h1ToH2MaxStreams", 100));
+        h1ToH2MaxRequestSize = Integer.getInteger("h1ToH2MaxRequestSize", 4 * 1024 * 1024);
+        http2StreamWindow = Math.max(65535, Integer.getInteger("http2StreamWindow", 65535));
+        http2ConnectionWindow = Math.max(65535, Integer.getInteger("http2ConnectionWindow", 1024 * 1024));
+        http2FastHuffman = !"false".equals(System.getProperty("http2FastHuffman"));
     }
 
     public static boolean supportReusePortLB() {
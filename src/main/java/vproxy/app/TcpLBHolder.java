@@ -35,13 +35,14 @@ public class TcpLBHolder {
                     int outBufferSize,
                     String protocol,
                     CertKey[] sslCertKeys,
-                    SecurityGroup securityGroup) throws AlreadyExistException, IOException, ClosedException, Exception {
+                    SecurityGroup securityGroup,
+                    long httpCacheSize) throws AlreadyExistException, IOException, ClosedException, Exception {
         if (map.containsKey(alias))
             throw new AlreadyExistException("tcp-lb", alias);
 
         VSSLContext sslContext = buildVSSLContext(sslCertKeys);
 
-        TcpLB tcpLB = new TcpLB(alias, acceptorEventLoopGroup, workerEventLoopGroup, bindAddress, backend, timeout, inBufferSize, outBufferSize, protocol, sslContext, sslCertKeys, securityGroup);
+        TcpLB tcpLB = new TcpLB(alias, acceptorEventLoopGroup, workerEventLoopGroup, bindAddress, backend, timeout, inBufferSize, outBufferSize, protocol, sslContext, sslCertKeys, securityGroup, httpCacheSize);
         try {
             tcpLB.start();
         } catch (IOException e) {
@@ -412,6 +412,7 @@ public class HelpCommand {
         iptype("ip-type", null, "ip type: v4 or v6"),
         port("port", null, "a port number"),
         certkey("cert-key", "ck", "cert-key resource"),
+        httpcachesize("http-cache-size", null, "max bytes of http responses cached by a tcp-lb"),
         cert("cert", null, "the certificate file path"),
         key("key", null, "the key file path"),
         ttl("ttl", null, "time to live"),
@@ -461,9 +462,10 @@ public class HelpCommand {
                     , new ResActParamMan(ParamMan.upstream, "used as the backend servers")
                     , new ResActParamMan(ParamMan.inbuffersize, "input buffer size", "16384 (bytes)")
                     , new ResActParamMan(ParamMan.outbuffersize, "output buffer size", "16384 (bytes)")
-                    , new ResActParamMan(ParamMan.protocol, "the protocol used by tcp-lb. available options: tcp, http, h2, http/1.x, dubbo, framed-int32, or your customized protocol. See doc for more info", "tcp")
+                    , new ResActParamMan(ParamMan.protocol, "the protocol used by tcp-lb. available options: tcp, tls-passthrough, h1-to-h2, http, h2, http/1.x, dubbo, framed-int32, or your customized protocol. tls-passthrough routes by the SNI in CLIENT_HELLO without terminating tls. h1-to-h2 accepts http/1.x and sends the requests as streams of http/2 (prior knowledge, cleartext) connections shared by the frontends. See doc for more info", "tcp")
                     , new ResActParamMan(ParamMan.certkey, "the certificates and keys used by tcp-lb. Multiple cert-key(s) are separated with `,`")
                     , new ResActParamMan(ParamMan.securitygroup, "specify a security group for the lb", "allow any")
+                    , new ResActParamMan(ParamMan.httpcachesize, "cache http responses in memory of at most this many bytes, only for protocol http/1.x and http. 0 means no cache", "0")
                 ),
                 Collections.singletonList(
                     new Tuple<>(
@@ -692,7 +694,7 @@ public class HelpCommand {
                         new ResActParamMan(ParamMan.up, "set server status to UP after succeeded for `${up}` times"),
                         new ResActParamMan(ParamMan.down, "set server status to DOWN after failed for `${down}` times"),
                         new ResActParamMan(ParamMan.protocol, "the protocol used for checking the servers, you may choose `tcp`, `none`", "tcp"),
-                        new ResActParamMan(ParamMan.method, "loadbalancing algorithm, you can choose `wrr`, `wlc`, `source`", "wrr"),
+                        new ResActParamMan(ParamMan.method, "loadbalancing algorithm, you can choose `wrr`, `wlc`, `source`, `p2c-ewma`", "wrr"),
                         new ResActParamMan(ParamMan.annotations, "extra info for the server-group, such as host info, health check url. Must be a json and values must be strings", "{}"),
                         new ResActParamMan(ParamMan.eventloopgroup, "choose a event-loop-group for the server group. health check operations will be performed on the event loop group", Application.DEFAULT_CONTROL_EVENT_LOOP_GROUP_NAME)
                     ),
@@ -749,7 +751,7 @@ public class HelpCommand {
                         new ResActParamMan(ParamMan.down, "set server status to DOWN after failed for `${down}` times", "not changed"),
                         new ResActParamMan(ParamMan.protocol, "the protocol used for checking the servers, you may choose `tcp`, `none`. " +
                             "Note: this field will be set to `tcp` as default when updating other hc options", "not changed"),
-                        new ResActParamMan(ParamMan.method, "loadbalancing algorithm, you can choose `wrr`, `wlc`, `source`", "not changed"),
+                        new ResActParamMan(ParamMan.method, "loadbalancing algorithm, you can choose `wrr`, `wlc`, `source`, `p2c-ewma`", "not changed"),
                         new ResActParamMan(ParamMan.weight, "the weight of group in the upstream resource (only available for server-group in upstream)", "not changed"),
                         new ResActParamMan(ParamMan.annotations, "annotation of the group itself, or the group in the upstream", "not changed")
                     ),
@@ -820,7 +822,7 @@ public class HelpCommand {
                 new ResActMan(ActMan.addto, "specify name, remote ip:port, weight, and attach the server into the server group",
                     Arrays.asList(
                         new ResActParamMan(ParamMan.address, "remote address, ip:port"),
-                        new ResActParamMan(ParamMan.weight, "weight of the server, which will be used by wrr, wlc and source algorithm", "10")
+                        new ResActParamMan(ParamMan.weight, "weight of the server, which will be used by wrr, wlc, source and p2c-ewma algorithm", "10")
                     ),
                     Collections.singletonList(
                         new Tuple<>(
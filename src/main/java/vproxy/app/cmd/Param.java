@@ -37,6 +37,7 @@ public enum Param {
     cert("cert"),
     key("key"),
     ck("cert-key"),
+    httpcachesize("http-cache-size"),
 
     mactabletimeout("mac-table-timeout"),
     arptabletimeout("arp-table-timeout"),
@@ -14,6 +14,7 @@ import vproxy.component.exception.XException;
 import vproxy.util.Callback;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
+import vproxy.util.ringbuffer.ssl.SSLTaskExecutor;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -42,7 +43,8 @@ public class SystemCommand {
         "\n                               address ${bind addr}" +
         "\n        System call: remove http-controller        stop http controller" +
         "\n        System call: list-detail http-controller   check http controller" +
-        "\n        System call: list config                   show current config";
+        "\n        System call: list config                   show current config" +
+        "\n        System call: list-detail ssl-task-executor check ssl handshake task queue and timing";
 
     public static boolean allowNonStdIOController = false;
 
@@ -201,6 +203,11 @@ public class SystemCommand {
                                 handleListController("http", true, cb);
                                 break outswitch;
                             }
+                        case "ssl-task-executor":
+                            if (arr.length == 2) {
+                                handleListSSLTaskExecutor(cb);
+                                break outswitch;
+                            }
                     }
                 }
                 cb.failed(new Exception("unknown or invalid system call `" + cmd + "`"));
@@ -213,6 +220,23 @@ public class SystemCommand {
         cb.succeeded(new CmdResult(config, lines, config));
     }
 
+    private static void handleListSSLTaskExecutor(Callback<CmdResult, ? super XException> cb) {
+        SSLTaskExecutor e = SSLTaskExecutor.get();
+        long completed = e.getCompletedCount();
+        List<String> lines = Arrays.asList(
+            "threads " + e.getThreads(),
+            "max-concurrent-handshakes-per-loop " + e.getMaxConcurrentHandshakesPerLoop(),
+            "queue-depth " + e.getQueueDepth(),
+            "running " + e.getRunning(),
+            "completed " + completed,
+            "failed " + e.getFailedCount(),
+            "avg-wait-us " + (completed == 0 ? 0 : e.getTotalWaitNanos() / completed / 1000),
+            "avg-run-us " + (completed == 0 ? 0 : e.getTotalRunNanos() / completed / 1000)
+        );
+        String str = String.join("\n", lines);
+        cb.succeeded(new CmdResult(e, lines, str));
+    }
+
     private static void handleAddController(String type, String[] arr, Callback<CmdResult, ? super Throwable> cb) {
         Command cmd;
         try {
@@ -0,0 +1,25 @@
+package vproxy.app.cmd.handle.param;
+
+import vproxy.app.cmd.Command;
+import vproxy.app.cmd.Param;
+import vproxy.component.exception.XException;
+
+public class HttpCacheSizeHandle {
+    private HttpCacheSizeHandle() {
+    }
+
+    public static void check(Command cmd) throws Exception {
+        long size;
+        try {
+            size = get(cmd);
+        } catch (Exception e) {
+            throw new XException("invalid " + Param.httpcachesize.fullname);
+        }
+        if (size < 0)
+            throw new XException("invalid " + Param.httpcachesize.fullname + ", should not be negative");
+    }
+
+    public static long get(Command cmd) {
+        return Long.parseLong(cmd.args.get(Param.httpcachesize));
+    }
+}
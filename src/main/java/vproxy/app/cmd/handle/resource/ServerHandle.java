@@ -99,6 +99,15 @@ public class ServerHandle {
              * google -> connect-to 216.58.197.238:443 weight 10 currently UP
              * or for logic deleted: add * before alias
              * *google -> host google.com connect-to 216.58.197.238:443 weight 10 currently UP
+             * and when backend tls is enabled, the handshake and resumption count are appended
+             * the passive outlier detection counters are always appended, e.g.
+             * ... connect-failures 0 resets 2 timeouts 0 consecutive-failures 0 ejections 1 currently EJECTED remaining 2900ms
+             * and the health check latency histogram if any check succeeded, e.g.
+             * ... hc-latency le1ms:20,le2ms:3
+             * and the average tcp handshake cost in microseconds (-1 means no data), e.g.
+             * ... dial-avg-us 820
+             * when the warm pool is enabled, the pool status and the average cost of retrieving a pooled connection are appended, e.g.
+             * ... warm-pool-idle 4 warm-pool-hits 100 warm-pool-misses 2 warm-pool-avg-us 35
              */
             return (h.isLogicDelete() ? "*" : "") + h.alias + " ->"
                 + (h.hostName == null ? "" : " host " + h.hostName /* now connected to */)
@@ -106,7 +115,21 @@ public class ServerHandle {
                 + " weight " + h.getWeight()
                 + " currently " + (h.healthy ? "UP" : "DOWN")
                 + " cost " + h.getHcCost()
-                + " down-reason " + h.getHcDownReason();
+                + " down-reason " + h.getHcDownReason()
+                + (h.isBackendTls() ? " tls-handshakes " + h.getTlsHandshakeCount() + " tls-resumed " + h.getTlsResumedHandshakeCount() : "")
+                + " connect-failures " + h.getConnectFailureCount()
+                + " resets " + h.getResetCount()
+                + " timeouts " + h.getTimeoutCount()
+                + " consecutive-failures " + h.getConsecutiveFailures()
+                + " ejections " + h.getEjectionCount()
+                + (h.isEjected() ? " currently EJECTED remaining " + h.getEjectionRemainingMillis() + "ms" : "")
+                + (h.getHcLatency().total() == 0 ? "" : " hc-latency " + h.getHcLatency())
+                + " dial-avg-us " + h.getAvgDialMicros()
+                + (h.getWarmPoolIdleCount() < 0 ? "" :
+                " warm-pool-idle " + h.getWarmPoolIdleCount()
+                    + " warm-pool-hits " + h.getWarmPoolHitCount()
+                    + " warm-pool-misses " + h.getWarmPoolMissCount()
+                    + " warm-pool-avg-us " + h.getAvgWarmPoolGetMicros());
         }
     }
 }
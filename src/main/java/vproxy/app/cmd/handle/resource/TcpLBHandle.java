@@ -6,6 +6,7 @@ import vproxy.app.cmd.Command;
 import vproxy.app.cmd.Param;
 import vproxy.app.cmd.Resource;
 import vproxy.app.cmd.handle.param.AddrHandle;
+import vproxy.app.cmd.handle.param.HttpCacheSizeHandle;
 import vproxy.app.cmd.handle.param.InBufferSizeHandle;
 import vproxy.app.cmd.handle.param.OutBufferSizeHandle;
 import vproxy.app.cmd.handle.param.TimeoutHandle;
@@ -16,6 +17,7 @@ import vproxy.component.exception.XException;
 import vproxy.component.secure.SecurityGroup;
 import vproxy.component.ssl.CertKey;
 import vproxy.component.svrgroup.Upstream;
+import vproxy.processor.http1.HttpCache;
 import vproxy.util.Utils;
 import vproxy.util.ringbuffer.ssl.VSSLContext;
 
@@ -53,6 +55,9 @@ public class TcpLBHandle {
 
         if (cmd.args.containsKey(Param.timeout))
             TimeoutHandle.get(cmd);
+
+        if (cmd.args.containsKey(Param.httpcachesize))
+            HttpCacheSizeHandle.check(cmd);
     }
 
     public static void checkUpdateTcpLB(Command cmd) throws Exception {
@@ -113,14 +118,24 @@ public class TcpLBHandle {
         }
         CertKey[] certKeys = null;
         if (cmd.args.containsKey(Param.ck)) {
+            if (protocol.equals("tls-passthrough")) {
+                throw new XException("cannot specify cert-key when protocol is tls-passthrough, the tls is terminated by the backends");
+            }
             String[] cks = cmd.args.get(Param.ck).split(",");
             certKeys = new CertKey[cks.length];
             for (int i = 0; i < cks.length; ++i) {
                 certKeys[i] = Application.get().certKeyHolder.get(cks[i]);
             }
         }
+        long httpCacheSize = 0;
+        if (cmd.args.containsKey(Param.httpcachesize)) {
+            httpCacheSize = HttpCacheSizeHandle.get(cmd);
+            if (httpCacheSize > 0 && !protocol.equals("http/1.x") && !protocol.equals("http")) {
+                throw new XException("cannot specify " + Param.httpcachesize.fullname + " when protocol is " + protocol + ", the cache is only for http/1.x and http");
+            }
+        }
         Application.get().tcpLBHolder.add(
-            alias, acceptor, worker, addr, backend, timeout, inBufferSize, outBufferSize, protocol, certKeys, secg
+            alias, acceptor, worker, addr, backend, timeout, inBufferSize, outBufferSize, protocol, certKeys, secg, httpCacheSize
         );
     }
 
@@ -173,7 +188,19 @@ public class TcpLBHandle {
                 + " timeout " + tcpLB.getTimeout()
                 + " in-buffer-size " + tcpLB.getInBufferSize() + " out-buffer-size " + tcpLB.getOutBufferSize()
                 + " protocol " + tcpLB.protocol
-                + " security-group " + tcpLB.securityGroup.alias;
+                + " security-group " + tcpLB.securityGroup.alias
+                + httpCacheStats();
+        }
+
+        private String httpCacheStats() {
+            HttpCache cache = tcpLB.httpCache;
+            if (cache == null) {
+                return "";
+            }
+            return " http-cache-size " + cache.capacity
+                + " http-cache-hit-ratio " + String.format("%.4f", cache.hitRatio())
+                + " http-cache-bytes " + cache.bytes()
+                + " http-cache-evictions " + cache.evictions();
         }
     }
 }
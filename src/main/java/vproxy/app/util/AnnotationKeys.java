@@ -8,4 +8,14 @@ public class AnnotationKeys {
     public static final String ServerGroup_HCHttpHost = "vproxy/hc-http-host";
     public static final String ServerGroup_HCHttpStatus = "vproxy/hc-http-status";
     public static final String ServerGroup_HCDnsDomain = "vproxy/hc-dns-domain";
+    public static final String ServerGroup_HCKeepAlive = "vproxy/hc-keepalive";
+    public static final String ServerGroup_BackendTls = "vproxy/backend-tls";
+    public static final String ServerGroup_SlowStart = "vproxy/slow-start";
+    public static final String ServerGroup_SlowStartFloor = "vproxy/slow-start-floor";
+    public static final String ServerGroup_SlowStartCurve = "vproxy/slow-start-curve";
+    public static final String ServerGroup_OutlierConsecutiveFailures = "vproxy/outlier-consecutive-failures";
+    public static final String ServerGroup_OutlierBaseEjectionTime = "vproxy/outlier-base-ejection-time";
+    public static final String ServerGroup_OutlierMaxEjectionPercent = "vproxy/outlier-max-ejection-percent";
+    public static final String ServerGroup_WarmPoolSize = "vproxy/warm-pool-size";
+    public static final String ServerGroup_WarmPoolMaxIdle = "vproxy/warm-pool-max-idle";
 }
@@ -70,6 +70,7 @@ public class HttpController {
                 .put("outBufferSize", 16384)
                 .putArray("listOfCertKey", arr -> arr.add("alias of the cert-key to be used"))
                 .put("securityGroup", "alias of the security group, default: (allow-all)")
+                .put("httpCacheSize", 0)
                 .build(),
             "name", "address", "backend"));
         server.put(moduleBase + "/tcp-lb/:tl", wrapAsync(this::updateTcpLb, new ObjectBuilder()
@@ -378,6 +379,10 @@ public class HttpController {
             options.add("security-group");
             options.add(body.getString("securityGroup"));
         }
+        if (bodyContainsKey(body, "httpCacheSize")) {
+            options.add("http-cache-size");
+            options.add("" + body.getLong("httpCacheSize"));
+        }
         utils.execute(cb, options);
     }
 
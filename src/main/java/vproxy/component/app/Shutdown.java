@@ -503,6 +503,9 @@ public class Shutdown {
                         cmd.append(",").append(tl.getCertKeys()[i].alias);
                     }
                 }
+                if (tl.httpCache != null) {
+                    cmd.append(" http-cache-size ").append(tl.httpCache.capacity);
+                }
                 commands.add(cmd.toString());
             }
         }
@@ -1,5 +1,6 @@
 package vproxy.component.app;
 
+import tlschannel.impl.TlsExplorer;
 import vproxy.app.Config;
 import vproxy.component.elgroup.EventLoopGroup;
 import vproxy.component.elgroup.EventLoopGroupAttach;
@@ -15,13 +16,24 @@ import vproxy.connection.*;
 import vproxy.processor.Hint;
 import vproxy.processor.Processor;
 import vproxy.processor.ProcessorProvider;
+import vproxy.processor.http.GeneralHttpProcessor;
+import vproxy.processor.http1.HttpCache;
+import vproxy.processor.http1.HttpProcessor;
+import vproxy.protocol.ProtocolHandler;
+import vproxy.protocol.ProtocolHandlerContext;
+import vproxy.util.Callback;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
+import vproxy.util.Tuple;
 import vproxy.util.ringbuffer.ssl.VSSLContext;
 
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.StandardConstants;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -65,6 +77,80 @@ public class TcpLB {
         }
     }
 
+    static class SNIPassthroughContext {
+        boolean done = false;
+    }
+
+    // peek the CLIENT_HELLO, use the SNI as the hint to choose a backend,
+    // and then proxy the raw tls bytes like a normal tcp lb
+    class SNIPassthroughHandler implements ProtocolHandler<Tuple<SNIPassthroughContext, Callback<Connector, IOException>>> {
+        @Override
+        public void init(ProtocolHandlerContext<Tuple<SNIPassthroughContext, Callback<Connector, IOException>>> ctx) {
+            assert Logger.lowLevelDebug("sni passthrough init " + ctx.connectionId);
+            ctx.data = new Tuple<>(new SNIPassthroughContext(), null);
+        }
+
+        @Override
+        public void readable(ProtocolHandlerContext<Tuple<SNIPassthroughContext, Callback<Connector, IOException>>> ctx) {
+            SNIPassthroughContext pctx = ctx.data.left;
+            if (pctx.done) {
+                return; // already handled
+            }
+            // the bytes are not consumed, they will be sent to the backend later
+            ByteBuffer clientHello = ByteBuffer.wrap(ctx.inBuffer.getBytes());
+            if (clientHello.remaining() < TlsExplorer.RECORD_HEADER_SIZE
+                || clientHello.remaining() < TlsExplorer.getRequiredSize(clientHello)) {
+                if (ctx.inBuffer.free() == 0) {
+                    String msg = "the CLIENT_HELLO is larger than the input buffer";
+                    Logger.error(LogType.INVALID_EXTERNAL_DATA, msg);
+                    pctx.done = true;
+                    ctx.data.right.failed(new IOException(msg));
+                }
+                assert Logger.lowLevelDebug("CLIENT_HELLO not fully received, wait for more data");
+                return;
+            }
+            String sni = null;
+            try {
+                SNIServerName sniServerName = TlsExplorer.explore(clientHello).get(StandardConstants.SNI_HOST_NAME);
+                if (sniServerName instanceof SNIHostName) {
+                    sni = ((SNIHostName) sniServerName).getAsciiName();
+                }
+            } catch (Throwable t) {
+                String msg = "decoding CLIENT_HELLO in TlsExplorer failed";
+                Logger.error(LogType.INVALID_EXTERNAL_DATA, msg, t);
+                pctx.done = true;
+                ctx.data.right.failed(new IOException(msg, t));
+                return;
+            }
+            assert Logger.lowLevelDebug("got sni from CLIENT_HELLO: " + sni);
+            pctx.done = true;
+            Hint hint = sni == null ? null : new Hint(sni);
+            // the connection will be closed by the proxy lib if connector is null
+            ctx.data.right.succeeded(connectorProvider(ctx.connection, hint));
+        }
+
+        @Override
+        public void exception(ProtocolHandlerContext<Tuple<SNIPassthroughContext, Callback<Connector, IOException>>> ctx, Throwable err) {
+            // connection should be closed by the protocol lib
+            assert Logger.lowLevelDebug("sni passthrough exception " + ctx.connectionId + ", " + err);
+        }
+
+        @Override
+        public void end(ProtocolHandlerContext<Tuple<SNIPassthroughContext, Callback<Connector, IOException>>> ctx) {
+            // connection is closed by the protocol lib
+            assert Logger.lowLevelDebug("sni passthrough end " + ctx.connectionId);
+        }
+
+        @Override
+        public boolean closeOnRemoval(ProtocolHandlerContext<Tuple<SNIPassthroughContext, Callback<Connector, IOException>>> ctx) {
+            if (ctx.data == null || ctx.data.left == null) {
+                return true;
+            }
+            // the connection will be proxied when done
+            return !ctx.data.left.done;
+        }
+    }
+
     public final String alias;
     public final EventLoopGroup acceptorGroup;
     public final EventLoopGroup workerGroup;
@@ -75,6 +161,8 @@ public class TcpLB {
     private int outBufferSize; // modifiable
     public final String protocol;
     public final Processor processor;
+    // cache of http responses, null if the protocol is not http or the cache is disabled
+    public final HttpCache httpCache;
     private VSSLContext sslContext;
     private CertKey[] certKeys;
     public SecurityGroup securityGroup;
@@ -115,6 +203,25 @@ public class TcpLB {
                  VSSLContext sslContext,
                  CertKey[] certKeys,
                  SecurityGroup securityGroup) throws AlreadyExistException, ClosedException {
+        this(alias, acceptorGroup, workerGroup, bindAddress, backend, timeout, inBufferSize, outBufferSize, protocol, sslContext, certKeys, securityGroup, 0);
+    }
+
+    /**
+     * @param httpCacheSize max bytes of http responses cached by the lb, 0 to disable the cache,
+     *                      only used when the protocol is http/1.x or http
+     */
+    public TcpLB(String alias,
+                 EventLoopGroup acceptorGroup,
+                 EventLoopGroup workerGroup,
+                 InetSocketAddress bindAddress,
+                 Upstream backend,
+                 int timeout,
+                 int inBufferSize, int outBufferSize,
+                 String protocol,
+                 VSSLContext sslContext,
+                 CertKey[] certKeys,
+                 SecurityGroup securityGroup,
+                 long httpCacheSize) throws AlreadyExistException, ClosedException {
         this.alias = alias;
         this.acceptorGroup = acceptorGroup;
         this.workerGroup = workerGroup;
@@ -124,7 +231,14 @@ public class TcpLB {
         this.inBufferSize = inBufferSize;
         this.outBufferSize = outBufferSize;
         this.protocol = protocol;
-        this.processor = (protocol.equals("tcp") ? null : ProcessorProvider.getInstance().get(protocol));
+        if (httpCacheSize > 0 && (protocol.equals("http/1.x") || protocol.equals("http"))) {
+            // the cache belongs to this lb, so create a new processor instead of the shared one
+            this.httpCache = new HttpCache(httpCacheSize, Config.httpCacheMaxEntrySize);
+            this.processor = protocol.equals("http") ? new GeneralHttpProcessor(httpCache) : new HttpProcessor(httpCache);
+        } else {
+            this.httpCache = null;
+            this.processor = (protocol.equals("tcp") || protocol.equals("tls-passthrough") || protocol.equals("h1-to-h2") ? null : ProcessorProvider.getInstance().get(protocol));
+        }
         this.sslContext = sslContext;
         this.certKeys = certKeys;
         this.securityGroup = securityGroup;
@@ -141,7 +255,51 @@ public class TcpLB {
     // this method can override
     protected ConnectorGen provideConnectorGen() {
         if (protocol.equals("tcp")) {
-            return this::connectorProvider;
+            return new ConnectorGen<Void>() {
+                @Override
+                public Connector genConnector(Connection accepted, Hint hint) {
+                    return connectorProvider(accepted, hint);
+                }
+
+                @Override
+                public Connector genRetryConnector(Connection accepted, List<Connector> failed) {
+                    return backend.nextExcluding(accepted.remote, failed);
+                }
+            };
+        } else if (protocol.equals("tls-passthrough")) {
+            return new ConnectorGen<SNIPassthroughContext>() {
+                @Override
+                public Type type() {
+                    return Type.handler;
+                }
+
+                @Override
+                public Connector genConnector(Connection accepted, Hint hint) {
+                    return connectorProvider(accepted, hint);
+                }
+
+                @Override
+                public Connector genRetryConnector(Connection accepted, List<Connector> failed) {
+                    return backend.nextExcluding(accepted.remote, failed);
+                }
+
+                @Override
+                public ProtocolHandler<Tuple<SNIPassthroughContext, Callback<Connector, IOException>>> handler() {
+                    return new SNIPassthroughHandler();
+                }
+            };
+        } else if (protocol.equals("h1-to-h2")) {
+            return new ConnectorGen<Void>() {
+                @Override
+                public Type type() {
+                    return Type.multiplex;
+                }
+
+                @Override
+                public Connector genConnector(Connection accepted, Hint hint) {
+                    return connectorProvider(accepted, hint);
+                }
+            };
         } else {
             return new ConnectorGen() {
                 @Override
@@ -21,6 +21,7 @@ import vproxy.connection.Connection;
 import vproxy.connection.ServerSock;
 import vproxy.dns.DNSServer;
 import vproxy.util.Callback;
+import vproxy.util.LatencyHistogram;
 import vproxy.util.Logger;
 import vproxy.util.Utils;
 import vserver.RoutingContext;
@@ -359,6 +360,29 @@ class utils {
             .put("status", svr.healthy ? "UP" : "DOWN")
             .put("cost", svr.getHcCost())
             .put("downReason", svr.getHcDownReason())
+            .put("tlsHandshakes", svr.getTlsHandshakeCount())
+            .put("tlsResumedHandshakes", svr.getTlsResumedHandshakeCount())
+            .put("connectFailures", svr.getConnectFailureCount())
+            .put("resets", svr.getResetCount())
+            .put("timeouts", svr.getTimeoutCount())
+            .put("consecutiveFailures", svr.getConsecutiveFailures())
+            .put("ejections", svr.getEjectionCount())
+            .put("ejected", svr.isEjected())
+            .put("ejectionRemaining", svr.getEjectionRemainingMillis())
+            .put("avgDialMicros", svr.getAvgDialMicros())
+            .put("warmPoolIdle", svr.getWarmPoolIdleCount())
+            .put("warmPoolHits", svr.getWarmPoolHitCount())
+            .put("warmPoolMisses", svr.getWarmPoolMissCount())
+            .put("avgWarmPoolMicros", svr.getAvgWarmPoolGetMicros())
+            .putArray("hcLatency", arr -> {
+                long[] bounds = LatencyHistogram.bounds();
+                long[] counts = svr.getHcLatency().counts();
+                for (int i = 0; i < counts.length; ++i) {
+                    long le = i < bounds.length ? bounds[i] : -1;
+                    long n = counts[i];
+                    arr.addObject(o -> o.put("le", le).put("count", n));
+                }
+            })
             .build();
     }
 
@@ -379,7 +403,7 @@ class utils {
         return new ObjectBuilder()
             .put("name", sg.alias)
             .put("weight", sg.getWeight())
-            .putInst("annotations", formatAnnotations(sg.annotations))
+            .putInst("annotations", formatAnnotations(sg.getAnnotations()))
             .build();
     }
 
@@ -387,7 +411,7 @@ class utils {
         return new ObjectBuilder()
             .put("name", sg.alias)
             .put("weight", sg.getWeight())
-            .putInst("annotations", formatAnnotations(sg.annotations))
+            .putInst("annotations", formatAnnotations(sg.getAnnotations()))
             .putInst("serverGroup", formatServerGroupDetail(sg.group))
             .build();
     }
@@ -497,7 +521,7 @@ class utils {
             }
             listOfCertKey = arr.build();
         }
-        return new ObjectBuilder()
+        ObjectBuilder builder = new ObjectBuilder()
             .put("name", tl.alias)
             .put("address", Utils.l4addrStr(tl.bindAddress))
             .put("protocol", tl.protocol)
@@ -507,8 +531,13 @@ class utils {
             .put("inBufferSize", tl.getInBufferSize())
             .put("outBufferSize", tl.getOutBufferSize())
             .putInst("listOfCertKey", listOfCertKey)
-            .putInst("securityGroup", formatSecurityGroupDetail(tl.securityGroup))
-            .build();
+            .putInst("securityGroup", formatSecurityGroupDetail(tl.securityGroup));
+        if (tl.httpCache != null) {
+            builder.put("httpCacheHitRatio", tl.httpCache.hitRatio())
+                .put("httpCacheBytes", tl.httpCache.bytes())
+                .put("httpCacheEvictions", tl.httpCache.evictions());
+        }
+        return builder.build();
     }
 
     static JSON.Object formatSecurityGroup(SecurityGroup secg) {
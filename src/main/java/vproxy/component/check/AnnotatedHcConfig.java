@@ -11,6 +11,7 @@ public class AnnotatedHcConfig {
     private String httpHost;
     private String httpStatus;
     private String dnsDomain;
+    private boolean keepAlive;
 
     public void clear() {
         httpMethod = null;
@@ -18,6 +19,7 @@ public class AnnotatedHcConfig {
         httpHost = null;
         httpStatus = null;
         dnsDomain = null;
+        keepAlive = false;
     }
 
     public void set(Map<String, String> map) {
@@ -42,6 +44,7 @@ public class AnnotatedHcConfig {
         httpStatus = x;
 
         dnsDomain = map.get(AnnotationKeys.ServerGroup_HCDnsDomain);
+        keepAlive = "true".equals(map.get(AnnotationKeys.ServerGroup_HCKeepAlive));
     }
 
     public String getHttpMethod() {
@@ -60,6 +63,11 @@ public class AnnotatedHcConfig {
         return httpUrl == null ? "/" : httpUrl;
     }
 
+    // reuse the connection for http and tcp-delay checks
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
     public String getDnsDomain() {
         return dnsDomain == null ? Config.domainWhichShouldResolve : dnsDomain;
     }
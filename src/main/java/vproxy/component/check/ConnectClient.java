@@ -167,42 +167,159 @@ public class ConnectClient {
             assert resp != null;
             int status = resp.statusCode;
             cancelTimers();
-            if (status < 100 || status >= 600) {
+            if (isExpectedStatus(status)) {
+                closeAndCallSucc(ctx);
+            } else {
                 closeAndCallFail(ctx, "unexpected http response status " + status);
-                return;
             }
-            String expectedStatus = annotatedHcConfig.getHttpStatus();
-            if (status < 200) {
-                if (expectedStatus.contains("1xx")) {
-                    closeAndCallSucc(ctx);
-                    return;
-                }
-            } else if (status < 300) {
-                if (expectedStatus.contains("2xx")) {
-                    closeAndCallSucc(ctx);
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            // ignore event, data will flush
+        }
+    }
+
+    // the connection is kept after a successful check and reused by the next check.
+    // for http, the request is sent again on the connection,
+    // for tcp-delay, the check succeeds if the connection is not closed or reset by the remote
+    class KeepAliveConnectableConnectionHandler implements ConnectableConnectionHandler {
+        private final ConnectableConnection conn;
+        private boolean connected = false;
+        private boolean dead = false;
+        private Callback<Void, IOException> callback; // null when not checking
+        private TimerEvent timeoutEvent;
+        private TimerEvent delayEvent;
+        private HttpRespParser parser;
+
+        KeepAliveConnectableConnectionHandler(ConnectableConnection conn) {
+            this.conn = conn;
+        }
+
+        void check(Callback<Void, IOException> cb) {
+            callback = cb;
+            timeoutEvent = eventLoop.getSelectorEventLoop().delay(timeout, () -> {
+                assert Logger.lowLevelDebug("timeout when doing keep-alive health check " + conn);
+                fail(new InterruptedByTimeoutException());
+            });
+            if (checkProtocol == CheckProtocol.http) {
+                ByteArray req = httpRequest();
+                if (conn.getOutBuffer().free() < req.length()) {
+                    fail(new IOException("the http request is too long for the kept connection"));
                     return;
                 }
-            } else if (status < 400) {
-                if (expectedStatus.contains("3xx")) {
-                    closeAndCallSucc(ctx);
-                    return;
+                parser = new HttpRespParser(true);
+                conn.getOutBuffer().storeBytesFrom(ByteArrayChannel.fromFull(req));
+            } else {
+                assert checkProtocol == CheckProtocol.tcpDelay;
+                if (connected) {
+                    // the connection is still open
+                    succeed();
                 }
-            } else if (status < 500) {
-                if (expectedStatus.contains("4xx")) {
-                    closeAndCallSucc(ctx);
+                // otherwise wait for the connection to establish
+            }
+        }
+
+        @Override
+        public void connected(ConnectableConnectionHandlerContext ctx) {
+            connected = true;
+            if (checkProtocol == CheckProtocol.tcpDelay && callback != null) {
+                // the same as the tcp-delay check without keep-alive
+                delayEvent = eventLoop.getSelectorEventLoop().delay(50, this::succeed);
+            }
+            // the http request will flush
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            RingBuffer inBuf = ctx.connection.getInBuffer();
+            if (checkProtocol != CheckProtocol.http) {
+                // the remote endpoint is alive, the data is not used
+                ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(inBuf.used());
+                inBuf.writeTo(chnl);
+                if (callback != null) {
+                    succeed();
                 }
-            } else {
-                if (expectedStatus.contains("5xx")) {
-                    closeAndCallSucc(ctx);
+                return;
+            }
+            if (callback == null) {
+                fail(new IOException("unexpected data on kept connection"));
+                return;
+            }
+            int res = parser.feed(inBuf);
+            if (res == -1) {
+                String err = parser.getErrorMessage();
+                if (err == null) {
+                    return; // wait for more data
                 }
+                fail(new IOException("response not http: " + err));
+                return;
+            }
+            Response resp = parser.getResult();
+            assert resp != null;
+            if (!isExpectedStatus(resp.statusCode)) {
+                fail(new IOException("unexpected http response status " + resp.statusCode));
+                return;
+            }
+            succeed();
+            if (!isKeepAlive(resp)) {
+                dead = true;
+                conn.close(true);
             }
-            closeAndCallFail(ctx, "unexpected http response status " + status);
         }
 
         @Override
         public void writable(ConnectionHandlerContext ctx) {
             // ignore event, data will flush
         }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            assert Logger.lowLevelDebug("exception on kept health check connection, conn = " + ctx.connection + ", err = " + err);
+            fail(err);
+        }
+
+        @Override
+        public void remoteClosed(ConnectionHandlerContext ctx) {
+            fail(new IOException("remote closed"));
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            fail(new IOException("remote closed"));
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            fail(new IOException("removed from loop"));
+        }
+
+        private void cancelTimers() {
+            if (timeoutEvent != null) {
+                timeoutEvent.cancel();
+                timeoutEvent = null;
+            }
+            if (delayEvent != null) {
+                delayEvent.cancel();
+                delayEvent = null;
+            }
+        }
+
+        private void succeed() {
+            cancelTimers();
+            Callback<Void, IOException> cb = callback;
+            callback = null;
+            if (cb != null && !cb.isCalled() && !stopped) cb.succeeded(null);
+        }
+
+        void fail(IOException err) {
+            cancelTimers();
+            Callback<Void, IOException> cb = callback;
+            callback = null;
+            dead = true;
+            conn.close(true);
+            if (cb != null && !cb.isCalled() && !stopped) cb.failed(err);
+        }
     }
 
     public final NetEventLoop eventLoop;
@@ -213,6 +330,8 @@ public class ConnectClient {
     private boolean stopped = false;
     private final Consumer<Callback<Void, IOException>> handleFunc;
 
+    private KeepAliveConnectableConnectionHandler keptConnection = null;
+
     private DatagramFD dnsSocket = null;
     private DNSClient dnsClient = null;
 
@@ -306,8 +425,70 @@ public class ConnectClient {
         });
     }
 
-    private void handleHttp(Callback<Void, IOException> cb) {
-        // http request
+    private boolean isExpectedStatus(int status) {
+        if (status < 100 || status >= 600)
+            return false;
+        return annotatedHcConfig.getHttpStatus().contains((status / 100) + "xx");
+    }
+
+    // the connection can be reused if the response length is known and the server does not close it
+    private static boolean isKeepAlive(Response resp) {
+        if (!"HTTP/1.1".equals(resp.version))
+            return false;
+        boolean lengthKnown = resp.statusCode < 200 || resp.statusCode == 204 || resp.statusCode == 304;
+        if (resp.headers != null) {
+            for (Header h : resp.headers) {
+                String key = h.key.trim().toLowerCase();
+                if (key.equals("connection") && h.value.trim().equalsIgnoreCase("close"))
+                    return false;
+                if (key.equals("content-length") || key.equals("transfer-encoding")) {
+                    lengthKnown = true;
+                }
+            }
+        }
+        return lengthKnown;
+    }
+
+    private void handleKeepAlive(Callback<Void, IOException> cb) {
+        KeepAliveConnectableConnectionHandler h = keptConnection;
+        if (h == null || h.dead) {
+            // connect to remote
+            ConnectableConnection conn;
+            try {
+                conn = ConnectableConnection.create(remote, ConnectionOpts.getDefault(),
+                    // the input buffer should be large enough to avoid too many events
+                    RingBuffer.allocate(checkProtocol == CheckProtocol.http ? 1024 : 1),
+                    checkProtocol == CheckProtocol.http ? RingBuffer.allocate(4096) : RingBuffer.EMPTY_BUFFER);
+            } catch (IOException e) {
+                if (!stopped) cb.failed(e);
+                return;
+            }
+            h = new KeepAliveConnectableConnectionHandler(conn);
+            try {
+                eventLoop.addConnectableConnection(conn, null, h);
+            } catch (IOException e) {
+                conn.close(true);
+                if (!stopped) cb.failed(e);
+                return;
+            }
+            keptConnection = h;
+        }
+        h.check(cb);
+    }
+
+    private void closeKeptConnection() {
+        KeepAliveConnectableConnectionHandler h = keptConnection;
+        if (h != null) {
+            keptConnection = null;
+            eventLoop.getSelectorEventLoop().runOnLoop(() -> {
+                h.dead = true;
+                h.cancelTimers();
+                h.conn.close(true);
+            });
+        }
+    }
+
+    private ByteArray httpRequest() {
         Request req = new Request();
         req.method = annotatedHcConfig.getHttpMethod();
         req.uri = annotatedHcConfig.getHttpUrl();
@@ -320,7 +501,12 @@ public class ConnectClient {
         } else {
             req.headers.add(new Header("Host", host));
         }
-        ByteArray bytes = req.toByteArray();
+        return req.toByteArray();
+    }
+
+    private void handleHttp(Callback<Void, IOException> cb) {
+        // http request
+        ByteArray bytes = httpRequest();
         RingBuffer sendBuffer = RingBuffer.allocate(bytes.length());
         sendBuffer.storeBytesFrom(ByteArrayChannel.fromFull(bytes));
         // expecting response HTTP/1.? ??? ......
@@ -350,7 +536,15 @@ public class ConnectClient {
 
     public void handle(Callback<ConnectResult, IOException> cb) {
         long start = FDProvider.get().currentTimeMillis(); // need precise time, so do not use time recorded in Config
-        this.handleFunc.accept(new Callback<>() {
+        Consumer<Callback<Void, IOException>> handleFunc = this.handleFunc;
+        if (checkProtocol == CheckProtocol.http || checkProtocol == CheckProtocol.tcpDelay) {
+            if (annotatedHcConfig.isKeepAlive()) {
+                handleFunc = this::handleKeepAlive;
+            } else {
+                closeKeptConnection(); // the annotation may be removed
+            }
+        }
+        handleFunc.accept(new Callback<>() {
             @Override
             protected void onSucceeded(Void value) {
                 cb.succeeded(new ConnectResult(
@@ -365,8 +559,13 @@ public class ConnectClient {
         });
     }
 
+    public void start() {
+        stopped = false;
+    }
+
     public void stop() {
         stopped = true;
+        closeKeptConnection();
         if (dnsClient != null) {
             dnsClient.close();
             dnsClient = null;
@@ -70,9 +70,13 @@ public class HealthCheckClient {
     private int currentDown = 0;
     private boolean nowIsUp;
 
+    private final HealthCheckScheduler scheduler = HealthCheckScheduler.get();
     private TimerEvent periodTimer;
+    private Runnable probeDone; // release the scheduler slot of the running probe
 
     private boolean stopped = true;
+    // increased when starting, so probes and timers left by the previous start are dropped
+    private int generation = 0;
 
     public HealthCheckClient(NetEventLoop eventLoop,
                              InetSocketAddress remote,
@@ -101,37 +105,64 @@ public class HealthCheckClient {
         if (!stopped)
             return;
         stopped = false;
-        doCheck(this::periodic);
+        int gen = ++generation;
+        connectClient.start();
+        // check immediately, so that a new server can turn UP soon,
+        // then start the period from a random time, so that servers added together are spread across the period
+        doCheck(gen, () -> periodic(gen, scheduler.firstDelay(period)));
     }
 
-    private void doCheck(Runnable cb) {
+    private void doCheck(int gen, Runnable cb) {
         if (stopped) {
             doStop();
             return;
         }
+        if (gen != generation) {
+            return;
+        }
 
-        connectClient.handle(new Callback<>() {
-            @Override
-            protected void onSucceeded(ConnectResult result) {
-                connectResultHandler.onSucceeded(result);
-                cb.run();
+        scheduler.run(connectClient.eventLoop.getSelectorEventLoop(), done -> {
+            // the probe may wait in the scheduler until the client is stopped and started again
+            if (stopped || gen != generation) {
+                done.run();
+                return;
             }
+            probeDone = done;
+            connectClient.handle(new Callback<>() {
+                @Override
+                protected void onSucceeded(ConnectResult result) {
+                    done.run();
+                    if (gen != generation) {
+                        return;
+                    }
+                    connectResultHandler.onSucceeded(result);
+                    cb.run();
+                }
 
-            @Override
-            protected void onFailed(IOException err) {
-                String reason = err.getClass().getSimpleName();
-                String msg = err.getMessage();
-                if (msg != null && !msg.isBlank()) {
-                    reason = reason + ": " + msg;
+                @Override
+                protected void onFailed(IOException err) {
+                    done.run();
+                    if (gen != generation) {
+                        return;
+                    }
+                    String reason = err.getClass().getSimpleName();
+                    String msg = err.getMessage();
+                    if (msg != null && !msg.isBlank()) {
+                        reason = reason + ": " + msg;
+                    }
+                    connectResultHandler.onFailed(reason);
+                    cb.run();
                 }
-                connectResultHandler.onFailed(reason);
-                cb.run();
-            }
+            });
         });
     }
 
-    private void periodic() {
-        periodTimer = connectClient.eventLoop.getSelectorEventLoop().delay(period, () -> doCheck(this::periodic));
+    private void periodic(int gen, int delay) {
+        if (stopped || gen != generation) {
+            return;
+        }
+        periodTimer = connectClient.eventLoop.getSelectorEventLoop().delay(delay,
+            () -> doCheck(gen, () -> periodic(gen, scheduler.nextDelay(period))));
     }
 
     public void stop() {
@@ -147,6 +178,12 @@ public class HealthCheckClient {
         }
         connectClient.stop();
         periodTimer = null;
+        // the callback will not be called after the connect client stops
+        Runnable done = probeDone;
+        if (done != null) {
+            probeDone = null;
+            done.run();
+        }
     }
 
     // call this method
@@ -0,0 +1,132 @@
+package vproxy.component.check;
+
+import vproxy.app.Config;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.Logger;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * schedule the health check probes of all server groups.<br>
+ * the probes are spread across the period with jitter, so servers added at the same time
+ * do not keep checking at the same time.<br>
+ * the number of probes running at the same time is limited for each loop,
+ * probes exceeding the limit wait in the pending queue of the loop
+ */
+public class HealthCheckScheduler {
+    private static final HealthCheckScheduler instance = new HealthCheckScheduler(Config.hcMaxConcurrentProbesPerLoop);
+
+    public static HealthCheckScheduler get() {
+        return instance;
+    }
+
+    // the delay of each period is randomly changed within this percentage
+    private static final int JITTER_PERCENT = 10;
+
+    private static class LoopProbes {
+        int running = 0;
+        final Deque<Consumer<Runnable>> pending = new LinkedList<>();
+    }
+
+    // release the slot of a probe, only the first call takes effect
+    private class Slot implements Runnable {
+        private final SelectorEventLoop loop;
+        private final LoopProbes probes;
+        private boolean released = false;
+
+        Slot(SelectorEventLoop loop, LoopProbes probes) {
+            this.loop = loop;
+            this.probes = probes;
+        }
+
+        @Override
+        public void run() {
+            Consumer<Runnable> next;
+            synchronized (probes) {
+                if (released)
+                    return;
+                released = true;
+                next = probes.pending.poll();
+                if (next == null) {
+                    --probes.running;
+                    return;
+                }
+                // keep the running count because the slot is taken by the polled probe
+            }
+            Slot slot = new Slot(loop, probes);
+            loop.runOnLoop(() -> next.accept(slot));
+        }
+    }
+
+    private final int maxConcurrentPerLoop;
+    // loop => probes of the loop
+    private final Map<SelectorEventLoop, LoopProbes> loopProbes = Collections.synchronizedMap(new WeakHashMap<>());
+
+    HealthCheckScheduler(int maxConcurrentPerLoop) {
+        this.maxConcurrentPerLoop = maxConcurrentPerLoop;
+    }
+
+    /**
+     * @param period the check period
+     * @return the delay before the second check, the first check runs when the client starts
+     */
+    int firstDelay(int period) {
+        return ThreadLocalRandom.current().nextInt(Math.max(period, 1)) + 1;
+    }
+
+    /**
+     * @param period the check period
+     * @return the delay before the next check
+     */
+    int nextDelay(int period) {
+        int jitter = (int) ((long) period * JITTER_PERCENT / 100);
+        if (jitter == 0)
+            return period;
+        return Math.max(1, period - jitter + ThreadLocalRandom.current().nextInt(jitter * 2 + 1));
+    }
+
+    /**
+     * run the probe when the loop has a free slot
+     *
+     * @param loop  the loop running the probe
+     * @param probe the probe, accepts a runnable which must be called when the probe is done,
+     *              it's ok to call the runnable more than once
+     */
+    void run(SelectorEventLoop loop, Consumer<Runnable> probe) {
+        LoopProbes probes = loopProbes.computeIfAbsent(loop, k -> new LoopProbes());
+        synchronized (probes) {
+            if (probes.running >= maxConcurrentPerLoop) {
+                assert Logger.lowLevelDebug("concurrent health check probes of " + loop + " reaches the limit " + maxConcurrentPerLoop + ", pending");
+                probes.pending.add(probe);
+                return;
+            }
+            ++probes.running;
+        }
+        probe.accept(new Slot(loop, probes));
+    }
+
+    /**
+     * @return count of probes waiting for a free slot
+     */
+    public int getPendingCount() {
+        int n = 0;
+        synchronized (loopProbes) {
+            for (LoopProbes p : loopProbes.values()) {
+                synchronized (p) {
+                    n += p.pending.size();
+                }
+            }
+        }
+        return n;
+    }
+
+    public int getMaxConcurrentProbesPerLoop() {
+        return maxConcurrentPerLoop;
+    }
+}
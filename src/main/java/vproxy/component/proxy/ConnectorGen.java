@@ -9,12 +9,14 @@ import vproxy.util.Callback;
 import vproxy.util.Tuple;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface ConnectorGen<T> {
     enum Type {
         direct, // directly proxy
         handler, // do some handshake then proxy
         processor, // keep processing the connection
+        multiplex, // translate http/1.x requests into streams of http/2 connections shared on the event loop
     }
 
     default Type type() {
@@ -23,6 +25,13 @@ public interface ConnectorGen<T> {
 
     Connector genConnector(Connection accepted, Hint hint);
 
+    // provide another connector when the connectors in `failed` failed to connect,
+    // the endpoints of the failed connectors should not be provided again.
+    // return null if there's no other choice, the proxy will not retry in this case
+    default Connector genRetryConnector(Connection accepted, List<Connector> failed) {
+        return null;
+    }
+
     // the handler should set Tuple<T, null> to the context when init()
     // and the Callback object will be set by the Proxy lib
     default ProtocolHandler<Tuple<T, Callback<Connector, IOException>>> handler() {
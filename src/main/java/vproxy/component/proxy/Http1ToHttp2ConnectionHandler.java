@@ -0,0 +1,353 @@
+package vproxy.component.proxy;
+
+import vproxy.app.Config;
+import vproxy.connection.*;
+import vproxy.processor.Hint;
+import vproxy.processor.http1.HttpContext;
+import vproxy.processor.http1.HttpSubContext;
+import vproxy.processor.http1.entity.Request;
+import vproxy.processor.http2.Header;
+import vproxy.util.*;
+import vproxy.util.nio.ByteArrayChannel;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedList;
+
+/**
+ * handles an http/1.x frontend connection, each request is sent as a stream
+ * of the http/2 connections shared on the event loop, see {@link SharedHttp2Connections}<br>
+ * pipelined requests are sent concurrently, and the responses are written in the order of the requests
+ */
+class Http1ToHttp2ConnectionHandler implements ConnectionHandler {
+    private static final ByteArray EMPTY = ByteArray.from(new byte[0]);
+
+    private final ProxyNetConfig config;
+    private final NetEventLoop loop;
+    private final Connection frontendConnection;
+    private final HttpSubContext parser;
+    private final Header[] additionalHeaders;
+
+    // requests waiting for responses, in request order
+    private final Deque<Pending> pendings = new ArrayDeque<>();
+    // bytes fed into the parser for the current request
+    private int requestBytes = 0;
+    // no more requests will be read, e.g. the last request asks to close the connection
+    private boolean noMoreRequests = false;
+    private boolean readScheduled = false;
+    private boolean closed = false;
+
+    Http1ToHttp2ConnectionHandler(ProxyNetConfig config, NetEventLoop loop, Connection frontendConnection) {
+        this.config = config;
+        this.loop = loop;
+        this.frontendConnection = frontendConnection;
+        this.parser = new HttpSubContext(new HttpContext(frontendConnection.remote), 0);
+        this.parser.setParserMode();
+        this.parser.setMaxBodyLength(Config.h1ToH2MaxRequestSize);
+        this.additionalHeaders = new Header[]{
+            new Header("x-forwarded-for", Utils.ipStr(frontendConnection.remote.getAddress().getAddress())),
+            new Header("x-client-port", "" + frontendConnection.remote.getPort()),
+        };
+    }
+
+    private static class Segment {
+        final ByteArrayChannel chnl;
+        final int consumed; // flow controlled bytes returned to the backend when the segment is written
+
+        Segment(ByteArrayChannel chnl, int consumed) {
+            this.chnl = chnl;
+            this.consumed = consumed;
+        }
+    }
+
+    private class Pending implements SharedHttp2Connections.StreamHandler {
+        final Deque<Segment> segments = new LinkedList<>();
+        boolean closeAfter;
+        SharedHttp2Connections.Stream stream;
+        boolean responded = false;
+        boolean done = false;
+
+        Pending(boolean closeAfter) {
+            this.closeAfter = closeAfter;
+        }
+
+        @Override
+        public void response(ByteArray data, int consumed, boolean end) {
+            responded = true;
+            done = end;
+            segments.add(new Segment(data.toFullChannel(), consumed));
+            writeFrontend();
+        }
+
+        @Override
+        public void closeDelimited() {
+            assert Logger.lowLevelDebug("the response body of " + frontendConnection + " is delimited by closing the connection");
+            closeAfter = true;
+            noMoreRequests = true;
+        }
+
+        @Override
+        public void error(String reason) {
+            assert Logger.lowLevelDebug("stream of " + frontendConnection + " failed: " + reason);
+            if (responded) {
+                // the response is partially written, the frontend can only know the failure by closing
+                closeAll();
+                return;
+            }
+            respond(502);
+        }
+
+        void respond(int status) {
+            String reason = HttpStatusCodeReasonMap.get(status);
+            segments.add(new Segment(ByteArray.from(("" +
+                "HTTP/1.1 " + status + " " + reason + "\r\n" +
+                "Connection: close\r\n" +
+                "Content-Length: 0\r\n" +
+                "\r\n").getBytes()).toFullChannel(), 0));
+            responded = true;
+            done = true;
+            closeAfter = true;
+            noMoreRequests = true;
+            writeFrontend();
+        }
+    }
+
+    private void readFrontend() {
+        while (!closed && !noMoreRequests) {
+            if (pendings.size() >= Config.processorMaxPipelinedRequests) {
+                return; // continue when responses are written
+            }
+            ByteArray data;
+            if (parser.len() == 0) {
+                data = EMPTY; // handle the pipelined requests
+            } else {
+                RingBuffer inBuffer = frontendConnection.getInBuffer();
+                if (inBuffer.used() == 0) {
+                    return;
+                }
+                ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(inBuffer.used());
+                inBuffer.writeTo(chnl);
+                data = chnl.getArray();
+            }
+            requestBytes += data.length();
+            try {
+                parser.feed(data);
+            } catch (Exception e) {
+                assert Logger.lowLevelDebug("invalid request from " + frontendConnection + ": " + e);
+                Pending p = new Pending(true);
+                pendings.add(p);
+                p.respond(requestBytes > Config.h1ToH2MaxRequestSize ? 413 : 400);
+                return;
+            }
+            if (parser.isIdle()) {
+                requestBytes = 0;
+                dispatch(parser.getReq());
+            } else if (requestBytes > Config.h1ToH2MaxRequestSize) {
+                assert Logger.lowLevelDebug("request from " + frontendConnection + " is too large");
+                Pending p = new Pending(true);
+                pendings.add(p);
+                p.respond(413);
+                return;
+            }
+        }
+    }
+
+    private static boolean closeAfter(Request req) {
+        boolean http10 = "HTTP/1.0".equals(req.version);
+        if (req.headers != null) {
+            for (var h : req.headers) {
+                if (h.key.trim().equalsIgnoreCase("connection")) {
+                    String v = h.value.trim();
+                    if (v.equalsIgnoreCase("close")) {
+                        return true;
+                    }
+                    if (v.equalsIgnoreCase("keep-alive")) {
+                        http10 = false;
+                    }
+                }
+            }
+        }
+        return http10;
+    }
+
+    private static String header(Request req, String key) {
+        if (req.headers == null) {
+            return null;
+        }
+        for (var h : req.headers) {
+            if (h.key.trim().equalsIgnoreCase(key)) {
+                return h.value.trim();
+            }
+        }
+        return null;
+    }
+
+    private static Hint hint(Request req) {
+        String host = header(req, "host");
+        if (host == null) {
+            return null;
+        }
+        if (host.contains(":")) { // remove port in Host header
+            host = host.substring(0, host.lastIndexOf(":"));
+        }
+        if (Utils.isIpLiteral(host)) {
+            return null; // no hint if requesting directly using ip
+        }
+        if (host.startsWith("www.")) { // remove www. convention
+            host = host.substring("www.".length());
+        }
+        return new Hint(host);
+    }
+
+    private void dispatch(Request req) {
+        assert Logger.lowLevelDebug("got request " + req.method + " " + req.uri + " from " + frontendConnection);
+        Pending p = new Pending(closeAfter(req));
+        pendings.add(p);
+        if (p.closeAfter) {
+            noMoreRequests = true;
+        }
+        if (req.method.equals("CONNECT") || header(req, "upgrade") != null) {
+            // cannot be translated into an http/2 stream
+            p.respond(501);
+            return;
+        }
+        Connector connector = config.connGen.genConnector(frontendConnection, hint(req));
+        if (connector == null) {
+            assert Logger.lowLevelDebug("no available backend for " + frontendConnection);
+            p.respond(503);
+            return;
+        }
+        try {
+            // the shared connections are retrieved on the loop thread
+            p.stream = SharedHttp2Connections.get(loop).open(connector, config.timeout, config.inBufferSize, config.outBufferSize,
+                req, additionalHeaders, p);
+        } catch (IOException e) {
+            Logger.error(LogType.CONN_ERROR, "make h2 stream to " + connector + " failed", e);
+            connector.connectionFailed();
+            p.respond(502);
+        }
+    }
+
+    private void writeFrontend() {
+        if (closed) {
+            return;
+        }
+        RingBuffer outBuffer = frontendConnection.getOutBuffer();
+        boolean popped = false;
+        Pending p;
+        while ((p = pendings.peek()) != null) {
+            Segment s;
+            while ((s = p.segments.peek()) != null) {
+                // the writable callback must not run inside this loop
+                ByteArrayChannel chnl = s.chnl;
+                frontendConnection.runNoQuickWrite(() -> outBuffer.storeBytesFrom(chnl));
+                if (chnl.used() != 0) {
+                    return; // the buffer is full, continue when writable
+                }
+                p.segments.poll();
+                if (s.consumed > 0) {
+                    p.stream.consumed(s.consumed);
+                }
+            }
+            if (!p.done) {
+                return;
+            }
+            pendings.poll();
+            popped = true;
+            if (p.closeAfter) {
+                assert Logger.lowLevelDebug("the response requires to close " + frontendConnection);
+                closeAfterFlushed();
+                return;
+            }
+        }
+        if (frontendConnection.isRemoteClosed()) {
+            closeAfterFlushed();
+            return;
+        }
+        if (popped && !readScheduled) {
+            // may be called in callbacks of the backend connection, so read in the next tick
+            readScheduled = true;
+            loop.getSelectorEventLoop().nextTick(() -> {
+                readScheduled = false;
+                readFrontend();
+            });
+        }
+    }
+
+    private void closeAfterFlushed() {
+        noMoreRequests = true;
+        for (Pending p : pendings) {
+            if (p.stream != null) {
+                p.stream.cancel();
+            }
+        }
+        pendings.clear();
+        if (frontendConnection.getOutBuffer().used() == 0) {
+            closeAll();
+        } else {
+            // the connection will be closed when the remote closes
+            frontendConnection.closeWrite();
+        }
+    }
+
+    private void closeAll() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        assert Logger.lowLevelDebug("close frontend connection " + frontendConnection);
+        for (Pending p : pendings) {
+            if (p.stream != null) {
+                p.stream.cancel();
+            }
+        }
+        pendings.clear();
+        // other connections may be handling their callbacks, so close it in the next tick
+        loop.getSelectorEventLoop().nextTick(() -> {
+            frontendConnection.close();
+            frontendConnection.getInBuffer().clean();
+            frontendConnection.getOutBuffer().clean();
+        });
+    }
+
+    @Override
+    public void readable(ConnectionHandlerContext ctx) {
+        readFrontend();
+    }
+
+    @Override
+    public void writable(ConnectionHandlerContext ctx) {
+        writeFrontend();
+    }
+
+    @Override
+    public void exception(ConnectionHandlerContext ctx, IOException err) {
+        Logger.error(LogType.CONN_ERROR, "connection got exception", err);
+        closeAll();
+    }
+
+    @Override
+    public void remoteClosed(ConnectionHandlerContext ctx) {
+        assert Logger.lowLevelDebug("frontend connection " + ctx.connection + " remoteClosed");
+        noMoreRequests = true;
+        if (pendings.isEmpty() || frontendConnection.isWriteClosed()) {
+            closeAll();
+        }
+        // otherwise write the responses then close
+    }
+
+    @Override
+    public void closed(ConnectionHandlerContext ctx) {
+        assert Logger.lowLevelDebug("frontend connection is closed: " + frontendConnection);
+        closeAll();
+    }
+
+    @Override
+    public void removed(ConnectionHandlerContext ctx) {
+        if (!frontendConnection.isClosed())
+            Logger.error(LogType.IMPROPER_USE, "frontend connection " + frontendConnection + " removed from event loop " + loop);
+        closeAll();
+    }
+}
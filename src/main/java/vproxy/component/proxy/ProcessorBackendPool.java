@@ -0,0 +1,265 @@
+package vproxy.component.proxy;
+
+import vproxy.app.Config;
+import vproxy.connection.*;
+import vproxy.selector.PeriodicEvent;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.Logger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * idle backend connections of processors, shared by all frontend connections on the same event loop.<br>
+ * backend connections are registered with an {@link Entry}, which forwards the events to the frontend
+ * currently using the connection, or handles the events itself when the connection is idle,
+ * so the connection never leaves the loop.<br>
+ * a connection is returned when the processor reports it reusable (e.g. an http/1.x response is done),
+ * and is borrowed by the next frontend connection requesting the same server of the same group on the loop.<br>
+ * idle connections are not counted as active connections of the server, see {@link Connector#connectionIdle(ConnectableConnection)}.<br>
+ * the pool is thread local, and must only be accessed on the loop thread
+ */
+class ProcessorBackendPool {
+    // the pool and its timer reference the loop, so the pool is kept by the loop thread instead of a map keyed by the loop
+    private static final ThreadLocal<ProcessorBackendPool> pools = new ThreadLocal<>();
+
+    static boolean enabled() {
+        return Config.processorBackendPoolSize > 0;
+    }
+
+    static ProcessorBackendPool get(NetEventLoop loop) {
+        assert SelectorEventLoop.current() == loop.getSelectorEventLoop();
+        ProcessorBackendPool pool = pools.get();
+        if (pool == null || pool.loop.getSelectorEventLoop() != loop.getSelectorEventLoop()) {
+            if (pool != null) {
+                pool.evictTimer.cancel();
+            }
+            pool = new ProcessorBackendPool(loop);
+            pools.set(pool);
+        }
+        return pool;
+    }
+
+    /**
+     * connections with equal keys are interchangeable
+     */
+    static final class Key {
+        final String processor;
+        final Object server; // see Connector#poolKey()
+
+        Key(String processor, Connector connector) {
+            this.processor = processor;
+            this.server = connector.poolKey();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return processor.equals(key.processor) && server.equals(key.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(processor, server);
+        }
+
+        @Override
+        public String toString() {
+            return processor + "/" + server;
+        }
+    }
+
+    class Entry implements ConnectableConnectionHandler {
+        final Key key;
+        final ConnectableConnection conn;
+        final long createTime = System.currentTimeMillis();
+        // the handler of the frontend using the connection, null when the connection is idle
+        private ConnectableConnectionHandler user;
+        private long idleSince;
+
+        Entry(Key key, ConnectableConnection conn, ConnectableConnectionHandler user) {
+            this.key = key;
+            this.conn = conn;
+            this.user = user;
+        }
+
+        void use(ConnectableConnectionHandler user) {
+            this.user = user;
+        }
+
+        @Override
+        public void connected(ConnectableConnectionHandlerContext ctx) {
+            if (user != null) {
+                user.connected(ctx);
+            }
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            if (user != null) {
+                user.readable(ctx);
+                return;
+            }
+            assert Logger.lowLevelDebug("idle backend connection " + conn + " received data, close it");
+            close(this);
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            if (user != null) {
+                user.writable(ctx);
+            }
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            if (user != null) {
+                user.exception(ctx, err);
+                return;
+            }
+            assert Logger.lowLevelDebug("idle backend connection " + conn + " got exception: " + err);
+            close(this);
+        }
+
+        @Override
+        public void remoteClosed(ConnectionHandlerContext ctx) {
+            if (user != null) {
+                user.remoteClosed(ctx);
+                return;
+            }
+            assert Logger.lowLevelDebug("idle backend connection " + conn + " closed by remote");
+            close(this);
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            if (user != null) {
+                user.closed(ctx);
+                return;
+            }
+            remove(this);
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            if (user != null) {
+                user.removed(ctx);
+                return;
+            }
+            close(this);
+        }
+    }
+
+    private final NetEventLoop loop;
+    private final PeriodicEvent evictTimer;
+    // key => idle connections, the most recently returned one is at the tail
+    private final Map<Key, Deque<Entry>> idle = new HashMap<>();
+
+    private ProcessorBackendPool(NetEventLoop loop) {
+        this.loop = loop;
+        this.evictTimer = loop.getSelectorEventLoop().period(Math.max(Math.min(Config.processorBackendPoolMaxIdle / 2, 1000), 10), this::evictIdle);
+    }
+
+    /**
+     * register the connection to the loop, with the user handling its events
+     *
+     * @return the entry to return the connection with
+     */
+    Entry register(Key key, ConnectableConnection conn, ConnectableConnectionHandler user) throws IOException {
+        Entry entry = new Entry(key, conn, user);
+        loop.addConnectableConnection(conn, null, entry);
+        return entry;
+    }
+
+    /**
+     * @return an idle connection to the server, or null if no idle connection.
+     * {@link Entry#use(ConnectableConnectionHandler)} must be called immediately with the new user
+     */
+    Entry borrow(Key key) {
+        Deque<Entry> entries = idle.get(key);
+        if (entries == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry;
+        while ((entry = entries.pollLast()) != null) {
+            if (entry.conn.isClosed() || entry.conn.isRemoteClosed() || now - entry.idleSince > Config.processorBackendPoolMaxIdle) {
+                close(entry);
+                continue;
+            }
+            assert Logger.lowLevelDebug("borrow idle backend connection " + entry.conn);
+            Connector connector = entry.conn.getConnector();
+            if (connector != null) {
+                connector.connectionReused(entry.conn);
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * return the connection to the pool, the connection must have no pending data
+     */
+    void giveBack(Entry entry) {
+        entry.user = null;
+        long now = System.currentTimeMillis();
+        if (entry.conn.isClosed() || entry.conn.isRemoteClosed() || now - entry.createTime > Config.processorBackendPoolMaxAge) {
+            close(entry);
+            return;
+        }
+        Deque<Entry> entries = idle.computeIfAbsent(entry.key, k -> new ArrayDeque<>());
+        if (entries.size() >= Config.processorBackendPoolSize) {
+            // the head is idle for the longest time
+            close(entries.pollFirst());
+        }
+        assert Logger.lowLevelDebug("backend connection " + entry.conn + " is returned to the pool");
+        Connector connector = entry.conn.getConnector();
+        if (connector != null) {
+            connector.connectionIdle(entry.conn);
+        }
+        entry.idleSince = now;
+        entries.addLast(entry);
+    }
+
+    /**
+     * close a borrowed connection which is no longer used, e.g. it's replaced with a new one
+     */
+    void discard(Entry entry) {
+        entry.user = null;
+        close(entry);
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Deque<Entry> entries : idle.values()) {
+            Entry entry;
+            while ((entry = entries.peekFirst()) != null && now - entry.idleSince > Config.processorBackendPoolMaxIdle) {
+                assert Logger.lowLevelDebug("idle backend connection " + entry.conn + " is idle for too long");
+                close(entry);
+            }
+        }
+        idle.values().removeIf(Deque::isEmpty);
+    }
+
+    private void remove(Entry entry) {
+        Deque<Entry> entries = idle.get(entry.key);
+        if (entries != null) {
+            entries.remove(entry);
+        }
+    }
+
+    private void close(Entry entry) {
+        remove(entry);
+        // the pool may be called inside callbacks of other connections,
+        // closing a connection there would affect the running callback, so close it in the next tick
+        loop.getSelectorEventLoop().nextTick(() -> {
+            if (entry.user != null || entry.conn.isClosed())
+                return;
+            entry.conn.close();
+            entry.conn.getInBuffer().clean();
+            entry.conn.getOutBuffer().clean();
+        });
+    }
+}
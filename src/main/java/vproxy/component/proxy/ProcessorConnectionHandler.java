@@ -1,5 +1,6 @@
 package vproxy.component.proxy;
 
+import vproxy.app.Config;
 import vproxy.connection.*;
 import vproxy.processor.Hint;
 import vproxy.processor.Processor;
@@ -11,6 +12,7 @@ import vproxy.util.nio.ByteArrayChannel;
 import vproxy.util.ringbuffer.ProxyOutputRingBuffer;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.*;
 
 @SuppressWarnings("unchecked")
@@ -28,6 +30,14 @@ class ProcessorConnectionHandler implements ConnectionHandler {
     private final BackendConnectionHandler[] conns = new BackendConnectionHandler[1024 + 1];
     // [0] will not be used
     // I believe that 1024 connections should be enough
+    // ids of backends returned to the pool, which can be used again
+    private final Deque<Integer> freeConnIds = new ArrayDeque<>();
+
+    // backends of the requests waiting for responses, in request order
+    // only used when the processor requires responses in order
+    private final Deque<BackendConnectionHandler> responseOrder = new ArrayDeque<>();
+    // the next data fed from the frontend belongs to a new request
+    private boolean newRequest = true;
 
     public ProcessorConnectionHandler(ProxyNetConfig config, NetEventLoop loop, Connection frontendConnection, Processor processor, Processor.Context topCtx, Processor.SubContext frontendSubCtx) {
         this.config = config;
@@ -46,6 +56,12 @@ class ProcessorConnectionHandler implements ConnectionHandler {
     void removeBackend(BackendConnectionHandler backend) {
         int connId = conn2intMap.remove(backend);
         conns[connId] = null;
+        freeConnIds.push(connId);
+    }
+
+    private int nextConnId() {
+        Integer connId = freeConnIds.poll();
+        return connId == null ? ++cursor : connId;
     }
 
     /**
@@ -187,8 +203,18 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         }
 
         private final Processor.SubContext subCtx;
-        private final ConnectableConnection conn;
+        private ConnectableConnection conn; // replaced when retrying a stale connection borrowed from the pool
         private boolean isConnected = false;
+        // not null if the connection can be returned to the backend pool
+        private ProcessorBackendPool.Entry poolEntry;
+        // the data written to a connection borrowed from the pool, before anything is responded.
+        // the server may close the idle connection when the request is being sent,
+        // in which case the data is written again to a new connection.
+        // null if the connection is not borrowed, the response started, or the request cannot be sent again,
+        // see Processor#replayable
+        private ByteArray replay;
+        // data of the response at the head of responseOrder is already read
+        private boolean responseStarted = false;
 
         private ByteArrayChannel chnl = null;
         private final BackendConnectionHandler.ByteFlow backendByteFlow = new BackendConnectionHandler.ByteFlow();
@@ -200,15 +226,70 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         }
 
         void writeToBackend(ByteArray data) {
+            if (replay != null) {
+                // the data may be a view of a buffer reused by the processor
+                replay = replay.concat(data.copy());
+            }
             backendByteFlow.write(data);
             doBackendWrite();
         }
 
         void proxyToBackend(int len) {
+            replay = null; // the proxied data is not kept
             backendByteFlow.proxy(len);
             doBackendWrite();
         }
 
+        /**
+         * replace the stale connection borrowed from the pool with a new one to the same server
+         *
+         * @return true if the request is sent again, false if the failure should be handled as usual
+         */
+        private boolean retryStale() {
+            ByteArray data = replay;
+            replay = null; // retry only once
+            if (data == null || closed || frontendConnection.isClosed()) {
+                return false;
+            }
+            Connector connector = conn.getConnector();
+            if (connector == null || !connector.isValid()) {
+                return false;
+            }
+            ProcessorBackendPool pool = ProcessorBackendPool.get(loop);
+            ConnectableConnection newConn;
+            ProcessorBackendPool.Entry newEntry;
+            try {
+                newConn = connector.connect(
+                    new ConnectionOpts().setTimeout(config.timeout),
+                    RingBuffer.allocateDirect(config.inBufferSize), ProxyOutputRingBuffer.allocateDirect(config.outBufferSize));
+            } catch (IOException e) {
+                Logger.error(LogType.CONN_ERROR, "make passive connection failed when retrying the stale backend connection " + conn, e);
+                return false;
+            }
+            try {
+                newEntry = pool.register(poolEntry.key, newConn, this);
+            } catch (IOException e) {
+                Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "add connectable connection " + newConn + " to loop failed");
+                newConn.close(true);
+                return false;
+            }
+            Logger.warn(LogType.CONN_ERROR, "backend connection " + conn + " borrowed from the pool is closed before responding, send the request again with " + newConn);
+            pool.discard(poolEntry);
+            poolEntry = newEntry;
+            conn = newConn;
+            isConnected = false;
+            backendByteFlow.currentSegment = null;
+            backendByteFlow.sendingQueue.clear();
+
+            ByteArray bytes = processor.connected(topCtx, subCtx);
+            if (bytes != null && bytes.length() > 0) {
+                data = bytes.concat(data);
+            }
+            // the data is sent when connected
+            writeToBackend(data);
+            return true;
+        }
+
         void writeToFrontend(ByteArray data) {
             frontendByteFlow.write(data);
             frontendWrite(this);
@@ -270,10 +351,30 @@ class ProcessorConnectionHandler implements ConnectionHandler {
             doBackendWrite();
         }
 
+        // whether the data from backend can be handled now when responses are required in order
+        private boolean isResponding() {
+            if (responseOrder.peekFirst() != this) {
+                return false;
+            }
+            // the former response of this connection is read, but not fully written yet
+            return !responseStarted || !processor.expectNewFrame(topCtx, subCtx);
+        }
+
         void readBackend() {
-            if (conn.getInBuffer().used() == 0)
+            if (conn.getInBuffer().used() == 0 && !hasPendingFrame(subCtx, chnl))
                 return; // ignore the event if got nothing to read
 
+            if (processor.responseInOrder(topCtx)) {
+                if (!isResponding()) {
+                    assert Logger.lowLevelDebug("responses of former requests are not written yet, keep data in " + conn);
+                    return; // the data will be read when the former responses are done
+                }
+                responseStarted = true;
+            } else if (frontendByteFlow.currentSegment != null && processor.expectNewFrame(topCtx, subCtx)) {
+                assert Logger.lowLevelDebug("former frames are not written yet, keep data in " + conn);
+                return; // the data will be read when the former frames are written
+            }
+
             assert Logger.lowLevelDebug("calling readBackend() of " + conn);
 
             // check whether to proxy the data or to receive the data
@@ -294,8 +395,9 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                     int len = processor.len(topCtx, subCtx);
                     assert Logger.lowLevelDebug("the expected message length is " + len);
                     if (len == 0) { // if nothing to read, then directly feed empty data to the processor
+                        ByteArray dataToSend;
                         try {
-                            processor.feed(topCtx, subCtx, ByteArray.from(new byte[0]));
+                            dataToSend = processor.feed(topCtx, subCtx, ByteArray.from(new byte[0]));
                         } catch (Exception e) {
                             Logger.warn(LogType.INVALID_EXTERNAL_DATA, "user code cannot handle data from " + conn + ", which corresponds to " + frontendConnection + ".", e);
                             frontendConnection.close(true);
@@ -309,6 +411,11 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                                 writeToBackend(writeBackBytes);
                             }
                         }
+                        // the processor may return a response held in it, or frames built for the frontend
+                        if (dataToSend != null && dataToSend.length() != 0) {
+                            writeToFrontend(dataToSend);
+                            return;
+                        }
                         readBackend(); // recursively handle more data
                         return;
                     }
@@ -356,6 +463,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
 
         @Override
         public void readable(ConnectionHandlerContext ctx) {
+            replay = null; // the server is responding
             readBackend();
         }
 
@@ -366,13 +474,29 @@ class ProcessorConnectionHandler implements ConnectionHandler {
 
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
+            // a timeout means the server may be handling the request, so it's not sent again
+            if (!(err instanceof SocketTimeoutException) && retryStale()) {
+                return;
+            }
             Logger.error(LogType.CONN_ERROR, "got exception when handling backend connection " + conn + ", closing frontend " + frontendConnection, err);
+            // alert the connector, so that it can record the failure of the server
+            Connector connector = conn.getConnector();
+            if (connector != null) {
+                if (!isConnected) {
+                    connector.connectionFailed();
+                } else {
+                    connector.connectionError(err);
+                }
+            }
             frontendConnection.close(true);
             closeAll();
         }
 
         @Override
         public void remoteClosed(ConnectionHandlerContext ctx) {
+            if (retryStale()) {
+                return;
+            }
             assert Logger.lowLevelDebug("backend connection " + ctx.connection + " remoteClosed, send FIN to frontend");
             // backend FIN
             // we should send FIN to frontend
@@ -484,13 +608,14 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                     return; // cannot handle for now, end the method
                 }
 
-                utilWriteData(flow, handlingConnection.conn, frontendConnection, handlingConnection.subCtx, () -> handlingConnection.readBackend());
+                //noinspection Convert2MethodRef
+                utilWriteData(flow, handlingConnection.conn, frontendConnection, handlingConnection.subCtx, () -> readHandlingConnection());
 
                 // if writing done:
                 if (flow.currentSegment == null) {
                     // then let the backend connection read more data
                     // because the connection may be holding some data in the buffer
-                    handlingConnection.readBackend();
+                    readHandlingConnection();
                 } else {
                     // if it's running proxy and already called proxy on buffer, end the method
                     // NOTE: this must be check AFTER the utilWriteData because the buffer should be alerted of the proxied data input
@@ -500,8 +625,23 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                 }
             }
             // now nothing to be handled for this connection
-            if (processor.expectNewFrame(topCtx, handlingConnection.subCtx)) {
+            if (processor.responseInOrder(topCtx)) {
+                if (handlingConnection.responseStarted && processor.expectNewFrame(topCtx, handlingConnection.subCtx)) {
+                    BackendConnectionHandler done = handlingConnection;
+                    handlingConnection = null; // is done, set to null and go on
+                    assert responseOrder.peekFirst() == done;
+                    responseOrder.pollFirst();
+                    done.responseStarted = false;
+                    tryReleaseBackend(done);
+                    // the frontend may stop reading because of too many requests waiting for responses
+                    readFrontend();
+                } else {
+                    return; // the response is not done yet, exit the method
+                }
+            } else if (processor.expectNewFrame(topCtx, handlingConnection.subCtx)) {
+                BackendConnectionHandler done = handlingConnection;
                 handlingConnection = null; // is done, set to null and go on
+                tryReleaseBackend(done);
             } else {
                 return; // no data for now, exit the method
             }
@@ -519,6 +659,8 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                 if (flow.currentSegment != null) {
                     if (flow.currentSegment.chnl.used() == 0) {
                         flow.currentSegment = null;
+                        // the frontendByteFlow only holds data produced by the frontend sub context
+                        processor.produced(topCtx, frontendSubCtx);
                     }
                 }
                 if (flow.currentSegment == null) {
@@ -540,11 +682,28 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         // check whether to handle the connection
         if (frontendByteFlow.currentSegment == null && frontendByteFlow.sendingQueue.isEmpty()) {
             frontendIsHandlingConnection = true;
+            if (deferredReadConnection != null) {
+                BackendConnectionHandler deferred = deferredReadConnection;
+                deferredReadConnection = null;
+                deferred.readBackend();
+            }
         }
 
         // check for other connections
         // and keep writing if have some data to write in other connections
-        if (frontendIsHandlingConnection) {
+        if (frontendIsHandlingConnection && processor.responseInOrder(topCtx)) {
+            // only the response of the earliest request can be written
+            BackendConnectionHandler next = responseOrder.peekFirst();
+            handlingConnection = next;
+            if (next != null) {
+                // the response may be kept in the input buffer
+                next.readBackend();
+                if (next.frontendByteFlow.currentSegment == null) {
+                    return; // wait for the response
+                }
+            }
+            _doFrontendWrite();
+        } else if (frontendIsHandlingConnection) {
             BackendConnectionHandler next = null;
             for (BackendConnectionHandler b : conn2intMap.keySet()) {
                 BackendConnectionHandler.ByteFlow flow = b.frontendByteFlow;
@@ -558,12 +717,72 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         }
     }
 
+    // the backend connection which finished a frame while the frontendByteFlow is not empty
+    // it reads more data after the frontendByteFlow is written
+    private BackendConnectionHandler deferredReadConnection = null;
+
+    // called when data of the handling connection is written
+    // the bytes produced for the frontend are written before the next frame of the connection
+    // because they may be frames of the same stream released by the processor
+    private void readHandlingConnection() {
+        BackendConnectionHandler conn = handlingConnection;
+        if (!processor.responseInOrder(topCtx)
+            && conn.frontendByteFlow.currentSegment == null
+            && (frontendByteFlow.currentSegment != null || !frontendByteFlow.sendingQueue.isEmpty())
+            && processor.expectNewFrame(topCtx, conn.subCtx)) {
+            assert Logger.lowLevelDebug("write the frontendByteFlow before reading more data from " + conn.conn);
+            deferredReadConnection = conn;
+            doFrontendWrite();
+            return;
+        }
+        conn.readBackend();
+    }
+
     private ByteArrayChannel chnl = null;
 
+    // the processor is holding frames which are already read from the connection,
+    // e.g. a held http/1.x request, or an h2 header block to be encoded after the backend is chosen
+    private boolean hasPendingFrame(Processor.SubContext subCtx, ByteArrayChannel chnl) {
+        return chnl == null
+            && processor.mode(topCtx, subCtx) == Processor.Mode.handle
+            && processor.len(topCtx, subCtx) == 0;
+    }
+
+    // data produced by the processor for the frontend, e.g. a cached response,
+    // which waits for the responses of the former requests when responses are required in order
+    private ByteArray heldResponse = null;
+
+    private void writeProduced(ByteArray produced) {
+        if (produced == null || produced.length() == 0) {
+            return;
+        }
+        if (processor.responseInOrder(topCtx) && !responseOrder.isEmpty()) {
+            assert Logger.lowLevelDebug("hold the produced data until former responses are written");
+            heldResponse = produced;
+        } else {
+            frontendByteFlow.write(produced);
+        }
+    }
+
     void readFrontend() {
-        if (frontendConnection.getInBuffer().used() == 0) {
+        if (heldResponse != null) {
+            if (!responseOrder.isEmpty()) {
+                return; // continue when former responses are written
+            }
+            ByteArray held = heldResponse;
+            heldResponse = null;
+            frontendByteFlow.write(held);
+        }
+        if (frontendConnection.getInBuffer().used() == 0 && !hasPendingFrame(frontendSubCtx, chnl)) {
             return; // do nothing if the in buffer is empty
         }
+        if (chnl == null
+            && processor.responseInOrder(topCtx)
+            && processor.expectNewFrame(topCtx, frontendSubCtx)
+            && responseOrder.size() >= Config.processorMaxPipelinedRequests) {
+            assert Logger.lowLevelDebug("too many requests waiting for responses, stop reading " + frontendConnection);
+            return; // continue when a response is done
+        }
 
         assert Logger.lowLevelDebug("calling readFrontend()");
 
@@ -593,21 +812,26 @@ class ProcessorConnectionHandler implements ConnectionHandler {
             assert mode == Processor.Mode.handle;
 
             if (chnl == null) {
+                if (processor.expectNewFrame(topCtx, frontendSubCtx)) {
+                    newRequest = true;
+                }
                 int len = processor.len(topCtx, frontendSubCtx);
                 assert Logger.lowLevelDebug("expecting message with the length of " + len);
                 if (len == 0) { // if the length is 0, directly feed data to the processor
+                    ByteArray bytesToSend;
                     try {
-                        processor.feed(topCtx, frontendSubCtx, ByteArray.from(new byte[0]));
+                        bytesToSend = processor.feed(topCtx, frontendSubCtx, ByteArray.from(new byte[0]));
                     } catch (Exception e) {
                         Logger.warn(LogType.INVALID_EXTERNAL_DATA, "user code cannot handle data from " + frontendConnection + ". err=" + e);
                         frontendConnection.close(true);
                         return;
                     }
-                    {
-                        ByteArray producedBytes = processor.produce(topCtx, frontendSubCtx);
-                        if (producedBytes != null && producedBytes.length() != 0) {
-                            frontendByteFlow.write(producedBytes);
-                        }
+                    writeProduced(processor.produce(topCtx, frontendSubCtx));
+                    // the processor may return a request held in it,
+                    // or data which is built after the backend is chosen
+                    if (bytesToSend != null && bytesToSend.length() != 0) {
+                        dispatch(bytesToSend);
+                        return;
                     }
                     readFrontend(); // recursively try to handle more data
                     return;
@@ -636,36 +860,43 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                 frontendConnection.close(true);
                 return;
             }
-            {
-                ByteArray produced = processor.produce(topCtx, frontendSubCtx);
-                if (produced != null && produced.length() != 0) {
-                    frontendByteFlow.write(produced);
-                }
-            }
+            writeProduced(processor.produce(topCtx, frontendSubCtx));
 
-            int connId = processor.connection(topCtx, frontendSubCtx);
-            Hint hint = processor.connectionHint(topCtx, frontendSubCtx);
-            assert Logger.lowLevelDebug("the processor return data of length " + (bytesToSend == null ? "null" : bytesToSend.length()) + ", sending to connId=" + connId + ", hint=" + hint);
-            if (connId == 0) {
-                if (bytesToSend == null || bytesToSend.length() == 0) {
-                    readFrontend();
-                    return;
-                } else {
-                    Logger.error(LogType.IMPROPER_USE, "When you return connection()==0, you must guarantee that the former feed() calling result was null or an array with length 0");
-                    // ignore and fall through
-                }
+            dispatch(bytesToSend);
+        }
+    }
+
+    // send the data fed from the frontend to the backend chosen by the processor
+    private void dispatch(ByteArray bytesToSend) {
+        int connId = processor.connection(topCtx, frontendSubCtx);
+        Hint hint = processor.connectionHint(topCtx, frontendSubCtx);
+        assert Logger.lowLevelDebug("the processor return data of length " + (bytesToSend == null ? "null" : bytesToSend.length()) + ", sending to connId=" + connId + ", hint=" + hint);
+        if (connId == 0) {
+            if (bytesToSend == null || bytesToSend.length() == 0) {
+                readFrontend();
+                return;
+            } else {
+                Logger.error(LogType.IMPROPER_USE, "When you return connection()==0, you must guarantee that the former feed() calling result was null or an array with length 0");
+                // ignore and fall through
             }
-            BackendConnectionHandler backend = getConnection(connId, hint);
-            if (backend == null) {
-                // for now, we simply close the whole connection when a backend is missing
-                Logger.error(LogType.CONN_ERROR, "failed to retrieve the backend connection for " + frontendConnection + "/" + connId);
-                frontendConnection.close(true);
+        }
+        BackendConnectionHandler backend = getConnection(connId, hint);
+        if (backend == null) {
+            // for now, we simply close the whole connection when a backend is missing
+            Logger.error(LogType.CONN_ERROR, "failed to retrieve the backend connection for " + frontendConnection + "/" + connId);
+            frontendConnection.close(true);
+        } else {
+            if (bytesToSend == null || bytesToSend.length() == 0) {
+                readFrontend(); // recursively call to handle more data
             } else {
-                if (bytesToSend == null || bytesToSend.length() == 0) {
-                    readFrontend(); // recursively call to handle more data
-                } else {
-                    backend.writeToBackend(bytesToSend);
+                if (newRequest && processor.responseInOrder(topCtx)) {
+                    newRequest = false;
+                    responseOrder.addLast(backend);
                 }
+                if (backend.replay != null && !processor.replayable(topCtx, frontendSubCtx)) {
+                    backend.replay = null; // e.g. a POST request may be handled twice if sent again
+                }
+                backend.writeToBackend(bytesToSend);
             }
         }
     }
@@ -678,8 +909,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
     private BackendConnectionHandler getConnection(int connId, Hint hint) {
         if (connId > 0 && conns[connId] != null)
             return conns[connId]; // get connection if it already exists
-
-        assert connId == -1;
+        // otherwise connId is -1, or the connection is returned to the backend pool, choose a new one
 
         // get connector
         Connector connector = config.connGen.genConnector(frontendConnection, hint);
@@ -701,6 +931,15 @@ class ProcessorConnectionHandler implements ConnectionHandler {
             }
         }
 
+        // borrow an idle connection from the pool
+        ProcessorBackendPool pool = ProcessorBackendPool.enabled() ? ProcessorBackendPool.get(loop) : null;
+        if (pool != null) {
+            BackendConnectionHandler bh = borrowConnection(pool, connector);
+            if (bh != null) {
+                return bh;
+            }
+        }
+
         // get a new connection
         ConnectableConnection connectableConnection;
         try {
@@ -713,13 +952,17 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         }
 
         // record in collections
-        int newConnId = ++cursor;
+        int newConnId = nextConnId();
         BackendConnectionHandler bh =
             new BackendConnectionHandler(processor.initSub(topCtx, newConnId, connector.remote), connectableConnection);
         recordBackend(bh, newConnId);
         // register
         try {
-            loop.addConnectableConnection(connectableConnection, null, bh);
+            if (pool == null) {
+                loop.addConnectableConnection(connectableConnection, null, bh);
+            } else {
+                bh.poolEntry = pool.register(new ProcessorBackendPool.Key(processor.name(), connector), connectableConnection, bh);
+            }
         } catch (IOException e) {
             Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "add connectable connection " + connectableConnection + " to loop failed");
 
@@ -740,6 +983,46 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         return bh;
     }
 
+    private BackendConnectionHandler borrowConnection(ProcessorBackendPool pool, Connector connector) {
+        ProcessorBackendPool.Entry entry = pool.borrow(new ProcessorBackendPool.Key(processor.name(), connector));
+        if (entry == null) {
+            return null;
+        }
+        int newConnId = nextConnId();
+        // the connection is already connected, so processor.connected(...) is not called
+        BackendConnectionHandler bh = new BackendConnectionHandler(processor.initSub(topCtx, newConnId, connector.remote), entry.conn);
+        bh.poolEntry = entry;
+        bh.isConnected = true;
+        bh.replay = ByteArray.allocate(0);
+        entry.use(bh);
+        recordBackend(bh, newConnId);
+        processor.chosen(topCtx, frontendSubCtx, bh.subCtx);
+        return bh;
+    }
+
+    // return the backend connection to the pool when both the request and the response are done
+    private void tryReleaseBackend(BackendConnectionHandler bh) {
+        if (bh.poolEntry == null || closed || !conn2intMap.containsKey(bh) || frontendConnection.isRemoteClosed()
+            || responseOrder.contains(bh) /* the backend is handling another request */) {
+            return;
+        }
+        if (!processor.expectNewFrame(topCtx, frontendSubCtx)) {
+            return; // the frontend may still be sending data to this backend
+        }
+        if (bh.backendByteFlow.currentSegment != null || !bh.backendByteFlow.sendingQueue.isEmpty()
+            || bh.frontendByteFlow.currentSegment != null || !bh.frontendByteFlow.sendingQueue.isEmpty()
+            || bh.chnl != null
+            || bh.conn.getOutBuffer().used() != 0 || bh.conn.getInBuffer().used() != 0) {
+            return; // still have data to handle
+        }
+        if (!processor.reusable(topCtx, bh.subCtx)) {
+            return;
+        }
+        assert Logger.lowLevelDebug("return backend connection " + bh.conn + " of " + frontendConnection + " to the pool");
+        removeBackend(bh);
+        ProcessorBackendPool.get(loop).giveBack(bh.poolEntry);
+    }
+
     @Override
     public void writable(ConnectionHandlerContext ctx) {
         doFrontendWrite();
@@ -757,7 +1040,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         // frontend FIN
         // we should send FIN to current backend
         int connId = processor.connection(topCtx, frontendSubCtx);
-        if (connId == -1) {
+        if (connId == -1 || conns[connId] == null /* returned to the backend pool */) {
             assert Logger.lowLevelDebug("" +
                 "no current backend connection, " +
                 "send FIN to all backend");
@@ -771,7 +1054,12 @@ class ProcessorConnectionHandler implements ConnectionHandler {
                     allBackendRemoteClosed = false;
                 }
             }
-            if (allBackendRemoteClosed) {
+            if (allBackendRemoteClosed && frontendConnection.getOutBuffer().used() != 0) {
+                assert Logger.lowLevelDebug("" +
+                    "all backend remote closed or returned to the pool, " +
+                    "send FIN to frontend after the data is flushed");
+                ctx.connection.closeWrite();
+            } else if (allBackendRemoteClosed) {
                 assert Logger.lowLevelDebug("" +
                     "all backend remote closed, " +
                     "and no current backend, " +
@@ -822,6 +1110,7 @@ class ProcessorConnectionHandler implements ConnectionHandler {
         closed = true;
 
         assert Logger.lowLevelDebug("close all connections of " + frontendConnection);
+        responseOrder.clear();
         List<Integer> ints = new ArrayList<>(conn2intMap.values());
         for (int i : ints) {
             BackendConnectionHandler be = conns[i];
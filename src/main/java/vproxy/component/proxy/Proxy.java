@@ -1,11 +1,13 @@
 package vproxy.component.proxy;
 
 import vfd.SocketFD;
+import vproxy.app.Config;
 import vproxy.connection.*;
 import vproxy.processor.Processor;
 import vproxy.protocol.ProtocolConnectionHandler;
 import vproxy.protocol.ProtocolHandler;
 import vproxy.protocol.ProtocolHandlerContext;
+import vproxy.selector.TimerEvent;
 import vproxy.util.*;
 import vproxy.util.ringbuffer.ByteBufferRingBuffer;
 import vproxy.util.ringbuffer.ProxyOutputRingBuffer;
@@ -15,7 +17,9 @@ import vproxy.util.ringbuffer.ssl.SSLEngineBuilder;
 
 import javax.net.ssl.SSLParameters;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * when a connection is accepted, another connection will be generated by calling the callback handler<br>
@@ -39,6 +43,18 @@ public class Proxy {
         utilCloseConnection(session.passive);
     }
 
+    // the state of connecting to backends for one proxied connection
+    private static class ConnectRetry {
+        private final long beginNanos = System.nanoTime();
+        final List<Connector> failed = new ArrayList<>(0);
+
+        // whether another backend can be tried if the current attempt fails
+        boolean canRetry() {
+            return failed.size() + 1 < Config.proxyConnectAttempts
+                && System.nanoTime() - beginNanos < Config.proxyConnectRetryDeadline * 1_000_000L;
+        }
+    }
+
     class SessionServerHandler implements ServerHandler {
         @Override
         public void acceptFail(ServerHandlerContext ctx, IOException err) {
@@ -55,6 +71,9 @@ public class Proxy {
                 case handler:
                     handleHandler(acceptLoop, connection);
                     break;
+                case multiplex:
+                    handleMultiplex(acceptLoop, connection);
+                    break;
                 case direct:
                 default:
                     handleDirect(acceptLoop, connection);
@@ -88,62 +107,51 @@ public class Proxy {
                 return;
             }
 
-            ConnectableConnection connectableConnection;
-            try {
-                connectableConnection = connector.connect(
-                    connection,
-                    new ConnectionOpts().setTimeout(config.timeout),
-                    /*switch the two buffers to make a PROXY*/connection.getOutBuffer(), connection.getInBuffer());
-            } catch (IOException e) {
-                Logger.fatal(LogType.CONN_ERROR, "make passive connection failed, maybe provided endpoint info is invalid", e);
-                // it should not happen if user provided endpoint is valid
-                // but if it happens, we close both sides
-
-                utilCloseConnectionAndReleaseBuffers(connection);
-                connector.close();
+            // try to use an established connection
+            if (connector.getPooledConnection(connection, acceptLoop.getSelectorEventLoop(),
+                pooled -> handleDirect(acceptLoop, connection, connector, pooled))) {
                 return;
             }
+            handleDirect(acceptLoop, connection, connector, null);
+        }
 
-            Session session = new Session(connection, connectableConnection);
-            ConnectableConnectionHandler handler = new SessionConnectableConnectionHandler(session);
-
-            // we get a new event loop for handling
-            // the event loop is provided by user
-            // user may use the same loop as the acceptLoop
-            //
-            // and we only register the passive connection here
-            // the active connection will be registered
-            // when the passive connection is successfully established
-            NetEventLoop loop;
-            {
-                NetEventLoop foo = connector.loop();
-                if (foo == null) {
-                    assert Logger.lowLevelDebug("connector did not provide any loop, retrieve a new one");
-                    loop = config.handleLoopProvider.getHandleLoop(acceptLoop);
-                } else {
-                    assert Logger.lowLevelDebug("connector provided a loop");
-                    loop = foo;
+        private void handleDirect(NetEventLoop acceptLoop, Connection connection, Connector connector, ConnectableConnection pooled) {
+            ConnectableConnection connectableConnection = null;
+            if (pooled != null) {
+                RingBuffer oldIn = pooled.getInBuffer();
+                RingBuffer oldOut = pooled.getOutBuffer();
+                try {
+                    pooled.UNSAFE_replaceBuffer(/*switch the two buffers to make a PROXY*/connection.getOutBuffer(), connection.getInBuffer());
+                    connectableConnection = pooled;
+                } catch (IOException e) {
+                    assert Logger.lowLevelDebug("cannot use the pooled connection " + pooled + ": " + e);
+                    pooled.close();
+                }
+                if (pooled.getInBuffer() != oldIn) {
+                    oldIn.clean();
+                }
+                if (pooled.getOutBuffer() != oldOut) {
+                    oldOut.clean();
                 }
             }
-            if (loop == null) {
-                // the loop not exist
-                utilCloseSessionAndReleaseBuffers(session);
-                Logger.warn(LogType.NO_EVENT_LOOP, "cannot get event loop for connectable connection " + connectableConnection);
-                return;
+            if (connectableConnection == null) {
+                try {
+                    connectableConnection = connector.connect(
+                        connection,
+                        new ConnectionOpts().setTimeout(config.timeout),
+                        /*switch the two buffers to make a PROXY*/connection.getOutBuffer(), connection.getInBuffer());
+                } catch (IOException e) {
+                    Logger.fatal(LogType.CONN_ERROR, "make passive connection failed, maybe provided endpoint info is invalid", e);
+                    // it should not happen if user provided endpoint is valid
+                    // but if it happens, we close both sides
+
+                    utilCloseConnectionAndReleaseBuffers(connection);
+                    connector.close();
+                    return;
+                }
             }
-            try {
-                loop.addConnectableConnection(connectableConnection, null, handler);
-
-                // here the handler added successfully, we can record the session
-                sessions.add(session);
-                // the session record will be removed in `removed()` callback
 
-            } catch (IOException e) {
-                Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "register passive connection into event loop failed, passive conn = " + connectableConnection + ", err = " + e);
-                // should not happen
-                // but if it happens, we close both sides
-                utilCloseSessionAndReleaseBuffers(session);
-            }
+            registerPassive(acceptLoop, connection, connector, connectableConnection, new ConnectRetry());
         }
 
         class HandlerCallback extends Callback<Connector, IOException> {
@@ -265,6 +273,21 @@ public class Proxy {
             }
         }
 
+        private void handleMultiplex(NetEventLoop acceptLoop, Connection frontendConnection) {
+            // retrieve an event loop, the backend connections are shared by the frontends on the same loop
+            NetEventLoop loop = config.handleLoopProvider.getHandleLoop(acceptLoop);
+
+            ConnectionHandler handler = new Http1ToHttp2ConnectionHandler(config, loop, frontendConnection);
+            try {
+                loop.addConnection(frontendConnection, null, handler);
+            } catch (IOException e) {
+                // and do some log
+                Logger.error(LogType.EVENT_LOOP_ADD_FAIL, "add new connection into loop failed", e);
+                // the connection should be closed by the lib
+                frontendConnection.close(true);
+            }
+        }
+
         @Override
         public Tuple<RingBuffer, RingBuffer> getIOBuffers(SocketFD channel) {
             int inBufferSize, outBufferSize;
@@ -314,6 +337,9 @@ public class Proxy {
                         return null;
                     }));
                 }
+            } else if (config.connGen.type() == ConnectorGen.Type.multiplex) {
+                builder.configure(engine -> engine.setHandshakeApplicationProtocolSelector((e, ls) ->
+                    ls.contains("http/1.1") ? "http/1.1" : null));
             }
             SSLUtils.SSLBufferPair pair = SSLUtils.genbufForServer(ssl, inBuffer, (ByteBufferRingBuffer) outBuffer);
             return new Tuple<>(pair.left, pair.right);
@@ -406,18 +432,137 @@ public class Proxy {
         }
     }
 
+    // register the passive connection and wait for it to connect
+    private void registerPassive(NetEventLoop acceptLoop, Connection connection, Connector connector,
+                                 ConnectableConnection connectableConnection, ConnectRetry retry) {
+        Session session = new Session(connection, connectableConnection);
+        SessionConnectableConnectionHandler handler = new SessionConnectableConnectionHandler(session, acceptLoop, retry);
+
+        // we get a new event loop for handling
+        // the event loop is provided by user
+        // user may use the same loop as the acceptLoop
+        //
+        // and we only register the passive connection here
+        // the active connection will be registered
+        // when the passive connection is successfully established
+        NetEventLoop loop;
+        {
+            NetEventLoop foo = connector.loop();
+            if (foo == null) {
+                assert Logger.lowLevelDebug("connector did not provide any loop, retrieve a new one");
+                loop = config.handleLoopProvider.getHandleLoop(acceptLoop);
+            } else {
+                assert Logger.lowLevelDebug("connector provided a loop");
+                loop = foo;
+            }
+        }
+        if (loop == null) {
+            // the loop not exist
+            utilCloseSessionAndReleaseBuffers(session);
+            Logger.warn(LogType.NO_EVENT_LOOP, "cannot get event loop for connectable connection " + connectableConnection);
+            return;
+        }
+        try {
+            loop.addConnectableConnection(connectableConnection, null, handler);
+
+            // here the handler added successfully, we can record the session
+            sessions.add(session);
+            // the session record will be removed in `removed()` callback
+
+            if (retry.canRetry()) {
+                // give up the attempt if it's too slow, so that other backends can be tried
+                handler.startConnectTimer(loop, Config.proxyConnectRetryDeadline / Config.proxyConnectAttempts);
+            }
+
+        } catch (IOException e) {
+            Logger.fatal(LogType.EVENT_LOOP_ADD_FAIL, "register passive connection into event loop failed, passive conn = " + connectableConnection + ", err = " + e);
+            // should not happen
+            // but if it happens, we close both sides
+            utilCloseSessionAndReleaseBuffers(session);
+        }
+    }
+
+    // connect to another backend after the previous attempts failed,
+    // the client connection is not registered to any loop, and its buffers are untouched
+    private void retryConnect(NetEventLoop acceptLoop, Connection connection, ConnectRetry retry) {
+        ConnectorGen<?> connGen = config.connGen;
+        Connector connector = connGen.genRetryConnector(connection, retry.failed);
+        if (connector == null) {
+            Logger.warn(LogType.NO_CLIENT_CONN, "no other backend to retry for " + connection);
+            utilCloseConnectionAndReleaseBuffers(connection);
+            return;
+        }
+        assert Logger.lowLevelDebug("retry connecting to " + connector + " for " + connection);
+        ConnectableConnection connectableConnection;
+        try {
+            connector.beforeConnect(connection);
+            connectableConnection = connector.connect(
+                connection,
+                new ConnectionOpts().setTimeout(config.timeout),
+                /*switch the two buffers to make a PROXY*/connection.getOutBuffer(), connection.getInBuffer());
+        } catch (IOException e) {
+            Logger.error(LogType.CONN_ERROR, "retry connecting to " + connector + " failed", e);
+            utilCloseConnectionAndReleaseBuffers(connection);
+            connector.close();
+            return;
+        }
+        registerPassive(acceptLoop, connection, connector, connectableConnection, retry);
+    }
+
     class SessionConnectableConnectionHandler implements ConnectableConnectionHandler {
         private final Session session;
+        private final NetEventLoop acceptLoop;
+        private final ConnectRetry retry;
         private boolean isConnected = false;
+        private boolean isRetrying = false; // the session is given up and the client is handed to another attempt
+        private TimerEvent connectTimer;
 
-        SessionConnectableConnectionHandler(Session session) {
+        SessionConnectableConnectionHandler(Session session, NetEventLoop acceptLoop, ConnectRetry retry) {
             this.session = session;
+            this.acceptLoop = acceptLoop;
+            this.retry = retry;
+        }
+
+        void startConnectTimer(NetEventLoop loop, int timeout) {
+            connectTimer = loop.getSelectorEventLoop().delay(timeout, () -> {
+                connectTimer = null;
+                if (isConnected || isRetrying || session.isClosed())
+                    return;
+                tryRetry((ConnectableConnection) session.passive, "connect timeout (" + timeout + "ms)");
+                // if cannot retry, keep waiting until the connection timeout
+            });
+        }
+
+        // retry another backend if the passive connection failed before any data is relayed
+        private boolean tryRetry(ConnectableConnection passive, String reason) {
+            if (isConnected || !retry.canRetry())
+                return false;
+            Connection active = session.active;
+            if (passive.getOutBuffer() != active.getInBuffer() || passive.getInBuffer() != active.getOutBuffer()) {
+                // the buffers are wrapped (e.g. backend tls), the client data may be consumed by the wrapper
+                return false;
+            }
+            isRetrying = true;
+            Logger.warn(LogType.CONN_ERROR, "connecting to " + passive.remote + " for " + active + " failed: " + reason + ", retry another backend");
+            // closing removes the connection from the shared buffers, the buffers are kept for the next attempt
+            passive.close();
+            Connector connector = passive.getConnector();
+            if (connector != null) {
+                retry.failed.add(connector);
+                connector.connectionFailed();
+            }
+            acceptLoop.getSelectorEventLoop().nextTick(() -> retryConnect(acceptLoop, active, retry));
+            return true;
         }
 
         @Override
         public void connected(ConnectableConnectionHandlerContext ctx) {
             assert Logger.lowLevelDebug("passive connection established: " + session);
             isConnected = true; // it's connected
+            if (connectTimer != null) {
+                connectTimer.cancel();
+                connectTimer = null;
+            }
 
             // now we can add active connection into event loop
             // use event loop from context
@@ -448,6 +593,10 @@ public class Proxy {
 
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
+            if (isRetrying)
+                return;
+            if (tryRetry((ConnectableConnection) ctx.connection, err.toString()))
+                return;
             String side = (session.active == ctx.connection) ? "active" : "passive";
             if (Utils.isTerminatedIOException(err)) {
                 assert Logger.lowLevelDebug("session " + session + " got exception on " + side + " side: " + err);
@@ -457,12 +606,14 @@ public class Proxy {
             // close both sides
             utilCloseSessionAndReleaseBuffers(session);
 
-            if (!isConnected) {
-                // the connection failed before established
-                // we should alert the connector that the connection failed
-                Connector connector = ((ConnectableConnection) ctx.connection).getConnector();
-                if (connector != null) {
+            // alert the connector, so that it can record the failure of the server
+            Connector connector = ((ConnectableConnection) ctx.connection).getConnector();
+            if (connector != null) {
+                if (!isConnected) {
+                    // the connection failed before established
                     connector.connectionFailed();
+                } else {
+                    connector.connectionError(err);
                 }
             }
         }
@@ -491,6 +642,8 @@ public class Proxy {
         public void closed(ConnectionHandlerContext ctx) {
             assert Logger.lowLevelDebug("now the passive connection is closed, we should close the session");
             // now the passive connection is closed
+            if (isRetrying) // the client is handed to another attempt
+                return;
             if (session.isClosed()) // do nothing if the session is already closed
                 return;
             if (session.active.getOutBuffer().used() == 0) {
@@ -502,7 +655,13 @@ public class Proxy {
 
         @Override
         public void removed(ConnectionHandlerContext ctx) {
-            utilCloseSessionAndReleaseBuffers(session);
+            if (connectTimer != null) {
+                connectTimer.cancel();
+                connectTimer = null;
+            }
+            if (!isRetrying) {
+                utilCloseSessionAndReleaseBuffers(session);
+            }
             sessions.remove(session); // remove the session record
         }
     }
@@ -0,0 +1,468 @@
+package vproxy.component.proxy;
+
+import vproxy.app.Config;
+import vproxy.connection.*;
+import vproxy.processor.http1.entity.Chunk;
+import vproxy.processor.http1.entity.Request;
+import vproxy.processor.http2.Header;
+import vproxy.processor.http2.Http2ClientCodec;
+import vproxy.selector.PeriodicEvent;
+import vproxy.selector.SelectorEventLoop;
+import vproxy.util.ByteArray;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+import vproxy.util.RingBuffer;
+import vproxy.util.nio.ByteArrayChannel;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * http/2 connections to the backends, shared by the http/1.x frontend connections on the same event loop.<br>
+ * each request is sent as a stream of a connection to the chosen server, a new connection is only created
+ * when all connections to the server reach the max concurrent streams.<br>
+ * the responses are translated back to http/1.x, and the stream window is only returned to the server
+ * when the frontend takes the data, so a slow frontend holds at most one window of data for each stream.<br>
+ * the connections are thread local, and must only be accessed on the loop thread
+ */
+class SharedHttp2Connections {
+    // kept by the loop thread instead of a map keyed by the loop, because the instance and its timer reference the loop
+    private static final ThreadLocal<SharedHttp2Connections> instances = new ThreadLocal<>();
+    // return the stream window when the frontend takes this count of bytes
+    private static final int STREAM_WINDOW_UPDATE_THRESHOLD = Http2ClientCodec.SIZE_DEFAULT_WINDOW / 4;
+
+    static SharedHttp2Connections get(NetEventLoop loop) {
+        assert SelectorEventLoop.current() == loop.getSelectorEventLoop();
+        SharedHttp2Connections instance = instances.get();
+        if (instance == null || instance.loop.getSelectorEventLoop() != loop.getSelectorEventLoop()) {
+            if (instance != null) {
+                instance.idleTimer.cancel();
+            }
+            instance = new SharedHttp2Connections(loop);
+            instances.set(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * receives the response of a stream
+     */
+    interface StreamHandler {
+        /**
+         * @param data     http/1.x bytes of the response
+         * @param consumed call {@link Stream#consumed(int)} with this value when the data is taken
+         * @param end      whether the response is done
+         */
+        void response(ByteArray data, int consumed, boolean end);
+
+        /**
+         * the body of the response ends when the backend stream ends instead of having a length,
+         * the frontend connection must be closed after the response
+         */
+        void closeDelimited();
+
+        /**
+         * the stream is reset or the connection failed, the response will not be done
+         */
+        void error(String reason);
+    }
+
+    class Stream {
+        private final Conn conn;
+        final int id;
+        private final StreamHandler handler;
+        private int sendWindow;
+        private ByteArray body; // request body not sent yet
+        private List<vproxy.processor.http1.entity.Header> trailers;
+        private int consumed = 0;
+
+        private Stream(Conn conn, int id, StreamHandler handler) {
+            this.conn = conn;
+            this.id = id;
+            this.handler = handler;
+            this.sendWindow = conn.codec.initialWindowSize();
+        }
+
+        /**
+         * the frontend takes the response data, the window is returned to the server
+         */
+        void consumed(int n) {
+            consumed += n;
+            if (consumed >= STREAM_WINDOW_UPDATE_THRESHOLD && conn.streams.get(id) == this) {
+                conn.write(conn.codec.windowUpdate(id, consumed));
+                consumed = 0;
+            }
+        }
+
+        /**
+         * the frontend does not need the response anymore
+         */
+        void cancel() {
+            if (conn.streams.remove(id) != this) {
+                return; // already done
+            }
+            assert Logger.lowLevelDebug("cancel stream " + id + " of " + conn.conn);
+            conn.sending.remove(this);
+            conn.write(conn.codec.rstStream(id, Http2ClientCodec.ERROR_CANCEL));
+            conn.streamDone();
+        }
+    }
+
+    private class Conn implements ConnectableConnectionHandler, Http2ClientCodec.Listener {
+        final Object key;
+        final ConnectableConnection conn;
+        final Http2ClientCodec codec = new Http2ClientCodec();
+        final Map<Integer, Stream> streams = new HashMap<>();
+        // streams with request body to send
+        final Deque<Stream> sending = new LinkedList<>();
+        final Deque<ByteArrayChannel> outQueue = new LinkedList<>();
+        boolean connected = false;
+        boolean goAway = false;
+        int sendWindow = Http2ClientCodec.SIZE_DEFAULT_WINDOW;
+        int initialWindowSize = Http2ClientCodec.SIZE_DEFAULT_WINDOW;
+        long idleSince = System.currentTimeMillis();
+
+        Conn(Object key, ConnectableConnection conn) {
+            this.key = key;
+            this.conn = conn;
+            write(codec.preface());
+        }
+
+        boolean acceptsStream() {
+            return !goAway && !conn.isClosed() && !conn.isRemoteClosed() && codec.hasStreamId()
+                && streams.size() < Math.min(codec.maxConcurrentStreams(), Config.h1ToH2MaxStreams);
+        }
+
+        Stream open(Request req, Header[] additionalHeaders, StreamHandler handler) throws IOException {
+            ByteArray body = req.body;
+            if (req.chunks != null) {
+                for (Chunk c : req.chunks) {
+                    if (c.content == null) {
+                        continue;
+                    }
+                    body = body == null ? c.content : body.concat(c.content);
+                }
+            }
+            boolean hasTrailers = req.trailers != null && !req.trailers.isEmpty();
+            boolean endStream = (body == null || body.length() == 0) && !hasTrailers;
+
+            Stream stream = new Stream(this, codec.nextStreamId(), handler);
+            write(codec.request(stream.id, req, additionalHeaders, endStream));
+            streams.put(stream.id, stream);
+            if (!endStream) {
+                stream.body = body == null ? ByteArray.from(new byte[0]) : body.arrange();
+                stream.trailers = hasTrailers ? req.trailers : null;
+                sending.add(stream);
+                sendData();
+            }
+            assert Logger.lowLevelDebug("open stream " + stream.id + " on " + conn);
+            return stream;
+        }
+
+        void write(ByteArray bytes) {
+            outQueue.add(bytes.toFullChannel());
+            flush();
+        }
+
+        private void flush() {
+            if (!connected) {
+                return;
+            }
+            ByteArrayChannel chnl;
+            while ((chnl = outQueue.peek()) != null) {
+                // the writable callback must not run inside this loop
+                ByteArrayChannel fChnl = chnl;
+                conn.runNoQuickWrite(() -> conn.getOutBuffer().storeBytesFrom(fChnl));
+                if (chnl.used() != 0) {
+                    return; // the buffer is full
+                }
+                outQueue.poll();
+            }
+        }
+
+        // send request bodies as long as the windows and the output buffer allow
+        private void sendData() {
+            if (!connected) {
+                return;
+            }
+            Iterator<Stream> ite = sending.iterator();
+            while (ite.hasNext() && outQueue.isEmpty()) {
+                Stream stream = ite.next();
+                int len = Math.min(Math.min(stream.body.length(), Math.min(stream.sendWindow, sendWindow)),
+                    conn.getOutBuffer().free());
+                if (len <= 0 && stream.body.length() != 0) {
+                    continue; // wait for window update or the buffer to be writable
+                }
+                boolean bodyDone = len == stream.body.length();
+                ByteArray frames = codec.data(stream.id, stream.body.sub(0, len), bodyDone && stream.trailers == null);
+                stream.body = stream.body.sub(len, stream.body.length() - len);
+                stream.sendWindow -= len;
+                sendWindow -= len;
+                if (bodyDone) {
+                    ite.remove();
+                    if (stream.trailers != null) {
+                        try {
+                            frames = frames.concat(codec.trailers(stream.id, stream.trailers));
+                        } catch (IOException e) {
+                            Logger.error(LogType.IMPROPER_USE, "encoding trailers of stream " + stream.id + " failed", e);
+                        }
+                        stream.trailers = null;
+                    }
+                }
+                write(frames);
+            }
+        }
+
+        private void streamDone() {
+            if (streams.isEmpty()) {
+                idleSince = System.currentTimeMillis();
+                if (goAway) {
+                    close(this);
+                }
+            }
+        }
+
+        @Override
+        public void connected(ConnectableConnectionHandlerContext ctx) {
+            assert Logger.lowLevelDebug("shared h2 connection " + conn + " connected");
+            connected = true;
+            flush();
+            sendData();
+        }
+
+        @Override
+        public void readable(ConnectionHandlerContext ctx) {
+            if (conn.getInBuffer().used() == 0) {
+                return;
+            }
+            ByteArrayChannel chnl = ByteArrayChannel.fromEmpty(conn.getInBuffer().used());
+            conn.getInBuffer().writeTo(chnl);
+            try {
+                codec.feed(chnl.getArray(), this);
+            } catch (Exception e) {
+                Logger.warn(LogType.INVALID_EXTERNAL_DATA, "invalid http/2 data from " + conn + ". err=" + e);
+                fail("invalid data from backend");
+                return;
+            }
+            ByteArray produced = codec.produce();
+            if (produced != null) {
+                write(produced);
+            }
+        }
+
+        @Override
+        public void writable(ConnectionHandlerContext ctx) {
+            flush();
+            sendData();
+        }
+
+        @Override
+        public void exception(ConnectionHandlerContext ctx, IOException err) {
+            Logger.error(LogType.CONN_ERROR, "got exception when handling shared h2 connection " + conn, err);
+            Connector connector = conn.getConnector();
+            if (connector != null) {
+                if (!connected) {
+                    connector.connectionFailed();
+                } else {
+                    connector.connectionError(err);
+                }
+            }
+            fail("backend connection got exception: " + err);
+        }
+
+        @Override
+        public void remoteClosed(ConnectionHandlerContext ctx) {
+            assert Logger.lowLevelDebug("shared h2 connection " + conn + " closed by remote");
+            fail("backend connection closed");
+        }
+
+        @Override
+        public void closed(ConnectionHandlerContext ctx) {
+            fail("backend connection closed");
+        }
+
+        @Override
+        public void removed(ConnectionHandlerContext ctx) {
+            if (!conn.isClosed())
+                Logger.error(LogType.IMPROPER_USE, "shared h2 connection " + conn + " removed from event loop " + loop);
+            fail("backend connection removed");
+        }
+
+        private void fail(String reason) {
+            close(this);
+            if (streams.isEmpty()) {
+                return;
+            }
+            List<Stream> failed = new ArrayList<>(streams.values());
+            streams.clear();
+            sending.clear();
+            // the frontends may close in the handlers, which should not run inside callbacks of this connection
+            loop.getSelectorEventLoop().nextTick(() -> {
+                for (Stream s : failed) {
+                    s.handler.error(reason);
+                }
+            });
+        }
+
+        // ----- codec listener -----
+
+        @Override
+        public void settings() {
+            int delta = codec.initialWindowSize() - initialWindowSize;
+            initialWindowSize = codec.initialWindowSize();
+            for (Stream s : streams.values()) {
+                s.sendWindow += delta;
+            }
+            sendData();
+        }
+
+        @Override
+        public void response(int streamId, ByteArray data, int consumed, boolean end) {
+            Stream stream = end ? streams.remove(streamId) : streams.get(streamId);
+            if (stream == null) {
+                return; // the stream is canceled
+            }
+            if (end) {
+                sending.remove(stream);
+            }
+            stream.handler.response(data, consumed, end);
+            if (end) {
+                streamDone();
+            }
+        }
+
+        @Override
+        public void closeDelimited(int streamId) {
+            Stream stream = streams.get(streamId);
+            if (stream != null) {
+                stream.handler.closeDelimited();
+            }
+        }
+
+        @Override
+        public void reset(int streamId, int errorCode) {
+            Stream stream = streams.remove(streamId);
+            if (stream == null) {
+                return;
+            }
+            sending.remove(stream);
+            loop.getSelectorEventLoop().nextTick(() -> stream.handler.error("stream reset by backend, error code " + errorCode));
+            streamDone();
+        }
+
+        @Override
+        public void windowUpdate(int streamId, int increment) {
+            if (streamId == 0) {
+                sendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+            }
+            sendData();
+        }
+
+        @Override
+        public void goAway(int lastStreamId, int errorCode) {
+            assert Logger.lowLevelDebug("shared h2 connection " + conn + " goaway: last=" + lastStreamId + ", error=" + errorCode);
+            goAway = true;
+            remove(this);
+            List<Stream> failed = new ArrayList<>();
+            for (var ite = streams.values().iterator(); ite.hasNext(); ) {
+                Stream s = ite.next();
+                if (s.id > lastStreamId) {
+                    ite.remove();
+                    sending.remove(s);
+                    failed.add(s);
+                }
+            }
+            if (!failed.isEmpty()) {
+                loop.getSelectorEventLoop().nextTick(() -> {
+                    for (Stream s : failed) {
+                        s.handler.error("stream refused by backend goaway");
+                    }
+                });
+            }
+            streamDone();
+        }
+    }
+
+    private final NetEventLoop loop;
+    private final PeriodicEvent idleTimer;
+    // Connector#poolKey() => connections
+    private final Map<Object, List<Conn>> conns = new HashMap<>();
+
+    private SharedHttp2Connections(NetEventLoop loop) {
+        this.loop = loop;
+        this.idleTimer = loop.getSelectorEventLoop().period(Math.max(Math.min(Config.processorBackendPoolMaxIdle / 2, 1000), 10), this::closeIdle);
+    }
+
+    /**
+     * send the request as a new stream to the server of the connector
+     *
+     * @param timeout timeout of the connection when creating a new one
+     */
+    Stream open(Connector connector, int timeout, int inBufferSize, int outBufferSize,
+                Request req, Header[] additionalHeaders, StreamHandler handler) throws IOException {
+        Object key = connector.poolKey();
+        List<Conn> list = conns.computeIfAbsent(key, k -> new ArrayList<>());
+        for (Conn c : list) {
+            if (c.acceptsStream()) {
+                return c.open(req, additionalHeaders, handler);
+            }
+        }
+        ConnectableConnection conn = connector.connect(
+            new ConnectionOpts().setTimeout(timeout),
+            RingBuffer.allocateDirect(inBufferSize), RingBuffer.allocateDirect(outBufferSize));
+        Conn c = new Conn(key, conn);
+        try {
+            loop.addConnectableConnection(conn, null, c);
+        } catch (IOException e) {
+            conn.close(true);
+            throw e;
+        }
+        assert Logger.lowLevelDebug("new shared h2 connection " + conn + ", " + (list.size() + 1) + " connection(s) to " + connector.remote);
+        list.add(c);
+        return c.open(req, additionalHeaders, handler);
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        List<Conn> idle = new ArrayList<>();
+        for (List<Conn> list : conns.values()) {
+            for (Conn c : list) {
+                if (c.streams.isEmpty() && now - c.idleSince > Config.processorBackendPoolMaxIdle) {
+                    idle.add(c);
+                }
+            }
+        }
+        for (Conn c : idle) {
+            assert Logger.lowLevelDebug("shared h2 connection " + c.conn + " is idle for too long");
+            close(c);
+        }
+    }
+
+    private void remove(Conn c) {
+        List<Conn> list = conns.get(c.key);
+        if (list != null) {
+            list.remove(c);
+            if (list.isEmpty()) {
+                conns.remove(c.key);
+            }
+        }
+    }
+
+    private void close(Conn c) {
+        remove(c);
+        // may be called inside callbacks of other connections, so close it in the next tick
+        loop.getSelectorEventLoop().nextTick(() -> {
+            if (c.conn.isClosed())
+                return;
+            c.conn.close();
+            c.conn.getInBuffer().clean();
+            c.conn.getOutBuffer().clean();
+        });
+    }
+}
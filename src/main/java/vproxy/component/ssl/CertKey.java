@@ -1,5 +1,7 @@
 package vproxy.component.ssl;
 
+import vproxy.app.Config;
+import vproxy.openssl.OpenSSLContext;
 import vproxy.util.ringbuffer.ssl.VSSLContext;
 
 import javax.net.ssl.KeyManager;
@@ -70,39 +72,47 @@ public class CertKey {
         return x509certs;
     }
 
-    public void setInto(VSSLContext vsslContext) throws Exception {
+    private SSLContext newSSLContext(KeyStore keyStore) throws Exception {
+        if (Config.sslEngine.equals("openssl")) {
+            // openssl loads the pem certs and key by itself
+            return OpenSSLContext.create(certs, key);
+        }
         // create ctx
-        SSLContext ctx = SSLContext.getInstance("TLS");
-        // create empty key store
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        keyStore.load(null);
-        // init keystore
-        X509Certificate[] certs = this.setInto(keyStore);
+        SSLContext ctx;
+        if (Config.sslProvider.isEmpty()) {
+            ctx = SSLContext.getInstance("TLS");
+        } else {
+            ctx = SSLContext.getInstance("TLS", Config.sslProvider);
+        }
         // retrieve key manager array
         KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
         kmf.init(keyStore, "changeit".toCharArray());
         KeyManager[] km = kmf.getKeyManagers();
         // init ctx
         ctx.init(km, null, null);
+        return ctx;
+    }
+
+    public void setInto(VSSLContext vsslContext) throws Exception {
+        // create empty key store
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null);
+        // init keystore
+        X509Certificate[] certs = this.setInto(keyStore);
+        // create ctx
+        SSLContext ctx = newSSLContext(keyStore);
 
         vsslContext.sslContextHolder.add(ctx, certs);
     }
 
     public SSLContext buildSSLContext() throws Exception {
-        // create ctx
-        SSLContext ctx = SSLContext.getInstance("TLS");
         // create empty key store
         KeyStore keyStore = KeyStore.getInstance("JKS");
         keyStore.load(null);
         // init keystore
         this.setInto(keyStore);
-        // retrieve key manager array
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-        kmf.init(keyStore, "changeit".toCharArray());
-        KeyManager[] km = kmf.getKeyManagers();
-        // init ctx
-        ctx.init(km, null, null);
-        return ctx;
+        // create ctx
+        return newSSLContext(keyStore);
     }
 
     @Override
@@ -0,0 +1,66 @@
+package vproxy.component.svrgroup;
+
+import vproxy.util.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+/**
+ * tls from the lb to the backend servers.<br>
+ * enabled by the server group annotation <code>vproxy/backend-tls</code>:<br>
+ * <code>true</code>: verify the server certificates with the default trust store<br>
+ * <code>insecure</code>: trust any certificate, usually for backends using self-signed certificates
+ */
+class BackendTls {
+    static final String VERIFY = "true";
+    static final String INSECURE = "insecure";
+
+    private BackendTls() {
+    }
+
+    static String parse(String annotation) {
+        if (VERIFY.equals(annotation) || INSECURE.equals(annotation)) {
+            return annotation;
+        }
+        return null;
+    }
+
+    /**
+     * each server uses its own context,
+     * so the client session cache of the context only holds sessions of the server
+     */
+    static SSLContext newClientSSLContext(boolean verify) throws IOException {
+        TrustManager[] tms = null;
+        if (!verify) {
+            tms = new TrustManager[]{new TrustAllX509Manager()};
+        }
+        SSLContext ctx;
+        try {
+            ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, tms, null);
+        } catch (Exception e) {
+            throw new IOException("creating ssl context for backend tls failed", e);
+        }
+        return ctx;
+    }
+
+    private static class TrustAllX509Manager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] certs, String authType) {
+            // not used by client side
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] certs, String authType) {
+            assert Logger.lowLevelDebug("backend tls is insecure, no server cert check");
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
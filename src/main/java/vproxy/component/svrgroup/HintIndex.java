@@ -0,0 +1,133 @@
+package vproxy.component.svrgroup;
+
+import vproxy.app.util.AnnotationKeys;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * compiled host/port annotations of the groups in an upstream.<br>
+ * the result is the same as checking {@link vproxy.processor.Hint#matchLevel(Map[])} for every group:
+ * exact match is the best, then the hint host is a sub domain of the annotation,
+ * then the annotation is a sub domain of the hint host,
+ * and the first group wins when levels are the same.<br>
+ * exact matches are found in a hash map,
+ * others are found in a trie of reversed domain labels,
+ * so the lookup cost only depends on label count of the hint
+ */
+class HintIndex {
+    private static final int NOT_FOUND = Integer.MAX_VALUE;
+
+    // the minimum group index which matches the hint port
+    private static class Candidates {
+        int minAll = NOT_FOUND;
+        int minNoPort = NOT_FOUND; // groups without port annotation match all ports
+        HashMap<String, Integer> minByPort = null;
+
+        void add(int idx, String port) {
+            minAll = Math.min(minAll, idx);
+            if (port == null) {
+                minNoPort = Math.min(minNoPort, idx);
+            } else {
+                if (minByPort == null) {
+                    minByPort = new HashMap<>();
+                }
+                minByPort.merge(port, idx, Math::min);
+            }
+        }
+
+        int get(String port) {
+            if (port == null)
+                return minAll;
+            if (minByPort == null)
+                return minNoPort;
+            Integer idx = minByPort.get(port);
+            if (idx == null)
+                return minNoPort;
+            return Math.min(minNoPort, idx);
+        }
+    }
+
+    private static class Node {
+        final HashMap<String, Node> children = new HashMap<>();
+        final Candidates self = new Candidates(); // groups annotated with the domain of this node
+        final Candidates descendants = new Candidates(); // groups annotated with sub domains of this node
+    }
+
+    final long generationWhenBuilt;
+    final ArrayList<Upstream.ServerGroupHandle> handles;
+    private final HashMap<String, Node> exact = new HashMap<>();
+    private final Node root = new Node();
+
+    // the generation should be read before reading the handles and annotations
+    // so changes happening when building will make this index stale
+    HintIndex(long generation, ArrayList<Upstream.ServerGroupHandle> handles) {
+        this.generationWhenBuilt = generation;
+        this.handles = handles;
+
+        for (int i = 0; i < handles.size(); ++i) {
+            Upstream.ServerGroupHandle h = handles.get(i);
+            String host = annotation(h, AnnotationKeys.ServerGroup_HintHost);
+            if (host == null) { // for now, we do not support to determine from annotations without `host`
+                continue;
+            }
+            String port = annotation(h, AnnotationKeys.ServerGroup_HintPort);
+
+            String[] labels = host.split("\\.", -1);
+            Node node = root;
+            for (int l = labels.length - 1; l >= 0; --l) {
+                node.descendants.add(i, port);
+                node = node.children.computeIfAbsent(labels[l], k -> new Node());
+            }
+            node.self.add(i, port);
+            exact.put(host, node);
+        }
+    }
+
+    // the group annotations can be overridden by annotations of the handle
+    private static String annotation(Upstream.ServerGroupHandle h, String key) {
+        Map<String, String> anno = h.getAnnotations();
+        if (anno != null && anno.get(key) != null) {
+            return anno.get(key);
+        }
+        anno = h.group.getAnnotations();
+        if (anno != null) {
+            return anno.get(key);
+        }
+        return null;
+    }
+
+    Upstream.ServerGroupHandle search(String host, String port) {
+        Node node = exact.get(host);
+        if (node != null) {
+            int idx = node.self.get(port);
+            if (idx != NOT_FOUND) {
+                return handles.get(idx);
+            }
+        }
+
+        // walk the trie with labels from the last one
+        // the nodes before the last label are parent domains of the host
+        int subDomainIdx = NOT_FOUND;
+        node = root;
+        int end = host.length();
+        while (true) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null)
+                break;
+            if (dot == -1) {
+                if (subDomainIdx != NOT_FOUND)
+                    break;
+                // the whole host is checked
+                // annotations of the descendants are sub domains of the host
+                int idx = node.descendants.get(port);
+                return idx == NOT_FOUND ? null : handles.get(idx);
+            }
+            subDomainIdx = Math.min(subDomainIdx, node.self.get(port));
+            end = dot;
+        }
+        return subDomainIdx == NOT_FOUND ? null : handles.get(subDomainIdx);
+    }
+}
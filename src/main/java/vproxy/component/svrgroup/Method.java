@@ -3,5 +3,35 @@ package vproxy.component.svrgroup;
 public enum Method {
     wrr,
     wlc,
-    source, // consistent hashing with source ip address
+    source, // consistent hashing (maglev) with source ip address
+    p2cEwma("p2c-ewma"), // power of two choices, compare active connections * ewma latency
+    ;
+
+    private final String name;
+
+    Method() {
+        this.name = name();
+    }
+
+    Method(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name name of the method, e.g. wrr, p2c-ewma
+     * @return the method
+     * @throws IllegalArgumentException the name is not a valid method
+     */
+    public static Method of(String name) {
+        for (Method m : values()) {
+            if (m.name.equals(name))
+                return m;
+        }
+        throw new IllegalArgumentException("no such method: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
 }
@@ -0,0 +1,71 @@
+package vproxy.component.svrgroup;
+
+import vproxy.app.util.AnnotationKeys;
+
+import java.util.Map;
+
+/**
+ * eject servers which keep failing on live traffic, before health checks find them DOWN.<br>
+ * enabled by the server group annotations:<br>
+ * <code>vproxy/outlier-consecutive-failures</code>: eject the server after this count of consecutive
+ * connect failures, resets or timeouts<br>
+ * <code>vproxy/outlier-base-ejection-time</code>: seconds of the first ejection, default 30.
+ * the time doubles if the server is ejected again soon after it returns, and is at most 300s or the base time<br>
+ * <code>vproxy/outlier-max-ejection-percent</code>: at most this percentage of servers in the group can be ejected, default 50
+ */
+class OutlierDetection {
+    private static final int DEFAULT_BASE_EJECTION_SECONDS = 30;
+    private static final int DEFAULT_MAX_EJECTION_PERCENT = 50;
+    private static final long MAX_EJECTION_NANOS = 300 * 1_000_000_000L;
+
+    final int consecutiveFailures;
+    private final long baseEjectionNanos;
+    final int maxEjectionPercent;
+
+    private OutlierDetection(int consecutiveFailures, long baseEjectionNanos, int maxEjectionPercent) {
+        this.consecutiveFailures = consecutiveFailures;
+        this.baseEjectionNanos = baseEjectionNanos;
+        this.maxEjectionPercent = maxEjectionPercent;
+    }
+
+    /**
+     * @return null if outlier detection is not enabled or the annotations are invalid
+     */
+    static OutlierDetection parse(Map<String, String> annotations) {
+        if (annotations == null)
+            return null;
+        String failures = annotations.get(AnnotationKeys.ServerGroup_OutlierConsecutiveFailures);
+        if (failures == null)
+            return null;
+        int consecutive;
+        int seconds = DEFAULT_BASE_EJECTION_SECONDS;
+        int percent = DEFAULT_MAX_EJECTION_PERCENT;
+        try {
+            consecutive = Integer.parseInt(failures);
+            String secondsStr = annotations.get(AnnotationKeys.ServerGroup_OutlierBaseEjectionTime);
+            if (secondsStr != null) {
+                seconds = Integer.parseInt(secondsStr);
+            }
+            String percentStr = annotations.get(AnnotationKeys.ServerGroup_OutlierMaxEjectionPercent);
+            if (percentStr != null) {
+                percent = Integer.parseInt(percentStr);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (consecutive <= 0 || seconds <= 0 || percent <= 0 || percent > 100)
+            return null;
+        return new OutlierDetection(consecutive, seconds * 1_000_000_000L, percent);
+    }
+
+    /**
+     * @param times how many times the server is ejected in a row, starts from 0
+     * @return the ejection time in nanoseconds
+     */
+    long ejectionNanos(int times) {
+        long max = Math.max(baseEjectionNanos, MAX_EJECTION_NANOS);
+        if (times >= 30)
+            return max;
+        return Math.min(baseEjectionNanos << times, max);
+    }
+}
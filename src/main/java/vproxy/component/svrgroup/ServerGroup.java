@@ -1,6 +1,7 @@
 package vproxy.component.svrgroup;
 
 import vproxy.app.GlobalEvents;
+import vproxy.app.util.AnnotationKeys;
 import vproxy.component.check.*;
 import vproxy.component.elgroup.EventLoopAttach;
 import vproxy.component.elgroup.EventLoopGroup;
@@ -12,16 +13,29 @@ import vproxy.component.exception.NotFoundException;
 import vproxy.connection.ConnCloseHandler;
 import vproxy.connection.Connection;
 import vproxy.connection.NetFlowRecorder;
+import vproxy.pool.ConnectionPool;
 import vproxy.util.ConcurrentHashSet;
+import vproxy.util.LatencyHistogram;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
+import vproxy.util.Maglev;
 import vproxy.util.Utils;
 
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -31,8 +45,15 @@ public class ServerGroup {
         class ServerHealthCheckHandler implements HealthCheckHandler {
             @Override
             public void up(SocketAddress remote) {
+                SlowStart ss = slowStart;
+                if (ss != null) {
+                    // set before healthy, so the server will not get all the new connections
+                    slowStartBeginNanos = System.nanoTime();
+                    slowStarting = true;
+                }
                 healthy = true;
                 hcDownReason = null;
+                wlcUpdate(ServerHandle.this);
                 Logger.info(LogType.HEALTH_CHECK_CHANGE,
                     "server " + ServerHandle.this.alias + "(" + server + ") status changed to UP");
 
@@ -53,6 +74,7 @@ public class ServerGroup {
             @Override
             public void down(SocketAddress remote, String reason) {
                 healthy = false;
+                wlcUpdate(ServerHandle.this);
                 Logger.info(LogType.HEALTH_CHECK_CHANGE,
                     "server " + ServerHandle.this.alias + "(" + server + ") status changed to DOWN, reason: " + reason);
 
@@ -66,6 +88,7 @@ public class ServerGroup {
             @Override
             public void upOnce(SocketAddress remote, ConnectResult result) {
                 assert Logger.lowLevelDebug("up once for " + ServerHandle.this.alias + "(" + server + "), cost = " + result.cost);
+                hcLatency.record(result.cost);
                 hcCost.addLast(result.cost);
                 if (hcCost.size() > 10) {
                     hcCost.removeFirst();
@@ -119,14 +142,50 @@ public class ServerGroup {
         // NOTE: healthy state is public
         public boolean healthy = false; // considered to be unhealthy when firstly created
         private final LinkedList<Long> hcCost = new LinkedList<>(); // the time cost for one healthy checking result of this endpoint
+        private final LatencyHistogram hcLatency = new LatencyHistogram(); // time cost of all successful health checks
         private String hcDownReason = null; // the reason for the failed health checks
         private boolean logicDelete = false; // if true, it will not be checked for dup alias nor saved to cfg file
         HealthCheckClient healthCheckClient;
 
         private final LongAdder fromRemoteBytes = new LongAdder();
         private final LongAdder toRemoteBytes = new LongAdder();
+        private final LongAdder tlsHandshakes = new LongAdder();
+        private final LongAdder tlsResumedHandshakes = new LongAdder();
+
+        private SSLContext clientSSLContext; // for backend tls, each server has its own client session cache
 
         private ConcurrentHashSet<Connection> connMap = new ConcurrentHashSet<>();
+        private final AtomicInteger activeConnections = new AtomicInteger(0); // the same as connMap.size() but O(1)
+        int wlcIndex = -1; // index in the wlc tree of all servers
+        int wlcFamilyIndex = -1; // index in the wlc tree of ipv4 or ipv6 servers
+
+        // peak ewma of the connect and first byte latency, in nanoseconds
+        // the two fields are not updated atomically, a racing sample may be lost, which is acceptable
+        private volatile double latencyEwma = 0;
+        private volatile long latencyEwmaTime = 0;
+
+        private volatile boolean slowStarting = false;
+        private volatile long slowStartBeginNanos = 0;
+
+        // passive outlier detection
+        private final LongAdder connectFailures = new LongAdder();
+        private final LongAdder resets = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder ejections = new LongAdder();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+        private volatile boolean ejected = false;
+        private volatile long ejectedUntilNanos = 0;
+        private int ejectedTimes = 0; // ejected times in a row, guarded by the server group
+
+        // warm pool
+        volatile ConnectionPool warmPool; // null means disabled
+        private final LongAdder warmPoolHits = new LongAdder();
+        private final LongAdder warmPoolMisses = new LongAdder();
+        private final LongAdder warmPoolGetNanos = new LongAdder(); // total time of retrieving connections from the pool
+        private final LongAdder dials = new LongAdder();
+        private final LongAdder dialNanos = new LongAdder(); // total time of tcp handshakes
+
+        final long sourceHashKey; // the key in the maglev table, only depends on ip and port
 
         public Object data; // the data field, not used by this lib
 
@@ -141,6 +200,12 @@ public class ServerGroup {
             this.server = server;
             this.weight = initialWeight;
             this.toLogicDelete = toLogicDelete;
+
+            byte[] addr = server.getAddress().getAddress();
+            byte[] key = Arrays.copyOf(addr, addr.length + 2);
+            key[addr.length] = (byte) (server.getPort() >> 8);
+            key[addr.length + 1] = (byte) server.getPort();
+            this.sourceHashKey = Maglev.hash(key);
         }
 
         // --- START statistics ---
@@ -161,19 +226,273 @@ public class ServerGroup {
         public long getFromRemoteBytes() {
             return fromRemoteBytes.longValue();
         }
+
+        void tlsHandshakeDone(SSLSession session, long connectTime) {
+            tlsHandshakes.increment();
+            // a resumed session keeps the creation time of the original one (both tls 1.2 and 1.3)
+            // so it must be created before the connection started
+            if (session.getCreationTime() < connectTime) {
+                tlsResumedHandshakes.increment();
+            }
+        }
+
+        public long getTlsHandshakeCount() {
+            return tlsHandshakes.longValue();
+        }
+
+        public long getTlsResumedHandshakeCount() {
+            return tlsResumedHandshakes.longValue();
+        }
+
+        void recordLatency(long nanos) {
+            long now = System.nanoTime();
+            double ewma = latencyEwma;
+            if (nanos > ewma) {
+                // react to slow servers immediately
+                latencyEwma = nanos;
+            } else {
+                // samples decay over time, so the weight of a new sample depends on the elapsed time
+                double w = Math.exp(-(now - latencyEwmaTime) / (double) LATENCY_EWMA_DECAY_NANOS);
+                latencyEwma = ewma * w + nanos * (1 - w);
+            }
+            latencyEwmaTime = now;
+        }
+
+        public long getLatencyEwmaNanos() {
+            return (long) latencyEwma;
+        }
+
+        public long getConnectFailureCount() {
+            return connectFailures.longValue();
+        }
+
+        public long getResetCount() {
+            return resets.longValue();
+        }
+
+        public long getTimeoutCount() {
+            return timeouts.longValue();
+        }
+
+        public long getEjectionCount() {
+            return ejections.longValue();
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures.get();
+        }
+
+        void recordDial(long nanos) {
+            dials.increment();
+            dialNanos.add(nanos);
+        }
+
+        void warmPoolHit(long nanos) {
+            warmPoolHits.increment();
+            warmPoolGetNanos.add(nanos);
+        }
+
+        void warmPoolMiss() {
+            warmPoolMisses.increment();
+        }
+
+        /**
+         * @return count of connections in the warm pool, -1 if the warm pool is disabled
+         */
+        public int getWarmPoolIdleCount() {
+            ConnectionPool pool = warmPool;
+            return pool == null ? -1 : pool.count();
+        }
+
+        public long getWarmPoolHitCount() {
+            return warmPoolHits.longValue();
+        }
+
+        public long getWarmPoolMissCount() {
+            return warmPoolMisses.longValue();
+        }
+
+        /**
+         * @return average time cost of tcp handshakes in microseconds, -1 if no data
+         */
+        public long getAvgDialMicros() {
+            long n = dials.longValue();
+            return n == 0 ? -1 : dialNanos.longValue() / n / 1000;
+        }
+
+        /**
+         * @return average time cost of retrieving a connection from the warm pool in microseconds, -1 if no data
+         */
+        public long getAvgWarmPoolGetMicros() {
+            long n = warmPoolHits.longValue();
+            return n == 0 ? -1 : warmPoolGetNanos.longValue() / n / 1000;
+        }
         // --- END statistics ---
 
+        public boolean isBackendTls() {
+            return backendTls != null;
+        }
+
+        // the factor to multiply the weight, 1 if slow start is disabled or already done
+        double slowStartFactor() {
+            if (!slowStarting)
+                return 1;
+            SlowStart ss = slowStart;
+            if (ss == null) {
+                slowStarting = false;
+                return 1;
+            }
+            double f = ss.factor(System.nanoTime() - slowStartBeginNanos);
+            if (f >= 1) {
+                slowStarting = false;
+            }
+            return f;
+        }
+
+        boolean isSlowStarting() {
+            return slowStarting;
+        }
+
+        void outlierSuccess() {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0);
+            }
+        }
+
+        void outlierConnectFailure() {
+            connectFailures.increment();
+            outlierFailure("connect failure");
+        }
+
+        void outlierReset() {
+            resets.increment();
+            outlierFailure("reset");
+        }
+
+        void outlierTimeout() {
+            timeouts.increment();
+            outlierFailure("timeout");
+        }
+
+        private void outlierFailure(String kind) {
+            int failures = consecutiveFailures.incrementAndGet();
+            OutlierDetection od = outlierDetection;
+            if (od == null || failures < od.consecutiveFailures)
+                return;
+            eject(od, failures, kind);
+        }
+
+        private void eject(OutlierDetection od, int failures, String kind) {
+            synchronized (ServerGroup.this) {
+                if (isEjected())
+                    return; // failures of the connections made before the ejection
+                long now = System.nanoTime();
+                // a server which has been back for longer than its last ejection starts from the base time again
+                if (ejectedTimes > 0 && now - ejectedUntilNanos > od.ejectionNanos(ejectedTimes - 1)) {
+                    ejectedTimes = 0;
+                }
+                ArrayList<ServerHandle> ls = servers;
+                int ejectedCount = 0;
+                for (ServerHandle h : ls) {
+                    if (h.isEjected()) {
+                        ++ejectedCount;
+                    }
+                }
+                if ((ejectedCount + 1) * 100 > od.maxEjectionPercent * ls.size()) {
+                    assert Logger.lowLevelDebug("cannot eject " + ServerHandle.this.alias + "(" + server + ")" +
+                        ", " + ejectedCount + " of " + ls.size() + " servers are already ejected");
+                    return;
+                }
+                long nanos = od.ejectionNanos(ejectedTimes++);
+                ejectedUntilNanos = now + nanos;
+                ejected = true;
+                wlcUpdate(this);
+                consecutiveFailures.set(0);
+                ejections.increment();
+                Logger.warn(LogType.HEALTH_CHECK_CHANGE,
+                    "server " + ServerHandle.this.alias + "(" + server + ") is ejected for " + (nanos / 1_000_000) + "ms" +
+                        " after " + failures + " consecutive failures, the last one is " + kind);
+            }
+        }
+
+        /**
+         * @return true if the server is ejected by the outlier detection, the ejection ends automatically
+         */
+        public boolean isEjected() {
+            if (!ejected)
+                return false;
+            if (System.nanoTime() - ejectedUntilNanos < 0)
+                return true;
+            ejected = false;
+            return false;
+        }
+
+        /**
+         * @return milliseconds before the ejection ends, 0 if not ejected
+         */
+        public long getEjectionRemainingMillis() {
+            if (!isEjected())
+                return 0;
+            return Math.max(0, (ejectedUntilNanos - System.nanoTime()) / 1_000_000);
+        }
+
+        // healthy and not ejected
+        boolean available() {
+            return healthy && !isEjected();
+        }
+
+        SSLEngine createClientSSLEngine() throws IOException {
+            SSLContext ctx;
+            boolean verify = BackendTls.VERIFY.equals(backendTls);
+            synchronized (this) {
+                ctx = clientSSLContext;
+                if (ctx == null) {
+                    ctx = BackendTls.newClientSSLContext(verify);
+                    clientSSLContext = ctx;
+                }
+            }
+            // the session cache is keyed by host and port
+            String host = hostName == null ? Utils.ipStr(server.getAddress().getAddress()) : hostName;
+            SSLEngine engine = ctx.createSSLEngine(host, server.getPort());
+            engine.setUseClientMode(true);
+            if (hostName != null) {
+                SSLParameters params = engine.getSSLParameters();
+                params.setServerNames(Collections.singletonList(new SNIHostName(hostName)));
+                if (verify) {
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                }
+                engine.setSSLParameters(params);
+            }
+            return engine;
+        }
+
+        void resetClientSSLContext() {
+            synchronized (this) {
+                clientSSLContext = null;
+            }
+        }
+
         @Override
         public void onConnClose(Connection conn) {
-            connMap.remove(conn);
+            detachConnection(conn);
+        }
+
+        void detachConnection(Connection conn) {
+            if (connMap.remove(conn)) {
+                activeConnections.decrementAndGet();
+                wlcUpdate(this);
+            }
         }
 
         void attachConnection(Connection conn) {
-            connMap.add(conn);
+            if (connMap.add(conn)) {
+                activeConnections.incrementAndGet();
+                wlcUpdate(this);
+            }
         }
 
         public int connectionCount() {
-            return connMap.size();
+            return activeConnections.get();
         }
 
         public void copyConnections(Collection<? super Connection> c) {
@@ -204,6 +523,10 @@ public class ServerGroup {
             return hcDownReason;
         }
 
+        public LatencyHistogram getHcLatency() {
+            return hcLatency;
+        }
+
         void start() {
             if (el != null)
                 return;
@@ -213,6 +536,7 @@ public class ServerGroup {
         void restart() {
             if (el != null)
                 stop(); // event loop exists, so we stop first, then start (which makes it a `restart`)
+            valid = true; // stop() marks it invalid, but the server is still in the group
             EventLoopWrapper w = eventLoopGroup.next();
             if (w == null) {
                 assert Logger.lowLevelDebug("cannot get event loop, give up for now. we will start again when there're available event loops");
@@ -234,6 +558,7 @@ public class ServerGroup {
                 return;
             }
             healthCheckClient.start();
+            resetWarmPool();
             assert Logger.lowLevelDebug("health check for " +
                 ServerHandle.this.alias + "(" + server + ") " +
                 "is started on loop " + el.alias);
@@ -256,6 +581,7 @@ public class ServerGroup {
         }
 
         void stop() {
+            valid = false; // it's invalid when stopped, even if the health check is not running
             if (el == null)
                 return;
             assert Logger.lowLevelDebug("stop health check for " + ServerHandle.this.alias + "(" + server + ")");
@@ -268,16 +594,29 @@ public class ServerGroup {
                 Logger.shouldNotHappen("the resource should be attached to the event loop");
             }
             el = null;
-            valid = false; // it's invalid when stopped
             if (healthCheckClient != null) {
                 healthCheckClient.stop();
             }
             healthCheckClient = null;
+            resetWarmPool();
 
             // alert event
             alertListeners(lsn -> lsn.stop(this));
         }
 
+        // close the current warm pool, and create a new one if it's enabled
+        // synchronized because it's called by start/stop and by setAnnotations on different threads,
+        // the pool created by one call is always closed by the following call
+        synchronized void resetWarmPool() {
+            ConnectionPool old = warmPool;
+            EventLoopWrapper w = el;
+            WarmPool cfg = warmPoolConfig;
+            warmPool = (w == null || cfg == null) ? null : cfg.create(this, w);
+            if (old != null) {
+                old.close();
+            }
+        }
+
         private void alertListeners(Consumer<ServerListener> code) {
             for (ServerListener lsn : serverListeners) {
                 code.accept(lsn);
@@ -288,6 +627,10 @@ public class ServerGroup {
             return new SvrHandleConnector(this);
         }
 
+        ServerGroup group() {
+            return ServerGroup.this;
+        }
+
         @Override
         public String toString() {
             return id();
@@ -326,16 +669,172 @@ public class ServerGroup {
     private final Attach attach;
     private ArrayList<ServerHandle> servers = new ArrayList<>(0);
     private final CopyOnWriteArraySet<ServerListener> serverListeners = new CopyOnWriteArraySet<>();
+    // upstreams containing this group, notified when annotations change
+    // weak because removing an upstream does not remove the groups from it
+    private final Set<Upstream> upstreams = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
     private Map<String, String> annotations = null;
+    private String backendTls = null; // null means plain tcp, see BackendTls
+    private SlowStart slowStart = null; // null means disabled
+    private OutlierDetection outlierDetection = null; // null means disabled
+    private volatile WarmPool warmPoolConfig = null; // null means disabled
+
+    private static final long LATENCY_EWMA_DECAY_NANOS = 10_000_000_000L; // 10s
 
     // START fields for WRR
+    // earliest deadline first:
+    // each server has a virtual deadline, the server with the earliest deadline is selected,
+    // then its deadline is increased by 1/weight.
+    // so servers are selected in proportion to their weights,
+    // and the selections are interleaved (the same effect as the smooth weighted round-robin of nginx).
+    // memory is O(n) and selection is O(log n).
+    // the step is calculated when the server is selected, so slow start does not require rebuilding.
+    // unavailable servers are taken out of the heap when they reach the top, so each server is checked
+    // at most once in a selection, one of them is checked in each selection and put back when available
     static class WRR {
-        int[] seq;
-        final AtomicInteger wrrCursor = new AtomicInteger(0);
         final ArrayList<ServerHandle> servers; // = servers;
-
-        WRR(List<ServerHandle> servers) {
+        private final int[] heap; // server indexes, ordered by deadline
+        private int size; // servers in the heap
+        private final int[] parked; // unavailable servers taken out of the heap
+        private int parkedCount = 0;
+        private int parkedCursor = 0; // the next parked server to check
+        private final double[] deadline;
+        private final double[] step;
+        private double now = 0; // the deadline of the last selected server
+
+        WRR(List<ServerHandle> servers, WRR old) {
             this.servers = new ArrayList<>(servers);
+            int n = this.servers.size();
+            this.heap = new int[n];
+            this.size = n;
+            this.parked = new int[n];
+            this.deadline = new double[n];
+            this.step = new double[n];
+
+            // keep the progress of the servers which were in the old list,
+            // so that changing the list does not restart the round
+            IdentityHashMap<ServerHandle, Double> oldLag = new IdentityHashMap<>();
+            if (old != null) {
+                synchronized (old) {
+                    for (int i = 0; i < old.servers.size(); ++i) {
+                        oldLag.put(old.servers.get(i), old.deadline[i] - old.now);
+                    }
+                }
+            }
+            // random is for this concern:
+            // if you deploy multiple instances of vproxy
+            // with exactly the same configuration
+            // behind a (w)rr LVS or other proxy servers
+            // without the random start, first few connections
+            // will always be made to the same server
+            // which may cause some failure
+            Random rand = new Random();
+            for (int i = 0; i < n; ++i) {
+                step[i] = 1.0 / this.servers.get(i).weight;
+                Double lag = oldLag.get(this.servers.get(i));
+                if (lag == null) {
+                    deadline[i] = rand.nextDouble() * step[i];
+                } else {
+                    deadline[i] = Math.max(0, Math.min(lag, step[i]));
+                }
+                heap[i] = i;
+            }
+            for (int i = n / 2 - 1; i >= 0; --i) {
+                siftDown(i);
+            }
+        }
+
+        synchronized ServerHandle next() {
+            if (parkedCount > 0) {
+                if (size == 0) {
+                    // all servers are parked, check all of them
+                    for (int i = parkedCount - 1; i >= 0; --i) {
+                        unpark(i);
+                    }
+                } else {
+                    if (parkedCursor >= parkedCount) {
+                        parkedCursor = 0;
+                    }
+                    if (!unpark(parkedCursor)) {
+                        ++parkedCursor;
+                    }
+                }
+            }
+            while (size > 0) {
+                int idx = heap[0];
+                ServerHandle h = servers.get(idx);
+                if (h.available()) {
+                    now = deadline[idx];
+                    // a slow starting server gets a longer step, which means less chances
+                    deadline[idx] += step[idx] / h.slowStartFactor();
+                    siftDown(0);
+                    if (now > REBASE_THRESHOLD) {
+                        rebase();
+                    }
+                    return h;
+                }
+                // take the server out without advancing its deadline
+                heap[0] = heap[--size];
+                siftDown(0);
+                parked[parkedCount++] = idx;
+            }
+            return null;
+        }
+
+        // put the parked server back to the heap if it's available
+        private boolean unpark(int parkedPos) {
+            int idx = parked[parkedPos];
+            if (!servers.get(idx).available())
+                return false;
+            parked[parkedPos] = parked[--parkedCount];
+            // the server did not take part in the selections when it's parked,
+            // start from the current round, so it does not get all the connections to catch up
+            deadline[idx] = Math.max(deadline[idx], now);
+            int pos = size++;
+            heap[pos] = idx;
+            siftUp(pos);
+            return true;
+        }
+
+        private static final double REBASE_THRESHOLD = 1_000_000;
+
+        // keep the values small to preserve precision
+        private void rebase() {
+            for (int i = 0; i < deadline.length; ++i) {
+                deadline[i] -= now;
+            }
+            now = 0;
+        }
+
+        private void siftDown(int pos) {
+            int n = size;
+            if (pos >= n)
+                return;
+            int idx = heap[pos];
+            while (true) {
+                int child = pos * 2 + 1;
+                if (child >= n)
+                    break;
+                if (child + 1 < n && deadline[heap[child + 1]] < deadline[heap[child]]) {
+                    ++child;
+                }
+                if (deadline[heap[child]] >= deadline[idx])
+                    break;
+                heap[pos] = heap[child];
+                pos = child;
+            }
+            heap[pos] = idx;
+        }
+
+        private void siftUp(int pos) {
+            int idx = heap[pos];
+            while (pos > 0) {
+                int parent = (pos - 1) / 2;
+                if (deadline[heap[parent]] <= deadline[idx])
+                    break;
+                heap[pos] = heap[parent];
+                pos = parent;
+            }
+            heap[pos] = idx;
         }
     }
 
@@ -345,11 +844,184 @@ public class ServerGroup {
     // END fields for WRR
 
     // START fields for WLC
+    // a tournament tree, each inner node records the leaf with the least connections/weight in its subtree.
+    // connection changes come from all event loops, they only mark the leaf dirty without locking,
+    // and the dirty leaves are repaired in a batch by the next selection.
+    // the health state is recorded when the leaf is repaired, health changes reported by the health check
+    // and the outlier detection mark the leaf dirty as well,
+    // other changes (e.g. the ejection ends) are found by checking one recorded down server in each selection
     static class WLC {
         final ArrayList<ServerHandle> servers;
+        private final int leafStart; // the first leaf in the tree array
+        private final int[] tree; // tree[1] is the root, children of i are 2i and 2i+1, value is the server index or -1
+        private final AtomicLongArray dirty; // bitmap of the leaves to repair
+        private volatile boolean anyDirty = false;
+        // the following fields are guarded by the tree
+        private final boolean[] recordedHealthy; // healthy and not ejected
+        private final int[] recordedDown; // servers recorded as unhealthy or ejected
+        private int recordedDownCount = 0;
+        private int recordedDownCursor = 0; // the next recorded down server to check
+        private final int[] slowStarting; // weights of these servers change over time, so they are repaired periodically
+        private int slowStartingCount = 0;
+        private long slowStartingRepairNanos = 0;
+
+        private static final long SLOW_START_REPAIR_INTERVAL_NANOS = 1_000_000; // 1ms
 
         WLC(List<ServerHandle> servers) {
             this.servers = new ArrayList<>(servers);
+            int n = this.servers.size();
+            int leafStart = 1;
+            while (leafStart < n) {
+                leafStart <<= 1;
+            }
+            this.leafStart = leafStart;
+            this.tree = new int[leafStart * 2];
+            this.dirty = new AtomicLongArray((n + 63) >> 6);
+            this.recordedHealthy = new boolean[n];
+            this.recordedDown = new int[n];
+            this.slowStarting = new int[n];
+            for (int i = 0; i < leafStart; ++i) {
+                tree[leafStart + i] = i < n ? i : -1;
+            }
+            for (int i = 0; i < n; ++i) {
+                recordedHealthy[i] = this.servers.get(i).available();
+                if (!recordedHealthy[i]) {
+                    recordedDown[recordedDownCount++] = i;
+                } else if (this.servers.get(i).isSlowStarting()) {
+                    slowStarting[slowStartingCount++] = i;
+                }
+            }
+            for (int i = leafStart - 1; i > 0; --i) {
+                tree[i] = winner(tree[2 * i], tree[2 * i + 1]);
+            }
+        }
+
+        // C(a)/W(a) <= C(b)/W(b) means a wins
+        private int winner(int a, int b) {
+            if (a == -1 || !recordedHealthy[a])
+                return (b == -1 || !recordedHealthy[b]) ? a : b;
+            if (b == -1 || !recordedHealthy[b])
+                return a;
+            ServerHandle sa = servers.get(a);
+            ServerHandle sb = servers.get(b);
+            long ca = sa.activeConnections.get();
+            long cb = sb.activeConnections.get();
+            double fa = sa.slowStartFactor();
+            double fb = sb.slowStartFactor();
+            if (fa == 1 && fb == 1) {
+                return ca * sb.weight <= cb * sa.weight ? a : b;
+            }
+            return ca * sb.weight * fb <= cb * sa.weight * fa ? a : b;
+        }
+
+        private void updatePath(int idx) {
+            for (int i = (leafStart + idx) >> 1; i > 0; i >>= 1) {
+                tree[i] = winner(tree[2 * i], tree[2 * i + 1]);
+            }
+        }
+
+        // called when connection count or health state of the server changes, may be called on any thread
+        void update(ServerHandle h, int idx) {
+            if (idx < 0 || idx >= servers.size() || servers.get(idx) != h)
+                return; // the tree is replaced
+            int word = idx >> 6;
+            long bit = 1L << (idx & 63);
+            // only write when the bit is not set, so frequent updates of the same server do not contend
+            long v;
+            while (((v = dirty.get(word)) & bit) == 0) {
+                if (dirty.compareAndSet(word, v, v | bit)) {
+                    break;
+                }
+            }
+            if (!anyDirty) {
+                anyDirty = true;
+            }
+        }
+
+        // record the health state of the server, the caller should repair the path
+        private void record(int idx) {
+            ServerHandle h = servers.get(idx);
+            boolean available = h.available();
+            if (available == recordedHealthy[idx])
+                return;
+            recordedHealthy[idx] = available;
+            if (available) {
+                for (int i = 0; i < recordedDownCount; ++i) {
+                    if (recordedDown[i] == idx) {
+                        recordedDown[i] = recordedDown[--recordedDownCount];
+                        break;
+                    }
+                }
+                if (h.isSlowStarting()) {
+                    slowStarting[slowStartingCount++] = idx;
+                }
+            } else {
+                recordedDown[recordedDownCount++] = idx;
+                for (int i = 0; i < slowStartingCount; ++i) {
+                    if (slowStarting[i] == idx) {
+                        slowStarting[i] = slowStarting[--slowStartingCount];
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void repairDirty() {
+            anyDirty = false;
+            for (int word = 0; word < dirty.length(); ++word) {
+                if (dirty.get(word) == 0)
+                    continue;
+                long bits = dirty.getAndSet(word, 0);
+                while (bits != 0) {
+                    int idx = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    record(idx);
+                    updatePath(idx);
+                }
+            }
+        }
+
+        synchronized ServerHandle select() {
+            if (anyDirty) {
+                repairDirty();
+            }
+            // check one of the servers recorded down, in case it's up without notification
+            if (recordedDownCount > 0) {
+                if (recordedDownCursor >= recordedDownCount) {
+                    recordedDownCursor = 0;
+                }
+                int idx = recordedDown[recordedDownCursor++];
+                if (servers.get(idx).available()) {
+                    record(idx);
+                    updatePath(idx);
+                }
+            }
+            // the weights of slow starting servers increase, so let them compete again
+            if (slowStartingCount > 0) {
+                long now = System.nanoTime();
+                if (now - slowStartingRepairNanos >= SLOW_START_REPAIR_INTERVAL_NANOS) {
+                    slowStartingRepairNanos = now;
+                    for (int i = 0; i < slowStartingCount; ++i) {
+                        int idx = slowStarting[i];
+                        updatePath(idx);
+                        if (!servers.get(idx).isSlowStarting()) {
+                            slowStarting[i] = slowStarting[--slowStartingCount];
+                            --i;
+                        }
+                    }
+                }
+            }
+            while (true) {
+                int idx = tree[1];
+                if (idx == -1 || !recordedHealthy[idx])
+                    return null; // empty or all servers down
+                ServerHandle h = servers.get(idx);
+                if (h.available())
+                    return h;
+                // the server is down or ejected now
+                record(idx);
+                updatePath(idx);
+            }
         }
     }
 
@@ -360,33 +1032,47 @@ public class ServerGroup {
 
     // START fields for SOURCE
     static class SOURCE {
-        final int[] seq;
+        final Maglev maglev;
         final ArrayList<ServerHandle> servers;
 
-        SOURCE(int[] seq, ArrayList<ServerHandle> servers) {
-            this.seq = seq;
+        SOURCE(Maglev maglev, ArrayList<ServerHandle> servers) {
+            this.maglev = maglev;
             this.servers = servers;
         }
-
-        // sdbm
-        int hash(byte[] bytes) {
-            int hash = 0;
-            for (byte aByte : bytes) {
-                hash = (aByte) + (hash << 6) + (hash << 16) - hash;
-            }
-            hash = Math.abs(hash);
-            if (hash < 0) { // Math.abs(-Integer.MAX_VALUE-1) == -Integer.MAX_VALUE-1
-                hash = 0;
-            }
-            return hash;
-        }
     }
 
+    // groups with more servers use the larger maglev table, which takes about 100ms to build,
+    // so the tables are built out of the group lock, see sourceReset()
+    private static final int SOURCE_SYNC_BUILD_MAX_SERVERS = 655;
+    private static final ExecutorService sourceBuilder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "maglev-builder");
+        t.setDaemon(true);
+        return t;
+    });
+
     private SOURCE _source;
     private SOURCE _sourceIPv4;
     private SOURCE _sourceIPv6;
+    // the following fields are guarded by the group lock
+    private long sourceGeneration = 0; // increased every time the servers or weights change
+    private long sourceInstalledGeneration = 0; // generation of the current tables
+    private boolean sourceBuildScheduled = false;
     // END fields for SOURCE
 
+    // START fields for P2C
+    static class P2C {
+        final ArrayList<ServerHandle> servers;
+
+        P2C(List<ServerHandle> servers) {
+            this.servers = new ArrayList<>(servers);
+        }
+    }
+
+    private P2C _p2c;
+    private P2C _p2cIPv4;
+    private P2C _p2cIPv6;
+    // END fields for P2C
+
     public ServerGroup(String alias,
                        EventLoopGroup eventLoopGroup,
                        HealthCheckConfig healthCheckConfig,
@@ -411,6 +1097,8 @@ public class ServerGroup {
             return wlcNext();
         } else if (method == Method.source) {
             return sourceHashGet(source.getAddress());
+        } else if (method == Method.p2cEwma) {
+            return p2cNext();
         } else {
             Logger.shouldNotHappen("unsupported method " + method);
             // use wrr instead
@@ -418,6 +1106,39 @@ public class ServerGroup {
         }
     }
 
+    /**
+     * select a server which is not excluded, used when connecting to the excluded servers failed
+     *
+     * @return null if not found any healthy
+     */
+    public SvrHandleConnector nextExcluding(InetSocketAddress source, Collection<ServerHandle> excluded) {
+        if (excluded.isEmpty())
+            return next(source);
+        ArrayList<ServerHandle> ls = servers;
+        int n = ls.size();
+        if (n == 0)
+            return null;
+        if (method != Method.source) {
+            // the methods usually select another server when called again
+            for (int i = 0; i < n; ++i) {
+                SvrHandleConnector c = next(source);
+                if (c == null)
+                    return null;
+                if (!excluded.contains(c.getServerHandle()))
+                    return c;
+            }
+        }
+        // the source method always selects the same server for the client,
+        // so scan the servers, and start from the hash to keep the client on the same server for retries
+        int start = (int) Long.remainderUnsigned(Maglev.hash(source.getAddress().getAddress()), n);
+        for (int i = 0; i < n; ++i) {
+            ServerHandle h = ls.get((start + i) % n);
+            if (h.available() && !excluded.contains(h))
+                return h.makeConnector();
+        }
+        return null;
+    }
+
     public SvrHandleConnector nextIPv4(InetSocketAddress source) {
         if (method == Method.wrr) {
             return wrrNextIPv4();
@@ -425,6 +1146,8 @@ public class ServerGroup {
             return wlcNextIPv4();
         } else if (method == Method.source) {
             return sourceHashGetIPv4(source.getAddress());
+        } else if (method == Method.p2cEwma) {
+            return p2cNextIPv4();
         } else {
             Logger.shouldNotHappen("unsupported method " + method);
             // use wrr instead
@@ -439,6 +1162,8 @@ public class ServerGroup {
             return wlcNextIPv6();
         } else if (method == Method.source) {
             return sourceHashGetIPv6(source.getAddress());
+        } else if (method == Method.p2cEwma) {
+            return p2cNextIPv6();
         } else {
             Logger.shouldNotHappen("unsupported method " + method);
             // use wrr instead
@@ -447,31 +1172,133 @@ public class ServerGroup {
     }
 
     private SvrHandleConnector sourceHashGet(InetAddress source) {
-        byte[] bytes = source.getAddress();
-        return sourceHashGet(_source, _source.hash(bytes), 0);
+        SOURCE s = _source;
+        if (s == null) // the method is being changed
+            return wrrNext();
+        return sourceHashGet(s, source);
     }
 
     private SvrHandleConnector sourceHashGetIPv4(InetAddress source) {
-        byte[] bytes = source.getAddress();
-        return sourceHashGet(_sourceIPv4, _sourceIPv4.hash(bytes), 0);
+        SOURCE s = _sourceIPv4;
+        if (s == null)
+            return wrrNextIPv4();
+        return sourceHashGet(s, source);
     }
 
     private SvrHandleConnector sourceHashGetIPv6(InetAddress source) {
-        byte[] bytes = source.getAddress();
-        return sourceHashGet(_sourceIPv6, _sourceIPv6.hash(bytes), 0);
+        SOURCE s = _sourceIPv6;
+        if (s == null)
+            return wrrNextIPv6();
+        return sourceHashGet(s, source);
     }
 
-    private SvrHandleConnector sourceHashGet(SOURCE source, int hash, int recurse) {
-        if (recurse >= source.servers.size()) // this condition also checks empty state
+    private SvrHandleConnector sourceHashGet(SOURCE source, InetAddress address) {
+        if (source.servers.isEmpty())
             return null;
-
-        int idx = hash % source.servers.size();
-        ServerHandle h = source.servers.get(idx);
-        if (h.healthy)
+        long hash = Maglev.hash(address.getAddress());
+        ServerHandle h = source.servers.get(source.maglev.lookup(hash));
+        if (sourceAccept(h, hash))
             return h.makeConnector();
 
-        // increase the "hash" by 1, which means using the next server in the list
-        return sourceHashGet(source, idx + 1, recurse + 1);
+        // the table is not rebuilt when health state changes,
+        // so clients of healthy servers keep their servers.
+        // clients of the unhealthy server are spread to the owners of the following slots
+        int n = source.servers.size();
+        for (int i = 1; i <= n * 2; ++i) {
+            h = source.servers.get(source.maglev.get(hash + i));
+            if (sourceAccept(h, hash))
+                return h.makeConnector();
+        }
+        // most servers are down, check all of them
+        int start = (int) Long.remainderUnsigned(hash, n);
+        for (int i = 0; i < n; ++i) {
+            h = source.servers.get((start + i) % n);
+            if (h.valid && h.available())
+                return h.makeConnector();
+        }
+        return null;
+    }
+
+    // a slow starting server only accepts a part of its clients,
+    // the part grows with the weight, and accepted clients will not be moved away during the ramp
+    private static boolean sourceAccept(ServerHandle h, long hash) {
+        // the table may be built before the server is removed
+        if (!h.valid || !h.available())
+            return false;
+        double f = h.slowStartFactor();
+        if (f >= 1)
+            return true;
+        // use other bits than the bits deciding the slot
+        double x = (Long.rotateLeft(hash, 32) >>> 11) * 0x1.0p-53;
+        return x < f;
+    }
+
+    /*
+     * P2C-EWMA algorithm:
+     * pick two different healthy servers randomly,
+     * and use the one with lower score: (active connections + 1) * ewma latency / weight.
+     * the ewma latency is calculated from connect and first byte latency,
+     * so a server which is slow but still accepting connections receives less connections.
+     * the selection only reads volatile/atomic fields, no lock is required.
+     */
+
+    private SvrHandleConnector p2cNext() {
+        return p2cNext(_p2c);
+    }
+
+    private SvrHandleConnector p2cNextIPv4() {
+        return p2cNext(_p2cIPv4);
+    }
+
+    private SvrHandleConnector p2cNextIPv6() {
+        return p2cNext(_p2cIPv6);
+    }
+
+    private SvrHandleConnector p2cNext(P2C p2c) {
+        ArrayList<ServerHandle> servers = p2c.servers;
+        int n = servers.size();
+        if (n == 0)
+            return null;
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        int a = p2cRandomHealthy(servers, rand, -1);
+        if (a == -1)
+            return null;
+        int b = p2cRandomHealthy(servers, rand, a);
+        ServerHandle h = servers.get(a);
+        if (b != -1) {
+            ServerHandle hb = servers.get(b);
+            if (p2cScore(hb) < p2cScore(h)) {
+                h = hb;
+            }
+        }
+        return h.makeConnector();
+    }
+
+    private static final int P2C_RANDOM_TRIES = 4;
+
+    // randomly pick a healthy server which is not the excluded one
+    // return -1 if not found
+    private int p2cRandomHealthy(ArrayList<ServerHandle> servers, ThreadLocalRandom rand, int exclude) {
+        int n = servers.size();
+        for (int i = 0; i < P2C_RANDOM_TRIES; ++i) {
+            int idx = rand.nextInt(n);
+            if (idx != exclude && servers.get(idx).available())
+                return idx;
+        }
+        // most servers are down, check all of them
+        int start = rand.nextInt(n);
+        for (int i = 0; i < n; ++i) {
+            int idx = (start + i) % n;
+            if (idx != exclude && servers.get(idx).available())
+                return idx;
+        }
+        return -1;
+    }
+
+    private double p2cScore(ServerHandle h) {
+        // use at least 1 microsecond, so that servers without latency samples still compare connections
+        double latency = Math.max(h.latencyEwma, 1_000);
+        return (h.activeConnections.get() + 1) * latency / (h.weight * h.slowStartFactor());
     }
 
     /*
@@ -506,111 +1333,144 @@ public class ServerGroup {
      *     }
      * }
      * return NULL;
+     *
+     * The servers are kept in a tournament tree (see WLC class),
+     * a server is marked dirty when a connection is attached to or removed from it,
+     * and the selection repairs the paths of the dirty servers then reads the root of the tree.
      */
 
     private SvrHandleConnector wlcNext() {
-        return wlcNext(_wlc, 0);
+        return wlcNext(_wlc);
     }
 
     private SvrHandleConnector wlcNextIPv4() {
-        return wlcNext(_wlcIPv4, 0);
+        return wlcNext(_wlcIPv4);
     }
 
     private SvrHandleConnector wlcNextIPv6() {
-        return wlcNext(_wlcIPv6, 0);
+        return wlcNext(_wlcIPv6);
     }
 
-    private SvrHandleConnector wlcNext(WLC wlc, int mStart) {
-        if (mStart >= wlc.servers.size())
+    private SvrHandleConnector wlcNext(WLC wlc) {
+        ServerHandle h = wlc.select();
+        if (h == null)
             return null;
+        return h.makeConnector();
+    }
 
-        if (wlc.servers.isEmpty())
-            return null;
-        int m, n, WSm, CSm, WSi, CSi;
-        ServerHandle Sm;
-        m = mStart;
-        n = wlc.servers.size();
-        // for (m = 0; m < n; ++m) {
-        { // --------- START ---------
-            Sm = wlc.servers.get(m);
-            WSm = Sm.weight;
-            CSm = Sm.connectionCount();
-        } // --------- END ---------
-        if (!Sm.healthy) {
-            return wlcNext(wlc, mStart + 1);
-        }
-        // if (WSm > 0) {
-        for (int i = m + 1; i < n; ++i) {
-            ServerHandle Si = wlc.servers.get(i);
-            WSi = Si.weight;
-            CSi = Si.connectionCount();
-            if (CSm * WSi > CSi * WSm && Si.healthy) {
-                m = i;
-                { // --------- START ---------
-                    Sm = wlc.servers.get(m);
-                    WSm = Sm.weight;
-                    CSm = Sm.connectionCount();
-                } // --------- END ---------
-            }
-        }
-        return Sm.makeConnector();
-        // }
-        // }
-        // return null;
+    // called when connection count of the server changes
+    private void wlcUpdate(ServerHandle h) {
+        if (method != Method.wlc)
+            return; // the trees are rebuilt when method changes, no need to update now
+        _wlc.update(h, h.wlcIndex);
+        if (h.server.getAddress() instanceof Inet4Address) {
+            _wlcIPv4.update(h, h.wlcFamilyIndex);
+        } else {
+            _wlcIPv6.update(h, h.wlcFamilyIndex);
+        }
     }
 
     private SvrHandleConnector wrrNext() {
-        return wrrNext(this._wrr, 0);
+        return wrrNext(this._wrr);
     }
 
     private SvrHandleConnector wrrNextIPv4() {
-        return wrrNext(this._wrrIPv4, 0);
+        return wrrNext(this._wrrIPv4);
     }
 
     private SvrHandleConnector wrrNextIPv6() {
-        return wrrNext(this._wrrIPv6, 0);
+        return wrrNext(this._wrrIPv6);
     }
 
-    private SvrHandleConnector wrrNext(WRR wrr, int recursion) {
-        if (recursion > wrr.seq.length)
+    private SvrHandleConnector wrrNext(WRR wrr) {
+        ServerHandle h = wrr.next();
+        if (h == null)
             return null;
-        if (wrr.seq.length == 0)
-            return null; // return null if no elements
-
-        int idx = wrr.wrrCursor.getAndIncrement();
-        if (idx >= wrr.seq.length) {
-            idx = idx % wrr.seq.length;
-            wrr.wrrCursor.set(idx + 1);
-        }
-        int realIdx = wrr.seq[idx];
-        ServerHandle h = wrr.servers.get(realIdx);
-        if (h.healthy)
-            return h.makeConnector();
-        else
-            return wrrNext(wrr, recursion + 1);
+        return h.makeConnector();
     }
 
     private void resetMethodRelatedFields() {
         wrrReset();
         wlcReset();
         sourceReset();
+        p2cReset();
     }
 
-    private int gcd(int a, int b) {
-        if (a == b) return a;
-        if (a > b) return gcd(a - b, b);
-        return gcd(b - a, a);
+    /*
+     * the maglev tables are fully populated every time, which takes about 100ms with the 1048573 slots table.
+     * small groups build the tables directly.
+     * large groups build them on the maglev-builder thread: the build takes the latest server list when it begins,
+     * so changes made before it (e.g. adding servers one by one) are folded into one build,
+     * and the old tables are used until the new ones are built.
+     * the old tables only reference servers of the old list, removed servers are not valid and are skipped
+     */
+    private void sourceReset() {
+        synchronized (this) {
+            long gen = ++sourceGeneration;
+            if (method != Method.source) {
+                // the tables are large, only build them when needed
+                installSource(gen, null);
+                return;
+            }
+            ArrayList<ServerHandle> servers = this.servers;
+            if (_source == null || servers.size() <= SOURCE_SYNC_BUILD_MAX_SERVERS) {
+                installSource(gen, buildSource(servers));
+                return;
+            }
+            if (sourceBuildScheduled) {
+                return; // the scheduled build will use the latest servers
+            }
+            sourceBuildScheduled = true;
+        }
+        sourceBuilder.execute(this::sourceBuild);
     }
 
-    private void sourceReset() {
-        _source = sourceReset(servers);
-        _sourceIPv4 = sourceReset(servers.stream().filter(s -> s.server.getAddress() instanceof Inet4Address).collect(Collectors.toList()));
-        _sourceIPv6 = sourceReset(servers.stream().filter(s -> s.server.getAddress() instanceof Inet6Address).collect(Collectors.toList()));
+    private void sourceBuild() {
+        long gen;
+        ArrayList<ServerHandle> servers;
+        synchronized (this) {
+            sourceBuildScheduled = false;
+            if (method != Method.source) {
+                return;
+            }
+            gen = sourceGeneration;
+            servers = this.servers;
+        }
+        SOURCE[] tables = buildSource(servers);
+        synchronized (this) {
+            installSource(gen, tables);
+        }
+    }
+
+    // must be called with the group lock
+    private void installSource(long gen, SOURCE[] tables) {
+        if (gen <= sourceInstalledGeneration) {
+            return; // newer tables are already installed
+        }
+        sourceInstalledGeneration = gen;
+        _source = tables == null ? null : tables[0];
+        _sourceIPv4 = tables == null ? null : tables[1];
+        _sourceIPv6 = tables == null ? null : tables[2];
+    }
+
+    private SOURCE[] buildSource(ArrayList<ServerHandle> servers) {
+        SOURCE source = sourceReset(servers);
+        SOURCE sourceIPv4 = source;
+        SOURCE sourceIPv6 = source;
+        // the table only depends on the servers, so share it when all servers are of the same ip family
+        if (source.servers.stream().anyMatch(s -> !(s.server.getAddress() instanceof Inet4Address))) {
+            sourceIPv4 = sourceReset(servers.stream().filter(s -> s.server.getAddress() instanceof Inet4Address).collect(Collectors.toList()));
+        }
+        if (source.servers.stream().anyMatch(s -> !(s.server.getAddress() instanceof Inet6Address))) {
+            sourceIPv6 = sourceReset(servers.stream().filter(s -> s.server.getAddress() instanceof Inet6Address).collect(Collectors.toList()));
+        }
+        return new SOURCE[]{source, sourceIPv4, sourceIPv6};
     }
 
     private SOURCE sourceReset(List<ServerHandle> servers) {
         //noinspection FuseStreamOperations
         ArrayList<ServerHandle> svrs = new ArrayList<>(servers.stream().filter(s -> s.weight > 0).collect(Collectors.toList()));
+        // the maglev population order should be the same on all vproxy instances with the same config
         svrs.sort((a, b) -> {
             byte[] ba = a.server.getAddress().getAddress();
             byte[] bb = b.server.getAddress().getAddress();
@@ -625,133 +1485,66 @@ public class ServerGroup {
             }
             return a.server.getPort() - b.server.getPort();
         });
-        if (svrs.size() == 0) {
-            return new SOURCE(new int[0], svrs);
-        }
-        int g = svrs.size() > 1
-            ? gcd(svrs.get(0).weight, svrs.get(1).weight)
-            : svrs.get(0).weight;
-        LinkedList<Integer> seqList = new LinkedList<>();
-        for (int sIdx = 0; sIdx < svrs.size(); sIdx++) {
-            ServerHandle s = svrs.get(sIdx);
-            int w = s.weight;
-            int times = w / g;
-            for (int i = 0; i < times; ++i) {
-                seqList.add(sIdx);
-            }
-        }
-        int[] seq = new int[seqList.size()];
-        int idx = 0;
-        for (Integer integer : seqList) {
-            seq[idx++] = integer;
+        // the permutation of each server is decided by its key (calculated only once when the server is created)
+        // so only the slots of the changed servers are moved to others
+        long[] keys = new long[svrs.size()];
+        int[] weights = new int[svrs.size()];
+        for (int i = 0; i < svrs.size(); ++i) {
+            ServerHandle h = svrs.get(i);
+            keys[i] = h.sourceHashKey;
+            weights[i] = h.weight;
         }
-        return new SOURCE(seq, svrs);
+        return new SOURCE(new Maglev(keys, weights), svrs);
     }
 
-    private void wlcReset() {
-        this._wlc = new WLC(this.servers.stream().filter(s -> s.weight > 0).collect(Collectors.toList()));
-        this._wlcIPv4 = new WLC(this.servers.stream()
+    private void p2cReset() {
+        this._p2c = new P2C(this.servers.stream().filter(s -> s.weight > 0).collect(Collectors.toList()));
+        this._p2cIPv4 = new P2C(this.servers.stream()
             .filter(s -> s.weight > 0)
             .filter(s -> s.server.getAddress() instanceof Inet4Address)
             .collect(Collectors.toList()));
-        this._wlcIPv6 = new WLC(this.servers.stream()
+        this._p2cIPv6 = new P2C(this.servers.stream()
             .filter(s -> s.weight > 0)
             .filter(s -> s.server.getAddress() instanceof Inet6Address)
             .collect(Collectors.toList()));
     }
 
-    private void wrrReset() {
-        this._wrr = wrrReset(new WRR(this.servers.stream()
-            .filter(s -> s.weight > 0) // only consider those weight > 0
-            .collect(Collectors.toList())));
-        this._wrrIPv4 = wrrReset(new WRR(this.servers.stream()
+    private void wlcReset() {
+        WLC wlc = new WLC(this.servers.stream().filter(s -> s.weight > 0).collect(Collectors.toList()));
+        WLC wlcIPv4 = new WLC(this.servers.stream()
             .filter(s -> s.weight > 0)
             .filter(s -> s.server.getAddress() instanceof Inet4Address)
-            .collect(Collectors.toList())));
-        this._wrrIPv6 = wrrReset(new WRR(this.servers.stream()
+            .collect(Collectors.toList()));
+        WLC wlcIPv6 = new WLC(this.servers.stream()
             .filter(s -> s.weight > 0)
             .filter(s -> s.server.getAddress() instanceof Inet6Address)
-            .collect(Collectors.toList())));
-    }
-
-    private WRR wrrReset(WRR wrr) {
-        if (wrr.servers.isEmpty()) {
-            wrr.seq = new int[0];
-        } else {
-            // calculate the seq
-            List<Integer> listSeq = new LinkedList<>();
-            int[] weights = new int[wrr.servers.size()];
-            int[] original = new int[wrr.servers.size()];
-            // run calculation
-            int sum = 0;
-            for (int i = 0; i < wrr.servers.size(); i++) {
-                ServerHandle h = wrr.servers.get(i);
-                weights[i] = h.weight;
-                original[i] = h.weight;
-                sum += h.weight;
-            }
-            //noinspection Duplicates
-            while (true) {
-                int idx = maxIndex(weights);
-                listSeq.add(idx);
-                weights[idx] -= sum;
-                if (calculationEnd(weights)) {
-                    break;
-                }
-                for (int i = 0; i < weights.length; ++i) {
-                    weights[i] += original[i];
-                }
-                sum = sum(weights); // recalculate sum
-            }
-            int[] seq = new int[listSeq.size()];
-
-            // random is for this concern:
-            // if you deploy multiple instances of vproxy
-            // with exactly the same configuration
-            // behind a (w)rr LVS or other proxy servers
-            // without the `randStart`, first few connections
-            // will always be made to the same server
-            // which may cause some failure
-            int randStart = new Random().nextInt(seq.length);
-            // the random wll only run when updating config
-            Iterator<Integer> ite = listSeq.iterator();
-            int idx = 0;
-            while (ite.hasNext()) {
-                seq[(idx + randStart) % seq.length] = ite.next();
-                ++idx;
-            }
-            wrr.seq = seq;
+            .collect(Collectors.toList()));
+        for (int i = 0; i < wlc.servers.size(); ++i) {
+            wlc.servers.get(i).wlcIndex = i;
         }
-
-        return wrr;
-    }
-
-    private int sum(int[] weights) {
-        int s = 0;
-        for (int w : weights) {
-            s += w;
+        for (int i = 0; i < wlcIPv4.servers.size(); ++i) {
+            wlcIPv4.servers.get(i).wlcFamilyIndex = i;
         }
-        return s;
-    }
-
-    private boolean calculationEnd(int[] weights) {
-        for (int w : weights) {
-            if (w != 0)
-                return false;
+        for (int i = 0; i < wlcIPv6.servers.size(); ++i) {
+            wlcIPv6.servers.get(i).wlcFamilyIndex = i;
         }
-        return true;
+        this._wlc = wlc;
+        this._wlcIPv4 = wlcIPv4;
+        this._wlcIPv6 = wlcIPv6;
     }
 
-    private int maxIndex(int[] weights) {
-        int maxIdx = 0;
-        int maxVal = weights[0];
-        for (int i = 1; i < weights.length; ++i) {
-            if (weights[i] > maxVal) {
-                maxVal = weights[i];
-                maxIdx = i;
-            }
-        }
-        return maxIdx;
+    private void wrrReset() {
+        this._wrr = new WRR(this.servers.stream()
+            .filter(s -> s.weight > 0) // only consider those weight > 0
+            .collect(Collectors.toList()), this._wrr);
+        this._wrrIPv4 = new WRR(this.servers.stream()
+            .filter(s -> s.weight > 0)
+            .filter(s -> s.server.getAddress() instanceof Inet4Address)
+            .collect(Collectors.toList()), this._wrrIPv4);
+        this._wrrIPv6 = new WRR(this.servers.stream()
+            .filter(s -> s.weight > 0)
+            .filter(s -> s.server.getAddress() instanceof Inet6Address)
+            .collect(Collectors.toList()), this._wrrIPv6);
     }
 
     public void setMethod(Method method) {
@@ -785,6 +1578,11 @@ public class ServerGroup {
 
     public void setAnnotations(Map<String, String> annotations) {
         this.annotations = annotations;
+        synchronized (upstreams) {
+            for (Upstream ups : upstreams) {
+                ups.hintChanged();
+            }
+        }
 
         // set hc client annotations
         if (annotations == null) {
@@ -792,6 +1590,26 @@ public class ServerGroup {
         } else {
             annotatedHcConfig.set(annotations);
         }
+
+        slowStart = SlowStart.parse(annotations);
+        outlierDetection = OutlierDetection.parse(annotations);
+        WarmPool wp = WarmPool.parse(annotations);
+        if (!Objects.equals(wp, warmPoolConfig)) {
+            warmPoolConfig = wp;
+            for (ServerHandle h : servers) {
+                h.resetWarmPool();
+            }
+        }
+
+        // set backend tls
+        String tls = annotations == null ? null : BackendTls.parse(annotations.get(AnnotationKeys.ServerGroup_BackendTls));
+        if (!Objects.equals(tls, backendTls)) {
+            backendTls = tls;
+            // the trust managers may change, so drop the contexts
+            for (ServerHandle h : servers) {
+                h.resetClientSSLContext();
+            }
+        }
     }
 
     public synchronized ServerHandle add(String alias, InetSocketAddress server, int weight) throws AlreadyExistException {
@@ -963,6 +1781,14 @@ public class ServerGroup {
         this.serverListeners.remove(serverListener);
     }
 
+    void addUpstream(Upstream upstream) {
+        upstreams.add(upstream);
+    }
+
+    void removeUpstream(Upstream upstream) {
+        upstreams.remove(upstream);
+    }
+
     public List<ServerHandle> getServerHandles() {
         return new ArrayList<>(servers);
     }
@@ -0,0 +1,72 @@
+package vproxy.component.svrgroup;
+
+import vproxy.app.util.AnnotationKeys;
+
+import java.util.Map;
+
+/**
+ * ramp up the weight of a server when it turns UP.<br>
+ * enabled by the server group annotations:<br>
+ * <code>vproxy/slow-start</code>: the ramp window in seconds<br>
+ * <code>vproxy/slow-start-floor</code>: percentage of the weight when the server just turns UP, default 10<br>
+ * <code>vproxy/slow-start-curve</code>: <code>linear</code> (default) or <code>exponential</code>
+ */
+class SlowStart {
+    static final String LINEAR = "linear";
+    static final String EXPONENTIAL = "exponential";
+    private static final int DEFAULT_FLOOR_PERCENT = 10;
+
+    private final long windowNanos;
+    private final double floor;
+    private final boolean exponential;
+
+    private SlowStart(long windowNanos, double floor, boolean exponential) {
+        this.windowNanos = windowNanos;
+        this.floor = floor;
+        this.exponential = exponential;
+    }
+
+    /**
+     * @return null if slow start is not enabled or the annotations are invalid
+     */
+    static SlowStart parse(Map<String, String> annotations) {
+        if (annotations == null)
+            return null;
+        String window = annotations.get(AnnotationKeys.ServerGroup_SlowStart);
+        if (window == null)
+            return null;
+        int seconds;
+        int floor = DEFAULT_FLOOR_PERCENT;
+        try {
+            seconds = Integer.parseInt(window);
+            String floorStr = annotations.get(AnnotationKeys.ServerGroup_SlowStartFloor);
+            if (floorStr != null) {
+                floor = Integer.parseInt(floorStr);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (seconds <= 0 || floor <= 0 || floor > 100)
+            return null;
+        String curve = annotations.get(AnnotationKeys.ServerGroup_SlowStartCurve);
+        if (curve != null && !curve.equals(LINEAR) && !curve.equals(EXPONENTIAL))
+            return null;
+        return new SlowStart(seconds * 1_000_000_000L, floor / 100d, EXPONENTIAL.equals(curve));
+    }
+
+    /**
+     * @param elapsedNanos time since the server turned UP
+     * @return the factor to multiply the weight, 1 means the ramp is done
+     */
+    double factor(long elapsedNanos) {
+        if (elapsedNanos >= windowNanos)
+            return 1;
+        double x = Math.max(elapsedNanos, 0) / (double) windowNanos;
+        if (exponential) {
+            // floor * (1/floor)^x
+            return Math.pow(floor, 1 - x);
+        } else {
+            return floor + (1 - floor) * x;
+        }
+    }
+}
@@ -4,12 +4,54 @@ import vproxy.connection.ConnectableConnection;
 import vproxy.connection.Connection;
 import vproxy.connection.ConnectionOpts;
 import vproxy.connection.Connector;
+import vproxy.connection.NetFlowRecorder;
+import vproxy.pool.ConnectionPool;
+import vproxy.selector.SelectorEventLoop;
 import vproxy.util.RingBuffer;
+import vproxy.util.Utils;
+import vproxy.util.ringbuffer.ByteBufferRingBuffer;
+import vproxy.util.ringbuffer.SSLUtils;
 
+import javax.net.ssl.SSLEngine;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.function.Consumer;
 
 public class SvrHandleConnector extends Connector {
+    // record the latency from connecting to receiving the first byte
+    // the latency is measured from the first byte sent to the first byte received,
+    // so the time the connection waits for the client is not counted
+    private class FirstByteRecorder implements NetFlowRecorder {
+        private boolean sent = false;
+        private long sentNanos;
+        private boolean received = false;
+
+        @Override
+        public void incToRemoteBytes(long bytes) {
+            if (sent) {
+                return;
+            }
+            sent = true;
+            sentNanos = System.nanoTime();
+        }
+
+        @Override
+        public void incFromRemoteBytes(long bytes) {
+            if (received) {
+                return;
+            }
+            received = true;
+            if (sent) {
+                // otherwise the server speaks first, e.g. a greeting, and it's not a response
+                serverHandle.recordLatency(System.nanoTime() - sentNanos);
+            }
+            serverHandle.outlierSuccess();
+        }
+    }
+
     private final ServerGroup.ServerHandle serverHandle;
+    private long connectStartNanos;
+    private FirstByteRecorder firstByteRecorder;
 
     SvrHandleConnector(ServerGroup.ServerHandle h) {
         super(h.server);
@@ -18,11 +60,106 @@ public class SvrHandleConnector extends Connector {
 
     @Override
     public ConnectableConnection connect(Connection accepted, ConnectionOpts opts, RingBuffer in, RingBuffer out) throws IOException {
+        if (serverHandle.isBackendTls()) {
+            SSLUtils.SSLBufferPair pair = wrapTls(serverHandle.createClientSSLEngine(), in, out, null);
+            in = pair.left;
+            out = pair.right;
+        }
+        return doConnect(accepted, opts, in, out);
+    }
+
+    // wrap the plain buffers with ssl buffers and record the handshake result
+    // `then` is called after the handshake is recorded, may be null
+    private SSLUtils.SSLBufferPair wrapTls(SSLEngine engine, RingBuffer in, RingBuffer out, Runnable then) throws IOException {
+        if (!(in instanceof ByteBufferRingBuffer) || !(out instanceof ByteBufferRingBuffer)) {
+            throw new IOException("backend tls is enabled for " + serverHandle + ", but the buffers cannot be wrapped");
+        }
+        SSLUtils.SSLBufferPair pair = SSLUtils.genbuf(engine, (ByteBufferRingBuffer) in, (ByteBufferRingBuffer) out);
+        long connectTime = System.currentTimeMillis();
+        pair.right.setHandshakeDoneCallback(() -> {
+            serverHandle.tlsHandshakeDone(engine.getSession(), connectTime);
+            if (then != null) {
+                then.run();
+            }
+        });
+        return pair;
+    }
+
+    private ConnectableConnection doConnect(Connection accepted, ConnectionOpts opts, RingBuffer in, RingBuffer out) throws IOException {
+        connectStartNanos = System.nanoTime();
         ConnectableConnection conn = super.connect(accepted, opts, in, out);
+        track(conn);
+        return conn;
+    }
+
+    // the connection is not counted for the server until it's retrieved from the warm pool
+    // when backend tls is enabled, the plain buffers are wrapped and `tlsHandshakeDone` is called when handshake finishes,
+    // the plain buffers are switched to the client's buffers when the connection is retrieved
+    ConnectableConnection connectForPool(ConnectionOpts opts, RingBuffer in, RingBuffer out, Runnable tlsHandshakeDone) throws IOException {
+        if (serverHandle.isBackendTls()) {
+            SSLUtils.SSLBufferPair pair = wrapTls(serverHandle.createClientSSLEngine(), in, out, tlsHandshakeDone);
+            in = pair.left;
+            out = pair.right;
+        }
+        connectStartNanos = System.nanoTime();
+        return super.connect(null, opts, in, out);
+    }
+
+    private void track(ConnectableConnection conn) {
         conn.addNetFlowRecorder(serverHandle);
+        firstByteRecorder = new FirstByteRecorder();
+        conn.addNetFlowRecorder(firstByteRecorder);
         serverHandle.attachConnection(conn);
         conn.addConnCloseHandler(serverHandle);
-        return conn;
+    }
+
+    @Override
+    public boolean getPooledConnection(Connection accepted, SelectorEventLoop loop, Consumer<ConnectableConnection> cb) {
+        ConnectionPool pool = serverHandle.warmPool;
+        if (pool == null)
+            return false;
+        if (pool.count() == 0 || !WarmPool.canSwitchBuffers(serverHandle, accepted)) {
+            // do not wait for the pool loop when nothing is pooled or the pooled connections cannot be used
+            serverHandle.warmPoolMiss();
+            return false;
+        }
+        long begin = System.nanoTime();
+        pool.get(loop, conn -> {
+            if (conn == null) {
+                serverHandle.warmPoolMiss();
+            } else {
+                serverHandle.warmPoolHit(System.nanoTime() - begin);
+                // the pooled connection keeps the connector which made it
+                SvrHandleConnector connector = (SvrHandleConnector) conn.getConnector();
+                connector.track(conn);
+            }
+            cb.accept(conn);
+        });
+        return true;
+    }
+
+    // the server is different in each group, and so may be the settings (e.g. backend tls)
+    @Override
+    public Object poolKey() {
+        return serverHandle;
+    }
+
+    // the idle connection is not counted for the server, the same as the warm pool
+    @Override
+    public void connectionIdle(ConnectableConnection conn) {
+        serverHandle.detachConnection(conn);
+    }
+
+    @Override
+    public void connectionReused(ConnectableConnection conn) {
+        serverHandle.attachConnection(conn);
+    }
+
+    @Override
+    public void connected(ConnectableConnection conn) {
+        long nanos = System.nanoTime() - connectStartNanos;
+        serverHandle.recordLatency(nanos);
+        serverHandle.recordDial(nanos);
     }
 
     @Override
@@ -32,10 +169,29 @@ public class SvrHandleConnector extends Connector {
 
     @Override
     public void connectionFailed() {
+        serverHandle.outlierConnectFailure();
         // accelerate the down process
         serverHandle.healthCheckClient.manuallyDownOnce();
     }
 
+    @Override
+    public void connectionError(IOException err) {
+        if (Utils.isReset(err)) {
+            serverHandle.outlierReset();
+        } else if (err instanceof SocketTimeoutException) {
+            // the connection may be idle because the client is not sending anything,
+            // it's a server timeout only when the request is sent but nothing is responded
+            FirstByteRecorder r = firstByteRecorder;
+            if (r != null && r.sent && !r.received) {
+                serverHandle.outlierTimeout();
+            }
+        }
+    }
+
+    ServerGroup.ServerHandle getServerHandle() {
+        return serverHandle;
+    }
+
     public String getHostName() {
         String hostname = serverHandle.hostName;
         if (hostname == null) {
@@ -8,6 +8,7 @@ import vproxy.processor.Hint;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 public class Upstream {
@@ -15,7 +16,7 @@ public class Upstream {
         public final String alias;
         public final ServerGroup group;
         private int weight;
-        public Map<String, String> annotations = null;
+        private Map<String, String> annotations = null;
 
         public ServerGroupHandle(ServerGroup group, int weight) {
             this.alias = group.alias;
@@ -31,6 +32,15 @@ public class Upstream {
             this.weight = weight;
             recalculateWRR();
         }
+
+        public Map<String, String> getAnnotations() {
+            return annotations;
+        }
+
+        public void setAnnotations(Map<String, String> annotations) {
+            this.annotations = annotations;
+            hintChanged();
+        }
     }
 
     class WRR {
@@ -46,6 +56,9 @@ public class Upstream {
     public final String alias;
     private ArrayList<ServerGroupHandle> serverGroupHandles = new ArrayList<>(0);
     private WRR _wrr;
+    private volatile HintIndex hintIndex;
+    // increased when the groups or annotations of the groups in this upstream change
+    private final AtomicLong hintGeneration = new AtomicLong(0);
 
     public Upstream(String alias) {
         this.alias = alias;
@@ -140,6 +153,8 @@ public class Upstream {
         newLs.add(h);
         serverGroupHandles = newLs;
         recalculateWRR();
+        group.addUpstream(this);
+        hintChanged();
         return h;
     }
 
@@ -161,6 +176,13 @@ public class Upstream {
         }
         serverGroupHandles = newLs;
         recalculateWRR();
+        group.removeUpstream(this);
+        hintChanged();
+    }
+
+    // called when the groups or annotations change, the index will be rebuilt when searching
+    void hintChanged() {
+        hintGeneration.incrementAndGet();
     }
 
     public List<ServerGroupHandle> getServerGroupHandles() {
@@ -172,21 +194,22 @@ public class Upstream {
     }
 
     public ServerGroupHandle searchForGroup(Hint hint) {
-        int maxLvl = Hint.MAX_MATCH_LEVEL;
-        int level = 0;
-        ServerGroupHandle lastMax = null;
-        for (ServerGroupHandle h : serverGroupHandles) {
-            //noinspection unchecked
-            int l = hint.matchLevel(h.annotations, h.group.getAnnotations());
-            if (l > level) {
-                level = l;
-                lastMax = h;
-            }
-            if (l == maxLvl) { // directly return if it's the best match
-                break;
-            }
+        // read the generation before reading the handles
+        long generation = hintGeneration.get();
+        HintIndex index = hintIndex;
+        if (index == null || index.generationWhenBuilt != generation) {
+            // rebuild when groups or annotations change
+            index = new HintIndex(generation, serverGroupHandles);
+            hintIndex = index;
         }
-        return lastMax;
+        // the hint is usually kept by the frontend connection,
+        // so the result is cached in the hint for following requests on the connection
+        if (hint.isSearchCached(this, generation)) {
+            return hint.getSearchResult();
+        }
+        ServerGroupHandle h = index.search(hint.getHost(), hint.getPort());
+        hint.setSearchResult(this, generation, h);
+        return h;
     }
 
     public Connector next(InetSocketAddress source, Hint hint) {
@@ -202,6 +225,37 @@ public class Upstream {
         return next(source, wrr, 0);
     }
 
+    /**
+     * select a server after connecting to the servers of the failed connectors failed.
+     * the group of the last failed server is checked first, then the other groups
+     *
+     * @return null if no other server is available
+     */
+    public Connector nextExcluding(InetSocketAddress source, List<Connector> failed) {
+        Set<ServerGroup.ServerHandle> excluded = new HashSet<>();
+        ServerGroup lastGroup = null;
+        for (Connector c : failed) {
+            if (c instanceof SvrHandleConnector) {
+                ServerGroup.ServerHandle h = ((SvrHandleConnector) c).getServerHandle();
+                excluded.add(h);
+                lastGroup = h.group();
+            }
+        }
+        if (lastGroup != null) {
+            Connector connector = lastGroup.nextExcluding(source, excluded);
+            if (connector != null)
+                return connector;
+        }
+        for (ServerGroupHandle h : serverGroupHandles) {
+            if (h.group == lastGroup || h.weight <= 0)
+                continue;
+            Connector connector = h.group.nextExcluding(source, excluded);
+            if (connector != null)
+                return connector;
+        }
+        return null;
+    }
+
     private /*use static to prevent access local variable*/ static Connector next(InetSocketAddress source, WRR wrr, int recursion) {
         if (recursion > wrr.seq.length)
             return null;
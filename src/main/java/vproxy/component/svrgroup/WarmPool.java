@@ -0,0 +1,202 @@
+package vproxy.component.svrgroup;
+
+import vproxy.app.util.AnnotationKeys;
+import vproxy.connection.*;
+import vproxy.pool.ConnectionPool;
+import vproxy.pool.ConnectionPoolHandler;
+import vproxy.pool.PoolCallback;
+import vproxy.util.Logger;
+import vproxy.util.RingBuffer;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * keep connections to each server established before clients arrive,
+ * so the direct proxy can skip the tcp handshake (and the tls handshake if backend tls is enabled) with the backend.<br>
+ * enabled by the server group annotations:<br>
+ * <code>vproxy/warm-pool-size</code>: count of idle connections to keep for each server<br>
+ * <code>vproxy/warm-pool-max-idle</code>: seconds before an idle connection is closed and replaced, default 30<br>
+ * servers which send data before the client (e.g. smtp, mysql) should not use the pool because the data is dropped<br>
+ * the ssl buffers of a pooled backend tls connection keep the capacity of its plain buffers,
+ * so the connection can only be retrieved by clients whose buffers have the same capacity,
+ * which is {@link #TLS_BUFFER_SIZE}, the default buffer size of tcp-lb
+ */
+class WarmPool {
+    private static final int DEFAULT_MAX_IDLE_SECONDS = 30;
+    // provide at most this count of connections every second when filling the pool
+    private static final int FILL_BATCH = 16;
+    static final int TLS_BUFFER_SIZE = 16384;
+
+    final int size;
+    final int maxIdleMillis;
+
+    private WarmPool(int size, int maxIdleMillis) {
+        this.size = size;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * @return null if the warm pool is not enabled or the annotations are invalid
+     */
+    static WarmPool parse(Map<String, String> annotations) {
+        if (annotations == null)
+            return null;
+        String sizeStr = annotations.get(AnnotationKeys.ServerGroup_WarmPoolSize);
+        if (sizeStr == null)
+            return null;
+        int size;
+        int seconds = DEFAULT_MAX_IDLE_SECONDS;
+        try {
+            size = Integer.parseInt(sizeStr);
+            String secondsStr = annotations.get(AnnotationKeys.ServerGroup_WarmPoolMaxIdle);
+            if (secondsStr != null) {
+                seconds = Integer.parseInt(secondsStr);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (size <= 0 || seconds <= 0)
+            return null;
+        return new WarmPool(size, seconds * 1000);
+    }
+
+    // the plain buffers of a pooled connection are switched to the client's buffers,
+    // the ssl buffers only accept buffers with the same capacity
+    static boolean canSwitchBuffers(ServerGroup.ServerHandle h, Connection accepted) {
+        if (!h.isBackendTls())
+            return true;
+        return accepted.getInBuffer().capacity() == TLS_BUFFER_SIZE
+            && accepted.getOutBuffer().capacity() == TLS_BUFFER_SIZE;
+    }
+
+    ConnectionPool create(ServerGroup.ServerHandle h, NetEventLoop loop) {
+        return new ConnectionPool(loop, cb -> new Handler(h, cb), size, maxIdleMillis, FILL_BATCH);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        WarmPool that = (WarmPool) o;
+        return size == that.size && maxIdleMillis == that.maxIdleMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * size + maxIdleMillis;
+    }
+
+    private static class Handler implements ConnectionPoolHandler {
+        private final ServerGroup.ServerHandle h;
+        private final PoolCallback cb;
+
+        Handler(ServerGroup.ServerHandle h, PoolCallback cb) {
+            this.h = h;
+            this.cb = cb;
+        }
+
+        @Override
+        public ConnectableConnection provide(NetEventLoop loop) {
+            // only keep connections for servers which can be selected
+            if (!h.valid || !h.available())
+                return null;
+            boolean tls = h.isBackendTls();
+            ConnectingHandler handler = new ConnectingHandler(loop, tls);
+            ConnectableConnection conn;
+            try {
+                // the buffers are replaced when the connection is retrieved,
+                // the heap buffers are only used for the ssl buffers to know the capacity
+                conn = h.makeConnector().connectForPool(ConnectionOpts.getDefault(),
+                    tls ? RingBuffer.allocate(TLS_BUFFER_SIZE) : RingBuffer.allocate(1),
+                    tls ? RingBuffer.allocate(TLS_BUFFER_SIZE) : RingBuffer.allocate(1),
+                    handler::ready);
+            } catch (IOException e) {
+                assert Logger.lowLevelDebug("creating warm pool connection to " + h.server + " failed: " + e);
+                return null;
+            }
+            try {
+                handler.conn = conn;
+                loop.addConnectableConnection(conn, null, handler);
+            } catch (IOException e) {
+                assert Logger.lowLevelDebug("registering warm pool connection " + conn + " failed: " + e);
+                conn.close();
+                return null;
+            }
+            return conn;
+        }
+
+        @Override
+        public void keepaliveReadable(ConnectableConnection conn) {
+            if (conn.getInBuffer().used() == 0) {
+                // only tls records without data, e.g. the session tickets
+                return;
+            }
+            // the server speaks first, the connection cannot be given to a client anymore
+            assert Logger.lowLevelDebug("warm pool connection " + conn + " received data, drop it");
+            conn.getInBuffer().clear();
+            cb.connectionError(conn);
+        }
+
+        @Override
+        public void keepalive(ConnectableConnection conn) {
+            // nothing to send on a raw tcp or tls connection
+        }
+
+        private class ConnectingHandler implements ConnectableConnectionHandler {
+            private final NetEventLoop loop;
+            private final boolean tls;
+            private ConnectableConnection conn;
+
+            ConnectingHandler(NetEventLoop loop, boolean tls) {
+                this.loop = loop;
+                this.tls = tls;
+            }
+
+            // the connection can be retrieved after tcp connected, or after the tls handshake finishes
+            void ready() {
+                // the pool re-registers the connection, so run it in the next tick
+                loop.getSelectorEventLoop().nextTick(() -> cb.handshakeDone(conn));
+            }
+
+            @Override
+            public void connected(ConnectableConnectionHandlerContext ctx) {
+                if (!tls) {
+                    ready();
+                }
+            }
+
+            @Override
+            public void readable(ConnectionHandlerContext ctx) {
+                keepaliveReadable((ConnectableConnection) ctx.connection);
+            }
+
+            @Override
+            public void writable(ConnectionHandlerContext ctx) {
+                // ignore
+            }
+
+            @Override
+            public void exception(ConnectionHandlerContext ctx, IOException err) {
+                assert Logger.lowLevelDebug("warm pool connection " + ctx.connection + " got exception: " + err);
+                ((ConnectableConnection) ctx.connection).getConnector().connectionFailed();
+                cb.connectionError((ConnectableConnection) ctx.connection);
+            }
+
+            @Override
+            public void remoteClosed(ConnectionHandlerContext ctx) {
+                cb.connectionError((ConnectableConnection) ctx.connection);
+            }
+
+            @Override
+            public void closed(ConnectionHandlerContext ctx) {
+                cb.connectionError((ConnectableConnection) ctx.connection);
+            }
+
+            @Override
+            public void removed(ConnectionHandlerContext ctx) {
+                // the pool handles the connection
+            }
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package vproxy.connection;
 
+import vproxy.selector.SelectorEventLoop;
 import vproxy.util.RingBuffer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.function.Consumer;
 
 public class Connector {
     public final InetSocketAddress remote;
@@ -26,6 +28,16 @@ public class Connector {
         return conn;
     }
 
+    // retrieve an established connection instead of calling `connect(...)`
+    // return false if no connection can be provided,
+    // otherwise the callback will be called on the loop, with null if the connection cannot be retrieved
+    // the buffers of the retrieved connection should be replaced by the buffers of the accepted connection
+    public boolean getPooledConnection(@SuppressWarnings("unused") Connection accepted,
+                                       @SuppressWarnings("unused") SelectorEventLoop loop,
+                                       @SuppressWarnings("unused") Consumer<ConnectableConnection> cb) {
+        return false; // default: no pool
+    }
+
     public boolean isValid() {
         return true; // it's always valid for a manually created Connector
     }
@@ -35,6 +47,32 @@ public class Connector {
         // do nothing in default implementation
     }
 
+    // let user code alert that the established connection got an error
+    public void connectionError(@SuppressWarnings("unused") IOException err) {
+        // do nothing in default implementation
+    }
+
+    // called by the connection lib when the connection is established
+    public void connected(@SuppressWarnings("unused") ConnectableConnection conn) {
+        // do nothing in default implementation
+    }
+
+    // the connections made by connectors with equal keys can be used in place of each other,
+    // e.g. when they are kept in a pool
+    public Object poolKey() {
+        return remote; // default: the connections to the same endpoint
+    }
+
+    // called when the established connection is kept idle in a pool
+    public void connectionIdle(@SuppressWarnings("unused") ConnectableConnection conn) {
+        // do nothing in default implementation
+    }
+
+    // called when the idle connection is taken from the pool to be used again
+    public void connectionReused(@SuppressWarnings("unused") ConnectableConnection conn) {
+        // do nothing in default implementation
+    }
+
     // provide a event loop
     public NetEventLoop loop() {
         return null; // default: do not provide
@@ -452,6 +452,9 @@ class HandlerForConnectableConnection extends HandlerForConnection {
         if (!connected) {
             Logger.shouldNotHappen("the connection is not connected, should not fire the event");
         }
+        if (cctx.connection.connector != null) {
+            cctx.connection.connector.connected(cctx.connection);
+        }
 
         EventSet ops = EventSet.read();
         if (cctx.connection.getOutBuffer().used() > 0) {
@@ -0,0 +1,104 @@
+package vproxy.openssl;
+
+import javax.net.ssl.SSLException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * jni functions of the openssl engine, see src/main/c/vproxy_openssl_OpenSSL.c<br>
+ * build the lib with <code>make openssl</code><br>
+ * <br>
+ * buffers are passed as (direct buffer, null, offset, length) or (any, array, offset in array, length)
+ */
+public class OpenSSL {
+    private static final String lib = "vopenssl";
+    private static final Throwable loadError;
+    static final Cleaner cleaner = Cleaner.create();
+
+    static {
+        Throwable err = null;
+        try {
+            System.loadLibrary(lib);
+        } catch (UnsatisfiedLinkError e) {
+            err = e;
+        }
+        loadError = err;
+    }
+
+    private OpenSSL() {
+    }
+
+    public static boolean isAvailable() {
+        return loadError == null;
+    }
+
+    static void ensureAvailable() throws SSLException {
+        if (loadError != null) {
+            throw new SSLException(lib + " not found, requires lib" + lib + ".dylib or lib" + lib + ".so on java.library.path", loadError);
+        }
+    }
+
+    static byte[] array(ByteBuffer b) {
+        return b.isDirect() ? null : b.array();
+    }
+
+    static int offset(ByteBuffer b) {
+        return b.isDirect() ? b.position() : b.arrayOffset() + b.position();
+    }
+
+    static native long newContext(String[] certs, String key) throws SSLException;
+
+    static native void freeContext(long ctx);
+
+    static native long newEngine(long ctx) throws SSLException;
+
+    static native void freeEngine(long engine);
+
+    static native void setClientMode(long engine, boolean client);
+
+    static native void setServerName(long engine, String serverName) throws SSLException;
+
+    static native void setAlpnProtocols(long engine, byte[] protocols) throws SSLException;
+
+    static native void setProtocolVersions(long engine, int min, int max) throws SSLException;
+
+    static native boolean setCipherSuites(long engine, String[] suites);
+
+    static native String[] getCipherSuites(long engine);
+
+    // copy the handshake record for the delegated task
+    static native void stash(long engine, ByteBuffer src, byte[] srcArray, int srcOff, int srcLen) throws SSLException;
+
+    // run the handshake on the stashed record, output goes to the pending buffer
+    // the engine object is used to select alpn
+    static native boolean handshake(long engine, OpenSSLEngine self) throws SSLException;
+
+    // write pending bytes into the dst, returns written bytes
+    static native int flush(long engine, ByteBuffer dst, byte[] dstArray, int dstOff, int dstLen);
+
+    static native int pending(long engine);
+
+    // returns consumed << 32 | produced
+    static native long write(long engine,
+                             ByteBuffer src, byte[] srcArray, int srcOff, int srcLen,
+                             ByteBuffer dst, byte[] dstArray, int dstOff, int dstLen) throws SSLException;
+
+    // returns consumed << 32 | produced
+    static native long read(long engine,
+                            ByteBuffer src, byte[] srcArray, int srcOff, int srcLen,
+                            ByteBuffer dst, byte[] dstArray, int dstOff, int dstLen) throws SSLException;
+
+    static native void shutdown(long engine);
+
+    static native boolean isInboundClosed(long engine);
+
+    static native String getProtocol(long engine);
+
+    static native String getCipherSuite(long engine);
+
+    static native String getApplicationProtocol(long engine);
+
+    static native byte[] getSessionId(long engine);
+
+    static native byte[][] getPeerCertificates(long engine);
+}
@@ -0,0 +1,76 @@
+package vproxy.openssl;
+
+import javax.net.ssl.*;
+import java.security.KeyManagementException;
+import java.security.Provider;
+import java.security.SecureRandom;
+
+/**
+ * ssl context backed by an openssl SSL_CTX<br>
+ * the certificates and key are loaded when the context is created,
+ * and only {@link SSLEngine}s can be created from the context
+ */
+public class OpenSSLContext extends SSLContext {
+    private static final Provider provider = new Provider("vproxy-openssl", "1.0", "vproxy ssl engine backed by openssl") {
+    };
+
+    private OpenSSLContext(Spi spi) {
+        super(spi, provider, "TLS");
+    }
+
+    /**
+     * @param certs the pem certificate chain, may be null for clients
+     * @param key   the pem private key, may be null for clients
+     * @return the context
+     * @throws SSLException the lib is not loaded or the certificates/key are invalid
+     */
+    public static OpenSSLContext create(String[] certs, String key) throws SSLException {
+        OpenSSL.ensureAvailable();
+        return new OpenSSLContext(new Spi(OpenSSL.newContext(certs, key)));
+    }
+
+    private static class Spi extends SSLContextSpi {
+        private final long ctx;
+
+        Spi(long ctx) {
+            this.ctx = ctx;
+            // engines hold their own references of the SSL_CTX
+            OpenSSL.cleaner.register(this, () -> OpenSSL.freeContext(ctx));
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+            throw new KeyManagementException("the openssl context is initialized when created");
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            throw new UnsupportedOperationException("only SSLEngine is supported by the openssl context");
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            throw new UnsupportedOperationException("only SSLEngine is supported by the openssl context");
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new OpenSSLEngine(ctx, null, -1);
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return new OpenSSLEngine(ctx, host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            throw new UnsupportedOperationException("sessions are managed inside openssl");
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            throw new UnsupportedOperationException("sessions are managed inside openssl");
+        }
+    }
+}
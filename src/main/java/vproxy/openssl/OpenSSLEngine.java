@@ -0,0 +1,542 @@
+package vproxy.openssl;
+
+import vproxy.util.Utils;
+
+import javax.net.ssl.*;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.*;
+import static javax.net.ssl.SSLEngineResult.Status.*;
+
+/**
+ * SSLEngine backed by openssl<br>
+ * handshake records are handled by delegated tasks, one record in one task,
+ * so the handshake crypto still runs out of the event loops.
+ * application data is encrypted/decrypted by openssl directly between the buffers passed to wrap/unwrap.<br>
+ * <br>
+ * limitations: peer certificates are not verified in client mode,
+ * client auth is not supported, and renegotiation is disabled
+ */
+public class OpenSSLEngine extends SSLEngine {
+    static final int MAX_PLAIN = 16384;
+    static final int PACKET_SIZE = 16709; // the same as the jdk engine
+    private static final int RECORD_HEADER = 5;
+    private static final int MAX_RECORD = RECORD_HEADER + MAX_PLAIN + 2048;
+
+    private static final int TLS1_2_VERSION = 0x0303;
+    private static final int TLS1_3_VERSION = 0x0304;
+
+    private final long ptr;
+    private final OpenSSLSession session;
+
+    private boolean clientMode = false;
+    private boolean started = false;
+    private boolean helloSent = false;
+    private boolean finishedReported = false;
+    private boolean taskProvided = false;
+    private boolean closeRequested = false;
+    private boolean shutdownSent = false;
+    private boolean outboundDone = false;
+    private boolean inboundDone = false;
+    // the following fields are modified by the delegated task
+    private volatile boolean handshakeDone = false;
+    private volatile boolean failed = false;
+    private volatile boolean taskPending = false;
+
+    private String[] enabledProtocols = {"TLSv1.2", "TLSv1.3"};
+    private String[] applicationProtocols = new String[0];
+    private List<SNIServerName> serverNames = null;
+    private BiFunction<SSLEngine, List<String>, String> selector = null;
+
+    OpenSSLEngine(long ctx, String host, int port) {
+        super(host, port);
+        long ptr;
+        try {
+            ptr = OpenSSL.newEngine(ctx);
+        } catch (SSLException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.ptr = ptr;
+        this.session = new OpenSSLSession(this);
+        OpenSSL.cleaner.register(this, () -> OpenSSL.freeEngine(ptr));
+    }
+
+    long ptr() {
+        return ptr;
+    }
+
+    boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    private static SSLEngineResult result(SSLEngineResult.Status status, SSLEngineResult.HandshakeStatus hs, int consumed, int produced) {
+        return new SSLEngineResult(status, hs, consumed, produced);
+    }
+
+    // the buffer should be passed to the native functions as a direct buffer or an array
+    private static ByteBuffer accessible(ByteBuffer b, int len) {
+        if (b.isDirect() || b.hasArray()) {
+            return b;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        copy.put(b.duplicate().limit(b.position() + len)).flip();
+        return copy;
+    }
+
+    /**
+     * @param onlyOne only retrieve the first record
+     * @return length of the complete records from the position of the buffer
+     */
+    private static int completeRecords(ByteBuffer src, boolean onlyOne) throws SSLException {
+        int pos = src.position();
+        int rem = src.remaining();
+        int n = 0;
+        while (rem - n >= RECORD_HEADER) {
+            int len = RECORD_HEADER + (((src.get(pos + n + 3) & 0xff) << 8) | (src.get(pos + n + 4) & 0xff));
+            if (len > MAX_RECORD) {
+                throw new SSLException("invalid record length " + len);
+            }
+            if (rem - n < len) {
+                break;
+            }
+            n += len;
+            if (onlyOne) {
+                break;
+            }
+        }
+        return n;
+    }
+
+    private void start() throws SSLException {
+        if (started) {
+            return;
+        }
+        started = true;
+        OpenSSL.setClientMode(ptr, clientMode);
+        if (!clientMode) {
+            return;
+        }
+        String sni = null;
+        if (serverNames != null) {
+            for (SNIServerName n : serverNames) {
+                if (n instanceof SNIHostName) {
+                    sni = ((SNIHostName) n).getAsciiName();
+                }
+            }
+        } else if (getPeerHost() != null && !Utils.isIpLiteral(getPeerHost())) {
+            sni = getPeerHost();
+        }
+        if (sni != null) {
+            OpenSSL.setServerName(ptr, sni);
+        }
+        if (applicationProtocols.length > 0) {
+            byte[][] protos = new byte[applicationProtocols.length][];
+            int total = 0;
+            for (int i = 0; i < protos.length; ++i) {
+                protos[i] = applicationProtocols[i].getBytes(StandardCharsets.UTF_8);
+                total += 1 + protos[i].length;
+            }
+            byte[] wire = new byte[total];
+            int off = 0;
+            for (byte[] p : protos) {
+                wire[off++] = (byte) p.length;
+                System.arraycopy(p, 0, wire, off, p.length);
+                off += p.length;
+            }
+            OpenSSL.setAlpnProtocols(ptr, wire);
+        }
+    }
+
+    private int flush(ByteBuffer dst) {
+        if (OpenSSL.pending(ptr) == 0) {
+            return 0;
+        }
+        int n = OpenSSL.flush(ptr, dst, OpenSSL.array(dst), OpenSSL.offset(dst), dst.remaining());
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    @Override
+    public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if (taskPending) {
+            return result(OK, NEED_TASK, 0, 0);
+        }
+        if (failed && !closeRequested) {
+            throw new SSLException("the engine failed");
+        }
+        start();
+        if (clientMode && !helloSent && !closeRequested) {
+            helloSent = true;
+            // CLIENT_HELLO goes to the pending buffer
+            OpenSSL.handshake(ptr, this);
+        }
+        int produced = flush(dst);
+        if (closeRequested) {
+            if (!shutdownSent) {
+                shutdownSent = true;
+                OpenSSL.shutdown(ptr);
+                produced += flush(dst);
+            }
+            if (OpenSSL.pending(ptr) > 0) {
+                return result(CLOSED, NEED_WRAP, 0, produced);
+            }
+            outboundDone = true;
+            return result(CLOSED, NOT_HANDSHAKING, 0, produced);
+        }
+        if (OpenSSL.pending(ptr) > 0) {
+            return result(OK, NEED_WRAP, 0, produced);
+        }
+        if (!handshakeDone) {
+            return result(OK, getHandshakeStatus(), 0, produced);
+        }
+        if (!finishedReported) {
+            finishedReported = true;
+            return result(OK, FINISHED, 0, produced);
+        }
+
+        int consumed = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            ByteBuffer src = srcs[i];
+            while (src.hasRemaining()) {
+                int space = dst.remaining();
+                if (space < PACKET_SIZE) {
+                    if (consumed == 0 && produced == 0) {
+                        return result(BUFFER_OVERFLOW, NOT_HANDSHAKING, 0, 0);
+                    }
+                    return result(OK, NOT_HANDSHAKING, consumed, produced);
+                }
+                ByteBuffer s = accessible(src, Math.min(src.remaining(), MAX_PLAIN));
+                long r = OpenSSL.write(ptr,
+                    s, OpenSSL.array(s), OpenSSL.offset(s), s.remaining(),
+                    dst, OpenSSL.array(dst), OpenSSL.offset(dst), space);
+                int c = (int) (r >>> 32);
+                int p = (int) r;
+                src.position(src.position() + c);
+                dst.position(dst.position() + p);
+                consumed += c;
+                produced += p;
+            }
+        }
+        return result(OK, NOT_HANDSHAKING, consumed, produced);
+    }
+
+    @Override
+    public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException {
+        if (taskPending) {
+            return result(OK, NEED_TASK, 0, 0);
+        }
+        if (inboundDone) {
+            return result(CLOSED, getHandshakeStatus(), 0, 0);
+        }
+        if (failed) {
+            throw new SSLException("the engine failed");
+        }
+        start();
+        if (!handshakeDone) {
+            int len = completeRecords(src, true);
+            if (len == 0) {
+                return result(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
+            }
+            ByteBuffer s = accessible(src, len);
+            OpenSSL.stash(ptr, s, OpenSSL.array(s), OpenSSL.offset(s), len);
+            src.position(src.position() + len);
+            taskProvided = false;
+            taskPending = true;
+            return result(OK, NEED_TASK, len, 0);
+        }
+
+        int consumed = 0;
+        int produced = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            ByteBuffer dst = dsts[i];
+            if (dst.isReadOnly()) {
+                throw new ReadOnlyBufferException();
+            }
+            while (dst.remaining() >= MAX_PLAIN) {
+                int len = completeRecords(src, false);
+                if (len == 0) {
+                    if (consumed == 0) {
+                        return result(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
+                    }
+                    return result(OK, getHandshakeStatus(), consumed, produced);
+                }
+                ByteBuffer s = accessible(src, len);
+                long r = OpenSSL.read(ptr,
+                    s, OpenSSL.array(s), OpenSSL.offset(s), len,
+                    dst, OpenSSL.array(dst), OpenSSL.offset(dst), dst.remaining());
+                int c = (int) (r >>> 32);
+                int p = (int) r;
+                src.position(src.position() + c);
+                dst.position(dst.position() + p);
+                consumed += c;
+                produced += p;
+                if (OpenSSL.isInboundClosed(ptr)) {
+                    inboundDone = true;
+                    return result(CLOSED, getHandshakeStatus(), consumed, produced);
+                }
+                if (c == 0) {
+                    break;
+                }
+            }
+        }
+        if (consumed == 0 && produced == 0) {
+            if (completeRecords(src, true) == 0) {
+                return result(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
+            }
+            return result(BUFFER_OVERFLOW, getHandshakeStatus(), 0, 0);
+        }
+        return result(OK, getHandshakeStatus(), consumed, produced);
+    }
+
+    @Override
+    public Runnable getDelegatedTask() {
+        if (!taskPending || taskProvided) {
+            return null;
+        }
+        taskProvided = true;
+        return () -> {
+            try {
+                handshakeDone = OpenSSL.handshake(ptr, this);
+            } catch (SSLException e) {
+                failed = true;
+                throw new UncheckedIOException(e);
+            } finally {
+                taskPending = false;
+            }
+        };
+    }
+
+    // called by the native alpn callback when handshaking as a server
+    // return null to fail the handshake, or empty string to skip alpn
+    @SuppressWarnings("unused")
+    private String selectApplicationProtocol(String[] offered) {
+        List<String> ls = Arrays.asList(offered);
+        if (selector != null) {
+            return selector.apply(this, ls);
+        }
+        if (applicationProtocols.length == 0) {
+            return "";
+        }
+        for (String p : applicationProtocols) {
+            if (ls.contains(p)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void closeInbound() {
+        inboundDone = true;
+    }
+
+    @Override
+    public boolean isInboundDone() {
+        return inboundDone;
+    }
+
+    @Override
+    public void closeOutbound() {
+        closeRequested = true;
+        if (!started) {
+            outboundDone = true;
+        }
+    }
+
+    @Override
+    public boolean isOutboundDone() {
+        return outboundDone;
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return OpenSSL.getCipherSuites(ptr);
+    }
+
+    @Override
+    public String[] getEnabledCipherSuites() {
+        return OpenSSL.getCipherSuites(ptr);
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] suites) {
+        if (!OpenSSL.setCipherSuites(ptr, suites)) {
+            throw new IllegalArgumentException("none of the cipher suites is supported: " + Arrays.toString(suites));
+        }
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return new String[]{"TLSv1.2", "TLSv1.3"};
+    }
+
+    @Override
+    public String[] getEnabledProtocols() {
+        return enabledProtocols.clone();
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols) {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (String p : protocols) {
+            int v;
+            if (p.equals("TLSv1.2")) {
+                v = TLS1_2_VERSION;
+            } else if (p.equals("TLSv1.3")) {
+                v = TLS1_3_VERSION;
+            } else {
+                throw new IllegalArgumentException("unsupported protocol " + p);
+            }
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (max == 0) {
+            throw new IllegalArgumentException("no protocol is enabled");
+        }
+        try {
+            OpenSSL.setProtocolVersions(ptr, min, max);
+        } catch (SSLException e) {
+            throw new IllegalArgumentException(e);
+        }
+        enabledProtocols = protocols.clone();
+    }
+
+    @Override
+    public SSLSession getSession() {
+        return session;
+    }
+
+    @Override
+    public void beginHandshake() throws SSLException {
+        start();
+    }
+
+    @Override
+    public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+        if (taskPending) {
+            return NEED_TASK;
+        }
+        if (!started) {
+            return NOT_HANDSHAKING;
+        }
+        if (closeRequested) {
+            return outboundDone ? NOT_HANDSHAKING : NEED_WRAP;
+        }
+        if (OpenSSL.pending(ptr) > 0) {
+            return NEED_WRAP;
+        }
+        if (!handshakeDone) {
+            return (clientMode && !helloSent) ? NEED_WRAP : NEED_UNWRAP;
+        }
+        if (!finishedReported) {
+            // FINISHED is reported by the next wrap
+            return NEED_WRAP;
+        }
+        return NOT_HANDSHAKING;
+    }
+
+    @Override
+    public void setUseClientMode(boolean mode) {
+        if (started) {
+            throw new IllegalArgumentException("cannot change mode after handshaking started");
+        }
+        clientMode = mode;
+    }
+
+    @Override
+    public boolean getUseClientMode() {
+        return clientMode;
+    }
+
+    @Override
+    public void setNeedClientAuth(boolean need) {
+        if (need) {
+            throw new UnsupportedOperationException("client auth is not supported by the openssl engine");
+        }
+    }
+
+    @Override
+    public boolean getNeedClientAuth() {
+        return false;
+    }
+
+    @Override
+    public void setWantClientAuth(boolean want) {
+        if (want) {
+            throw new UnsupportedOperationException("client auth is not supported by the openssl engine");
+        }
+    }
+
+    @Override
+    public boolean getWantClientAuth() {
+        return false;
+    }
+
+    @Override
+    public void setEnableSessionCreation(boolean flag) {
+        if (!flag) {
+            throw new UnsupportedOperationException("sessions are always created by the openssl engine");
+        }
+    }
+
+    @Override
+    public boolean getEnableSessionCreation() {
+        return true;
+    }
+
+    @Override
+    public void setSSLParameters(SSLParameters params) {
+        super.setSSLParameters(params);
+        List<SNIServerName> names = params.getServerNames();
+        if (names != null) {
+            serverNames = names;
+        }
+        applicationProtocols = params.getApplicationProtocols();
+    }
+
+    @Override
+    public SSLParameters getSSLParameters() {
+        SSLParameters params = super.getSSLParameters();
+        if (serverNames != null) {
+            params.setServerNames(serverNames);
+        }
+        params.setApplicationProtocols(applicationProtocols);
+        return params;
+    }
+
+    @Override
+    public String getApplicationProtocol() {
+        if (!handshakeDone) {
+            return null;
+        }
+        return OpenSSL.getApplicationProtocol(ptr);
+    }
+
+    @Override
+    public String getHandshakeApplicationProtocol() {
+        if (!started || taskPending) {
+            return null;
+        }
+        return OpenSSL.getApplicationProtocol(ptr);
+    }
+
+    @Override
+    public void setHandshakeApplicationProtocolSelector(BiFunction<SSLEngine, List<String>, String> selector) {
+        this.selector = selector;
+    }
+
+    @Override
+    public BiFunction<SSLEngine, List<String>, String> getHandshakeApplicationProtocolSelector() {
+        return selector;
+    }
+}
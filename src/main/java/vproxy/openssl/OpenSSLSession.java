@@ -0,0 +1,171 @@
+package vproxy.openssl;
+
+import javax.net.ssl.*;
+import java.io.ByteArrayInputStream;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * session info of an {@link OpenSSLEngine}, retrieved from openssl after handshaking
+ */
+class OpenSSLSession implements SSLSession {
+    private final OpenSSLEngine engine;
+    private final long creationTime = System.currentTimeMillis();
+    private final Map<String, Object> values = new ConcurrentHashMap<>();
+    private Certificate[] peerCertificates;
+
+    OpenSSLSession(OpenSSLEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public byte[] getId() {
+        if (!engine.isHandshakeDone()) {
+            return new byte[0];
+        }
+        return OpenSSL.getSessionId(engine.ptr());
+    }
+
+    @Override
+    public SSLSessionContext getSessionContext() {
+        return null;
+    }
+
+    @Override
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+        return creationTime;
+    }
+
+    @Override
+    public void invalidate() {
+        // sessions are managed inside openssl
+    }
+
+    @Override
+    public boolean isValid() {
+        return engine.isHandshakeDone();
+    }
+
+    @Override
+    public void putValue(String name, Object value) {
+        Object old = values.put(name, value);
+        if (old instanceof SSLSessionBindingListener) {
+            ((SSLSessionBindingListener) old).valueUnbound(new SSLSessionBindingEvent(this, name));
+        }
+        if (value instanceof SSLSessionBindingListener) {
+            ((SSLSessionBindingListener) value).valueBound(new SSLSessionBindingEvent(this, name));
+        }
+    }
+
+    @Override
+    public Object getValue(String name) {
+        return values.get(name);
+    }
+
+    @Override
+    public void removeValue(String name) {
+        Object old = values.remove(name);
+        if (old instanceof SSLSessionBindingListener) {
+            ((SSLSessionBindingListener) old).valueUnbound(new SSLSessionBindingEvent(this, name));
+        }
+    }
+
+    @Override
+    public String[] getValueNames() {
+        return values.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
+        if (peerCertificates != null) {
+            return peerCertificates.clone();
+        }
+        if (!engine.isHandshakeDone()) {
+            throw new SSLPeerUnverifiedException("handshake not finished");
+        }
+        byte[][] ders = OpenSSL.getPeerCertificates(engine.ptr());
+        if (ders.length == 0) {
+            throw new SSLPeerUnverifiedException("peer certificates not provided");
+        }
+        Certificate[] certs = new Certificate[ders.length];
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            for (int i = 0; i < ders.length; ++i) {
+                certs[i] = factory.generateCertificate(new ByteArrayInputStream(ders[i]));
+            }
+        } catch (CertificateException e) {
+            SSLPeerUnverifiedException ex = new SSLPeerUnverifiedException("decoding peer certificates failed");
+            ex.initCause(e);
+            throw ex;
+        }
+        peerCertificates = certs;
+        return certs.clone();
+    }
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+        return null;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public javax.security.cert.X509Certificate[] getPeerCertificateChain() {
+        throw new UnsupportedOperationException("use getPeerCertificates() instead");
+    }
+
+    @Override
+    public Principal getPeerPrincipal() throws SSLPeerUnverifiedException {
+        return ((X509Certificate) getPeerCertificates()[0]).getSubjectX500Principal();
+    }
+
+    @Override
+    public Principal getLocalPrincipal() {
+        return null;
+    }
+
+    @Override
+    public String getCipherSuite() {
+        if (!engine.isHandshakeDone()) {
+            return "SSL_NULL_WITH_NULL_NULL";
+        }
+        return OpenSSL.getCipherSuite(engine.ptr());
+    }
+
+    @Override
+    public String getProtocol() {
+        if (!engine.isHandshakeDone()) {
+            return "NONE";
+        }
+        return OpenSSL.getProtocol(engine.ptr());
+    }
+
+    @Override
+    public String getPeerHost() {
+        return engine.getPeerHost();
+    }
+
+    @Override
+    public int getPeerPort() {
+        return engine.getPeerPort();
+    }
+
+    @Override
+    public int getPacketBufferSize() {
+        return OpenSSLEngine.PACKET_SIZE;
+    }
+
+    @Override
+    public int getApplicationBufferSize() {
+        return OpenSSLEngine.MAX_PLAIN;
+    }
+}
@@ -1,6 +1,7 @@
 package vproxy.pool;
 
 import vproxy.connection.*;
+import vproxy.selector.PeriodicEvent;
 import vproxy.selector.SelectorEventLoop;
 import vproxy.util.LogType;
 import vproxy.util.Logger;
@@ -8,13 +9,16 @@ import vproxy.util.ThreadSafe;
 import vproxy.util.Utils;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class ConnectionPool {
     static class ConnWrap {
         final ConnectableConnection conn;
         boolean isHandshaking = true;
+        long idleSince; // the time when handshake is done
 
         ConnWrap(ConnectableConnection conn) {
             this.conn = conn;
@@ -45,6 +49,8 @@ public class ConnectionPool {
         @Override
         public void exception(ConnectionHandlerContext ctx, IOException err) {
             Logger.error(LogType.CONN_ERROR, "pooled connection " + ctx.connection + " got exception", err);
+            // the connection cannot be used anymore
+            removeConnection(ctx.connection);
         }
 
         @Override
@@ -67,24 +73,55 @@ public class ConnectionPool {
 
     private final NetEventLoop loop;
     private final ConnectionPoolHandler handler;
-    private final LinkedList<ConnWrap> connections = new LinkedList<>();
+    private final LinkedList<ConnWrap> connections = new LinkedList<>(); // only accessed on the loop
+    private volatile int count = 0; // size of the connections list, can be read on other threads
     private final int capacity;
+    private final int maxIdleMillis; // 0 means no limit
+    private final int fillBatch; // max connections to provide each time filling the pool
 
     private final PoolConnHandler poolConnHandler = new PoolConnHandler();
     private boolean isPendingProviding = false;
+    private boolean closed = false;
+    private final ArrayList<PeriodicEvent> periodicEvents = new ArrayList<>(2);
+
+    // --- START statistics ---
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // --- END statistics ---
 
     public ConnectionPool(NetEventLoop loop, ConnectionPoolHandlerProvider handlerProvider, int capacity) {
+        this(loop, handlerProvider, capacity, 0, 1);
+    }
+
+    /**
+     * @param loop            the loop which the pool runs on
+     * @param handlerProvider provides the handler
+     * @param capacity        the target count of connections in the pool
+     * @param maxIdleMillis   connections idle longer than this are closed and replaced, 0 means no limit
+     * @param fillBatch       max connections to provide every second when filling the pool
+     */
+    public ConnectionPool(NetEventLoop loop, ConnectionPoolHandlerProvider handlerProvider, int capacity, int maxIdleMillis, int fillBatch) {
         this.loop = loop;
         this.capacity = capacity;
+        this.maxIdleMillis = maxIdleMillis;
+        this.fillBatch = Math.max(fillBatch, 1);
         this.handler = handlerProvider.provide(new PoolCallback(this));
 
-        fill();
+        // the pool may be created on other threads, the connections list should only be touched on the loop
+        loop.getSelectorEventLoop().runOnLoop(this::fill);
         // run keepalive for every 15 seconds
-        loop.getSelectorEventLoop().period(15_000, this::keepalive);
+        periodicEvents.add(loop.getSelectorEventLoop().period(15_000, this::keepalive));
+        if (maxIdleMillis > 0) {
+            periodicEvents.add(loop.getSelectorEventLoop().period(Math.min(Math.max(maxIdleMillis / 4, 100), 15_000), this::evictIdle));
+        }
     }
 
     private void fill() {
         assert Logger.lowLevelDebug("try to fill the pool");
+        if (closed) {
+            assert Logger.lowLevelDebug("the pool is closed, do not create more");
+            return;
+        }
         if (connections.size() >= capacity) {
             assert Logger.lowLevelDebug("the pool is full now, do not create more");
             return;
@@ -94,17 +131,22 @@ public class ConnectionPool {
             return;
         }
 
-        ConnectableConnection conn = handler.provide(loop);
-        if (conn == null) {
-            assert Logger.lowLevelDebug("the user code refuse to provide a connection to the pool");
-        } else if (conn.getEventLoop() == null) {
-            Logger.error(LogType.IMPROPER_USE, "user code did not register the conn to event loop");
-            conn.close(true);
-        } else {
-            assert Logger.lowLevelDebug("new connection provided, add to pool");
-            ConnWrap w = new ConnWrap(conn);
-            connections.add(w);
+        for (int i = 0; i < fillBatch && connections.size() < capacity; ++i) {
+            ConnectableConnection conn = handler.provide(loop);
+            if (conn == null) {
+                assert Logger.lowLevelDebug("the user code refuse to provide a connection to the pool");
+                break;
+            } else if (conn.getEventLoop() == null) {
+                Logger.error(LogType.IMPROPER_USE, "user code did not register the conn to event loop");
+                conn.close(true);
+                break;
+            } else {
+                assert Logger.lowLevelDebug("new connection provided, add to pool");
+                ConnWrap w = new ConnWrap(conn);
+                connections.add(w);
+            }
         }
+        count = connections.size();
 
         // fix the delay to 1 second, the delay is not important
         // we just don't want to make too much connections at the same time
@@ -123,6 +165,7 @@ public class ConnectionPool {
 
     private void handshakeDone(ConnWrap w) {
         w.isHandshaking = false;
+        w.idleSince = System.currentTimeMillis();
         loop.removeConnection(w.conn);
 
         try {
@@ -137,11 +180,31 @@ public class ConnectionPool {
         assert Logger.lowLevelDebug("connection removed: " + conn);
         // remove from pool
         connections.removeIf(w -> w.conn.equals(conn));
+        count = connections.size();
         // close the conn and remove from loop (will is done by the connection lib)
         conn.close();
         fill();
     }
 
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        ArrayList<ConnWrap> toEvict = null;
+        for (ConnWrap w : connections) {
+            if (w.isHandshaking || now - w.idleSince <= maxIdleMillis)
+                continue;
+            if (toEvict == null) {
+                toEvict = new ArrayList<>();
+            }
+            toEvict.add(w);
+        }
+        if (toEvict == null)
+            return;
+        for (ConnWrap w : toEvict) {
+            assert Logger.lowLevelDebug("the pooled connection " + w.conn + " is idle for too long");
+            removeConnection(w.conn);
+        }
+    }
+
     private void keepalive() {
         for (ConnWrap w : connections) {
             if (w.isHandshaking)
@@ -153,14 +216,18 @@ public class ConnectionPool {
 
     @ThreadSafe
     public void get(SelectorEventLoop callerLoop, Consumer<ConnectableConnection> cb) {
-        loop.getSelectorEventLoop().runOnLoop(() -> {
+        // always run in the next tick, because the caller may be inside the callback of another fd,
+        // and removing connections from the loop inside the callback affects the running callback
+        loop.getSelectorEventLoop().nextTick(() -> {
 
             // here is in the connection pool event loop
 
             ConnWrap firstPolled = connections.poll();
             ConnWrap w = firstPolled;
+            count = connections.size();
 
             if (w == null) { // the pool is empty
+                misses.increment();
                 callerLoop.runOnLoop(() -> cb.accept(null));
 
                 fill(); // should fill the pool
@@ -178,7 +245,9 @@ public class ConnectionPool {
                         assert Logger.lowLevelDebug("we got the first polled connection, " +
                             "which means no valid connections in the pool for now");
                         connections.add(w); // we should add it back
+                        count = connections.size();
 
+                        misses.increment();
                         callerLoop.runOnLoop(() -> cb.accept(null));
                         break;
                     }
@@ -188,7 +257,8 @@ public class ConnectionPool {
 
                 ConnWrap foo = w; // use a new variable just to let the lambda capture
                 loop.removeConnection(w.conn);
-                Logger.alert("pooled connection retrieved: " + w.conn);
+                hits.increment();
+                assert Logger.lowLevelDebug("pooled connection retrieved: " + w.conn);
                 // sync event loop info into memory to avoid some corner error
                 // the connection is removed from loop of pool on loop thread
                 // and will be added to another loop on another thread
@@ -202,4 +272,39 @@ public class ConnectionPool {
             fill(); // should try to fill the pool, checking will be handled in the method
         });
     }
+
+    /**
+     * close all connections in the pool, and stop filling the pool
+     */
+    @ThreadSafe
+    public void close() {
+        loop.getSelectorEventLoop().runOnLoop(() -> {
+            closed = true;
+            for (PeriodicEvent e : periodicEvents) {
+                e.cancel();
+            }
+            periodicEvents.clear();
+            for (ConnWrap w : connections) {
+                w.conn.close();
+            }
+            connections.clear();
+            count = 0;
+        });
+    }
+
+    /**
+     * @return count of connections in the pool, including those still handshaking, the value may be stale
+     */
+    @ThreadSafe
+    public int count() {
+        return count;
+    }
+
+    public long getHitCount() {
+        return hits.longValue();
+    }
+
+    public long getMissCount() {
+        return misses.longValue();
+    }
 }
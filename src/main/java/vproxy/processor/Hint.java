@@ -1,6 +1,7 @@
 package vproxy.processor;
 
 import vproxy.app.util.AnnotationKeys;
+import vproxy.component.svrgroup.Upstream;
 import vproxy.util.Utils;
 
 import java.util.Map;
@@ -11,6 +12,11 @@ public class Hint {
     private final String host;
     private final String port;
 
+    // the last search in an upstream, see Upstream#searchForGroup
+    private Upstream searchUpstream = null;
+    private long searchGeneration;
+    private Upstream.ServerGroupHandle searchResult;
+
     public Hint(String hint) {
         this.hint = hint;
         if (Utils.isIpv6(hint) || !hint.contains(":")) {
@@ -24,6 +30,28 @@ public class Hint {
         }
     }
 
+    public String getHost() {
+        return host;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public boolean isSearchCached(Upstream upstream, long generation) {
+        return searchUpstream == upstream && searchGeneration == generation;
+    }
+
+    public Upstream.ServerGroupHandle getSearchResult() {
+        return searchResult;
+    }
+
+    public void setSearchResult(Upstream upstream, long generation, Upstream.ServerGroupHandle result) {
+        this.searchUpstream = upstream;
+        this.searchGeneration = generation;
+        this.searchResult = result;
+    }
+
     public static final int MAX_MATCH_LEVEL = 3;
 
     @SuppressWarnings("unchecked")
@@ -28,6 +28,11 @@ public abstract class OOProcessor<CTX extends OOContext<SUB>, SUB extends OOSubC
         return sub.produce();
     }
 
+    @Override
+    public void produced(CTX ctx, SUB front) {
+        front.produced();
+    }
+
     @Override
     public void proxyDone(CTX ctx, SUB sub) {
         sub.proxyDone();
@@ -21,6 +21,9 @@ public abstract class OOSubContext<CTX extends OOContext> extends Processor.SubC
 
     public abstract ByteArray produce();
 
+    public void produced() {
+    }
+
     public abstract void proxyDone();
 
     public abstract ByteArray connected();
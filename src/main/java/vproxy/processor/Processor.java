@@ -101,6 +101,17 @@ public interface Processor<CTX extends Processor.Context, SUB extends Processor.
      */
     ByteArray produce(CTX ctx, SUB sub);
 
+    /**
+     * the data produced by the frontend sub context is copied into the output buffer of the frontend connection,
+     * called once for each non-empty array returned by produce(ctx, front), in the same order.
+     * not called if the connection is closed before the data is written
+     *
+     * @param ctx   context
+     * @param front frontend sub context
+     */
+    default void produced(CTX ctx, SUB front) {
+    }
+
     /**
      * the mode used to be `proxy` and now proxy handling is done
      *
@@ -147,6 +158,49 @@ public interface Processor<CTX extends Processor.Context, SUB extends Processor.
      */
     ByteArray connected(CTX ctx, SUB sub);
 
+    /**
+     * whether the backend connection can be used by other frontend connections.
+     * the lib checks this method when the data of the backend is fully sent to the frontend,
+     * and when it returns true, the connection may be handed to another frontend connection
+     * with a new sub context (created by initSub with a new context), and connected() is not called again
+     *
+     * @param ctx context
+     * @param sub backend sub context
+     * @return true if the connection can be reused, false by default
+     */
+    default boolean reusable(CTX ctx, SUB sub) {
+        return false;
+    }
+
+    /**
+     * whether the request being sent from the frontend can be sent again.
+     * the lib checks this method for each frame dispatched to a connection borrowed from the backend pool,
+     * and when the connection is closed by the server before responding, e.g. for idle timeout,
+     * the request is written again to a new connection only if all its frames are replayable
+     *
+     * @param ctx   context
+     * @param front frontend sub context
+     * @return true if the request can be sent again, false by default
+     */
+    default boolean replayable(CTX ctx, SUB front) {
+        return false;
+    }
+
+    /**
+     * whether the responses must be written to the frontend in the same order as the requests,
+     * e.g. pipelined http/1.x requests.
+     * when it returns true, each new frame from the frontend is recorded with the backend it's dispatched to,
+     * and data from a backend is only read when all responses of the former frames are written.
+     * the processor should return one frame in each feed() call and let len() return 0
+     * when it's holding the next frame, so that the frames can be dispatched to different backends
+     *
+     * @param ctx context
+     * @return true if the responses should be in order, false by default
+     */
+    default boolean responseInOrder(CTX ctx) {
+        return false;
+    }
+
     /**
      * zero copy is not free.
      * e.g. when processing http2 frames, the frame header is 9 bytes, and with uint24 payload length,
@@ -2,6 +2,7 @@ package vproxy.processor.http;
 
 import vproxy.processor.Hint;
 import vproxy.processor.Processor;
+import vproxy.processor.http1.HttpCache;
 import vproxy.processor.http1.HttpProcessor;
 import vproxy.processor.http2.Http2Processor;
 import vproxy.processor.http2.Http2SubContext;
@@ -10,9 +11,20 @@ import vproxy.util.ByteArray;
 import java.net.InetSocketAddress;
 
 public class GeneralHttpProcessor implements Processor<GeneralHttpContext, GeneralHttpSubContext> {
-    private final HttpProcessor httpProcessor = new HttpProcessor();
+    private final HttpProcessor httpProcessor;
     private final Http2Processor http2Processor = new Http2Processor();
 
+    public GeneralHttpProcessor() {
+        this(null);
+    }
+
+    /**
+     * @param cache responses of GET requests in http/1.x are cached if not null
+     */
+    public GeneralHttpProcessor(HttpCache cache) {
+        httpProcessor = new HttpProcessor(cache);
+    }
+
     @Override
     public String name() {
         return "http";
@@ -100,6 +112,12 @@ public class GeneralHttpProcessor implements Processor<GeneralHttpContext, Gener
         return null;
     }
 
+    @Override
+    public void produced(GeneralHttpContext ctx, GeneralHttpSubContext front) {
+        if (ctx.useHttp) httpProcessor.produced(ctx.httpContext, front.httpSubContext);
+        if (ctx.useHttp2) http2Processor.produced(ctx.http2Context, front.http2SubContext);
+    }
+
     @Override
     public void proxyDone(GeneralHttpContext ctx, GeneralHttpSubContext subCtx) {
         if (ctx.useHttp) httpProcessor.proxyDone(ctx.httpContext, subCtx.httpSubContext);
@@ -137,6 +155,14 @@ public class GeneralHttpProcessor implements Processor<GeneralHttpContext, Gener
         ctx.chosen = subCtx;
     }
 
+    @Override
+    public boolean responseInOrder(GeneralHttpContext ctx) {
+        if (ctx.useHttp) return httpProcessor.responseInOrder(ctx.httpContext);
+        if (ctx.useHttp2) return http2Processor.responseInOrder(ctx.http2Context);
+        // if (ctx.willUseHttp2)
+        return false;
+    }
+
     @Override
     public ByteArray connected(GeneralHttpContext ctx, GeneralHttpSubContext subCtx) {
         if (ctx.useHttp) return httpProcessor.connected(ctx.httpContext, subCtx.httpSubContext);
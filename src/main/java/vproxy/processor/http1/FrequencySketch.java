@@ -0,0 +1,65 @@
+package vproxy.processor.http1;
+
+/**
+ * count-min sketch estimating how often a key is accessed, with 4 bit counters (0 to 15).<br>
+ * all counters are halved when the sample size is reached, so old popularity fades.<br>
+ * the counters are updated without synchronization by multiple event loops,
+ * a lost update only makes the estimation slightly lower, which is acceptable for admission decisions
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final int MAX = 15;
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(int expectedEntries) {
+        int width = 1;
+        while (width < expectedEntries && width < (1 << 24)) {
+            width <<= 1;
+        }
+        width = Math.max(width, 64);
+        this.table = new byte[width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & mask;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; ++i) {
+            int idx = indexOf(hash, i);
+            if (table[idx] < MAX) {
+                ++table[idx];
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(int hash) {
+        int freq = MAX;
+        for (int i = 0; i < SEEDS.length; ++i) {
+            freq = Math.min(freq, table[indexOf(hash, i)]);
+        }
+        return freq;
+    }
+
+    private void reset() {
+        additions /= 2;
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package vproxy.processor.http1;
+
+import vproxy.app.Config;
+import vproxy.util.ByteArray;
+import vproxy.util.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * cache of http/1.x responses, shared by all event loops handling the same tcp-lb.<br>
+ * a response is keyed by method, host, uri, and the request headers listed in its Vary header.
+ * the response bytes are stored in direct buffers. an entry is reference counted: the cache holds one reference until the entry
+ * is removed, and a connection serving the entry holds one until the response is copied into its output buffer.
+ * the buffer is freed by the last holder, or by gc if the connection is closed before the response is written.<br>
+ * the space is managed by a W-TinyLFU policy: new entries stay in a small fifo window,
+ * then an entry leaving the window is admitted into the main space (evicted by CLOCK) only when
+ * it's accessed more often than the victim it replaces. the access frequency is estimated by a {@link FrequencySketch}.<br>
+ * lookups do not lock, modifications are synchronized
+ */
+public class HttpCache {
+    private static final int NONE = 0;
+    private static final int IN_WINDOW = 1;
+    private static final int IN_MAIN = 2;
+
+    // headers listed in the Vary header of a resource
+    private static class Vary {
+        final String[] names;
+        int refs = 0; // count of entries of the resource
+
+        Vary(String[] names) {
+            this.names = names;
+        }
+    }
+
+    static class Entry {
+        final String baseKey;
+        final String key;
+        final Vary vary;
+        // a copy of the whole response, a view of the buffer
+        // only readable between retain() and release()
+        final ByteArray response;
+        private final ByteBuffer buffer;
+        private final AtomicInteger refs = new AtomicInteger(1); // the reference of the cache
+        // offset after the status line, headers can be inserted here
+        final int statusLineEnd;
+        final long storedAt;
+        final long expireAt;
+        final int initialAge; // seconds
+        final String etag;
+
+        volatile boolean referenced = false;
+        // guarded by the cache
+        private int location = NONE;
+
+        Entry(String baseKey, String key, Vary vary, ByteBuffer buffer, int statusLineEnd,
+              long storedAt, long expireAt, int initialAge, String etag) {
+            this.baseKey = baseKey;
+            this.key = key;
+            this.vary = vary;
+            this.buffer = buffer;
+            this.response = ByteArray.from(buffer);
+            this.statusLineEnd = statusLineEnd;
+            this.storedAt = storedAt;
+            this.expireAt = expireAt;
+            this.initialAge = initialAge;
+            this.etag = etag;
+        }
+
+        int size() {
+            return response.length();
+        }
+
+        // @return false if the entry is already freed
+        private boolean retain() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * drop a reference retrieved from {@link HttpCache#lookup(String, Map)},
+         * the response must not be read after calling this method
+         */
+        void release() {
+            int n = refs.decrementAndGet();
+            assert n >= 0;
+            if (n == 0) {
+                Utils.clean(buffer);
+            }
+        }
+
+        // seconds since the response is generated by the server
+        int age(long now) {
+            return initialAge + (int) ((now - storedAt) / 1000);
+        }
+    }
+
+    public final long capacity;
+    public final int maxEntrySize;
+    private final long windowCapacity;
+    private final long mainCapacity;
+
+    private final ConcurrentHashMap<String, Vary> varies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+
+    private final ArrayDeque<Entry> window = new ArrayDeque<>();
+    private final ArrayDeque<Entry> main = new ArrayDeque<>();
+    private long windowBytes = 0;
+    private long mainBytes = 0;
+    private volatile long bytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public HttpCache(long capacity, int maxEntrySize) {
+        this.capacity = capacity;
+        this.maxEntrySize = maxEntrySize;
+        this.windowCapacity = capacity / 100;
+        this.mainCapacity = capacity - windowCapacity;
+        // assume 4KB for each response
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / 4096));
+    }
+
+    private static String key(String baseKey, String[] varyNames, Map<String, String> headers) {
+        if (varyNames.length == 0) {
+            return baseKey;
+        }
+        StringBuilder sb = new StringBuilder(baseKey);
+        for (String name : varyNames) {
+            String value = headers.get(name);
+            sb.append('\n').append(name).append(':');
+            if (value != null) {
+                sb.append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param headers request headers with lower case names
+     * @return a fresh response, or null if missing. the entry must be released when it's not used
+     */
+    Entry lookup(String baseKey, Map<String, String> headers) {
+        Vary vary = varies.get(baseKey);
+        String key = vary == null ? baseKey : key(baseKey, vary.names, headers);
+        // a resource not cached is counted by its base key
+        // which is the same as the key when the resource does not vary
+        sketch.increment(key.hashCode());
+
+        Entry entry = vary == null ? null : entries.get(key);
+        // the entry may be evicted and freed concurrently
+        if (entry == null || entry.expireAt <= Config.currentTimestamp || !entry.retain()) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * @param headers    request headers with lower case names
+     * @param varyNames  lower case names in the Vary header of the response
+     * @param freshUntil the response expires at this timestamp
+     * @param initialAge seconds retrieved from the Age header of the response
+     */
+    void store(String baseKey, Map<String, String> headers, String[] varyNames,
+               ByteArray response, int statusLineEnd, long freshUntil, int initialAge, String etag) {
+        int size = response.length();
+        if (size > maxEntrySize || size > mainCapacity) {
+            return;
+        }
+        ByteBuffer stored = ByteBuffer.allocateDirect(size);
+        response.byteBufferPut(stored, 0, size);
+        stored.flip();
+
+        synchronized (this) {
+            Vary vary = varies.get(baseKey);
+            if (vary == null || !Arrays.equals(vary.names, varyNames)) {
+                // entries of the old variants cannot be found anymore and will be evicted
+                vary = new Vary(varyNames);
+                varies.put(baseKey, vary);
+            }
+            String key = key(baseKey, varyNames, headers);
+            Entry entry = new Entry(baseKey, key, vary, stored, statusLineEnd,
+                Config.currentTimestamp, freshUntil, initialAge, etag);
+            ++vary.refs;
+
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                remove(old);
+            }
+            entry.location = IN_WINDOW;
+            window.add(entry);
+            windowBytes += size;
+            bytes += size;
+
+            while (windowBytes > windowCapacity) {
+                Entry candidate = window.poll();
+                if (candidate == null) {
+                    break;
+                }
+                if (candidate.location != IN_WINDOW) {
+                    continue; // already removed
+                }
+                windowBytes -= candidate.size();
+                candidate.location = NONE;
+                admit(candidate);
+            }
+        }
+    }
+
+    // move the entry leaving the window into the main space if it's more popular than the victims
+    private void admit(Entry candidate) {
+        int freq = sketch.frequency(candidate.key.hashCode());
+        while (mainBytes + candidate.size() > mainCapacity) {
+            Entry victim = victim();
+            if (victim == null) {
+                break;
+            }
+            if (freq > sketch.frequency(victim.key.hashCode())) {
+                evict(victim);
+            } else {
+                evict(candidate);
+                return;
+            }
+        }
+        candidate.location = IN_MAIN;
+        main.add(candidate);
+        mainBytes += candidate.size();
+    }
+
+    // CLOCK: entries accessed since the last check are given a second chance
+    private Entry victim() {
+        int chances = main.size();
+        Entry e;
+        while ((e = main.peek()) != null) {
+            if (e.location != IN_MAIN) {
+                main.poll(); // already removed
+                continue;
+            }
+            if (e.referenced && chances-- > 0) {
+                e.referenced = false;
+                main.add(main.poll());
+                continue;
+            }
+            return e;
+        }
+        return null;
+    }
+
+    private void evict(Entry entry) {
+        remove(entry);
+        evictions.increment();
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key, entry);
+        if (entry.location == IN_WINDOW) {
+            windowBytes -= entry.size();
+        } else if (entry.location == IN_MAIN) {
+            mainBytes -= entry.size();
+        }
+        // entries in the queues are removed lazily
+        entry.location = NONE;
+        bytes -= entry.size();
+        if (--entry.vary.refs == 0) {
+            varies.remove(entry.baseKey, entry.vary);
+        }
+        entry.release();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public double hitRatio() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : ((double) hits) / total;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int entries() {
+        return entries.size();
+    }
+}
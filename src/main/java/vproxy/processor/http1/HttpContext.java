@@ -6,10 +6,17 @@ import vproxy.util.Logger;
 import vproxy.util.Utils;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public class HttpContext extends OOContext<HttpSubContext> {
-    final String clientAddress;
-    final String clientPort;
+    // rewrite the headers of requests, the client address is added here
+    final HttpHeaderRewrite headerRewrite;
+    // null if the responses are not cached
+    final HttpCache cache;
+    // requests sent to backends when the cache is enabled, in request order
+    // the responses are parsed in the same order because they are written to the frontend in order
+    final Deque<HttpSubContext.CacheRecord> cacheRecords = new ArrayDeque<>();
 
     int currentBackend = -1;
 
@@ -17,15 +24,39 @@ public class HttpContext extends OOContext<HttpSubContext> {
     private Hint hint;
 
     public HttpContext(InetSocketAddress clientSock) {
-        clientAddress = clientSock == null ? null : Utils.ipStr(clientSock.getAddress().getAddress());
-        clientPort = clientSock == null ? null : "" + clientSock.getPort();
+        this(clientSock, null);
+    }
+
+    public HttpContext(InetSocketAddress clientSock, HttpCache cache) {
+        this(clientSock, cache, new HttpHeaderRewrite());
+    }
+
+    /**
+     * @param headerRewrite rules applied to the requests, the rules are copied,
+     *                      and x-forwarded-for and x-client-port are inserted if not specified
+     */
+    public HttpContext(InetSocketAddress clientSock, HttpCache cache, HttpHeaderRewrite headerRewrite) {
+        this.cache = cache;
+        // the lines are built only once for each connection
+        this.headerRewrite = new HttpHeaderRewrite(headerRewrite);
+        if (clientSock != null) {
+            if (!headerRewrite.has("x-forwarded-for")) {
+                this.headerRewrite.insert("x-forwarded-for", Utils.ipStr(clientSock.getAddress().getAddress()));
+            }
+            if (!headerRewrite.has("x-client-port")) {
+                this.headerRewrite.insert("x-client-port", "" + clientSock.getPort());
+            }
+        }
     }
 
     @Override
     public int connection(HttpSubContext front) {
-        if (!front.hostHeaderRetrieved) {
+        if (!front.hostHeaderRetrieved || front.isHoldingHead()) {
             return 0; // do not send data for now
         }
+        if (front.servedFromCache) {
+            return 0; // the response is produced by the sub context
+        }
         if (front.isIdle()) {
             // the state may turn to idle after calling feed()
             // the connection() will be called after calling feed()
@@ -0,0 +1,92 @@
+package vproxy.processor.http1;
+
+import vproxy.util.ByteArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * rules to rewrite the headers of http/1.x requests.<br>
+ * the header lines are built when adding the rules, and reused by all requests of a connection.
+ * the rewritten request consists of slices of the input and these lines, see {@link ByteArray#gather(ByteArray...)}<br>
+ * this is an internal api: tcp-lb only uses it to insert x-forwarded-for and x-client-port (see {@link HttpContext}),
+ * and there's no command or config for custom rules, because the command args are split by spaces
+ * and cannot hold header values. custom rules can only be set by code using {@link HttpProcessor} directly.
+ */
+public class HttpHeaderRewrite {
+    static final int INSERT = 1;
+    static final int REPLACE = 2;
+    static final int REMOVE = 3;
+
+    // the matched rules are recorded in a long for each request
+    private static final int MAX_RULES = 64;
+
+    static class Rule {
+        final int action;
+        final String name; // lower case
+        final ByteArray line; // null for REMOVE
+
+        Rule(int action, String name, ByteArray line) {
+            this.action = action;
+            this.name = name;
+            this.line = line;
+        }
+    }
+
+    final List<Rule> rules = new ArrayList<>();
+    // whether header lines of the input might be removed, see REPLACE and REMOVE
+    boolean dropsHeaders = false;
+
+    public HttpHeaderRewrite() {
+    }
+
+    public HttpHeaderRewrite(HttpHeaderRewrite rewrite) {
+        this.rules.addAll(rewrite.rules);
+        this.dropsHeaders = rewrite.dropsHeaders;
+    }
+
+    private HttpHeaderRewrite add(int action, String name, String value) {
+        if (rules.size() == MAX_RULES) {
+            throw new IllegalArgumentException("too many rules, at most " + MAX_RULES);
+        }
+        name = name.trim().toLowerCase();
+        ByteArray line = value == null ? null : ByteArray.from((name + ": " + value + "\r\n").getBytes());
+        rules.add(new Rule(action, name, line));
+        if (action != INSERT) {
+            dropsHeaders = true;
+        }
+        return this;
+    }
+
+    /**
+     * add the header at the end of the headers if the request does not have it
+     */
+    public HttpHeaderRewrite insert(String name, String value) {
+        return add(INSERT, name, value);
+    }
+
+    /**
+     * replace the header with the value, the header is added if the request does not have it,
+     * and only one line is kept if the request has multiple
+     */
+    public HttpHeaderRewrite replace(String name, String value) {
+        return add(REPLACE, name, value);
+    }
+
+    /**
+     * remove all lines of the header
+     */
+    public HttpHeaderRewrite remove(String name) {
+        return add(REMOVE, name, null);
+    }
+
+    public boolean has(String name) {
+        name = name.trim().toLowerCase();
+        for (Rule r : rules) {
+            if (r.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -5,6 +5,30 @@ import vproxy.processor.OOProcessor;
 import java.net.InetSocketAddress;
 
 public class HttpProcessor extends OOProcessor<HttpContext, HttpSubContext> {
+    private final HttpCache cache;
+    private final HttpHeaderRewrite headerRewrite;
+
+    public HttpProcessor() {
+        this(null);
+    }
+
+    /**
+     * @param cache responses of GET requests are cached if not null
+     */
+    public HttpProcessor(HttpCache cache) {
+        this(cache, new HttpHeaderRewrite());
+    }
+
+    /**
+     * @param cache         responses of GET requests are cached if not null
+     * @param headerRewrite rules to rewrite headers of the requests,
+     *                      not configurable from commands, see {@link HttpHeaderRewrite}
+     */
+    public HttpProcessor(HttpCache cache, HttpHeaderRewrite headerRewrite) {
+        this.cache = cache;
+        this.headerRewrite = headerRewrite;
+    }
+
     @Override
     public String name() {
         return "http/1.x";
@@ -17,11 +41,26 @@ public class HttpProcessor extends OOProcessor<HttpContext, HttpSubContext> {
 
     @Override
     public HttpContext init(InetSocketAddress clientAddress) {
-        return new HttpContext(clientAddress);
+        return new HttpContext(clientAddress, cache, headerRewrite);
     }
 
     @Override
     public HttpSubContext initSub(HttpContext httpContext, int id, InetSocketAddress associatedAddress) {
         return new HttpSubContext(httpContext, id);
     }
+
+    @Override
+    public boolean reusable(HttpContext httpContext, HttpSubContext sub) {
+        return sub.reusable();
+    }
+
+    @Override
+    public boolean replayable(HttpContext httpContext, HttpSubContext front) {
+        return front.idempotent();
+    }
+
+    @Override
+    public boolean responseInOrder(HttpContext httpContext) {
+        return true; // http/1.x pipelining
+    }
 }
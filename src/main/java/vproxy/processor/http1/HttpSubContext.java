@@ -1,5 +1,6 @@
 package vproxy.processor.http1;
 
+import vproxy.app.Config;
 import vproxy.processor.OOSubContext;
 import vproxy.processor.Processor;
 import vproxy.processor.http1.builder.ChunkBuilder;
@@ -11,10 +12,10 @@ import vproxy.processor.http1.entity.Response;
 import vproxy.util.ByteArray;
 import vproxy.util.Logger;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
 
-@SuppressWarnings("StatementWithEmptyBody")
 public class HttpSubContext extends OOSubContext<HttpContext> {
     private final boolean frontend;
     private int state = 0;
@@ -45,39 +46,24 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
      * 22 => response-version ~> SP -> 23
      * 23 => status ~> SP -> 24
      * 24 => reason ~> \r\n -> 4
+     *
+     * each state scans the input in bulk until one of its delimiters,
+     * so feeding a large buffer does not create objects for each byte
      */
 
-    private Handler[] handlers = new Handler[]{
-        HttpSubContext.this::state0,
-        HttpSubContext.this::state1,
-        HttpSubContext.this::state2,
-        HttpSubContext.this::state3,
-        HttpSubContext.this::state4,
-        HttpSubContext.this::state5,
-        HttpSubContext.this::state6,
-        HttpSubContext.this::state7,
-        HttpSubContext.this::state8,
-        HttpSubContext.this::state9,
-        HttpSubContext.this::state10,
-        HttpSubContext.this::state11,
-        HttpSubContext.this::state12,
-        HttpSubContext.this::state13,
-        HttpSubContext.this::state14,
-        HttpSubContext.this::state15,
-        HttpSubContext.this::state16,
-        HttpSubContext.this::state17,
-        HttpSubContext.this::state18,
-        HttpSubContext.this::state19,
-        HttpSubContext.this::state20,
-        HttpSubContext.this::state21,
-        HttpSubContext.this::state22,
-        HttpSubContext.this::state23,
-        HttpSubContext.this::state24,
-    };
+    // bytes which stop the scanning of a state
+    private static final boolean[] SP = delimiters(" ");
+    private static final boolean[] SP_CRLF = delimiters(" \r\n");
+    private static final boolean[] CRLF = delimiters("\r\n");
+    private static final boolean[] COLON = delimiters(":");
+    private static final boolean[] CHUNK_SIZE_END = delimiters(";\r\n");
 
-    interface Handler {
-        void handle(ByteArray b) throws Exception;
-    }
+    // kinds of the headers which are used by the sub context
+    private static final int HEADER_OTHER = 0;
+    private static final int HEADER_HOST = 1;
+    private static final int HEADER_CONTENT_LENGTH = 2;
+    private static final int HEADER_TRANSFER_ENCODING = 3;
+    private static final int HEADER_CONNECTION = 4;
 
     private byte[] buf;
     private int bufOffset = 0;
@@ -91,6 +77,31 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
     private HeaderBuilder trailer;
     private int proxyLen = -1;
 
+    // when not in parser mode, the message is not built
+    // and the header and chunk builders are reused
+    private HeaderBuilder reusedHeader;
+    private ChunkBuilder reusedChunk;
+    // kind of the header (or trailer) being parsed
+    private int headerKind = HEADER_OTHER;
+    // the bytes of a token are copied here in bulk before they are appended, see append()
+    private byte[] appendBuf;
+    // retrieved from the headers of the current message
+    // only the first one of content-length and transfer-encoding takes effect
+    private boolean bodyHeaderFound;
+    private int contentLength;
+    private boolean chunked;
+    private boolean connectionClose;
+    private boolean connectionKeepAlive;
+    // only recorded for responses
+    private StringBuilder reusedVersion;
+    private int statusCode;
+    // whether the backend connection can be used for another request after the response
+    private boolean keepAlive;
+    // the method of the request, only recorded by a frontend sub context,
+    // at most 8 ascii bytes are packed into the long, methodLen > 8 means the method is longer
+    private long methodBytes;
+    private int methodLen;
+
     // value of the Host: header
     // would be used as the hint
     // only accessed when it's a frontend sub context
@@ -103,7 +114,49 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
     // if it's a backend sub context, the field will be set but never used
     // when this field is set to true, it will not be set to false again
     boolean hostHeaderRetrieved;
+    // build the messages, the parser mode must be set before feeding any data
     boolean parserMode;
+    // max length of the body built in parser mode, -1 means no limit
+    private int maxBodyLength = -1;
+    private int bodyLength;
+
+    // the following fields are only used when the cache is enabled, see HttpCache
+    // method and uri of the request, the version is recorded in reusedVersion
+    private StringBuilder reusedMethod;
+    private StringBuilder reusedUri;
+    // headers of the request, or of the response being captured, with lower case names
+    private Map<String, String> cacheHeaders;
+    // the current request is served from the cache, and the response is returned by produce()
+    boolean servedFromCache = false;
+    private ByteArray cachedResponse;
+    // the entry of the cachedResponse, and entries of the responses produced but not written yet, in order
+    // the entries are released when the responses are written, see produced()
+    private HttpCache.Entry cachedEntry;
+    private ArrayDeque<HttpCache.Entry> producedEntries;
+    // the request of the response being captured, null if the response is not stored
+    private CacheRecord capturing;
+    private byte[] captureBuf;
+    private int captureLen;
+    private boolean captureDone;
+    // retrieved from the headers of the captured response
+    private String[] captureVary;
+    private long captureExpireAt;
+    private int captureAge;
+    private boolean captureHasAge;
+    private String captureEtag;
+
+    // a request sent to the backend, the response is stored with the key and headers of the request
+    static class CacheRecord {
+        final String baseKey;
+        final Map<String, String> headers;
+
+        CacheRecord(String baseKey, Map<String, String> headers) {
+            this.baseKey = baseKey;
+            this.headers = headers;
+        }
+    }
+
+    private static final CacheRecord NOT_CACHEABLE = new CacheRecord(null, null);
 
     public HttpSubContext(HttpContext httpContext, int connId) {
         super(httpContext, connId);
@@ -116,6 +169,14 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
         this.hostHeaderRetrieved = true; // set this field to true to let feed() respond bytes
     }
 
+    /**
+     * limit the body of each message in parser mode, an exception is thrown when feeding a larger message,
+     * and the body buffer is not allocated
+     */
+    public void setMaxBodyLength(int maxBodyLength) {
+        this.maxBodyLength = maxBodyLength;
+    }
+
     public RequestBuilder getParsingReq() {
         return this.req;
     }
@@ -136,6 +197,54 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
         return state == 10 || state == 11;
     }
 
+    private boolean cacheEnabled() {
+        return ctx.cache != null && !parserMode;
+    }
+
+    /**
+     * @return true if the request headers are being parsed and the bytes are held,
+     * only happens when the cache is enabled, because the request might be served without a backend
+     */
+    boolean isHoldingHead() {
+        return frontend && state >= 1 && state <= 8 && cacheEnabled();
+    }
+
+    /**
+     * @return true if it's a backend sub context, the response is done
+     * and the connection is kept alive according to the response
+     */
+    public boolean reusable() {
+        return !frontend && state == 0 && keepAlive;
+    }
+
+    private static final long[] IDEMPOTENT_METHODS = {
+        pack("GET"), pack("HEAD"), pack("OPTIONS"), pack("PUT"), pack("DELETE"), pack("TRACE"),
+    };
+
+    private static long pack(String method) {
+        long n = 0;
+        for (char c : method.toCharArray()) {
+            n = (n << 8) | c;
+        }
+        return n;
+    }
+
+    /**
+     * @return true if it's a frontend sub context and the method of the request being sent is idempotent,
+     * the methods are case-sensitive
+     */
+    public boolean idempotent() {
+        if (!frontend || methodLen == 0 || methodLen > 8) {
+            return false;
+        }
+        for (long m : IDEMPOTENT_METHODS) {
+            if (m == methodBytes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Processor.Mode mode() {
         switch (state) {
@@ -165,7 +274,8 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
                 return Processor.Mode.handle;
             case 10:
             case 15:
-                return Processor.Mode.proxy;
+                // the captured body is fed into the sub context
+                return capturing == null ? Processor.Mode.proxy : Processor.Mode.handle;
         }
         throw new IllegalStateException("BUG: unexpected state " + state);
     }
@@ -177,77 +287,89 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
 
     @Override
     public int len() {
+        // 0 means feed an empty array, then the pending requests would be handled
+        if (pendingInput != null) {
+            return 0;
+        }
         // when proxyLen == -1, do feed, and -1 means feed any data into the processor
         return proxyLen;
     }
 
-    private boolean passParam_TryFillAdditionalHeaders = false;
     private ByteArray storedBytes = null;
+    // pipelined messages following a finished message in the same input,
+    // the lib handles one message in each feed() call, so that each request can choose its own backend,
+    // and each response can be written in the order of the requests
+    private ByteArray pendingInput = null;
+
+    // the rewritten request consists of slices of the input and header lines of the rewrite rules
+    // only used in feed(ByteArray) of a frontend sub context
+    private boolean rewriting = false;
+    private final List<ByteArray> rewriteOutput = new ArrayList<>();
+    // offset of the input which is not added into the output yet
+    private int rewriteFrom;
+    // offset of the header line being parsed
+    private int headerLineStart;
+    // a header line not finished when the input ends, it might be removed so it's kept until the line ends
+    // the bytes are already parsed
+    private ByteArray pendingLine = null;
+    // bit set of the rules matching headers of the request
+    private long rewriteMatched;
+    private boolean rewriteInserted;
 
     @Override
     public ByteArray feed(ByteArray data) throws Exception {
+        servedFromCache = false;
         int consumedBytes = 0;
+        if (pendingInput != null) {
+            data = data.length() == 0 ? pendingInput : pendingInput.concat(data);
+            pendingInput = null;
+        } else if (pendingLine != null) {
+            consumedBytes = pendingLine.length();
+            headerLineStart = 0;
+            data = pendingLine.concat(data);
+            pendingLine = null;
+        }
+        // the input is parsed as a whole, and the output is built when rewriting headers,
+        // so that the parsed array is not nested deeper for each rewritten header
+        rewriting = frontend && !ctx.headerRewrite.rules.isEmpty();
+        rewriteFrom = 0;
         while (consumedBytes < data.length()) {
-            feed(data.get(consumedBytes++));
-
-            if (passParam_TryFillAdditionalHeaders) {
-                boolean noForwardedFor = true;
-                boolean noClientPort = true;
-
-                for (HeaderBuilder h : headers) {
-                    String hv = h.key.toString().trim();
-                    if (hv.equalsIgnoreCase("x-forwarded-for")) {
-                        noForwardedFor = false;
-                    } else if (hv.equalsIgnoreCase("x-client-port")) {
-                        noClientPort = false;
-                    }
-                    if (!noForwardedFor && !noClientPort) {
-                        break;
-                    }
-                }
-                ByteArray appendData = null;
-                if (noForwardedFor) {
-                    ByteArray b = ByteArray.from(("" +
-                        "x-forwarded-for: " + ctx.clientAddress + "\r\n" +
-                        "").getBytes());
-                    assert Logger.lowLevelDebug("add header x-forwarded-for: " + ctx.clientAddress);
-                    appendData = b;
-                }
-                if (noClientPort) {
-                    ByteArray b = ByteArray.from(("" +
-                        "x-client-port: " + ctx.clientPort + "\r\n" +
-                        "").getBytes());
-                    assert Logger.lowLevelDebug("add header x-client-port: " + ctx.clientPort);
-                    if (appendData == null) {
-                        appendData = b;
-                    } else {
-                        appendData = appendData.concat(b);
-                    }
-                }
-                if (appendData != null) {
-                    // insert the appendData into data
-                    data = data.sub(0, consumedBytes - 1)
-                        .concat(appendData)
-                        .concat(data.sub(consumedBytes - 1, data.length() - (consumedBytes - 1)));
-                    consumedBytes += appendData.length();
-                }
-                passParam_TryFillAdditionalHeaders = false;
-            }
-            if (proxyLen > 0) {
-                // need to do proxy
-                int originalCursor = consumedBytes;
-                consumedBytes += proxyLen;
-                if (consumedBytes > data.length()) {
-                    // input data has fewer bytes than required
-                    // so still need to do proxy later
-                    consumedBytes = data.length();
-                }
-                for (int i = originalCursor; i < consumedBytes; ++i) {
-                    feed(data.get(i));
-                }
+            consumedBytes = feed(data, consumedBytes);
+
+            if (state == 0 && consumedBytes < data.length()) {
+                // the message is done, keep the following messages for the next feed() call
+                pendingInput = data.sub(consumedBytes, data.length() - consumedBytes);
+                data = data.sub(0, consumedBytes);
+                break;
             }
         }
-        if (hostHeaderRetrieved) {
+        if (rewriting) {
+            rewriting = false;
+            int outputTo = data.length();
+            if (state >= 5 && state <= 7 && ctx.headerRewrite.dropsHeaders) {
+                pendingLine = data.sub(headerLineStart, data.length() - headerLineStart);
+                outputTo = headerLineStart;
+            }
+            if (!rewriteOutput.isEmpty() || rewriteFrom != 0) {
+                rewriteKeep(data, outputTo);
+                data = ByteArray.gather(rewriteOutput.toArray(new ByteArray[0]));
+                rewriteOutput.clear();
+            } else if (outputTo < data.length()) {
+                data = data.sub(0, outputTo);
+            }
+        }
+        if (servedFromCache) {
+            storedBytes = null; // the request is not sent
+            return null;
+        }
+        if (capturing != null) {
+            capture(data);
+        }
+        if (captureDone) {
+            captureDone = false;
+            storeCaptured();
+        }
+        if (hostHeaderRetrieved && !isHoldingHead()) {
             if (storedBytes == null) {
                 return data;
             } else {
@@ -265,16 +387,94 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
         }
     }
 
+    /**
+     * parse one byte, for the parsers checking the state after each byte.
+     * the additional headers are not added
+     */
     public void feed(byte b) throws Exception {
-        if (state < 0 || state >= handlers.length) {
-            throw new IllegalStateException("BUG: unexpected state " + state);
+        ByteArray data = ByteArray.from(b);
+        // some states only transfer to another state without consuming the byte
+        //noinspection StatementWithEmptyBody
+        while (feed(data, 0) == 0) {
+        }
+    }
+
+    /**
+     * parse the data from the offset until the state changes or the data ends
+     *
+     * @return offset of the first byte not consumed,
+     * which might be the input offset if the state changes without consuming any byte
+     */
+    private int feed(ByteArray data, int off) throws Exception {
+        switch (state) {
+            case 0:
+                return state0(data, off);
+            case 1:
+                return state1(data, off);
+            case 2:
+                return state2(data, off);
+            case 3:
+                return state3(data, off);
+            case 4:
+                return state4(data, off);
+            case 5:
+                return state5(data, off);
+            case 7:
+                return state7(data, off);
+            case 8:
+                return state8(data, off);
+            case 10:
+                return state10(data, off);
+            case 11:
+                return state11(data, off);
+            case 12:
+                return state12(data, off);
+            case 13:
+                return state13(data, off);
+            case 14:
+                return state14(data, off);
+            case 15:
+                return state15(data, off);
+            case 16:
+                return state16(data, off);
+            case 17:
+                return state17(data, off);
+            case 19:
+                return state19(data, off);
+            case 20:
+                return state20(data, off);
+            case 22:
+                return state22(data, off);
+            case 23:
+                return state23(data, off);
+            case 24:
+                return state24(data, off);
         }
-        handlers[state].handle(ByteArray.from(b));
+        // 6, 9, 18, 21 are only used for state transferring
+        throw new IllegalStateException("BUG: unexpected state " + state);
     }
 
     @Override
     public ByteArray produce() {
-        return null; // never produce data
+        // only produce the cached response
+        ByteArray ret = cachedResponse;
+        cachedResponse = null;
+        if (cachedEntry != null) {
+            if (producedEntries == null) {
+                producedEntries = new ArrayDeque<>();
+            }
+            producedEntries.add(cachedEntry);
+            cachedEntry = null;
+        }
+        return ret;
+    }
+
+    @Override
+    public void produced() {
+        HttpCache.Entry entry = producedEntries == null ? null : producedEntries.poll();
+        if (entry != null) {
+            entry.release();
+        }
     }
 
     @Override
@@ -296,211 +496,292 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
 
     private void end() {
         state = 0;
+        if (!frontend && cacheEnabled() && (statusCode >= 200 || statusCode == 101)) {
+            // the final response of the request is done
+            ctx.cacheRecords.poll();
+            captureDone = capturing != null;
+        }
     }
 
-    private void state0(ByteArray data) {
+    private int state0(@SuppressWarnings("unused") ByteArray data, int off) {
+        bodyHeaderFound = false;
+        contentLength = -1;
+        chunked = false;
+        rewriteMatched = 0;
+        rewriteInserted = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+        statusCode = 0;
+        keepAlive = false;
+        headers = null;
+        bodyLength = 0;
+        cacheHeaders = null;
         if (frontend) {
-            req = new RequestBuilder();
+            req = parserMode ? new RequestBuilder() : null;
+            methodBytes = 0;
+            methodLen = 0;
+            if (cacheEnabled()) {
+                reusedMethod = reset(reusedMethod);
+                reusedUri = reset(reusedUri);
+                reusedVersion = reset(reusedVersion);
+                cacheHeaders = new HashMap<>();
+            }
             state = 1;
-            state1(data);
         } else {
-            resp = new ResponseBuilder();
+            resp = parserMode ? new ResponseBuilder() : null;
+            if (cacheEnabled()) {
+                CacheRecord record = ctx.cacheRecords.peek();
+                capturing = record == NOT_CACHEABLE ? null : record;
+                captureLen = 0;
+                if (capturing != null) {
+                    cacheHeaders = new HashMap<>();
+                }
+            }
+            if (!parserMode) {
+                if (reusedVersion == null) {
+                    reusedVersion = new StringBuilder();
+                } else {
+                    reusedVersion.setLength(0);
+                }
+            }
             state = 22;
-            state22(data);
         }
+        return off;
     }
 
-    private void state1(ByteArray data) {
-        int b = data.uint8(0);
-        if (b == ' ') {
-            state = 2;
-        } else {
-            req.method.append((char) b);
+    private int state1(ByteArray data, int off) {
+        int end = scan(data, off, SP);
+        for (int i = off; i < end && methodLen <= 8; ++i) {
+            methodBytes = (methodBytes << 8) | data.uint8(i);
+            ++methodLen;
         }
+        if (parserMode) {
+            append(req.method, data, off, end);
+        } else if (cacheHeaders != null) {
+            append(reusedMethod, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
+        }
+        state = 2;
+        return end + 1;
     }
 
-    private void state2(ByteArray data) {
-        int b = data.uint8(0);
+    private int state2(ByteArray data, int off) {
+        int end = scan(data, off, SP_CRLF);
+        if (parserMode) {
+            append(req.uri, data, off, end);
+        } else if (cacheHeaders != null) {
+            append(reusedUri, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
+        }
+        int b = data.uint8(end);
         if (b == ' ') {
             state = 3;
-        } else if (b == '\r') {
-            // do nothing
         } else if (b == '\n') {
             state = 4;
-        } else {
-            req.uri.append((char) b);
-        }
+        } // \r is ignored
+        return end + 1;
     }
 
-    private void state3(ByteArray data) {
-        int b = data.uint8(0);
-        if (b == '\r') {
-            // do nothing
-        } else if (b == '\n') {
-            state = 4;
-        } else {
+    private int state3(ByteArray data, int off) {
+        int end = scan(data, off, CRLF);
+        if (parserMode && end > off) {
             if (req.version == null) {
                 req.version = new StringBuilder();
             }
-            req.version.append((char) b);
+            append(req.version, data, off, end);
+        } else if (cacheHeaders != null) {
+            append(reusedVersion, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
+        }
+        if (data.uint8(end) == '\n') {
+            state = 4;
         }
+        return end + 1;
     }
 
-    private void state4(ByteArray data) throws Exception {
-        int b = data.uint8(0);
+    private int state4(ByteArray data, int off) throws Exception {
+        int b = data.uint8(off);
         if (b == '\r') {
-            // do nothing
+            rewriteInsert(data, off);
+            return off + 1; // ignore
         } else if (b == '\n') {
+            rewriteInsert(data, off);
             state = 9;
-            state9(null);
+            state9();
+            return off + 1;
         } else {
             state = 5;
-            state5(data);
+            return off;
         }
     }
 
-    private void state5(ByteArray data) throws Exception {
+    private int state5(ByteArray data, int off) {
         if (header == null) {
-            header = new HeaderBuilder();
+            header = newHeader();
+            headerLineStart = off;
         }
-
-        int b = data.uint8(0);
-        if (b == ':') {
-            state = 6;
-            state6(data);
-        } else {
-            header.key.append((char) b);
+        int end = scan(data, off, COLON);
+        append(header.key, data, off, end);
+        if (end == data.length()) {
+            return end;
         }
+        state = 6;
+        state6();
+        return end + 1;
     }
 
-    private void state6(ByteArray data) throws Exception {
-        int b = data.uint8(0);
-        if (b == ':') {
-            state = 7;
-        } else {
-            throw new Exception("invalid header: " + header + ", invalid splitter " + (char) b);
-        }
+    // this method should be called before entering state 7
+    // it's for state transferring
+    private void state6() {
+        headerKind = headerKind(header.key);
+        state = 7;
     }
 
-    private void state7(ByteArray data) {
-        int b = data.uint8(0);
-        if (b == '\r') {
-            // ignore
-        } else if (b == '\n') {
-            state = 8;
-        } else {
-            if (b != ' ' || header.value.length() != 0) { // leading spaces of the value are ignored
-                header.value.append((char) b);
-            }
+    private int state7(ByteArray data, int off) {
+        if (header.value.length() == 0) { // leading spaces of the value are ignored
+            off = skipSpaces(data, off);
         }
-    }
-
-    private void state8(ByteArray data) throws Exception {
-        if (headers == null) {
-            headers = new LinkedList<>();
-            if (frontend) {
-                req.headers = headers;
-            } else {
-                resp.headers = headers;
-            }
+        int end = scan(data, off, CRLF);
+        if (parserMode || headerKind != HEADER_OTHER || cacheHeaders != null) {
+            append(header.value, data, off, end);
         }
-        if (header != null) {
-            headers.add(header);
-            assert Logger.lowLevelDebug("received header " + header);
-            String k = header.key.toString();
-            if (k.trim().equalsIgnoreCase("host")) {
-                theHostHeader = header.value.toString().trim();
-                hostHeaderRetrieved = true;
-            }
+        if (end == data.length()) {
+            return end;
+        }
+        if (data.uint8(end) == '\n') {
+            state = 8;
+            headerDone(data, end + 1);
             header = null;
         }
+        return end + 1;
+    }
 
-        int b = data.uint8(0);
+    private int state8(ByteArray data, int off) throws Exception {
+        int b = data.uint8(off);
         if (b == '\r') {
-            // ignore
-            passParam_TryFillAdditionalHeaders = frontend; // only add header if it's from frontend
+            rewriteInsert(data, off);
+            return off + 1; // ignore
         } else if (b == '\n') {
+            rewriteInsert(data, off);
             state = 9;
-            state9(null);
+            state9();
+            return off + 1;
         } else {
             state = 5;
-            state5(data);
+            return off;
         }
     }
 
-    // this method should be called before entering state 9
-    // it's for state transferring
-    private void state9(@SuppressWarnings("unused") ByteArray data) {
-        // ignore the data
-        hostHeaderRetrieved = true;
-        if (headers == null) {
-            end();
-            return;
+    // @param lineEnd offset after the header line
+    private void headerDone(ByteArray data, int lineEnd) {
+        assert Logger.lowLevelDebug("received header " + header);
+        if (rewriting) {
+            rewriteHeader(data, lineEnd);
         }
-        for (var h : headers) {
-            String hdr = h.key.toString().trim().toLowerCase();
-            if (hdr.equals("content-length")) {
-                String len = h.value.toString().trim();
-                assert Logger.lowLevelDebug("found Content-Length: " + len);
-                int intLen = Integer.parseInt(len);
-                if (intLen == 0) {
-                    end();
+        if (parserMode) {
+            if (headers == null) {
+                headers = new LinkedList<>();
+                if (frontend) {
+                    req.headers = headers;
                 } else {
-                    state = 10;
-                    proxyLen = intLen;
+                    resp.headers = headers;
                 }
-                return;
-            } else if (hdr.equals("transfer-encoding")) {
-                String encoding = h.value.toString().trim().toLowerCase();
-                assert Logger.lowLevelDebug("found Transfer-Encoding: " + encoding);
-                if (encoding.equals("chunked")) {
-                    state = 11;
+            }
+            headers.add(header);
+        }
+        if (cacheHeaders != null) {
+            cacheHeaders.merge(header.key.toString().trim().toLowerCase(), header.value.toString().trim(), (a, b) -> a + ", " + b);
+        }
+        switch (headerKind) {
+            case HEADER_HOST:
+                theHostHeader = header.value.toString().trim();
+                hostHeaderRetrieved = true;
+                break;
+            case HEADER_CONTENT_LENGTH:
+                if (!bodyHeaderFound) {
+                    bodyHeaderFound = true;
+                    contentLength = parseInt(header.value, 10);
+                    assert Logger.lowLevelDebug("found Content-Length: " + contentLength);
                 }
+                break;
+            case HEADER_TRANSFER_ENCODING:
+                if (!bodyHeaderFound) {
+                    bodyHeaderFound = true;
+                    chunked = nameIs(header.value, "chunked");
+                    assert Logger.lowLevelDebug("found Transfer-Encoding: " + header.value);
+                }
+                break;
+            case HEADER_CONNECTION:
+                connectionClose = nameIs(header.value, "close");
+                connectionKeepAlive = nameIs(header.value, "keep-alive");
+                break;
+        }
+    }
+
+    // this method should be called before entering state 9
+    // it's for state transferring
+    private void state9() throws Exception {
+        hostHeaderRetrieved = true;
+        if (!frontend) {
+            // http/1.1 connections are kept alive unless closed explicitly, and 101 turns the connection into a tunnel
+            keepAlive = statusCode != 101 && !connectionClose
+                && (connectionKeepAlive || nameIs(parserMode ? resp.version : reusedVersion, "http/1.1"));
+            if (capturing != null) {
+                checkCacheable();
+            }
+        } else if (cacheEnabled()) {
+            if (serveFromCache()) {
+                end();
                 return;
             }
         }
-        assert Logger.lowLevelDebug("Content-Length and Transfer-Encoding both not found");
-        end();
+        if (contentLength > 0) {
+            checkBodyLength(contentLength);
+            state = 10;
+            proxyLen = contentLength;
+        } else if (chunked) {
+            state = 11;
+        } else {
+            if (!bodyHeaderFound) {
+                assert Logger.lowLevelDebug("Content-Length and Transfer-Encoding both not found");
+            }
+            end();
+        }
     }
 
-    private void state10(ByteArray data) {
-        assert data.length() <= proxyLen;
+    private void checkBodyLength(int len) throws Exception {
+        bodyLength += len;
+        if (maxBodyLength >= 0 && (bodyLength > maxBodyLength || bodyLength < 0 /* overflow */)) {
+            throw new Exception("body length exceeds " + maxBodyLength);
+        }
+    }
+
+    private int state10(ByteArray data, int off) {
+        int len = Math.min(proxyLen, data.length() - off);
         int contentLength = proxyLen;
-        proxyLen -= data.length();
-        if (frontend) {
-            if (parserMode) { // use a byte array buffer to hold the data
+        proxyLen -= len;
+        if (parserMode) { // use a byte array buffer to hold the data
+            if (frontend) {
                 if (req.body == null) {
                     buf = new byte[contentLength];
                     bufOffset = 0;
                     req.body = ByteArray.from(buf);
                 }
-                for (int i = 0; i < data.length(); ++i) {
-                    buf[bufOffset++] = data.get(i);
-                }
             } else {
-                if (req.body == null) {
-                    req.body = data;
-                } else {
-                    req.body = req.body.concat(data);
-                }
-            }
-        } else {
-            if (parserMode) {
                 if (resp.body == null) {
                     buf = new byte[contentLength];
                     bufOffset = 0;
                     resp.body = ByteArray.from(buf);
                 }
-                for (int i = 0; i < data.length(); ++i) {
-                    buf[bufOffset++] = data.get(i);
-                }
-            } else {
-                if (resp.body == null) {
-                    resp.body = data;
-                } else {
-                    resp.body = resp.body.concat(data);
-                }
             }
+            data.sub(off, len).toNewJavaArray(buf, bufOffset);
+            bufOffset += len;
         }
         if (proxyLen == 0) {
             // the method will not be called if it's using the Proxy lib
@@ -508,96 +789,115 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
             // we call it manually here
             proxyDone();
         }
+        return off + len;
     }
 
-    private void state11(ByteArray data) throws Exception {
+    private int state11(ByteArray data, int off) throws Exception {
         if (chunk == null) {
-            chunk = new ChunkBuilder();
+            chunk = newChunk();
+        }
+        int end = scan(data, off, CHUNK_SIZE_END);
+        append(chunk.size, data, off, end);
+        if (end == data.length()) {
+            return end;
         }
-        int b = data.uint8(0);
+        int b = data.uint8(end);
         if (b == ';') {
             state = 12;
-        } else if (b == '\r') {
-            // ignore
         } else if (b == '\n') {
             state = 14;
-            state14(null);
-        } else {
-            chunk.size.append((char) b);
-        }
+            chunkSizeDone();
+        } // \r is ignored
+        return end + 1;
     }
 
-    private void state12(ByteArray data) throws Exception {
-        int b = data.uint8(0);
+    private int state12(ByteArray data, int off) throws Exception {
+        int b = data.uint8(off);
         if (b == '\r') {
-            // ignore
+            return off + 1; // ignore
         } else if (b == '\n') {
             state = 14;
-            state14(null);
+            chunkSizeDone();
+            return off + 1;
         } else {
             state = 13;
+            return off;
+        }
+    }
+
+    private int state13(ByteArray data, int off) throws Exception {
+        int end = scan(data, off, CRLF);
+        if (parserMode && end > off) {
             if (chunk.extension == null) {
                 chunk.extension = new StringBuilder();
             }
-            chunk.extension.append((char) b);
+            append(chunk.extension, data, off, end);
         }
-    }
-
-    private void state13(ByteArray data) throws Exception {
-        int b = data.uint8(0);
-        if (b == '\r') {
-            // ignore
-        } else if (b == '\n') {
+        if (end == data.length()) {
+            return end;
+        }
+        if (data.uint8(end) == '\n') {
             state = 14;
-            state14(null);
-        } else {
-            chunk.extension.append((char) b);
+            chunkSizeDone();
         }
+        return end + 1;
     }
 
-    // this method may be called before entering state 9
+    // this method should be called when entering state 14
     // it's for state transferring
-    private void state14(ByteArray data) throws Exception {
-        int size = chunk == null ? 0 : Integer.parseInt(chunk.size.toString().trim(), 16);
+    private void chunkSizeDone() throws Exception {
+        int size = parseInt(chunk.size, 16);
         if (size != 0) {
+            checkBodyLength(size);
+            if (capturing != null && captureLen + size > ctx.cache.maxEntrySize) {
+                stopCapture();
+            }
             state = 15;
             proxyLen = size;
         } else {
-            if (data == null) { // called from other states
-                // end chunk
+            // end chunk
+            if (parserMode) {
                 if (chunks == null) {
                     chunks = new LinkedList<>();
                 }
                 chunks.add(chunk);
-                chunk = null;
                 if (frontend) {
                     req.chunks = chunks;
                 } else {
                     resp.chunks = chunks;
                 }
-                chunks = null;
-            } else {
-                int b = data.uint8(0);
-                if (b == '\r') {
-                    // ignore
-                } else if (b == '\n') {
-                    state = 21;
-                    state21(null);
-                } else {
-                    state = 17;
-                    state17(data);
-                }
             }
+            chunk = null;
+            chunks = null;
         }
     }
 
-    private void state15(ByteArray data) {
-        assert data.length() <= proxyLen;
-        proxyLen -= data.length();
-        if (chunk.content == null) {
-            chunk.content = data;
+    private int state14(ByteArray data, int off) {
+        int b = data.uint8(off);
+        if (b == '\r') {
+            return off + 1; // ignore
+        } else if (b == '\n') {
+            state = 21;
+            state21();
+            return off + 1;
         } else {
-            chunk.content = chunk.content.concat(data);
+            state = 17;
+            return off;
+        }
+    }
+
+    private int state15(ByteArray data, int off) {
+        int len = Math.min(proxyLen, data.length() - off);
+        int size = proxyLen;
+        proxyLen -= len;
+        if (parserMode) {
+            if (chunk.content == null) {
+                buf = new byte[size];
+                bufOffset = 0;
+                chunk.content = ByteArray.from(buf);
+            }
+            data.sub(off, len).toNewJavaArray(buf, bufOffset);
+            bufOffset += len;
         }
         if (proxyLen == 0) {
             // this method will not be called if using the Proxy lib
@@ -605,18 +905,21 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
             // so call it manually here
             proxyDone();
         }
+        return off + len;
     }
 
-    private void state16(ByteArray data) throws Exception {
-        if (chunks == null) {
-            chunks = new LinkedList<>();
-        }
+    private int state16(ByteArray data, int off) throws Exception {
         if (chunk != null) {
-            chunks.add(chunk);
+            if (parserMode) {
+                if (chunks == null) {
+                    chunks = new LinkedList<>();
+                }
+                chunks.add(chunk);
+            }
             chunk = null;
         }
 
-        int b = data.uint8(0);
+        int b = data.uint8(off);
         if (b == '\r') {
             // ignore
         } else if (b == '\n') {
@@ -624,107 +927,533 @@ public class HttpSubContext extends OOSubContext<HttpContext> {
         } else {
             throw new Exception("invalid chunk end");
         }
+        return off + 1;
     }
 
-    private void state17(ByteArray data) throws Exception {
+    private int state17(ByteArray data, int off) {
         if (trailer == null) {
-            trailer = new HeaderBuilder();
+            trailer = newHeader();
         }
-
-        int b = data.uint8(0);
-        if (b == ':') {
-            state = 18;
-            state18(data);
-        } else {
-            trailer.key.append((char) b);
+        int end = scan(data, off, COLON);
+        if (parserMode) {
+            append(trailer.key, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
         }
+        state = 18;
+        state18();
+        return end + 1;
     }
 
-    private void state18(ByteArray data) throws Exception {
-        int b = data.uint8(0);
-        if (b == ':') {
-            state = 19;
-        } else {
-            throw new Exception("invalid trailer: " + header + ", invalid splitter " + (char) b);
-        }
+    // this method should be called before entering state 19
+    // it's for state transferring
+    private void state18() {
+        state = 19;
     }
 
-    private void state19(ByteArray data) {
-        int b = data.uint8(0);
-        if (b == '\r') {
-            // ignore
-        } else if (b == '\n') {
+    private int state19(ByteArray data, int off) {
+        if (trailer.value.length() == 0) { // leading spaces are ignored
+            off = skipSpaces(data, off);
+        }
+        int end = scan(data, off, CRLF);
+        if (parserMode) {
+            append(trailer.value, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
+        }
+        if (data.uint8(end) == '\n') {
             state = 20;
-        } else {
-            if (b != ' ' || trailer.value.length() > 0) { // leading spaces are ignored
-                trailer.value.append((char) b);
-            }
         }
+        return end + 1;
     }
 
-    private void state20(ByteArray data) throws Exception {
-        if (trailers == null) {
-            trailers = new LinkedList<>();
-        }
+    private int state20(ByteArray data, int off) {
         if (trailer != null) {
             assert Logger.lowLevelDebug("received trailer " + trailer);
-            trailers.add(trailer);
+            if (parserMode) {
+                if (trailers == null) {
+                    trailers = new LinkedList<>();
+                }
+                trailers.add(trailer);
+            }
             trailer = null;
         }
 
-        int b = data.uint8(0);
+        int b = data.uint8(off);
         if (b == '\r') {
-            // ignore
+            return off + 1; // ignore
         } else if (b == '\n') {
             state = 21;
-            if (frontend) {
-                req.trailers = trailers;
-            } else {
-                resp.trailers = trailers;
+            if (parserMode) {
+                if (frontend) {
+                    req.trailers = trailers;
+                } else {
+                    resp.trailers = trailers;
+                }
             }
             trailers = null;
-            state21(null);
+            state21();
+            return off + 1;
         } else {
             state = 17;
-            state17(data);
+            return off;
         }
     }
 
-    // this method should be called before entering state 9
+    // this method should be called before entering state 0
     // it's for state transferring
-    private void state21(@SuppressWarnings("unused") ByteArray data) {
+    private void state21() {
         end();
     }
 
-    private void state22(ByteArray data) {
-        int b = data.uint8(0);
-        if (b == ' ') {
-            state = 23;
+    private int state22(ByteArray data, int off) {
+        int end = scan(data, off, SP);
+        if (parserMode) {
+            append(resp.version, data, off, end);
         } else {
-            resp.version.append((char) b);
+            append(reusedVersion, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
         }
+        state = 23;
+        return end + 1;
     }
 
-    private void state23(ByteArray data) throws Exception {
-        int b = data.uint8(0);
-        if (b == ' ') {
-            state = 24;
-        } else {
+    private int state23(ByteArray data, int off) throws Exception {
+        int end = scan(data, off, SP);
+        for (int i = off; i < end; ++i) {
+            int b = data.uint8(i);
             if (b < '0' || b > '9') {
                 throw new Exception("invalid character in http response status code: " + ((char) b));
             }
-            resp.statusCode.append((char) b);
+            statusCode = statusCode * 10 + (b - '0');
+        }
+        if (parserMode) {
+            append(resp.statusCode, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
         }
+        state = 24;
+        return end + 1;
     }
 
-    private void state24(ByteArray data) {
-        int b = data.uint8(0);
-        if (b == '\r') {
-            // ignore
-        } else if (b == '\n') {
+    private int state24(ByteArray data, int off) {
+        int end = scan(data, off, CRLF);
+        if (parserMode) {
+            append(resp.reason, data, off, end);
+        }
+        if (end == data.length()) {
+            return end;
+        }
+        if (data.uint8(end) == '\n') {
             state = 4;
+        }
+        return end + 1;
+    }
+
+    // start rewrite methods
+
+    // keep the input from rewriteFrom to the offset
+    private void rewriteKeep(ByteArray data, int to) {
+        if (to > rewriteFrom) {
+            rewriteOutput.add(data.sub(rewriteFrom, to - rewriteFrom));
+        }
+        rewriteFrom = to;
+    }
+
+    // called when a header line is done
+    private void rewriteHeader(ByteArray data, int lineEnd) {
+        List<HttpHeaderRewrite.Rule> rules = ctx.headerRewrite.rules;
+        for (int i = 0; i < rules.size(); ++i) {
+            HttpHeaderRewrite.Rule rule = rules.get(i);
+            if (!nameIs(header.key, rule.name)) {
+                continue;
+            }
+            long bit = 1L << i;
+            boolean matchedBefore = (rewriteMatched & bit) != 0;
+            rewriteMatched |= bit;
+            if (rule.action == HttpHeaderRewrite.INSERT) {
+                continue; // the request already has the header
+            }
+            // drop the line
+            rewriteKeep(data, headerLineStart);
+            rewriteFrom = lineEnd;
+            if (rule.action == HttpHeaderRewrite.REPLACE && !matchedBefore) {
+                assert Logger.lowLevelDebug("replace header " + rule.name);
+                rewriteOutput.add(rule.line);
+            } else {
+                assert Logger.lowLevelDebug("remove header " + rule.name);
+            }
+            return;
+        }
+    }
+
+    // called at the end of the headers, the lines are inserted before the offset
+    private void rewriteInsert(ByteArray data, int off) {
+        if (!rewriting || rewriteInserted) {
+            return;
+        }
+        rewriteInserted = true;
+        List<HttpHeaderRewrite.Rule> rules = ctx.headerRewrite.rules;
+        for (int i = 0; i < rules.size(); ++i) {
+            HttpHeaderRewrite.Rule rule = rules.get(i);
+            if (rule.action == HttpHeaderRewrite.REMOVE || (rewriteMatched & (1L << i)) != 0) {
+                continue;
+            }
+            assert Logger.lowLevelDebug("add header " + rule.name);
+            rewriteKeep(data, off);
+            rewriteOutput.add(rule.line);
+        }
+    }
+
+    // start cache methods
+
+    // called when the request headers are done
+    // @return true if the response is retrieved from the cache
+    private boolean serveFromCache() {
+        String cacheControl = cacheHeaders.get("cache-control");
+        boolean cacheable = nameIs(reusedMethod, "get") && nameIs(reusedVersion, "http/1.1")
+            && theHostHeader != null && contentLength <= 0 && !chunked
+            && !cacheHeaders.containsKey("authorization")
+            && (cacheControl == null || directive(cacheControl, "no-store") == null);
+        if (!cacheable) {
+            ctx.cacheRecords.add(NOT_CACHEABLE);
+            return false;
+        }
+        String baseKey = reusedMethod.toString().toUpperCase() + " " + theHostHeader + " " + reusedUri;
+        CacheRecord record = new CacheRecord(baseKey, cacheHeaders);
+
+        // the client requires the response to be validated by the server
+        String pragma = cacheHeaders.get("pragma");
+        boolean noCache = (cacheControl != null
+            && (directive(cacheControl, "no-cache") != null || "0".equals(directive(cacheControl, "max-age"))))
+            || (pragma != null && nameIs(pragma, "no-cache"));
+
+        HttpCache.Entry entry = noCache ? null : ctx.cache.lookup(baseKey, cacheHeaders);
+        if (entry == null) {
+            // the response will be stored when it's cacheable
+            ctx.cacheRecords.add(record);
+            return false;
+        }
+        assert Logger.lowLevelDebug("serve " + baseKey + " from the cache");
+        servedFromCache = true;
+        cachedEntry = entry;
+        cachedResponse = cachedResponse(entry);
+        return true;
+    }
+
+    private ByteArray cachedResponse(HttpCache.Entry entry) {
+        int age = entry.age(Config.currentTimestamp);
+        String ifNoneMatch = cacheHeaders.get("if-none-match");
+        if (entry.etag != null && ifNoneMatch != null && etagMatches(ifNoneMatch, entry.etag)) {
+            return ByteArray.from(("" +
+                "HTTP/1.1 304 Not Modified\r\n" +
+                "ETag: " + entry.etag + "\r\n" +
+                "Age: " + age + "\r\n" +
+                "\r\n").getBytes());
+        }
+        ByteArray resp = entry.response;
+        if (entry.statusLineEnd < 0) {
+            return resp; // the response has its own Age header
+        }
+        return resp.sub(0, entry.statusLineEnd)
+            .concat(ByteArray.from(("Age: " + age + "\r\n").getBytes()))
+            .concat(resp.sub(entry.statusLineEnd, resp.length() - entry.statusLineEnd));
+    }
+
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        etag = weakEtag(etag);
+        for (String s : ifNoneMatch.split(",")) {
+            s = s.trim();
+            if (s.equals("*") || weakEtag(s).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // If-None-Match uses the weak comparison
+    private static String weakEtag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    // called when the headers of the response to a cacheable request are done
+    private void checkCacheable() {
+        if (statusCode < 200) {
+            stopCapture(); // the interim response is not stored, and the final response will be checked
+            return;
+        }
+        String cacheControl = cacheHeaders.get("cache-control");
+        String vary = cacheHeaders.get("vary");
+        if ((statusCode != 200 && statusCode != 203 && statusCode != 300 && statusCode != 301 && statusCode != 404 && statusCode != 410)
+            || !keepAlive
+            || (!chunked && contentLength > ctx.cache.maxEntrySize)
+            || cacheHeaders.containsKey("set-cookie")
+            || (vary != null && vary.contains("*"))
+            || (cacheControl != null && (directive(cacheControl, "no-store") != null
+            || directive(cacheControl, "no-cache") != null
+            || directive(cacheControl, "private") != null))) {
+            stopCapture();
+            return;
+        }
+
+        long now = Config.currentTimestamp;
+        // freshness lifetime in milliseconds
+        long lifetime = -1;
+        if (cacheControl != null) {
+            String maxAge = directive(cacheControl, "s-maxage");
+            if (maxAge == null) {
+                maxAge = directive(cacheControl, "max-age");
+            }
+            if (maxAge != null) {
+                lifetime = parseSeconds(maxAge) * 1000L;
+            }
+        }
+        if (lifetime < 0) {
+            String expires = cacheHeaders.get("expires");
+            if (expires != null) {
+                String dateHeader = cacheHeaders.get("date");
+                long date = dateHeader == null ? -1 : parseDate(dateHeader);
+                lifetime = parseDate(expires) - (date < 0 ? now : date); // invalid Expires means expired
+            }
+        }
+        String ageHeader = cacheHeaders.get("age");
+        captureHasAge = ageHeader != null;
+        captureAge = ageHeader == null ? 0 : Math.max(parseSeconds(ageHeader), 0);
+        captureExpireAt = now + lifetime - captureAge * 1000L;
+        if (lifetime <= 0 || captureExpireAt <= now) {
+            stopCapture(); // no explicit freshness
+            return;
+        }
+
+        if (vary == null) {
+            captureVary = new String[0];
+        } else {
+            captureVary = Arrays.stream(vary.split(","))
+                .map(s -> s.trim().toLowerCase()).filter(s -> !s.isEmpty()).sorted().toArray(String[]::new);
+        }
+        String etag = cacheHeaders.get("etag");
+        captureEtag = etag == null || etag.isEmpty() ? null : etag;
+    }
+
+    private void stopCapture() {
+        capturing = null;
+        captureBuf = null;
+        captureLen = 0;
+    }
+
+    private void capture(ByteArray data) {
+        int len = data.length();
+        if (captureLen + len > ctx.cache.maxEntrySize) {
+            stopCapture();
+            return;
+        }
+        if (captureBuf == null || captureBuf.length < captureLen + len) {
+            int cap = captureBuf == null ? 1024 : captureBuf.length * 2;
+            while (cap < captureLen + len) {
+                cap *= 2;
+            }
+            captureBuf = captureBuf == null ? new byte[cap] : Arrays.copyOf(captureBuf, cap);
+        }
+        data.toNewJavaArray(captureBuf, captureLen);
+        captureLen += len;
+    }
+
+    private void storeCaptured() {
+        CacheRecord record = capturing;
+        ByteArray response = ByteArray.from(captureBuf).sub(0, captureLen);
+        stopCapture();
+
+        int statusLineEnd = -1;
+        if (!captureHasAge) {
+            for (int i = 0; i < response.length(); ++i) {
+                if (response.get(i) == '\n') {
+                    statusLineEnd = i + 1;
+                    break;
+                }
+            }
+        }
+        assert Logger.lowLevelDebug("store the response of " + record.baseKey + " into the cache");
+        ctx.cache.store(record.baseKey, record.headers, captureVary, response, statusLineEnd, captureExpireAt, captureAge, captureEtag);
+    }
+
+    // @return value of the directive, empty string if it has no value, or null if not found
+    private static String directive(String cacheControl, String name) {
+        for (String d : cacheControl.split(",")) {
+            d = d.trim();
+            int eq = d.indexOf('=');
+            String key = eq == -1 ? d : d.substring(0, eq).trim();
+            if (!key.equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (eq == -1) {
+                return "";
+            }
+            String value = d.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+        return null;
+    }
+
+    // @return -1 if invalid
+    private static int parseSeconds(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // @return -1 if invalid
+    private static long parseDate(String s) {
+        try {
+            return ZonedDateTime.parse(s, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // start utility methods
+
+    private static StringBuilder reset(StringBuilder sb) {
+        if (sb == null) {
+            return new StringBuilder();
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    private HeaderBuilder newHeader() {
+        if (parserMode) {
+            return new HeaderBuilder();
+        }
+        if (reusedHeader == null) {
+            reusedHeader = new HeaderBuilder();
         } else {
-            resp.reason.append((char) b);
+            reusedHeader.key.setLength(0);
+            reusedHeader.value.setLength(0);
+        }
+        return reusedHeader;
+    }
+
+    private ChunkBuilder newChunk() {
+        if (parserMode) {
+            return new ChunkBuilder();
+        }
+        if (reusedChunk == null) {
+            reusedChunk = new ChunkBuilder();
+        } else {
+            reusedChunk.size.setLength(0);
+        }
+        return reusedChunk;
+    }
+
+    private static int headerKind(CharSequence key) {
+        if (nameIs(key, "host")) {
+            return HEADER_HOST;
+        } else if (nameIs(key, "content-length")) {
+            return HEADER_CONTENT_LENGTH;
+        } else if (nameIs(key, "transfer-encoding")) {
+            return HEADER_TRANSFER_ENCODING;
+        } else if (nameIs(key, "connection")) {
+            return HEADER_CONNECTION;
+        }
+        return HEADER_OTHER;
+    }
+
+    private static boolean[] delimiters(String chars) {
+        boolean[] table = new boolean[256];
+        for (char c : chars.toCharArray()) {
+            table[c] = true;
+        }
+        return table;
+    }
+
+    // @return index of the first delimiter in data since the offset, or data.length() if not found
+    private static int scan(ByteArray data, int off, boolean[] delimiters) {
+        int len = data.length();
+        for (int i = off; i < len; ++i) {
+            if (delimiters[data.uint8(i)]) {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    private static int skipSpaces(ByteArray data, int off) {
+        int len = data.length();
+        while (off < len && data.uint8(off) == ' ') {
+            ++off;
+        }
+        return off;
+    }
+
+    // the tokens are copied instead of being kept as slices of the input,
+    // because a line may be split into several feed() calls, and the input is not kept after the call returns.
+    // only the tokens which will be used are copied, e.g. the values of other headers are skipped in proxy mode.
+    // the input is usually a composite of the pending line and the new data,
+    // so the bytes are copied in bulk first to avoid reading them one by one through the nested arrays
+    private void append(StringBuilder sb, ByteArray data, int from, int to) {
+        int len = to - from;
+        if (len <= 0) {
+            return;
+        }
+        byte[] buf = appendBuf;
+        if (buf == null || buf.length < len) {
+            buf = new byte[Math.max(len, 256)];
+            appendBuf = buf;
+        }
+        data.sub(from, len).toNewJavaArray(buf, 0);
+        sb.ensureCapacity(sb.length() + len);
+        for (int i = 0; i < len; ++i) {
+            sb.append((char) (buf[i] & 0xff));
+        }
+    }
+
+    // compare the trimmed sequence with a lower case name, ignoring case
+    private static boolean nameIs(CharSequence s, String lowerCaseName) {
+        int from = trimStart(s);
+        int to = trimEnd(s, from);
+        if (to - from != lowerCaseName.length()) {
+            return false;
+        }
+        for (int i = from; i < to; ++i) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lowerCaseName.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(CharSequence s, int radix) {
+        int from = trimStart(s);
+        return Integer.parseInt(s, from, trimEnd(s, from), radix);
+    }
+
+    private static int trimStart(CharSequence s) {
+        int from = 0;
+        while (from < s.length() && s.charAt(from) <= ' ') {
+            ++from;
+        }
+        return from;
+    }
+
+    private static int trimEnd(CharSequence s, int from) {
+        int to = s.length();
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            --to;
         }
+        return to;
     }
 }
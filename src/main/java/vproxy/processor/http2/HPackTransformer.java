@@ -2,38 +2,81 @@ package vproxy.processor.http2;
 
 import com.twitter.hpack.Decoder;
 import com.twitter.hpack.Encoder;
+import vproxy.app.Config;
 import vproxy.util.ByteArray;
 import vproxy.util.io.ArrayInputStream;
 import vproxy.util.io.ArrayOutputStream;
 
 import java.io.IOException;
-import java.util.function.Consumer;
 
+/**
+ * the hpack contexts of one connection, the frontend or a backend.<br>
+ * the decoder handles header blocks received from the connection,
+ * and the encoder handles header blocks sent to the connection,
+ * so each side keeps its own dynamic table
+ */
 class HPackTransformer {
-    private final int BUFFER_SIZE = 65536; // make the buffer big enough for almost all cases
+    // the initial value of SETTINGS_HEADER_TABLE_SIZE
+    private static final int SIZE_PROTOCOL_HEADER_TABLE_SIZE = 4096;
 
+    private final int maxHeaderTableSize;
     private final Decoder decoder;
-    private final SyncOutputListener lsn;
-    private final ArrayOutputStream outBuffer = ArrayOutputStream.to(ByteArray.from(new byte[BUFFER_SIZE]));
-
-    HPackTransformer(int maxHeaderTableSize,
-                     Header[] additionalHeaders,
-                     Consumer<String> hostHeaderListener) {
-        this.decoder = new Decoder(BUFFER_SIZE, maxHeaderTableSize);
-        Encoder encoder = new Encoder(0);
-        this.lsn = new SyncOutputListener(encoder, outBuffer, additionalHeaders, hostHeaderListener);
+    private final Encoder encoder;
+    // the encoder table size allowed by the peer,
+    // the change is signaled at the beginning of the next encoded block
+    private int encoderTableSize;
+    // the decoder only consumes complete integers and string literals,
+    // the rest of a fragment is decoded with the next fragment of the block
+    private ByteArray remaining;
+
+    HPackTransformer(int maxHeaderTableSize) {
+        this.maxHeaderTableSize = maxHeaderTableSize;
+        this.decoder = new Decoder(HeaderBufferPool.BUFFER_SIZE, maxHeaderTableSize, Config.http2FastHuffman);
+        this.encoder = new Encoder(SIZE_PROTOCOL_HEADER_TABLE_SIZE, Config.http2FastHuffman);
+        setPeerHeaderTableSize(SIZE_PROTOCOL_HEADER_TABLE_SIZE);
+    }
+
+    /**
+     * @param size SETTINGS_HEADER_TABLE_SIZE of the peer, the encoder uses at most maxHeaderTableSize
+     */
+    void setPeerHeaderTableSize(int size) {
+        encoderTableSize = Math.min(size, maxHeaderTableSize);
     }
 
-    ByteArray transform(ByteArray array, boolean addHeaders) throws IOException {
-        decoder.decode(ArrayInputStream.from(array), lsn);
-        if (addHeaders) {
-            lsn.addHeaders();
+    void decode(ByteArray fragment, HeaderBlock block) throws IOException {
+        if (remaining != null) {
+            fragment = remaining.concat(fragment);
+            remaining = null;
+        }
+        ArrayInputStream in = ArrayInputStream.from(fragment);
+        decoder.decode(in, block);
+        int left = in.available();
+        if (left > 0) {
+            // the fragment may be a view of a buffer reused for the next frame
+            remaining = fragment.sub(fragment.length() - left, left).copy();
         }
-        return outBuffer.get();
     }
 
-    public void endHeaders() {
-        lsn.endHeaders();
-        decoder.endHeaderBlock();
+    void endHeaders() throws IOException {
+        if (remaining != null) {
+            remaining = null;
+            throw new IOException("the header block ends in the middle of a header field");
+        }
+        if (decoder.endHeaderBlock()) {
+            throw new IOException("the header list exceeds " + HeaderBufferPool.BUFFER_SIZE + " bytes");
+        }
+    }
+
+    ByteArray encode(HeaderBlock block) throws IOException {
+        ArrayOutputStream out = HeaderBufferPool.borrow();
+        try {
+            if (encoder.getMaxHeaderTableSize() != encoderTableSize) {
+                encoder.setMaxHeaderTableSize(out, encoderTableSize);
+            }
+            block.encode(encoder, out);
+            return out.get();
+        } finally {
+            HeaderBufferPool.giveBack(out);
+        }
     }
 }
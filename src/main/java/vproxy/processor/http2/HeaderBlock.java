@@ -0,0 +1,114 @@
+package vproxy.processor.http2;
+
+import com.twitter.hpack.Encoder;
+import com.twitter.hpack.HeaderListener;
+import vproxy.util.ByteArray;
+import vproxy.util.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * header fields of a HEADERS or PUSH_PROMISE frame and its CONTINUATION frames.<br>
+ * the fields are decoded with the hpack context of the connection sending the block,
+ * and encoded with the hpack context of the connection receiving the block.<br>
+ * used by both the proxy ({@link Http2SubContext}) and the client ({@link Http2ClientCodec})
+ */
+class HeaderBlock implements HeaderListener {
+    private static final byte TYPE_CONTINUATION = 0x9;
+
+    final byte type; // HEADERS or PUSH_PROMISE
+    final int streamId;
+    final boolean endStream;
+    int promisedStreamId;
+
+    private final List<byte[]> names = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private final List<Boolean> sensitives = new ArrayList<>();
+
+    HeaderBlock(byte type, int streamId, boolean endStream) {
+        this.type = type;
+        this.streamId = streamId;
+        this.endStream = endStream;
+    }
+
+    @Override
+    public void addHeader(byte[] name, byte[] value, boolean sensitive) {
+        names.add(name);
+        values.add(value);
+        sensitives.add(sensitive);
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    byte[] name(int idx) {
+        return names.get(idx);
+    }
+
+    byte[] value(int idx) {
+        return values.get(idx);
+    }
+
+    // h2 headers must be lower-case strings
+    String get(String name) {
+        byte[] key = name.getBytes();
+        for (int i = 0; i < names.size(); ++i) {
+            if (Arrays.equals(names.get(i), key)) {
+                return new String(values.get(i));
+            }
+        }
+        return null;
+    }
+
+    // add the headers which are not in the block
+    void addHeaders(Header[] headers) {
+        for (Header h : headers) {
+            if (get(h.keyStr) != null) {
+                assert Logger.lowLevelDebug("see target header " + h.keyStr + ", do not replace");
+                continue;
+            }
+            assert Logger.lowLevelDebug("adding header " +
+                "new header: " + h.keyStr + ": " + new String(h.value));
+            addHeader(h.key, h.value, false);
+        }
+    }
+
+    void encode(Encoder encoder, OutputStream out) throws IOException {
+        for (int i = 0; i < names.size(); ++i) {
+            encoder.encodeHeader(out, names.get(i), values.get(i), sensitives.get(i));
+        }
+    }
+
+    /**
+     * split the payload into the frame of the block and CONTINUATION frames
+     *
+     * @param payload      the encoded block, with the promised stream id for PUSH_PROMISE
+     * @param maxFrameSize SETTINGS_MAX_FRAME_SIZE of the receiver
+     */
+    ByteArray frames(ByteArray payload, int maxFrameSize) {
+        List<ByteArray> frames = new ArrayList<>();
+        int off = 0;
+        do {
+            int len = Math.min(maxFrameSize, payload.length() - off);
+            boolean first = off == 0;
+            boolean last = off + len == payload.length();
+            ByteArray head = ByteArray.from(new byte[]{
+                0, 0, 0, // length, will be set later
+                first ? type : TYPE_CONTINUATION,
+                (byte) ((last ? 0x4 : 0) | (first && endStream ? 0x1 : 0)), // flags
+                0, 0, 0, 0 // stream id, will be set later
+            });
+            head.int24(0, len);
+            head.int32(5, streamId);
+            frames.add(head);
+            frames.add(payload.sub(off, len));
+            off += len;
+        } while (off < payload.length());
+        return ByteArray.gather(frames.toArray(new ByteArray[0]));
+    }
+}
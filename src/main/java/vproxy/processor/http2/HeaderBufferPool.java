@@ -0,0 +1,41 @@
+package vproxy.processor.http2;
+
+import vproxy.util.ByteArray;
+import vproxy.util.io.ArrayOutputStream;
+
+import java.util.ArrayDeque;
+
+/**
+ * the pool for buffers used when encoding header blocks.<br>
+ * the pool is thread local, which means each event loop has its own pool.<br>
+ * a buffer is borrowed when encoding one header block, and given back after the block is encoded,
+ * so idle connections will not hold these buffers
+ */
+class HeaderBufferPool {
+    static final int BUFFER_SIZE = 65536; // make the buffer big enough for almost all cases
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final ThreadLocal<ArrayDeque<ArrayOutputStream>> pool = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private HeaderBufferPool() {
+    }
+
+    /**
+     * @return an empty buffer of BUFFER_SIZE
+     */
+    static ArrayOutputStream borrow() {
+        ArrayOutputStream out = pool.get().pollLast();
+        if (out == null) {
+            return ArrayOutputStream.to(ByteArray.from(new byte[BUFFER_SIZE]));
+        }
+        return out;
+    }
+
+    static void giveBack(ArrayOutputStream out) {
+        ArrayDeque<ArrayOutputStream> q = pool.get();
+        if (q.size() >= MAX_POOLED_BUFFERS) {
+            return; // let gc handle it
+        }
+        out.reset(); // the encoding may fail in the middle
+        q.addLast(out);
+    }
+}
@@ -0,0 +1,532 @@
+package vproxy.processor.http2;
+
+import vproxy.processor.http1.entity.Request;
+import vproxy.util.ByteArray;
+import vproxy.util.HttpStatusCodeReasonMap;
+import vproxy.util.Logger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * the client side of an http/2 connection, translating http/1.x requests to streams,
+ * and translating the frames of the streams back to http/1.x responses.<br>
+ * one codec is bound to one backend connection, the streams of the connection may belong to different
+ * frontend connections, and they share the hpack contexts of the codec.<br>
+ * the codec does not send DATA frames by itself, the caller should check the windows
+ * with {@link Listener#windowUpdate(int, int)} and {@link #initialWindowSize()}.<br>
+ * the hpack context ({@link HPackTransformer}) and the header block framing ({@link HeaderBlock}) are the same as
+ * the proxy's. the frame parser is not shared with {@link Http2SubContext}: the proxy parser is a state machine
+ * driven by the processor lib, which feeds exactly len() bytes in each state, proxies the payloads without copying
+ * and rewrites stream ids in place, while the codec terminates the streams and receives whatever bytes the connection
+ * has read, so it splits the input into whole frames itself
+ */
+public class Http2ClientCodec {
+    public interface Listener {
+        /**
+         * settings of the server are received
+         */
+        void settings();
+
+        /**
+         * @param streamId the stream id
+         * @param data     http/1.x bytes of the response
+         * @param consumed length of flow controlled data of the stream which should be returned to the server
+         *                 with a WINDOW_UPDATE frame when the data is handled
+         * @param end      whether the response is done
+         */
+        void response(int streamId, ByteArray data, int consumed, boolean end);
+
+        /**
+         * the body of the response ends when the connection closes,
+         * so the frontend connection must be closed after the response.
+         * called before the response head is passed to {@link #response(int, ByteArray, int, boolean)}
+         */
+        void closeDelimited(int streamId);
+
+        void reset(int streamId, int errorCode);
+
+        void windowUpdate(int streamId, int increment);
+
+        void goAway(int lastStreamId, int errorCode);
+    }
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    public static final int ERROR_PROTOCOL = 0x1;
+    public static final int ERROR_CANCEL = 0x8;
+
+    public static final int SIZE_DEFAULT_WINDOW = 65535;
+    private static final int SIZE_DEFAULT_MAX_FRAME = 16384;
+    // the connection window is large and returned as soon as data arrives,
+    // the stream windows limit the data held for each stream
+    private static final int SIZE_CONNECTION_WINDOW = (int) (Math.pow(2, 30) - 1);
+    private static final int INCR_CONNECTION_WINDOW_THRESHOLD = (int) Math.pow(2, 24);
+
+    // headers which are meaningless or forbidden in http/2
+    private static final Set<String> CONNECTION_HEADERS = Set.of(
+        "host", "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te");
+    // headers which only make sense for the http/2 hop
+    private static final Set<String> RESPONSE_SKIPPED_HEADERS = Set.of(
+        "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private final HPackTransformer hPack = new HPackTransformer(Http2SubContext.SIZE_DEFAULT_HEADER_TABLE_SIZE);
+
+    private int nextStreamId = 1;
+    private final Map<Integer, Stream> streams = new HashMap<>();
+
+    // settings of the server
+    private int maxConcurrentStreams = Integer.MAX_VALUE;
+    private int initialWindowSize = SIZE_DEFAULT_WINDOW;
+    private int maxFrameSize = SIZE_DEFAULT_MAX_FRAME;
+
+    // input bytes which do not form a frame yet
+    private ByteArray pendingInput;
+    // the header block being received, it's not null when CONTINUATION frames are expected
+    private HeaderBlock headerBlock;
+    // flow controlled bytes received but not returned to the connection window
+    private int connectionConsumed = 0;
+    // frames generated when handling the input, e.g. SETTINGS ack
+    private ByteArray produced;
+
+    private static class Stream {
+        final boolean head; // HEAD request, the response has no body
+        final boolean http10; // chunked encoding cannot be used
+        boolean headDone = false;
+        boolean chunked = false;
+
+        Stream(boolean head, boolean http10) {
+            this.head = head;
+            this.http10 = http10;
+        }
+    }
+
+    public int maxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    public int initialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * @return false if no more stream can be created on the connection
+     */
+    public boolean hasStreamId() {
+        return nextStreamId > 0; // overflows after 2^31-1
+    }
+
+    public int nextStreamId() {
+        int id = nextStreamId;
+        nextStreamId += 2;
+        return id;
+    }
+
+    /**
+     * @return the preface, settings and window update which should be sent right after connected
+     */
+    public ByteArray preface() {
+        ByteArray settings = frameHead(12, TYPE_SETTINGS, 0, 0).concat(ByteArray.allocate(12)
+            .int16(0, SETTINGS_HEADER_TABLE_SIZE).int32(2, Http2SubContext.SIZE_DEFAULT_HEADER_TABLE_SIZE)
+            .int16(6, SETTINGS_ENABLE_PUSH).int32(8, 0));
+        return Http2SubContext.SEQ_PREFACE_MAGIC
+            .concat(settings)
+            .concat(windowUpdate(0, SIZE_CONNECTION_WINDOW - SIZE_DEFAULT_WINDOW))
+            .arrange();
+    }
+
+    /**
+     * translate the request head into HEADERS (and CONTINUATION) frames, and start to record the stream
+     *
+     * @param additionalHeaders headers added to the request if not present, nullable
+     * @param endStream         true if the request has no body
+     */
+    public ByteArray request(int streamId, Request req, Header[] additionalHeaders, boolean endStream) throws IOException {
+        String authority = null;
+        Set<String> connectionOptions = null;
+        if (req.headers != null) {
+            for (var h : req.headers) {
+                String key = h.key.trim().toLowerCase();
+                if (key.equals("host")) {
+                    authority = h.value.trim();
+                } else if (key.equals("connection")) {
+                    if (connectionOptions == null) {
+                        connectionOptions = new HashSet<>();
+                    }
+                    for (String s : h.value.split(",")) {
+                        connectionOptions.add(s.trim().toLowerCase());
+                    }
+                }
+            }
+        }
+        HeaderBlock block = new HeaderBlock((byte) TYPE_HEADERS, streamId, endStream);
+        add(block, ":method", req.method);
+        add(block, ":scheme", "http");
+        if (authority != null) {
+            add(block, ":authority", authority);
+        }
+        add(block, ":path", req.uri);
+        if (req.headers != null) {
+            for (var h : req.headers) {
+                String key = h.key.trim().toLowerCase();
+                String value = h.value.trim();
+                if (key.equals("te") && value.equalsIgnoreCase("trailers")) {
+                    add(block, key, value);
+                    continue;
+                }
+                if (CONNECTION_HEADERS.contains(key) || (connectionOptions != null && connectionOptions.contains(key))) {
+                    continue;
+                }
+                add(block, key, value);
+            }
+        }
+        if (additionalHeaders != null) {
+            block.addHeaders(additionalHeaders);
+        }
+        streams.put(streamId, new Stream(req.method.equalsIgnoreCase("HEAD"), "HTTP/1.0".equalsIgnoreCase(req.version)));
+        return block.frames(hPack.encode(block), maxFrameSize);
+    }
+
+    /**
+     * @return HEADERS frames with END_STREAM holding the trailers
+     */
+    public ByteArray trailers(int streamId, List<vproxy.processor.http1.entity.Header> trailers) throws IOException {
+        HeaderBlock block = new HeaderBlock((byte) TYPE_HEADERS, streamId, true);
+        for (var h : trailers) {
+            String key = h.key.trim().toLowerCase();
+            if (CONNECTION_HEADERS.contains(key)) {
+                continue;
+            }
+            add(block, key, h.value.trim());
+        }
+        return block.frames(hPack.encode(block), maxFrameSize);
+    }
+
+    /**
+     * @return DATA frames, the data must fit into the windows
+     */
+    public ByteArray data(int streamId, ByteArray data, boolean endStream) {
+        ByteArray ret = null;
+        int off = 0;
+        do {
+            int len = Math.min(maxFrameSize, data.length() - off);
+            boolean last = off + len == data.length();
+            ByteArray frame = frameHead(len, TYPE_DATA, last && endStream ? FLAG_END_STREAM : 0, streamId);
+            if (len > 0) {
+                frame = frame.concat(data.sub(off, len));
+            }
+            ret = ret == null ? frame : ret.concat(frame);
+            off += len;
+        } while (off < data.length());
+        return ret;
+    }
+
+    public ByteArray windowUpdate(int streamId, int increment) {
+        return frameHead(4, TYPE_WINDOW_UPDATE, 0, streamId).concat(ByteArray.allocate(4).int32(0, increment));
+    }
+
+    /**
+     * reset the stream and stop recording it
+     */
+    public ByteArray rstStream(int streamId, int errorCode) {
+        streams.remove(streamId);
+        return frameHead(4, TYPE_RST_STREAM, 0, streamId).concat(ByteArray.allocate(4).int32(0, errorCode));
+    }
+
+    /**
+     * @return frames to be sent for the input, or null if nothing to send
+     */
+    public ByteArray produce() {
+        ByteArray ret = produced;
+        produced = null;
+        return ret;
+    }
+
+    private void output(ByteArray frame) {
+        produced = produced == null ? frame : produced.concat(frame);
+    }
+
+    /**
+     * feed bytes from the server
+     *
+     * @throws Exception the connection cannot be used anymore
+     */
+    public void feed(ByteArray data, Listener listener) throws Exception {
+        if (pendingInput != null) {
+            data = pendingInput.concat(data);
+            pendingInput = null;
+        }
+        int off = 0;
+        while (data.length() - off >= Http2SubContext.LEN_FRAME_HEAD) {
+            int len = data.uint24(off);
+            if (len > SIZE_DEFAULT_MAX_FRAME) {
+                throw new Exception("frame too large: " + len);
+            }
+            if (data.length() - off < Http2SubContext.LEN_FRAME_HEAD + len) {
+                break;
+            }
+            handleFrame(data, off, len, listener);
+            off += Http2SubContext.LEN_FRAME_HEAD + len;
+        }
+        if (off < data.length()) {
+            // keep the bytes in a new array to avoid nesting the arrays
+            pendingInput = data.sub(off, data.length() - off).copy();
+        }
+    }
+
+    private void handleFrame(ByteArray data, int off, int len, Listener listener) throws Exception {
+        int type = data.uint8(off + 3);
+        int flags = data.uint8(off + 4);
+        int streamId = data.int32(off + 5) & 0x7fffffff;
+        ByteArray payload = data.sub(off + Http2SubContext.LEN_FRAME_HEAD, len);
+        assert Logger.lowLevelDebug("got h2 frame: type=" + type + ", flags=" + flags + ", stream=" + streamId + ", length=" + len);
+
+        if (headerBlock != null && (type != TYPE_CONTINUATION || streamId != headerBlock.streamId)) {
+            throw new Exception("expecting CONTINUATION frame of stream " + headerBlock.streamId);
+        }
+        switch (type) {
+            case TYPE_DATA:
+                handleData(payload, flags, streamId, listener);
+                break;
+            case TYPE_HEADERS:
+                int from = 0;
+                int padding = 0;
+                if ((flags & FLAG_PADDED) != 0) {
+                    padding = payload.uint8(0);
+                    from = 1;
+                }
+                if ((flags & FLAG_PRIORITY) != 0) {
+                    from += 5; // stream dependency and weight are ignored
+                }
+                if (from + padding > len) {
+                    throw new Exception("invalid HEADERS frame length " + len);
+                }
+                headerBlock = new HeaderBlock((byte) TYPE_HEADERS, streamId, (flags & FLAG_END_STREAM) != 0);
+                hPack.decode(payload.sub(from, len - from - padding), headerBlock);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    handleHeaderBlock(listener);
+                }
+                break;
+            case TYPE_CONTINUATION:
+                if (headerBlock == null) {
+                    throw new Exception("unexpected CONTINUATION frame");
+                }
+                hPack.decode(payload, headerBlock);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    handleHeaderBlock(listener);
+                }
+                break;
+            case TYPE_RST_STREAM:
+                if (len != 4) {
+                    throw new Exception("invalid RST_STREAM frame length " + len);
+                }
+                if (streams.remove(streamId) != null) {
+                    listener.reset(streamId, payload.int32(0));
+                }
+                break;
+            case TYPE_SETTINGS:
+                if ((flags & FLAG_ACK) != 0) {
+                    break;
+                }
+                if (len % 6 != 0) {
+                    throw new Exception("invalid SETTINGS frame length " + len);
+                }
+                for (int i = 0; i < len; i += 6) {
+                    int id = payload.uint16(i);
+                    int value = payload.int32(i + 2);
+                    if (value < 0) { // uint32
+                        value = Integer.MAX_VALUE;
+                    }
+                    if (id == SETTINGS_HEADER_TABLE_SIZE) {
+                        hPack.setPeerHeaderTableSize(value);
+                    } else if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                        maxConcurrentStreams = value;
+                    } else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                        initialWindowSize = value;
+                    } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                        maxFrameSize = value;
+                    }
+                }
+                output(frameHead(0, TYPE_SETTINGS, FLAG_ACK, 0));
+                listener.settings();
+                break;
+            case TYPE_PING:
+                if ((flags & FLAG_ACK) == 0) {
+                    output(frameHead(len, TYPE_PING, FLAG_ACK, 0).concat(payload.copy()));
+                }
+                break;
+            case TYPE_GOAWAY:
+                listener.goAway(payload.int32(0) & 0x7fffffff, payload.int32(4));
+                break;
+            case TYPE_WINDOW_UPDATE:
+                listener.windowUpdate(streamId, payload.int32(0) & 0x7fffffff);
+                break;
+            case TYPE_PUSH_PROMISE:
+                throw new Exception("PUSH_PROMISE is disabled");
+            default:
+                // PRIORITY and unknown frames are ignored
+                break;
+        }
+    }
+
+    private void handleData(ByteArray payload, int flags, int streamId, Listener listener) throws Exception {
+        int len = payload.length();
+        int from = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = payload.uint8(0);
+            from = 1;
+        }
+        if (from + padding > len) {
+            throw new Exception("invalid DATA frame length " + len);
+        }
+        connectionConsumed += len;
+        if (connectionConsumed >= INCR_CONNECTION_WINDOW_THRESHOLD) {
+            output(windowUpdate(0, connectionConsumed));
+            connectionConsumed = 0;
+        }
+        boolean end = (flags & FLAG_END_STREAM) != 0;
+        Stream stream = end ? streams.remove(streamId) : streams.get(streamId);
+        if (stream == null || !stream.headDone) {
+            return; // the stream is reset
+        }
+        ByteArray content = payload.sub(from, len - from - padding).copy();
+        ByteArray h1;
+        if (!stream.chunked) {
+            h1 = content;
+        } else {
+            h1 = content.length() == 0
+                ? ByteArray.from(new byte[0])
+                : ByteArray.from((Integer.toHexString(content.length()) + "\r\n").getBytes()).concat(content).concat(ByteArray.from("\r\n".getBytes()));
+            if (end) {
+                h1 = h1.concat(ByteArray.from("0\r\n\r\n".getBytes()));
+            }
+        }
+        listener.response(streamId, h1, len, end);
+    }
+
+    private void handleHeaderBlock(Listener listener) throws IOException {
+        hPack.endHeaders();
+        HeaderBlock block = headerBlock;
+        headerBlock = null;
+        int streamId = block.streamId;
+        boolean end = block.endStream;
+        List<String[]> headers = new ArrayList<>(block.size());
+        boolean invalid = false;
+        for (int i = 0; i < block.size(); ++i) {
+            byte[] name = block.name(i);
+            byte[] value = block.value(i);
+            if (!validHeaderBytes(name) || !validHeaderBytes(value)) {
+                invalid = true;
+            }
+            headers.add(new String[]{new String(name), new String(value)});
+        }
+
+        Stream stream = end ? streams.remove(streamId) : streams.get(streamId);
+        if (stream == null) {
+            return; // the stream is reset, the header block is only decoded to keep the hpack context
+        }
+        if (invalid) {
+            // the headers would split the http/1.x message, see rfc 7540 8.1.2.6 (malformed requests and responses)
+            assert Logger.lowLevelDebug("response headers of stream " + streamId + " contain CR, LF or NUL");
+            output(rstStream(streamId, ERROR_PROTOCOL));
+            listener.reset(streamId, ERROR_PROTOCOL);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (stream.headDone) {
+            // trailers
+            if (stream.chunked) {
+                sb.append("0\r\n");
+                appendHeaders(sb, headers);
+                sb.append("\r\n");
+            }
+            listener.response(streamId, ByteArray.from(sb.toString().getBytes()), 0, true);
+            return;
+        }
+        int status = 0;
+        boolean contentLengthFound = false;
+        for (String[] h : headers) {
+            if (h[0].equals(":status")) {
+                status = Integer.parseInt(h[1]);
+            } else if (h[0].equals("content-length")) {
+                contentLengthFound = true;
+            }
+        }
+        sb.append("HTTP/1.1 ").append(status).append(" ").append(HttpStatusCodeReasonMap.get(status)).append("\r\n");
+        appendHeaders(sb, headers);
+        if (status >= 100 && status < 200) {
+            // informational response, the final response will follow
+            sb.append("\r\n");
+            listener.response(streamId, ByteArray.from(sb.toString().getBytes()), 0, false);
+            return;
+        }
+        stream.headDone = true;
+        boolean hasBody = !stream.head && status != 204 && status != 304;
+        if (hasBody && !contentLengthFound) {
+            if (end) {
+                sb.append("content-length: 0\r\n");
+            } else if (!stream.http10) {
+                stream.chunked = true;
+                sb.append("transfer-encoding: chunked\r\n");
+            } else {
+                // the body ends when the connection closes, even if the client asks to keep alive
+                sb.append("connection: close\r\n");
+                listener.closeDelimited(streamId);
+            }
+        }
+        sb.append("\r\n");
+        listener.response(streamId, ByteArray.from(sb.toString().getBytes()), 0, end);
+    }
+
+    private static boolean validHeaderBytes(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b == '\r' || b == '\n' || b == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void appendHeaders(StringBuilder sb, List<String[]> headers) {
+        for (String[] h : headers) {
+            if (h[0].startsWith(":") || RESPONSE_SKIPPED_HEADERS.contains(h[0])) {
+                continue;
+            }
+            sb.append(h[0]).append(": ").append(h[1]).append("\r\n");
+        }
+    }
+
+    private static void add(HeaderBlock block, String key, String value) {
+        block.addHeader(key.getBytes(), value.getBytes(), false);
+    }
+
+    private static ByteArray frameHead(int length, int type, int flags, int streamId) {
+        ByteArray head = ByteArray.allocate(Http2SubContext.LEN_FRAME_HEAD);
+        head.int24(0, length);
+        head.set(3, (byte) type);
+        head.set(4, (byte) flags);
+        head.int32(5, streamId);
+        return head;
+    }
+}
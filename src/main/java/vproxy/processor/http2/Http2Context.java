@@ -24,25 +24,29 @@ public class Http2Context extends OOContext<Http2SubContext> {
     // the streamIdBack2Front is recorded in subCtx of the backend connection sub context
     final Map<Integer, Integer> streamIdFront2Back = new HashMap<>();
 
-    final HPackTransformer hPackTransformer;
+    // the hpack contexts are kept in each sub context, see HeaderBufferPool for the encoding buffers
+    final Header[] additionalHeaders;
+    Http2SubContext frontend;
 
     ByteArray settingsFrameHeader = null; // this is a temporary field
 
-    private String host;
+    String host;
     private boolean hintExists = false;
     private Hint hint;
 
     public Http2Context(InetSocketAddress clientAddress) {
         String clientIpStr = Utils.ipStr(clientAddress.getAddress().getAddress());
-        hPackTransformer = new HPackTransformer(Http2SubContext.SIZE_DEFAULT_HEADER_TABLE_SIZE,
-            new Header[]{
-                new Header("x-forwarded-for", clientIpStr),
-                new Header("x-client-port", "" + clientAddress.getPort())
-            }, host -> this.host = host);
+        additionalHeaders = new Header[]{
+            new Header("x-forwarded-for", clientIpStr),
+            new Header("x-client-port", "" + clientAddress.getPort())
+        };
     }
 
     @Override
     public int connection(Http2SubContext front) {
+        if (front.grantTarget != null) { // the WINDOW_UPDATE frames for the backend
+            return front.grantTarget.connId;
+        }
         Integer streamId = front.currentStreamId();
         Http2SubContext sub = streamMap.get(streamId);
         if (sub == null) {
@@ -7,12 +7,12 @@ public class Http2Frame {
         DATA, // 0x0
         HEADERS, // 0x1
         // PRIORITY, // 0x2
-        // RST_STREAM, // 0x3
+        RST_STREAM, // 0x3
         SETTINGS, // 0x4
         PUSH_PROMISE, // 0x5
         // PING, // 0x6
         // GOAWAY, // 0x7
-        // WINDOW_UPDATE, // 0x8
+        WINDOW_UPDATE, // 0x8
         CONTINUATION, // 0x9
         PROXY, // the frames that should be proxied
         IGNORE, // the frames that should be ignored
@@ -28,7 +28,7 @@ public class Http2Frame {
     boolean endStream; // 0x1, headers or data
     // other flags are ignored
 
-    public Integer streamIdentifier;
+    public int streamIdentifier;
 
     @Override
     public String toString() {
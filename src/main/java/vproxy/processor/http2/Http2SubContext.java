@@ -1,12 +1,12 @@
 package vproxy.processor.http2;
 
+import vproxy.app.Config;
 import vproxy.processor.OOSubContext;
 import vproxy.processor.Processor;
 import vproxy.util.ByteArray;
 import vproxy.util.Logger;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 // the impl corresponds to rfc7540
 /*
@@ -22,9 +22,8 @@ import java.util.Map;
  *
  * Cannot do (limitations):
  * 1. stream dependency and priority
- * 2. header dynamic table for backend (however, dynamic table for frontend is supported)
- * 3. exchange settings (except the first exchange, which is forced according to rfc)
- * 4. http clear text upgrade
+ * 2. exchange settings (except the first exchange, which is forced according to rfc)
+ * 3. http clear text upgrade
  * These limitations will not affect how user uses http/2.
  * The not-supported-frames will be modified, dropped, or faked
  * and will not affect the application level code.
@@ -38,19 +37,12 @@ import java.util.Map;
  * the PRIORITY frames will be dropped. In this way, both client and server
  * can use implementation with stream dependency and priority.
  *
- * 2. header dynamic table for backend
- * We only support to decompress headers from frontend connection, and
- * the header (de)compression for backend connection is not supported.
- * So vproxy will attach a setting to the first SETTINGS frame
- * which must be sent by both client and server.
- * SETTINGS_HEADER_TABLE_SIZE would be set to 0 for backend connections.
- * In this way, the backend will not compress the headers, and can work well with vproxy.
- *
- * 3. exchange settings
+ * 2. exchange settings
  * The first exchange is forced according to rfc, so it's supported.
  * And vproxy will drop SETTINGS frames after the first exchange.
+ * (the SETTINGS_HEADER_TABLE_SIZE and SETTINGS_INITIAL_WINDOW_SIZE of backends are still recorded, see below)
  *
- * 4. http clear text upgrade
+ * 3. http clear text upgrade
  * The user can use "with-prior-knowledge" way to connect to vproxy.
  * e.g. for curl, add the "--http2 --http2-prior-knowledge" flags.
  * ---- for vertx, call httpClientOptions.setHttp2ClearTextUpgrade(false)
@@ -61,15 +53,15 @@ import java.util.Map;
  * 1. Client sends preface and SETTINGS frame (maybe along with the first request HEADERS frame,
  * -- but we discuss it later).
  * 2. Vproxy parses the preface and SETTINGS frame, and add two settings to the SETTINGS frame:
- * -- SETTINGS_HEADER_TABLE_SIZE=0
- * -- SETTINGS_INITIAL_WINDOW_SIZE=2^30-1
+ * -- SETTINGS_HEADER_TABLE_SIZE=4096
+ * -- SETTINGS_INITIAL_WINDOW_SIZE=SIZE_STREAM_WINDOW (the INITIAL_WINDOW_SIZE of the client is recorded)
  * -- then proxy the whole bunch of data to the first selected backend A.
  * -- Also, at the same time, vproxy would record the preface and the SETTINGS frame (after
  * -- modified), let's call it the "clientHandshake".
  * 3. The backend A returns a SETTINGS frame, and an "ack-SETTINGS" frame.
  * 4. Vproxy parses the first SETTINGS frame from backend A, and add two settings to the frame:
  * -- SETTINGS_HEADER_TABLE_SIZE=4096
- * -- SETTINGS_INITIAL_WINDOW_SIZE=2^30-1
+ * -- SETTINGS_INITIAL_WINDOW_SIZE=SIZE_STREAM_WINDOW (the INITIAL_WINDOW_SIZE of backend A is recorded)
  * -- then proxy the whole bunch of data (including the "ack-SETTINGS" frame) to the client.
  * 5. The client sends an "ack-SETTINGS" frame, and vproxy proxies it to the backend A.
  * -- Now, the handshake part is done, and no SETTINGS frame would be allowed between frontend and backend.
@@ -77,23 +69,31 @@ import java.util.Map;
  * -- Vproxy selects a new backend B (might be the same as A if there's only one available backend)
  * -- and sends the previously recorded "clientHandshake" data to the backend B.
  * -- Then, vproxy would parse the frontend headers frame, decompress and encode it, and sent to B.
+ * -- Each connection has its own hpack decoder and encoder (see HPackTransformer), the header block is
+ * -- decoded with the context of the connection it comes from, and encoded with the context of the connection
+ * -- it goes to. For a new stream, the block is encoded after the backend is chosen.
  * 7. The backend B returns a SETTINGS frame and an "ack-SETTINGS" frame, vproxy will send an
  * -- "ack-SETTINGS" frame to the backend B when receiving the first SETTINGS frame from backend B,
- * -- and drop these received SETTINGS frames.
+ * -- and drop these received SETTINGS frames, the SETTINGS_HEADER_TABLE_SIZE and SETTINGS_INITIAL_WINDOW_SIZE of B
+ * -- are recorded.
  * 8. The backend B responds with the following frames: "PUSH_PROMISE", "HEADERS", "DATA", where the
  * -- HEADERS frame is the response headers, and data frame is the response data. The stream id in
- * -- these frames are the request stream id, so vproxy simply proxies the HEADERS and DATA frames,
- * -- but for the PUSH_PROMISE frame, vproxy would parse its payload, and generate a valid
- * -- "server stream id", to replace the PROMISED_STREAM_ID, then proxies the data to client.
+ * -- these frames are the request stream id, so vproxy simply proxies the DATA frames,
+ * -- the HEADERS frame is transformed the same way as the request headers,
+ * -- and for the PUSH_PROMISE frame, vproxy would parse its payload, and generate a valid
+ * -- "server stream id", to replace the PROMISED_STREAM_ID, then transforms the header block and sends to client.
  * -- The frames are proxied in an order the same as they are received.
  * 9. The backend B will then send a "HEADERS" frame and a "DATA" frame, both with the stream id
  * -- which recorded in the original PUSH_PROMISE frame. Vproxy modifies the stream id to the
  * -- generated one, and then proxies the frames to frontend.
  * 10. Done.
  *
- * besides, vproxy will handle window size of both the client and the server
- * the WINDOW_UPDATE from client and server will be ignored,
- * vproxy will make its own WINDOW_UPDATE frames
+ * besides, vproxy handles the flow control of both the client and the servers:
+ * the windows of each connection are tracked with the WINDOW_UPDATE frames received from it,
+ * a DATA frame is proxied only when it fits in the connection and stream windows of the receiving side,
+ * otherwise the frame is held until the receiving side updates the windows.
+ * The WINDOW_UPDATE frames are not forwarded, vproxy returns the window to the sending side
+ * when the data is proxied, so at most SIZE_STREAM_WINDOW bytes of one stream are held.
  *
  * You may check the Http2Proxy poc program for more info. Change the buffer sizes to a bigger one,
  * then you can use Wireshark to view the netflow (otherwise the segments would be
@@ -115,7 +115,7 @@ import java.util.Map;
  *  |                   Frame Payload (0...)                      ...
  *  +---------------------------------------------------------------+
  * HEADERS: remove priority for both frontend and backend,
- *          and handle hpack for frontend
+ *          and handle hpack for both frontend and backend
  *  +---------------+
  *  |Pad Length? (8)|
  *  +-+-------------+-----------------------------------------------+
@@ -127,18 +127,19 @@ import java.util.Map;
  *  +---------------------------------------------------------------+
  *  |                           Padding (*)                       ...
  *  +---------------------------------------------------------------+
- * CONTINUATION: proxy for backend, handle hpack for frontend
+ * CONTINUATION: handle hpack for both frontend and backend,
+ *               the transformed block is sent when all of its frames are received
  *  +---------------------------------------------------------------+
  *  |                   Header Block Fragment (*)                 ...
  *  +---------------------------------------------------------------+
- * SETTINGS: proxy and record for the handshake, then simply ignore
- * --------- NOTE: SETTINGS_HEADER_TABLE_SIZE will be set to 0
+ * SETTINGS: proxy and record for the handshake, then record the table size and the window size, ack and drop
+ * --------- NOTE: SETTINGS_HEADER_TABLE_SIZE will be set to the table size of vproxy
  *  +-------------------------------+
  *  |       Identifier (16)         |
  *  +-------------------------------+-------------------------------+
  *  |                        Value (32)                             |
  *  +---------------------------------------------------------------+
- * PUSH_PROMISE: change stream id if it's to be initiated by backend
+ * PUSH_PROMISE: change stream id if it's to be initiated by backend, and handle hpack
  *  +---------------+
  *  |Pad Length? (8)|
  *  +-+-------------+-----------------------------------------------+
@@ -148,17 +149,17 @@ import java.util.Map;
  *  +---------------------------------------------------------------+
  *  |                           Padding (*)                       ...
  *  +---------------------------------------------------------------+
- * WINDOW_UPDATE: vproxy makes its own WINDOW_UPDATE frames
+ * WINDOW_UPDATE: update the windows of the connection, and send the held frames which fit in the windows
  *  +-+-------------------------------------------------------------+
  *  |R|              Window Size Increment (31)                     |
  *  +-+-------------------------------------------------------------+
  *
- * DATA: proxy, and record the window size
+ * DATA: proxy if the windows of the receiving side are enough, otherwise hold the frame
  * PRIORITY: ignore
- * RST_STREAM: proxy
+ * RST_STREAM: proxy, and drop the frames held for the stream
  * PING: proxy
  * GOAWAY: proxy
- * WINDOW_UPDATE: ignore, and we send our own window_update frames
+ * WINDOW_UPDATE: not forwarded, and we send our own window_update frames
  *   (the rfc says: Intermediaries do not forward WINDOW_UPDATE frames between dependent connections.)
  */
 
@@ -171,18 +172,22 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
     private static final int LEN_E_STREAMDEPENDENCY_WEIGHT = 5; // 1 + 31 + 8
     private static final int LEN_R_PROMISED_STREAM_ID = 4; // 1 + 31
     private static final int LEN_SETTING = 6; // 2 + 4
+    // the initial SETTINGS_MAX_FRAME_SIZE, transformed header blocks are split by this size
+    private static final int SIZE_MAX_FRAME = 16384;
+
+    private static final byte TYPE_HEADERS = 0x1;
+    private static final byte TYPE_PUSH_PROMISE = 0x5;
 
-    // we do not set 2^31 - 1, in case the flow control method went wrong and exceeds 2^31-1
-    // will send window increase of size SIZE_CONNECTION_WINDOW - SIZE_DEFAULT_CONNECTION_WINDOW
-    private static final int SIZE_DEFAULT_CONNECTION_WINDOW = 65536;
-    private static final int SIZE_CONNECTION_WINDOW = (int) (Math.pow(2, 30) - 1);
-    private static final int SIZE_STREAM_WINDOW = (int) (Math.pow(2, 30) - 1);
-    private static final int INCR_WINDOW_THRESHOLD = SIZE_CONNECTION_WINDOW - (int) Math.pow(2, 26); // update every 64MBytes
-    // and, we do not update the stream window size because 2^30-1 would be enough
+    // the initial window size defined by the rfc, for both connections and streams
+    private static final int SIZE_PROTOCOL_WINDOW = 65535;
+    // will send window increase of size SIZE_CONNECTION_WINDOW - SIZE_PROTOCOL_WINDOW after handshaking
+    private static final int SIZE_CONNECTION_WINDOW = Config.http2ConnectionWindow;
+    private static final int SIZE_STREAM_WINDOW = Config.http2StreamWindow;
+    private static final int SIZE_MAX_WINDOW = Integer.MAX_VALUE;
 
     static final int SIZE_DEFAULT_HEADER_TABLE_SIZE;
 
-    private static final byte VALUE_SETTINGS_HEADER_TABLE_SIZE = 0x1; // will be set to 0
+    private static final byte VALUE_SETTINGS_HEADER_TABLE_SIZE = 0x1; // will be set to SIZE_DEFAULT_HEADER_TABLE_SIZE
     private static final byte VALUE_SETTINGS_INITIAL_WINDOW_SIZE = 0x4; // will be set to SIZE_STREAM_WINDOW
 
     static {
@@ -208,8 +213,38 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
     // some frame process (such as the settings frame) will consume all payload from the frame, and the frame field
     // will be set to null. In this case, the streamId could not be retrieved. So we store the lastFrame when needed,
     // and set this field to null after streamId is retrieved.
+    // The frame objects are reused. The frame field is null when a new frame comes, and the lastFrame field may
+    // still be used, so the new frame is stored in the object which is not referred by lastFrame.
+    private final Http2Frame frame0 = new Http2Frame();
+    private final Http2Frame frame1 = new Http2Frame();
+
+    // flow control for sending data to this connection
+    // the windows are decreased when frames are sent, and increased by the WINDOW_UPDATE frames from this connection
+    // the streams are identified by the frontend stream ids
+    private int peerInitialWindowSize = SIZE_PROTOCOL_WINDOW;
+    private long sendWindow = SIZE_PROTOCOL_WINDOW;
+    private final Map<Integer, Integer> streamSendWindows = new HashMap<>();
+    // frames which cannot be sent for now, they are sent in order of each stream when the windows are updated
+    private final Map<Integer, HeldStream> heldStreams = new LinkedHashMap<>();
+    // the held frames which are ready to be sent, retrieved by produce()
+    private ByteArray flushed = null;
+    // the connections which sent the flushed frames, they are granted new windows in state 13
+    // only used by the frontend
+    private final Set<Http2SubContext> grantTargets = new LinkedHashSet<>();
+    Http2SubContext grantTarget = null; // see Http2Context#connection()
+
+    // flow control for receiving data from this connection
+    // the bytes are counted when they are sent to the other side,
+    // and returned to this connection by WINDOW_UPDATE frames
+    private boolean initialWindowUpdateSent = false;
+    private long connectionConsumed = 0;
+    private final Map<Integer, Integer> streamConsumed = new HashMap<>();
 
-    private int windowSize = SIZE_DEFAULT_CONNECTION_WINDOW;
+    // the stream id seen by the frontend of the current frame
+    private int frontStreamId;
+    // the head of the DATA or RST_STREAM frame being handled in state 12 or 14
+    private ByteArray frameHead;
+    private Http2SubContext holdTarget;
 
     private int state;
     /*
@@ -222,9 +257,22 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
      * 5 -> (headers) the header part after stream dependency -> 1
      * 6 -> (push-promise) the first few bits of a push-promise frame -> 7
      * 7 -> (push-promise) proxy the bits after first few bits -> 1
-     * 8 -> (hpack) content of headers or continuation for hpack to process -> 1
+     * 8 -> (hpack) content of headers, push-promise or continuation for hpack to process -> 1/9
+     * 9 -> (hpack) the frontend header block of a new stream is waiting for the backend to be chosen -> 1
+     * 10 -> settings: the settings frame from the frontend or a backend after handshaking, record and drop -> 1/13
+     * 11 -> (window-update) update the windows and send held frames -> 1/13
+     * 12 -> (data) the windows of the receiving side are not enough, hold the frame or send if the windows are updated -> 1
+     * 13 -> (window-update) the frontend returns windows to the backends whose frames are sent -> 1
+     * 14 -> (rst-stream) drop the frames held for the stream in both directions and proxy the frame -> 1/13
      */
 
+    // null if the headers are not compressed, see SIZE_DEFAULT_HEADER_TABLE_SIZE
+    private final HPackTransformer hPack;
+    // the header block being received, it's not null when CONTINUATION frames are expected
+    private HeaderBlock headerBlock;
+    // the frontend header block waiting in state 9
+    private HeaderBlock pendingHeaderBlock;
+
     private Map<Integer, Integer> streamIdBack2Front = new HashMap<>();
     private Integer backendIdForStreamToRemove = null;
 
@@ -252,8 +300,10 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
 
     public Http2SubContext(Http2Context ctx, int connId) {
         super(ctx, connId);
+        hPack = SIZE_DEFAULT_HEADER_TABLE_SIZE == 0 ? null : new HPackTransformer(SIZE_DEFAULT_HEADER_TABLE_SIZE);
 
         if (connId == 0) {
+            ctx.frontend = this;
             state = 0;
             syntheticAckFlag = false; // this field will not be used if it's frontend connection
             hostHeaderRetrieved = false;
@@ -264,7 +314,7 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
         }
     }
 
-    private static ByteArray utilBuildWindowUpdate(int len) {
+    private static ByteArray utilBuildWindowUpdate(int streamId, int len) {
         ByteArray SEQ_WINDOW_UPDATE = ByteArray.from(new byte[]{
             0, 0, 4, // length
             8, // type
@@ -272,10 +322,17 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             0, 0, 0, 0, // stream id
             0, 0, 0, 0 // payload
         });
+        SEQ_WINDOW_UPDATE.int32(5, streamId);
         SEQ_WINDOW_UPDATE.int32(9, len);
         return SEQ_WINDOW_UPDATE;
     }
 
+    private static ByteArray utilConcat(ByteArray a, ByteArray b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.concat(b);
+    }
+
     @Override
     public Processor.Mode mode() {
         switch (state) {
@@ -285,6 +342,12 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             case 4:
             case 6:
             case 8:
+            case 9:
+            case 10:
+            case 11:
+            case 12:
+            case 13:
+            case 14:
             case -1:
                 return Processor.Mode.handle;
             case 2:
@@ -306,6 +369,11 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
         if (state == 0 || state == 1)
             return true;
 
+        // nothing of the frame is sent before these states end,
+        // and the frame may be held or dropped, so other connections can write to the frontend
+        if (state == 11 || state == 12 || state == 14)
+            return true;
+
         // proxy states
         Processor.Mode mode = mode();
         if (mode == Processor.Mode.proxy) {
@@ -337,8 +405,16 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             case 7:
                 return frame.length - (frame.padded ? LEN_PADDING : 0) - LEN_R_PROMISED_STREAM_ID;
             case 8:
+            case 10:
+            case 11:
+            case 12:
+            case 14:
                 //noinspection DuplicateBranchesInSwitch
                 return frame.length;
+            case 9:
+                return 0; // fed when the backend is chosen
+            case 13:
+                return 0; // fed until all windows are returned
             case -1:
             case 2:
                 //noinspection DuplicateBranchesInSwitch
@@ -354,6 +430,10 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
     public ByteArray feed(ByteArray data) throws Exception {
         boolean frontendSettingsSent = ctx.frontendSettingsSent; // this value may be changed in the handling process, so we need to cache it before handling
         ByteArray arr = _feed(data);
+        if (connId != 0 && state == 1) {
+            // the frames from the backend are complete, so windows of the frontend can be returned as well
+            arr = utilConcat(arr, ctx.frontend.windowUpdates());
+        }
         if (hostHeaderRetrieved || !frontendSettingsSent) { // first settings frame should pass freely
             if (storedBytes == null) {
                 return arr;
@@ -425,6 +505,34 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
                 return null; // ignore
             case 8:
                 return handleHeaderHPack(data);
+            case 9:
+                return handlePendingHeaderBlock();
+            case 10:
+                handlePeerSettings(data);
+                lastFrame = frame;
+                frame = null;
+                state = grantTargets.isEmpty() ? 1 : 13;
+                return null; // dropped
+            case 11:
+                handleWindowUpdate(data);
+                lastFrame = frame;
+                frame = null;
+                state = grantTargets.isEmpty() ? 1 : 13;
+                return null; // not forwarded
+            case 12:
+                data = holdData(data);
+                lastFrame = frame;
+                frame = null;
+                state = 1;
+                return data;
+            case 13:
+                return returnWindows();
+            case 14:
+                data = handleRstStream(data);
+                lastFrame = frame;
+                frame = null;
+                state = grantTargets.isEmpty() ? 1 : 13;
+                return data;
             case 2:
             case 5:
             case 7:
@@ -437,25 +545,26 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
     public ByteArray produce() {
         ByteArray ret = null;
 
-        // may update window
-        if (!ctx.frontendHandshaking && !ctx.backendHandshaking && windowSize < INCR_WINDOW_THRESHOLD) {
-            ret = utilBuildWindowUpdate(SIZE_CONNECTION_WINDOW - windowSize);
-            windowSize = SIZE_CONNECTION_WINDOW;
-        }
-
         // ack for settings
         if (syntheticAck != null) {
-            if (ret == null) ret = syntheticAck;
-            else ret = ret.concat(syntheticAck);
-
+            ret = syntheticAck;
             syntheticAck = null;
         }
 
+        // may update window
+        ret = utilConcat(ret, windowUpdates());
+
+        // the held frames which fit in the windows
+        if (flushed != null) {
+            ret = utilConcat(ret, flushed);
+            flushed = null;
+        }
+
         return ret;
     }
 
     private void parseFrame(ByteArray data) {
-        Http2Frame frame = new Http2Frame();
+        Http2Frame frame = lastFrame == frame0 ? frame1 : frame0;
         frame.length = data.uint24(0);
         byte type = data.get(3);
         frame.typeNum = type;
@@ -466,6 +575,9 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             case 0x1:
                 frame.type = Http2Frame.Type.HEADERS;
                 break;
+            case 0x3:
+                frame.type = Http2Frame.Type.RST_STREAM;
+                break;
             case 0x4:
                 frame.type = Http2Frame.Type.SETTINGS;
                 break;
@@ -475,8 +587,10 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             case 0x9:
                 frame.type = Http2Frame.Type.CONTINUATION;
                 break;
+            case 0x8:
+                frame.type = Http2Frame.Type.WINDOW_UPDATE;
+                break;
             case 0x2: // PRIORITY
-            case 0x8: // WINDOW_UPDATE
                 frame.type = Http2Frame.Type.IGNORE;
                 break;
             default:
@@ -484,10 +598,10 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
                 break;
         }
         byte flags = data.get(4);
-        if (0 != (flags & 0x4)) frame.endHeaders = true;
-        if (0 != (flags & 0x8)) frame.padded = true;
-        if (0 != (flags & 0x20)) frame.priority = true;
-        if (0 != (flags & 0x1)) frame.ack = true; // maybe it means "end stream"
+        frame.endHeaders = 0 != (flags & 0x4);
+        frame.padded = 0 != (flags & 0x8);
+        frame.priority = 0 != (flags & 0x20);
+        frame.ack = 0 != (flags & 0x1); // maybe it means "end stream"
         frame.endStream = (frame.ack && (frame.type == Http2Frame.Type.DATA || frame.type == Http2Frame.Type.HEADERS));
         frame.streamIdentifier = data.int32(5);
 
@@ -508,7 +622,13 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
     }
 
     private ByteArray handleFrame(ByteArray frameBytes) throws Exception {
-        if (frame.type != Http2Frame.Type.IGNORE) { // only transform and record if it's not ignored
+        frontStreamId = frame.streamIdentifier;
+        if (frame.type == Http2Frame.Type.WINDOW_UPDATE || frame.type == Http2Frame.Type.RST_STREAM) {
+            if (frame.length != 4) {
+                throw new Exception("invalid length of " + frame);
+            }
+        }
+        if (frame.type != Http2Frame.Type.IGNORE && frame.type != Http2Frame.Type.WINDOW_UPDATE) { // only transform and record if it's not ignored
             // check (and modify) the stream id
             // translate the streamIdentifier
             if (frame.streamIdentifier != 0 && frame.streamIdentifier % 2 == 0) {
@@ -538,20 +658,23 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
                 }
 
                 assert Logger.lowLevelDebug("the translatedStreamId is " + translatedStreamId);
-                if (!translatedStreamId.equals(frame.streamIdentifier)) {
+                if (translatedStreamId != frame.streamIdentifier) {
                     utilModifyStreamId(frameBytes, 5, translatedStreamId);
                     frame.streamIdentifier = translatedStreamId;
                 }
             }
+            if (connId != 0) {
+                frontStreamId = frame.streamIdentifier;
+            }
             // record the stream after translated the streamId
             ctx.tryRecordStream(this);
         }
 
-        if (connId == 0 // frontend
-            && (frame.type == Http2Frame.Type.HEADERS || frame.type == Http2Frame.Type.CONTINUATION) // headers/continuation
-            && SIZE_DEFAULT_HEADER_TABLE_SIZE != 0 // would be compressed
+        if (hPack != null // would be compressed
+            && (frame.type == Http2Frame.Type.HEADERS || frame.type == Http2Frame.Type.CONTINUATION // headers/continuation
+            || (frame.type == Http2Frame.Type.PUSH_PROMISE && connId != 0)) // push-promise from backend
         ) {
-            assert Logger.lowLevelDebug("got HEADERS frame from frontend");
+            assert Logger.lowLevelDebug("got " + frame.type + " frame from " + (connId == 0 ? "frontend" : "backend"));
             state = 8;
             return null; // send nothing for now
         } else if (frame.type == Http2Frame.Type.HEADERS && frame.priority) {
@@ -579,9 +702,23 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             assert Logger.lowLevelDebug("got an ignored frame of length " + frame.length);
             state = -1;
             return null;
+        } else if (frame.type == Http2Frame.Type.WINDOW_UPDATE) {
+            state = 11;
+            return null;
+        } else if (frame.type == Http2Frame.Type.RST_STREAM) {
+            frameHead = frameBytes;
+            state = 14;
+            return null;
         } else if (frame.type == Http2Frame.Type.DATA) {
-            assert Logger.lowLevelDebug("got data frame of length " + frame.length + ", window before recording is " + windowSize);
-            windowSize -= frame.length;
+            Http2SubContext target = connId == 0 ? ctx.streamMap.get(frontStreamId) : ctx.frontend;
+            if (target != null && !target.trySend(frontStreamId, frame.length, frame.endStream)) {
+                assert Logger.lowLevelDebug("the windows of connection " + target.connId + " are not enough for " + frame);
+                frameHead = frameBytes;
+                holdTarget = target;
+                state = 12;
+                return null;
+            }
+            consumed(frontStreamId, frame.length, frame.endStream);
             // do proxy
             state = 2;
             return frameBytes;
@@ -627,6 +764,14 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             syntheticAck = SEQ_SETTINGS_ACK;
             // though it's only reading the frame part, but it is absolutely followed by a payload part
             // so sending ack here is fine and will correspond to the remote server state machine
+        } else if (!frame.ack) {
+            // the frame is not forwarded, so it's acked by vproxy
+            syntheticAck = SEQ_SETTINGS_ACK;
+        }
+        if (!frame.ack && frame.length != 0) {
+            // the header table size and the initial window size are recorded before dropping
+            state = 10;
+            return null;
         }
         { // otherwise should ignore the frame, both for frontend and backend
             assert Logger.lowLevelDebug("dropping the SETTINGS frame " +
@@ -649,6 +794,10 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
                 if (payload.uint16(i) == VALUE_SETTINGS_HEADER_TABLE_SIZE) {
                     offsetOfSetting = i;
                     assert Logger.lowLevelDebug("found setting for the HEADER_TABLE_SIZE");
+                    // the peer decodes the header blocks with this table size
+                    if (hPack != null) {
+                        hPack.setPeerHeaderTableSize(payload.int32(i + 2));
+                    }
                     break;
                 }
             }
@@ -662,11 +811,8 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
             // the identifier part
             payload.int16(offsetOfSetting, VALUE_SETTINGS_HEADER_TABLE_SIZE);
             // the value part
-            payload.int32(offsetOfSetting + 2,
-                connId == 0 // connId == 0 means the data is transferred from frontend to backend
-                    ? 0 // the backend do not use dynamic table
-                    : SIZE_DEFAULT_HEADER_TABLE_SIZE // the frontend uses dynamic table
-            );
+            // both the frontend and the backends use the dynamic table of vproxy's decoders
+            payload.int32(offsetOfSetting + 2, SIZE_DEFAULT_HEADER_TABLE_SIZE);
         }
         // try to find the SETTINGS_INITIAL_WINDOW_SIZE and change the value
         {
@@ -676,6 +822,8 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
                 if (payload.uint16(i) == VALUE_SETTINGS_INITIAL_WINDOW_SIZE) {
                     offsetOfSetting = i;
                     assert Logger.lowLevelDebug("found setting for the INITIAL_WINDOW_SIZE");
+                    // the windows of streams sent to the peer
+                    setPeerInitialWindowSize(payload.int32(i + 2));
                     break;
                 }
             }
@@ -718,43 +866,329 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
     }
 
     private ByteArray handleHeaderHPack(ByteArray data) throws Exception {
-        byte frameType;
-        ByteArray transformed;
-        if (frame.type == Http2Frame.Type.HEADERS) {
-            frameType = 1;
-            // get the actual data part
-            if (frame.padded && frame.priority) {
-                data = data.sub(1 + 5, data.length() - (1 + 5) - data.get(0));
-            } else if (frame.padded) {
-                data = data.sub(1, data.length() - 1 - data.get(0));
-            } else if (frame.priority) {
-                data = data.sub(5, data.length() - 5);
-            }
-            transformed = ctx.hPackTransformer.transform(data, frame.endHeaders && connId == 0);
+        if (frame.type == Http2Frame.Type.CONTINUATION) {
+            if (headerBlock == null) {
+                throw new Exception("unexpected CONTINUATION frame " + frame);
+            }
         } else {
-            assert frame.type == Http2Frame.Type.CONTINUATION;
-            frameType = 9; // type = continuation
-            // data is simple and can be directly transformed for continuation frames
-            transformed = ctx.hPackTransformer.transform(data, frame.endHeaders && connId == 0);
-        }
-        ByteArray result = ByteArray.from(new byte[]{
-            0, 0, 0, // length, will be set later
-            frameType,
-            (byte) (frame.endHeaders ? 4 : 0), // flags
-            0, 0, 0, 0 // stream id, will be set later
-        }).concat(transformed);
-        result.int24(0, transformed.length());
-        result.int32(5, frame.streamIdentifier);
-
-        // set header end before return the result
-        if (frame.endHeaders) {
-            ctx.hPackTransformer.endHeaders();
-            hostHeaderRetrieved = true; // headers frame ends, connection related headers must have been retrieved, so send data
+            if (headerBlock != null) {
+                throw new Exception("expecting CONTINUATION frame, but got " + frame);
+            }
+            // get the actual data part
+            int off = 0;
+            int padding = 0;
+            if (frame.padded) {
+                padding = data.uint8(0);
+                off += LEN_PADDING;
+            }
+            if (frame.type == Http2Frame.Type.HEADERS) {
+                if (frame.priority) {
+                    off += LEN_E_STREAMDEPENDENCY_WEIGHT;
+                }
+                headerBlock = new HeaderBlock(TYPE_HEADERS, frame.streamIdentifier, frame.endStream);
+            } else {
+                assert frame.type == Http2Frame.Type.PUSH_PROMISE;
+                translatePromisedStreamId(data, off);
+                headerBlock = new HeaderBlock(TYPE_PUSH_PROMISE, frame.streamIdentifier, false);
+                headerBlock.promisedStreamId = data.int32(off);
+                off += LEN_R_PROMISED_STREAM_ID;
+            }
+            data = data.sub(off, data.length() - off - padding);
         }
+        hPack.decode(data, headerBlock);
         // set state to idle
         state = 1;
+        if (!frame.endHeaders) {
+            return null; // the block is sent when all frames are received
+        }
+        hPack.endHeaders();
+        HeaderBlock block = headerBlock;
+        headerBlock = null;
+
+        if (connId != 0) {
+            ByteArray result = sendHeaderBlock(block, ctx.frontend);
+            if (backendIdForStreamToRemove != null) {
+                removeStreamMappingByBackendId(backendIdForStreamToRemove);
+                backendIdForStreamToRemove = null;
+            }
+            return result;
+        }
+        // frontend
+        block.addHeaders(ctx.additionalHeaders);
+        String host = block.get("host");
+        if (host != null) {
+            ctx.host = host;
+        }
+        hostHeaderRetrieved = true; // headers frame ends, connection related headers must have been retrieved, so send data
+
+        Http2SubContext backend = ctx.streamMap.get(block.streamId);
+        if (backend == null) {
+            // the block can only be encoded with the context of the backend which receives it
+            assert Logger.lowLevelDebug("the backend for stream " + block.streamId + " is not chosen yet");
+            pendingHeaderBlock = block;
+            state = 9;
+            return null;
+        }
+        return sendHeaderBlock(block, backend);
+    }
+
+    private ByteArray handlePendingHeaderBlock() throws Exception {
+        HeaderBlock block = pendingHeaderBlock;
+        pendingHeaderBlock = null;
+        state = 1;
+        Http2SubContext backend = ctx.streamMap.get(block.streamId);
+        if (backend == null) {
+            throw new Exception("no backend chosen for stream " + block.streamId);
+        }
+        return sendHeaderBlock(block, backend);
+    }
+
+    // the block is held if frames of the stream are held, to keep the order of the frames.
+    // the held block is encoded when it's sent, so the blocks are encoded in the order that the target receives them
+    private ByteArray sendHeaderBlock(HeaderBlock block, Http2SubContext target) throws Exception {
+        if (target.heldStreams.containsKey(frontStreamId)) {
+            assert Logger.lowLevelDebug("frames of stream " + frontStreamId + " are held in connection " + target.connId + ", hold the header block");
+            target.hold(new HeldFrame(frontStreamId, null, block, 0, block.endStream, this));
+            return null;
+        }
+        target.sent(frontStreamId, 0, block.endStream);
+        consumed(frontStreamId, 0, block.endStream);
+        return encodeHeaderBlock(block, target);
+    }
+
+    // encode the block with the hpack context of the target connection,
+    // and split into frames of SIZE_MAX_FRAME
+    private ByteArray encodeHeaderBlock(HeaderBlock block, Http2SubContext target) throws Exception {
+        ByteArray payload = target.hPack.encode(block);
+        if (block.type == TYPE_PUSH_PROMISE) {
+            payload = ByteArray.allocate(LEN_R_PROMISED_STREAM_ID).int32(0, block.promisedStreamId).concat(payload);
+        }
+        return block.frames(payload, SIZE_MAX_FRAME);
+    }
+
+    // the SETTINGS frames of the frontend and the backends after the handshake,
+    // only SETTINGS_HEADER_TABLE_SIZE and SETTINGS_INITIAL_WINDOW_SIZE are used
+    private void handlePeerSettings(ByteArray payload) throws Exception {
+        for (int i = 0; i + LEN_SETTING <= payload.length(); i += LEN_SETTING) {
+            if (payload.uint16(i) == VALUE_SETTINGS_HEADER_TABLE_SIZE && hPack != null) {
+                assert Logger.lowLevelDebug("connection " + connId + " sets HEADER_TABLE_SIZE to " + payload.int32(i + 2));
+                hPack.setPeerHeaderTableSize(payload.int32(i + 2));
+            } else if (payload.uint16(i) == VALUE_SETTINGS_INITIAL_WINDOW_SIZE) {
+                assert Logger.lowLevelDebug("connection " + connId + " sets INITIAL_WINDOW_SIZE to " + payload.int32(i + 2));
+                setPeerInitialWindowSize(payload.int32(i + 2));
+                flushHeld();
+            }
+        }
+    }
+
+    // the change of the initial window size applies to all streams
+    private void setPeerInitialWindowSize(int size) {
+        if (size < 0) {
+            assert Logger.lowLevelDebug("invalid INITIAL_WINDOW_SIZE " + size + ", ignored");
+            return;
+        }
+        int delta = size - peerInitialWindowSize;
+        peerInitialWindowSize = size;
+        streamSendWindows.replaceAll((id, w) -> (int) Math.min(SIZE_MAX_WINDOW, (long) w + delta));
+    }
+
+    // the frame can be sent directly if no frame of the stream is held and the windows are enough
+    private boolean trySend(int streamId, int len, boolean endStream) {
+        if (heldStreams.containsKey(streamId) || !fitsWindows(streamId, len)) {
+            return false;
+        }
+        sent(streamId, len, endStream);
+        return true;
+    }
+
+    private boolean fitsWindows(int streamId, int len) {
+        return len <= sendWindow && len <= streamSendWindows.getOrDefault(streamId, peerInitialWindowSize);
+    }
+
+    private void sent(int streamId, int len, boolean endStream) {
+        sendWindow -= len;
+        if (endStream) {
+            streamSendWindows.remove(streamId);
+        } else if (len != 0) {
+            streamSendWindows.put(streamId, streamSendWindows.getOrDefault(streamId, peerInitialWindowSize) - len);
+        }
+    }
+
+    private void hold(HeldFrame f) throws Exception {
+        HeldStream s = heldStreams.computeIfAbsent(f.streamId, k -> new HeldStream());
+        // the sending side cannot send more than the stream window before it gets the window back
+        if (s.bytes + f.len > Math.max(SIZE_STREAM_WINDOW, SIZE_PROTOCOL_WINDOW)) {
+            throw new Exception("flow control error: more than " + SIZE_STREAM_WINDOW + " bytes received on stream " + f.streamId);
+        }
+        s.frames.add(f);
+        s.bytes += f.len;
+    }
+
+    // the frame is sent if the windows are updated when reading the payload, otherwise held
+    private ByteArray holdData(ByteArray payload) throws Exception {
+        ByteArray bytes = frameHead.concat(payload);
+        Http2SubContext target = holdTarget;
+        frameHead = null;
+        holdTarget = null;
+        if (target.trySend(frontStreamId, frame.length, frame.endStream)) {
+            consumed(frontStreamId, frame.length, frame.endStream);
+        } else {
+            target.hold(new HeldFrame(frontStreamId, bytes, null, frame.length, frame.endStream, this));
+            bytes = null;
+        }
+        if (backendIdForStreamToRemove != null) {
+            removeStreamMappingByBackendId(backendIdForStreamToRemove);
+            backendIdForStreamToRemove = null;
+        }
+        return bytes;
+    }
+
+    // move the held frames which fit in the windows to the flushed bytes
+    private void flushHeld() throws Exception {
+        Iterator<HeldStream> ite = heldStreams.values().iterator();
+        while (ite.hasNext()) {
+            HeldStream s = ite.next();
+            while (!s.frames.isEmpty()) {
+                HeldFrame f = s.frames.peek();
+                if (!fitsWindows(f.streamId, f.len)) {
+                    break;
+                }
+                s.frames.poll();
+                s.bytes -= f.len;
+                sent(f.streamId, f.len, f.endStream);
+                flushed = utilConcat(flushed, f.block == null ? f.bytes : encodeHeaderBlock(f.block, this));
+                f.source.consumed(f.streamId, f.len, f.endStream);
+                if (connId == 0) {
+                    grantTargets.add(f.source);
+                }
+            }
+            if (s.frames.isEmpty()) {
+                ite.remove();
+            }
+        }
+    }
+
+    private void handleWindowUpdate(ByteArray payload) throws Exception {
+        int incr = payload.int32(0) & 0x7fffffff;
+        if (frontStreamId == 0) {
+            sendWindow = Math.min(SIZE_MAX_WINDOW, sendWindow + incr);
+        } else {
+            if (connId != 0 && frontStreamId % 2 == 0) {
+                Integer front = streamIdBack2Front.get(frontStreamId);
+                if (front == null) {
+                    assert Logger.lowLevelDebug("the stream " + frontStreamId + " of WINDOW_UPDATE is closed, ignored");
+                    return;
+                }
+                frontStreamId = front;
+            }
+            Integer w = streamSendWindows.get(frontStreamId);
+            if (w == null) {
+                Http2SubContext sub = ctx.streamMap.get(frontStreamId);
+                if (sub == null || (connId != 0 && sub != this)) {
+                    assert Logger.lowLevelDebug("the stream " + frontStreamId + " of WINDOW_UPDATE is not active, ignored");
+                    return;
+                }
+                w = peerInitialWindowSize;
+            }
+            streamSendWindows.put(frontStreamId, (int) Math.min(SIZE_MAX_WINDOW, (long) w + incr));
+        }
+        flushHeld();
+    }
+
+    // the peer of this connection resets the stream, so the frames held for it are dropped,
+    // and the frames of the stream held for the other side are dropped as well,
+    // otherwise they would be sent after the RST_STREAM frame
+    private ByteArray handleRstStream(ByteArray payload) {
+        ByteArray bytes = frameHead.concat(payload);
+        frameHead = null;
+        streamSendWindows.remove(frontStreamId);
+        dropHeld(frontStreamId, true);
+        Http2SubContext target = connId == 0 ? ctx.streamMap.get(frontStreamId) : ctx.frontend;
+        if (target != null) {
+            // the frames come from this connection, the windows are returned in produce()
+            target.streamSendWindows.remove(frontStreamId);
+            target.dropHeld(frontStreamId, false);
+        }
+        return bytes;
+    }
+
+    // the windows of the dropped frames are returned to the connections which sent them
+    // grant: whether the frontend should send WINDOW_UPDATE frames to the backends in state 13
+    private void dropHeld(int streamId, boolean grant) {
+        HeldStream s = heldStreams.remove(streamId);
+        if (s == null) {
+            return;
+        }
+        assert Logger.lowLevelDebug("dropping " + s.frames.size() + " frames held for stream " + streamId + " in connection " + connId);
+        for (HeldFrame f : s.frames) {
+            f.source.consumed(f.streamId, f.len, true);
+            if (grant && connId == 0) {
+                grantTargets.add(f.source);
+            }
+        }
+    }
+
+    // the frontend sends WINDOW_UPDATE frames to the backends one by one, see Http2Context#connection()
+    private ByteArray returnWindows() {
+        while (!grantTargets.isEmpty()) {
+            Iterator<Http2SubContext> ite = grantTargets.iterator();
+            Http2SubContext backend = ite.next();
+            ite.remove();
+            ByteArray updates = backend.windowUpdates();
+            if (updates != null) {
+                grantTarget = backend;
+                return updates;
+            }
+        }
+        grantTarget = null;
+        state = 1;
+        return null;
+    }
+
+    // record the bytes received from this connection and sent to the other side
+    private void consumed(int streamId, int len, boolean endStream) {
+        connectionConsumed += len;
+        if (endStream) {
+            streamConsumed.remove(streamId); // the peer will not send data on this stream
+        } else if (len != 0) {
+            streamConsumed.merge(streamId, len, Integer::sum);
+        }
+    }
 
-        return result;
+    // the WINDOW_UPDATE frames to return windows to the peer of this connection
+    // the windows are updated when half of them are consumed
+    ByteArray windowUpdates() {
+        if (ctx.frontendHandshaking || ctx.backendHandshaking) {
+            return null;
+        }
+        ByteArray ret = null;
+        if (!initialWindowUpdateSent) {
+            initialWindowUpdateSent = true;
+            if (SIZE_CONNECTION_WINDOW > SIZE_PROTOCOL_WINDOW) {
+                ret = utilBuildWindowUpdate(0, SIZE_CONNECTION_WINDOW - SIZE_PROTOCOL_WINDOW);
+            }
+        }
+        if (connectionConsumed >= SIZE_CONNECTION_WINDOW / 2) {
+            ret = utilConcat(ret, utilBuildWindowUpdate(0, (int) connectionConsumed));
+            connectionConsumed = 0;
+        }
+        Iterator<Map.Entry<Integer, Integer>> ite = streamConsumed.entrySet().iterator();
+        while (ite.hasNext()) {
+            Map.Entry<Integer, Integer> entry = ite.next();
+            if (entry.getValue() < SIZE_STREAM_WINDOW / 2) {
+                continue;
+            }
+            ite.remove();
+            Integer streamId = entry.getKey();
+            if (connId != 0 && streamId % 2 == 0) {
+                streamId = ctx.streamIdFront2Back.get(streamId);
+                if (streamId == null) {
+                    continue;
+                }
+            }
+            ret = utilConcat(ret, utilBuildWindowUpdate(streamId, entry.getValue()));
+        }
+        return ret;
     }
 
     private static void utilModifyStreamId(ByteArray data, int offset, int streamId) {
@@ -827,6 +1261,29 @@ public class Http2SubContext extends OOSubContext<Http2Context> {
         frame = null;
     }
 
+    private static class HeldFrame {
+        final int streamId; // frontend stream id
+        final ByteArray bytes; // the whole frame, or null for header blocks
+        final HeaderBlock block; // encoded when sent
+        final int len; // flow controlled length
+        final boolean endStream;
+        final Http2SubContext source; // the connection which the frame comes from
+
+        HeldFrame(int streamId, ByteArray bytes, HeaderBlock block, int len, boolean endStream, Http2SubContext source) {
+            this.streamId = streamId;
+            this.bytes = bytes;
+            this.block = block;
+            this.len = len;
+            this.endStream = endStream;
+            this.source = source;
+        }
+    }
+
+    private static class HeldStream {
+        final Deque<HeldFrame> frames = new LinkedList<>();
+        int bytes = 0;
+    }
+
     @Override
     public ByteArray connected() {
         if (connId == 0) {
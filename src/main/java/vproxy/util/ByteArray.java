@@ -25,6 +25,20 @@ public interface ByteArray {
         return new SimpleByteArray(array);
     }
 
+    /**
+     * a read-only view of bytes from 0 to limit of the buffer
+     */
+    static ByteArray from(ByteBuffer buffer) {
+        return new ByteBufferByteArray(buffer);
+    }
+
+    /**
+     * a flat view of the arrays, which is not nested like {@link #concat(ByteArray)}
+     */
+    static ByteArray gather(ByteArray... arrays) {
+        return new GatherByteArray(arrays);
+    }
+
     static ByteArray from(int... array) {
         byte[] bytes = new byte[array.length];
         for (int i = 0; i < array.length; ++i) {
@@ -0,0 +1,74 @@
+package vproxy.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * count latency samples in fixed millisecond buckets.<br>
+ * recording is lock free and can be called from any thread
+ */
+public class LatencyHistogram {
+    // upper bounds (inclusive) of the buckets in milliseconds, the last bucket holds all larger samples
+    private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+    public LatencyHistogram() {
+    }
+
+    public void record(long millis) {
+        int idx = 0;
+        while (idx < BOUNDS.length && millis > BOUNDS[idx]) {
+            ++idx;
+        }
+        counts.incrementAndGet(idx);
+    }
+
+    /**
+     * @return upper bounds of the buckets in milliseconds, the last bucket (bounds.length) has no upper bound
+     */
+    public static long[] bounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * @return count of each bucket, the length is bounds().length + 1
+     */
+    public long[] counts() {
+        long[] ret = new long[counts.length()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = counts.get(i);
+        }
+        return ret;
+    }
+
+    public long total() {
+        long n = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    /**
+     * @return non empty buckets, e.g. <code>le1ms:3,le5ms:1,gt5000ms:1</code>, or an empty string when no sample is recorded
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        long[] counts = counts();
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] == 0)
+                continue;
+            if (sb.length() != 0) {
+                sb.append(",");
+            }
+            if (i < BOUNDS.length) {
+                sb.append("le").append(BOUNDS[i]);
+            } else {
+                sb.append("gt").append(BOUNDS[BOUNDS.length - 1]);
+            }
+            sb.append("ms:").append(counts[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package vproxy.util.bytearray;
+
+import vproxy.util.ByteArray;
+
+import java.nio.ByteBuffer;
+
+/**
+ * a read-only view of the bytes between 0 and limit of a byte buffer, e.g. a direct buffer.<br>
+ * the position and limit of the buffer are never modified, so the buffer can be read by multiple threads
+ */
+public class ByteBufferByteArray extends AbstractByteArray implements ByteArray {
+    private final ByteBuffer buffer;
+    private final int len;
+
+    public ByteBufferByteArray(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.len = buffer.limit();
+    }
+
+    @Override
+    public byte get(int idx) {
+        checkBoundForOffset(idx);
+        return buffer.get(idx);
+    }
+
+    @Override
+    public ByteArray set(int idx, byte value) {
+        throw new UnsupportedOperationException("the byte array is read-only");
+    }
+
+    @Override
+    public int length() {
+        return len;
+    }
+
+    @Override
+    public void byteBufferPut(ByteBuffer dst, int off, int len) {
+        checkBoundForByteBufferAndOffsetAndLength(dst, off, len);
+        // use a duplicate to keep the shared buffer untouched
+        ByteBuffer src = buffer.duplicate();
+        src.limit(off + len).position(off);
+        dst.put(src);
+    }
+
+    @Override
+    public void byteBufferGet(ByteBuffer src, int off, int len) {
+        throw new UnsupportedOperationException("the byte array is read-only");
+    }
+
+    @Override
+    protected void doToNewJavaArray(byte[] dst, int dstOff, int srcOff, int srcLen) {
+        ByteBuffer src = buffer.duplicate();
+        src.limit(srcOff + srcLen).position(srcOff);
+        src.get(dst, dstOff, srcLen);
+    }
+}
@@ -0,0 +1,111 @@
+package vproxy.util.bytearray;
+
+import vproxy.util.ByteArray;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * a flat list of byte arrays viewed as one array,
+ * unlike the nested {@link CompositeByteArray}, the bytes are located and copied in one loop
+ */
+public class GatherByteArray extends AbstractByteArray implements ByteArray {
+    private final ByteArray[] arrays;
+    // offsets[i] is the offset of arrays[i] in this array
+    private final int[] offsets;
+    private final int len;
+
+    public GatherByteArray(ByteArray[] arrays) {
+        int n = 0;
+        for (ByteArray a : arrays) {
+            if (a.length() != 0) {
+                ++n;
+            }
+        }
+        this.arrays = new ByteArray[n];
+        this.offsets = new int[n];
+        int len = 0;
+        int i = 0;
+        for (ByteArray a : arrays) {
+            if (a.length() == 0) {
+                continue; // empty arrays are ignored, so each offset belongs to one array
+            }
+            this.arrays[i] = a;
+            this.offsets[i] = len;
+            len += a.length();
+            ++i;
+        }
+        this.len = len;
+    }
+
+    // @return index of the array holding the byte at the offset
+    private int indexOf(int off) {
+        int i = Arrays.binarySearch(offsets, off);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    @Override
+    public byte get(int idx) {
+        checkBoundForOffset(idx);
+        int i = indexOf(idx);
+        return arrays[i].get(idx - offsets[i]);
+    }
+
+    @Override
+    public ByteArray set(int idx, byte value) {
+        checkBoundForOffset(idx);
+        int i = indexOf(idx);
+        arrays[i].set(idx - offsets[i], value);
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return len;
+    }
+
+    @Override
+    public void byteBufferPut(ByteBuffer dst, int off, int len) {
+        checkBoundForByteBufferAndOffsetAndLength(dst, off, len);
+        if (len == 0) {
+            return;
+        }
+        for (int i = indexOf(off); len > 0; ++i) {
+            int from = off - offsets[i];
+            int n = Math.min(len, arrays[i].length() - from);
+            arrays[i].byteBufferPut(dst, from, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void byteBufferGet(ByteBuffer src, int off, int len) {
+        checkBoundForByteBufferAndOffsetAndLength(src, off, len);
+        if (len == 0) {
+            return;
+        }
+        for (int i = indexOf(off); len > 0; ++i) {
+            int from = off - offsets[i];
+            int n = Math.min(len, arrays[i].length() - from);
+            arrays[i].byteBufferGet(src, from, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    protected void doToNewJavaArray(byte[] dst, int dstOff, int srcOff, int srcLen) {
+        if (srcLen == 0) {
+            return;
+        }
+        for (int i = indexOf(srcOff); srcLen > 0; ++i) {
+            int from = srcOff - offsets[i];
+            int n = Math.min(srcLen, arrays[i].length() - from);
+            ((AbstractByteArray) arrays[i]).doToNewJavaArray(dst, dstOff, from, n);
+            dstOff += n;
+            srcOff += n;
+            srcLen -= n;
+        }
+    }
+}
@@ -3,10 +3,12 @@ package vproxy.util.io;
 import vproxy.util.ByteArray;
 
 import java.io.InputStream;
+import java.util.Objects;
 
 public class ArrayInputStream extends InputStream {
     private final ByteArray array;
     private int cursor = 0;
+    private int mark = 0;
 
     private ArrayInputStream(ByteArray array) {
         this.array = array;
@@ -24,8 +26,38 @@ public class ArrayInputStream extends InputStream {
         return array.uint8(cursor++);
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        int n = Math.min(len, array.length() - cursor);
+        if (n <= 0) {
+            return -1;
+        }
+        array.sub(cursor, n).toNewJavaArray(b, off);
+        cursor += n;
+        return n;
+    }
+
     @Override
     public int available() {
         return array.length() - cursor;
     }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        mark = cursor;
+    }
+
+    @Override
+    public void reset() {
+        cursor = mark;
+    }
 }
@@ -28,4 +28,8 @@ public class ArrayOutputStream extends OutputStream {
         curosr = 0;
         return ret;
     }
+
+    public void reset() {
+        curosr = 0;
+    }
 }
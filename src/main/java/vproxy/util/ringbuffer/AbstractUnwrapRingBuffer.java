@@ -10,6 +10,7 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Deque;
 import java.util.LinkedList;
+import java.util.function.Consumer;
 
 public abstract class AbstractUnwrapRingBuffer extends AbstractRingBuffer {
     protected class WritableHandler implements RingBufferETHandler {
@@ -24,12 +25,24 @@ public abstract class AbstractUnwrapRingBuffer extends AbstractRingBuffer {
         }
     }
 
+    private static class IntermediateBuffer {
+        final ByteBuffer raw;
+        final ByteBufferRingBuffer buf;
+        final boolean pooled; // whether the raw buffer is borrowed from the pool
+
+        IntermediateBuffer(ByteBuffer raw, boolean pooled) {
+            this.raw = raw;
+            this.buf = SimpleRingBuffer.wrap(raw);
+            this.pooled = pooled;
+        }
+    }
+
     private static final int MAX_INTERMEDIATE_BUFFER_CAPACITY = 1024 * 1024; // 1M
 
     /*might be replaced when switching*/ ByteBufferRingBuffer plainBufferForApp;
     protected final SimpleRingBuffer encryptedBufferForInput;
     protected final WritableHandler writableHandler = new WritableHandler();
-    private final Deque<ByteBufferRingBuffer> intermediateBuffers = new LinkedList<>();
+    private final Deque<IntermediateBuffer> intermediateBuffers = new LinkedList<>();
     private ByteBuffer temporaryBuffer = null;
 
     private boolean triggerWritable = false;
@@ -45,6 +58,18 @@ public abstract class AbstractUnwrapRingBuffer extends AbstractRingBuffer {
         this.encryptedBufferForInput = RingBuffer.allocateDirect(plainBufferForApp.capacity());
     }
 
+    /**
+     * record an exception raised out of the unwrapping process,
+     * it will be thrown when the buffer is used next time
+     *
+     * @param e the exception
+     */
+    protected void setException(IOException e) {
+        if (exceptionToThrow == null) {
+            exceptionToThrow = e;
+        }
+    }
+
     private void checkException() throws IOException {
         if (exceptionToThrow != null) {
             throw exceptionToThrow;
@@ -83,29 +108,85 @@ public abstract class AbstractUnwrapRingBuffer extends AbstractRingBuffer {
     }
 
     protected void recordIntermediateBuffer(ByteBuffer b) {
-        intermediateBuffers.add(SimpleRingBuffer.wrap(b));
+        intermediateBuffers.add(new IntermediateBuffer(b, false));
     }
 
     protected int intermediateBufferCap() {
         int cap = 0;
-        for (ByteBufferRingBuffer buf : intermediateBuffers) {
-            cap += buf.capacity();
+        for (IntermediateBuffer buf : intermediateBuffers) {
+            cap += buf.buf.capacity();
         }
         return cap;
     }
 
+    /**
+     * the temporary buffer is borrowed from the pool,
+     * and will be given back after the current handling process
+     * unless it's recorded by {@link #recordTemporaryBuffer()}
+     */
     protected ByteBuffer getTemporaryBuffer(int cap) {
         if (temporaryBuffer != null && temporaryBuffer.capacity() >= cap) {
             temporaryBuffer.limit(temporaryBuffer.capacity()).position(0);
             return temporaryBuffer;
         }
-        temporaryBuffer = ByteBuffer.allocate(cap);
+        releaseTemporaryBuffer();
+        temporaryBuffer = TemporaryBufferPool.borrow(cap);
         return temporaryBuffer;
     }
 
-    protected void discardTemporaryBuffer() {
+    /**
+     * flip the temporary buffer and record it as an intermediate buffer.
+     * the buffer will be given back to the pool when all data in it is flushed
+     */
+    protected void recordTemporaryBuffer() {
+        intermediateBuffers.add(new IntermediateBuffer(temporaryBuffer.flip(), true));
         temporaryBuffer = null;
     }
+
+    private void releaseTemporaryBuffer() {
+        if (temporaryBuffer != null) {
+            TemporaryBufferPool.giveBack(temporaryBuffer);
+            temporaryBuffer = null;
+        }
+    }
+
+    private void pollIntermediateBuffer() {
+        IntermediateBuffer buf = intermediateBuffers.pollFirst();
+        if (buf != null && buf.pooled) {
+            TemporaryBufferPool.giveBack(buf.raw);
+        }
+    }
+
+    /**
+     * run the op directly on the plain buffer for app, which saves a copy
+     * from the temporary buffer to the plain buffer.<br>
+     * the op will only run when no intermediate buffers are waiting to be flushed
+     * and the plain buffer has at least <code>minSpace</code> continuous free bytes
+     *
+     * @param minSpace the minimum continuous space required by the op
+     * @param op       the op, it should only store data into the buffer and handle errors by itself
+     * @return true if the op ran, false otherwise
+     */
+    protected boolean operateOnPlainBufferDirectly(int minSpace, Consumer<ByteBuffer> op) {
+        if (!intermediateBuffers.isEmpty()) {
+            return false;
+        }
+        boolean[] ran = {false};
+        try {
+            plainBufferForApp.operateOnByteBufferStoreIn(b -> {
+                if (ran[0] || b.limit() - b.position() < minSpace) {
+                    return true; // nothing to do
+                }
+                ran[0] = true;
+                op.accept(b);
+                return true;
+            });
+        } catch (IOException e) {
+            // it's memory operation, should not happen
+            Logger.shouldNotHappen("got exception when operating on plain buffer", e);
+        }
+        return ran[0];
+    }
     // -------------------
     // helper functions END
     // -------------------
@@ -141,18 +222,25 @@ public abstract class AbstractUnwrapRingBuffer extends AbstractRingBuffer {
             return;
         }
 
+        // whether any data is moved in this round
+        boolean progress = false;
+
         // check the intermediate buffers
         while (!intermediateBuffers.isEmpty()) {
-            ByteBufferRingBuffer buf = intermediateBuffers.peekFirst();
+            ByteBufferRingBuffer buf = intermediateBuffers.peekFirst().buf;
             int wrote = 0;
             if (buf.used() != 0) {
                 wrote = buf.writeTo(plainBufferForApp, Integer.MAX_VALUE);
             }
             assert Logger.lowLevelDebug("wrote " + wrote + " bytes to plain buffer");
+            if (wrote > 0) {
+                progress = true;
+            }
             // remove the buffer if all data wrote
             if (buf.used() == 0) {
-                intermediateBuffers.pollFirst();
+                pollIntermediateBuffer();
                 triggerWritable = true;
+                progress = true;
             }
             // break the process if no space for app buffer
             if (plainBufferForApp.free() == 0) {
@@ -171,15 +259,22 @@ public abstract class AbstractUnwrapRingBuffer extends AbstractRingBuffer {
                 if (intermediateBufferCap() > MAX_INTERMEDIATE_BUFFER_CAPACITY) {
                     break; // should not run the operation when capacity reaches the limit
                 }
+                int usedBefore = encryptedBufferForInput.used();
                 boolean canDefragment = encryptedBufferForInput.canDefragment();
                 boolean[] underflow = {false};
                 boolean[] errored = {false};
                 IOException[] ex = {null};
                 encryptedBufferForInput.operateOnByteBufferWriteOut(Integer.MAX_VALUE,
                     encryptedBuffer -> handleEncryptedBuffer(encryptedBuffer, underflow, errored, ex));
+                // the temporary buffer is not recorded, give it back
+                releaseTemporaryBuffer();
+                if (encryptedBufferForInput.used() != usedBefore) {
+                    progress = true;
+                }
                 if (underflow[0]) {
                     if (canDefragment) {
                         encryptedBufferForInput.defragment();
+                        progress = true; // the data may be continuous now, try again
                     } else {
                         assert Logger.lowLevelDebug("got underflow, but the encrypted buffer cannot defragment, maybe buffer limit to small, or data not enough yet");
                         errored[0] = true;
@@ -198,6 +293,13 @@ public abstract class AbstractUnwrapRingBuffer extends AbstractRingBuffer {
             }
         } while (false); // use do-while to implement goto
 
+        if (!progress) {
+            // e.g. the engine is waiting for the delegated task
+            // the unwrapping will be resumed when the task is done
+            assert Logger.lowLevelDebug("nothing handled in this round, exit");
+            return;
+        }
+
         // finally recursively call the method to make sure everything is done
         _generalUnwrap();
     }
@@ -10,6 +10,7 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Deque;
 import java.util.LinkedList;
+import java.util.function.Consumer;
 
 public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implements RingBuffer {
     // this handler is for plain data buffer
@@ -25,14 +26,27 @@ public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implemen
         }
     }
 
+    private static class IntermediateBuffer {
+        final ByteBuffer raw;
+        final ByteBufferRingBuffer buf;
+        final boolean pooled; // whether the raw buffer is borrowed from the pool
+
+        IntermediateBuffer(ByteBuffer raw, boolean pooled) {
+            this.raw = raw;
+            this.buf = SimpleRingBuffer.wrap(raw);
+            this.pooled = pooled;
+        }
+    }
+
     private static final int MAX_INTERMEDIATE_BUFFER_CAPACITY = 1024 * 1024; // 1M
 
     private /*might change when switching*/ ByteBufferRingBuffer plainBufferForApp;
     final SimpleRingBuffer encryptedBufferForOutput;
     private final ReadableHandler readableHandler = new ReadableHandler();
-    private final Deque<ByteBufferRingBuffer> intermediateBuffers = new LinkedList<>();
+    private final Deque<IntermediateBuffer> intermediateBuffers = new LinkedList<>();
     private ByteBuffer temporaryBuffer = null;
     private boolean triggerReadable = false;
+    private boolean wroteDirectly = false;
     protected boolean transferring = false;
     private IOException exceptionToThrow = null;
 
@@ -56,30 +70,91 @@ public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implemen
     }
 
     protected void recordIntermediateBuffer(ByteBuffer b) {
-        intermediateBuffers.add(SimpleRingBuffer.wrap(b));
+        intermediateBuffers.add(new IntermediateBuffer(b, false));
     }
 
     protected int intermediateBufferCap() {
         int cap = 0;
-        for (ByteBufferRingBuffer buf : intermediateBuffers) {
-            cap += buf.capacity();
+        for (IntermediateBuffer buf : intermediateBuffers) {
+            cap += buf.buf.capacity();
         }
         return cap;
     }
 
+    /**
+     * the temporary buffer is borrowed from the pool,
+     * and will be given back after the current handling process
+     * unless it's recorded by {@link #recordTemporaryBuffer()}
+     */
     protected ByteBuffer getTemporaryBuffer(int cap) {
         if (temporaryBuffer != null && temporaryBuffer.capacity() >= cap) {
             temporaryBuffer.limit(temporaryBuffer.capacity()).position(0);
             return temporaryBuffer;
         }
-        temporaryBuffer = ByteBuffer.allocate(cap);
+        releaseTemporaryBuffer();
+        temporaryBuffer = TemporaryBufferPool.borrow(cap);
         return temporaryBuffer;
     }
 
-    protected void discardTemporaryBuffer() {
+    /**
+     * flip the temporary buffer and record it as an intermediate buffer.
+     * the buffer will be given back to the pool when all data in it is flushed
+     */
+    protected void recordTemporaryBuffer() {
+        intermediateBuffers.add(new IntermediateBuffer(temporaryBuffer.flip(), true));
         temporaryBuffer = null;
     }
 
+    private void releaseTemporaryBuffer() {
+        if (temporaryBuffer != null) {
+            TemporaryBufferPool.giveBack(temporaryBuffer);
+            temporaryBuffer = null;
+        }
+    }
+
+    private void pollIntermediateBuffer() {
+        IntermediateBuffer buf = intermediateBuffers.pollFirst();
+        if (buf != null && buf.pooled) {
+            TemporaryBufferPool.giveBack(buf.raw);
+        }
+    }
+
+    /**
+     * run the op directly on the encrypted buffer for output, which saves a copy
+     * from the temporary buffer to the output buffer.<br>
+     * the op will only run when no intermediate buffers are waiting to be flushed
+     * and the output buffer has at least <code>minSpace</code> continuous free bytes
+     *
+     * @param minSpace the minimum continuous space required by the op
+     * @param op       the op, it should only store data into the buffer and handle errors by itself
+     * @return true if the op ran, false otherwise
+     */
+    protected boolean operateOnOutputBufferDirectly(int minSpace, Consumer<ByteBuffer> op) {
+        if (!intermediateBuffers.isEmpty()) {
+            return false;
+        }
+        boolean[] ran = {false};
+        int n = 0;
+        try {
+            n = encryptedBufferForOutput.operateOnByteBufferStoreIn(b -> {
+                if (ran[0] || b.limit() - b.position() < minSpace) {
+                    return true; // nothing to do
+                }
+                ran[0] = true;
+                op.accept(b);
+                return true;
+            });
+        } catch (IOException e) {
+            // it's memory operation, should not happen
+            Logger.shouldNotHappen("got exception when operating on output buffer", e);
+        }
+        if (n > 0) {
+            triggerReadable = true;
+            wroteDirectly = true;
+        }
+        return ran[0];
+    }
+
     void generalWrap() {
         if (isOperating()) {
             assert Logger.lowLevelDebug("generalWrap is operating");
@@ -123,7 +198,7 @@ public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implemen
         assert Logger.lowLevelDebug("calling _generalWrap");
         // first try to flush intermediate buffers into the output buffer
         while (!intermediateBuffers.isEmpty()) {
-            ByteBufferRingBuffer buffer = intermediateBuffers.peekFirst();
+            ByteBufferRingBuffer buffer = intermediateBuffers.peekFirst().buf;
             int wrote = 0;
             if (buffer.used() != 0) {
                 wrote = buffer.writeTo(encryptedBufferForOutput, Integer.MAX_VALUE);
@@ -134,7 +209,7 @@ public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implemen
             }
             // remove the buffer when all data flushed
             if (buffer.used() == 0) {
-                intermediateBuffers.pollFirst();
+                pollIntermediateBuffer();
             }
             if (encryptedBufferForOutput.free() == 0) {
                 // break the loop when there are no space in the output buffer
@@ -143,6 +218,7 @@ public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implemen
         }
 
         // then try to read data from the plain buffer
+        wroteDirectly = false;
         //noinspection ConstantConditions
         do {
             // check the intermediate capacity
@@ -160,6 +236,8 @@ public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implemen
                 IOException[] ex = {null};
                 plainBufferForApp.operateOnByteBufferWriteOut(Integer.MAX_VALUE,
                     bufferPlain -> handlePlainBuffer(bufferPlain, errored, ex));
+                // the temporary buffer is not recorded, give it back
+                releaseTemporaryBuffer();
                 if (ex[0] != null) {
                     assert Logger.lowLevelDebug("got exception from buffer" + ex[0]);
                     exceptionToThrow = ex[0];
@@ -176,7 +254,8 @@ public abstract class AbstractWrapRingBuffer extends AbstractRingBuffer implemen
 
         // check whether something should be handled
         // and recursively call the method to make sure everything is done
-        if ((!intermediateBuffers.isEmpty() && encryptedBufferForOutput.free() != 0)) {
+        // data wrote directly into the output buffer may not be all the data to be wrapped, e.g. handshaking
+        if ((!intermediateBuffers.isEmpty() || wroteDirectly) && encryptedBufferForOutput.free() != 0) {
             _generalWrap();
         }
     }
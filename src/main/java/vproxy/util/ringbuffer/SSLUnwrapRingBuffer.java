@@ -7,6 +7,7 @@ import vproxy.selector.SelectorEventLoop;
 import vproxy.util.*;
 import vproxy.util.nio.ByteArrayChannel;
 import vproxy.util.ringbuffer.ssl.SSL;
+import vproxy.util.ringbuffer.ssl.SSLTaskExecutor;
 
 import javax.net.ssl.*;
 import java.io.IOException;
@@ -32,6 +33,8 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
 
     // only used when resume if resumer not specified
     private SelectorEventLoop lastLoop = null;
+    // true when the delegated task is submitted and not done yet
+    private volatile boolean taskRunning = false;
 
     // for client
     SSLUnwrapRingBuffer(ByteBufferRingBuffer plainBufferForApp,
@@ -72,7 +75,18 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
     }
 
     private int createSSLEngine(ReadableByteChannel channel) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(16384); // should be enough for CLIENT_HELLO message
+        // should be enough for CLIENT_HELLO message
+        // the buffer is only used in this method, so borrow it from the pool
+        ByteBuffer buf = TemporaryBufferPool.borrow(16384);
+        try {
+            return createSSLEngine(channel, buf);
+        } finally {
+            TemporaryBufferPool.giveBack(buf);
+        }
+    }
+
+    private int createSSLEngine(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        buf.limit(16384);
         int n = channel.read(buf);
         buf.flip();
         SNIServerName sni;
@@ -157,8 +171,20 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
 
     @Override
     protected void handleEncryptedBuffer(ByteBuffer encryptedBuffer, boolean[] underflow, boolean[] errored, IOException[] ex) {
+        if (taskRunning) {
+            // the engine cannot consume any data before the task is done
+            // and the unwrapping will be resumed after the task
+            assert Logger.lowLevelDebug("delegated task is running, skip unwrapping");
+            return;
+        }
         final int positionBeforeHandling = encryptedBuffer.position();
 
+        // the mirror requires the plain bytes in a standalone buffer,
+        // so only unwrap directly into the app buffer when mirror is disabled
+        if (!Mirror.isEnabled() && unwrapDirectly(encryptedBuffer, underflow, errored, ex)) {
+            return;
+        }
+
         ByteBuffer plainBuffer = getTemporaryBuffer(engine.getSession().getApplicationBufferSize());
         SSLEngineResult result;
         try {
@@ -184,7 +210,7 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
             // reset the position in case it's modified
             encryptedBuffer.position(positionBeforeHandling);
             Logger.shouldNotHappen("the unwrapping returned BUFFER_OVERFLOW, do retry");
-            plainBuffer = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            plainBuffer = getTemporaryBuffer(engine.getSession().getApplicationBufferSize());
             try {
                 result = engine.unwrap(encryptedBuffer, plainBuffer);
             } catch (SSLException e) {
@@ -212,8 +238,7 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
             return;
         }
         if (plainBuffer.position() != 0) {
-            recordIntermediateBuffer(plainBuffer.flip());
-            discardTemporaryBuffer();
+            recordTemporaryBuffer();
         }
         if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
             assert result.getStatus() == SSLEngineResult.Status.OK;
@@ -222,12 +247,66 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
         }
     }
 
+    /**
+     * unwrap from the encrypted buffer into the plain buffer for app without using intermediate buffers
+     *
+     * @return true if the unwrapping is handled, false if it should fall back to the temporary buffer
+     */
+    private boolean unwrapDirectly(ByteBuffer encryptedBuffer, boolean[] underflow, boolean[] errored, IOException[] ex) {
+        final int positionBeforeHandling = encryptedBuffer.position();
+
+        SSLEngineResult[] resultHolder = {null};
+        SSLException[] exHolder = {null};
+        boolean ran = operateOnPlainBufferDirectly(engine.getSession().getApplicationBufferSize(), plainBuffer -> {
+            try {
+                resultHolder[0] = engine.unwrap(encryptedBuffer, plainBuffer);
+            } catch (SSLException e) {
+                exHolder[0] = e;
+            }
+        });
+        if (!ran) {
+            return false;
+        }
+        if (exHolder[0] != null) {
+            Logger.error(LogType.SSL_ERROR, "got error when unwrapping", exHolder[0]);
+            errored[0] = true;
+            ex[0] = exHolder[0];
+            return true;
+        }
+        SSLEngineResult result = resultHolder[0];
+
+        assert Logger.lowLevelDebug("unwrap directly: " + result);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            assert Logger.lowLevelDebug("the unwrapping returned CLOSED");
+            errored[0] = true;
+            ex[0] = new IOException(Utils.SSL_ENGINE_CLOSED_MSG);
+            return true;
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            // the session buffer size might have changed, let the normal process handle it
+            encryptedBuffer.position(positionBeforeHandling);
+            assert Logger.lowLevelDebug("got BUFFER_OVERFLOW when unwrapping directly, fall back to temporary buffer");
+            return false;
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+            encryptedBuffer.position(positionBeforeHandling);
+            assert Logger.lowLevelDebug("got BUFFER_UNDERFLOW when unwrapping directly, expecting: " + engine.getSession().getPacketBufferSize() + ", the buffer has " + (encryptedBuffer.limit() - encryptedBuffer.position()));
+            underflow[0] = true;
+            return true;
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            assert result.getStatus() == SSLEngineResult.Status.OK;
+        } else {
+            unwrapHandshake(result);
+        }
+        return true;
+    }
+
     private void unwrapHandshake(SSLEngineResult result) {
         assert Logger.lowLevelDebug("unwrapHandshake: " + result);
 
         SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
         if (status == SSLEngineResult.HandshakeStatus.FINISHED) {
             assert Logger.lowLevelDebug("handshake finished");
+            pair.handshakeFinished();
             // should call the wrapper to send data (if any present)
             resumeGeneralWrap();
             return;
@@ -238,15 +317,15 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
                 lastLoop = SelectorEventLoop.current();
                 assert Logger.lowLevelDebug("resumer not specified, so we use the current event loop: " + lastLoop);
             }
-            new Thread(() -> {
-                assert Logger.lowLevelDebug("TASK begins");
-                Runnable r;
-                while ((r = engine.getDelegatedTask()) != null) {
-                    r.run();
-                }
+            taskRunning = true;
+            SSLTaskExecutor.get().execute(SelectorEventLoop.current(), engine, () -> {
+                taskRunning = false;
                 assert Logger.lowLevelDebug("ssl engine returns " + engine.getHandshakeStatus() + " after task");
                 if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
                     resumeGeneralWrap();
+                    // the peer may have sent more handshake messages in the same flight
+                    // they are still in the encrypted buffer and should be unwrapped after wrapping
+                    resumeGeneralUnwrap();
                 } else if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
                     // when handshaking is finished
                     resumeGeneralWrap(); // we try to send data
@@ -254,7 +333,16 @@ public class SSLUnwrapRingBuffer extends AbstractUnwrapByteBufferRingBuffer impl
                 } else {
                     resumeGeneralUnwrap();
                 }
-            }).start();
+            }, err -> {
+                taskRunning = false;
+                doResume(() -> {
+                    setException(new IOException("ssl delegated task failed", err));
+                    // the handshake cannot continue, close the engine and let the wrapper send the alert,
+                    // the connection fails with the exception when the buffers are used next time
+                    engine.closeOutbound();
+                    pair.generalWrap();
+                });
+            });
             return;
         }
         if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
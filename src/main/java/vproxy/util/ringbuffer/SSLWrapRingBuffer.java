@@ -20,6 +20,7 @@ import java.nio.ByteBuffer;
  */
 public class SSLWrapRingBuffer extends AbstractWrapByteBufferRingBuffer implements RingBuffer {
     SSLEngine engine; // will be set when first bytes reaches if it's null
+    private Runnable handshakeDoneCallback; // will be called only once
 
     // for client
     SSLWrapRingBuffer(ByteBufferRingBuffer plainBytesBuffer,
@@ -36,6 +37,25 @@ public class SSLWrapRingBuffer extends AbstractWrapByteBufferRingBuffer implemen
         super(plainBytesBuffer);
     }
 
+    /**
+     * set a callback which will be called when the handshake is finished,
+     * no matter the last handshake message is sent or received
+     *
+     * @param handshakeDoneCallback the callback, will be called at most once
+     */
+    public void setHandshakeDoneCallback(Runnable handshakeDoneCallback) {
+        this.handshakeDoneCallback = handshakeDoneCallback;
+    }
+
+    void handshakeFinished() {
+        Runnable cb = handshakeDoneCallback;
+        if (cb == null) {
+            return;
+        }
+        handshakeDoneCallback = null;
+        cb.run();
+    }
+
     // wrap the first bytes for handshake or data
     // this may start the net flow to begin
     private void init() {
@@ -72,6 +92,10 @@ public class SSLWrapRingBuffer extends AbstractWrapByteBufferRingBuffer implemen
     protected void handlePlainBuffer(ByteBuffer bufferPlain, boolean[] errored, IOException[] ex) {
         final int positionBeforeHandling = bufferPlain.position();
 
+        if (wrapDirectly(bufferPlain, errored, ex)) {
+            return;
+        }
+
         ByteBuffer bufferEncrypted = getTemporaryBuffer(engine.getSession().getPacketBufferSize());
         SSLEngineResult result;
         try {
@@ -98,7 +122,7 @@ public class SSLWrapRingBuffer extends AbstractWrapByteBufferRingBuffer implemen
             bufferPlain.position(positionBeforeHandling);
 
             assert Logger.lowLevelDebug("buffer overflow, so make a bigger buffer and try again");
-            bufferEncrypted = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            bufferEncrypted = getTemporaryBuffer(engine.getSession().getPacketBufferSize());
             try {
                 result = engine.wrap(bufferPlain, bufferEncrypted);
             } catch (SSLException e) {
@@ -123,8 +147,62 @@ public class SSLWrapRingBuffer extends AbstractWrapByteBufferRingBuffer implemen
             return;
         }
         if (bufferEncrypted.position() != 0) {
-            recordIntermediateBuffer(bufferEncrypted.flip());
-            discardTemporaryBuffer();
+            recordTemporaryBuffer();
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            transferring = true; // not handshaking, so we can transfer data
+            assert result.getStatus() == SSLEngineResult.Status.OK;
+        } else {
+            wrapHandshake(result);
+        }
+    }
+
+    /**
+     * wrap from the plain buffer into the encrypted buffer for output without using intermediate buffers
+     *
+     * @return true if the wrapping is handled, false if it should fall back to the temporary buffer
+     */
+    private boolean wrapDirectly(ByteBuffer bufferPlain, boolean[] errored, IOException[] ex) {
+        final int positionBeforeHandling = bufferPlain.position();
+
+        SSLEngineResult[] resultHolder = {null};
+        SSLException[] exHolder = {null};
+        boolean ran = operateOnOutputBufferDirectly(engine.getSession().getPacketBufferSize(), bufferEncrypted -> {
+            try {
+                resultHolder[0] = engine.wrap(bufferPlain, bufferEncrypted);
+            } catch (SSLException e) {
+                exHolder[0] = e;
+            }
+        });
+        if (!ran) {
+            return false;
+        }
+        if (exHolder[0] != null) {
+            Logger.error(LogType.SSL_ERROR, "got error when wrapping", exHolder[0]);
+            errored[0] = true;
+            ex[0] = exHolder[0];
+            return true;
+        }
+        SSLEngineResult result = resultHolder[0];
+
+        if (Mirror.isEnabled()) {
+            mirror(bufferPlain, positionBeforeHandling, result);
+        }
+
+        assert Logger.lowLevelDebug("wrap directly: " + result);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            assert Logger.lowLevelDebug("the wrapping returned CLOSED");
+            errored[0] = true;
+            ex[0] = new IOException(Utils.SSL_ENGINE_CLOSED_MSG);
+            return true;
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            // the session buffer size might have changed, let the normal process handle it
+            bufferPlain.position(positionBeforeHandling);
+            assert Logger.lowLevelDebug("got BUFFER_OVERFLOW when wrapping directly, fall back to temporary buffer");
+            return false;
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+            assert Logger.lowLevelDebug("buffer underflow, waiting for more data");
+            return true;
         }
         if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
             transferring = true; // not handshaking, so we can transfer data
@@ -132,6 +210,7 @@ public class SSLWrapRingBuffer extends AbstractWrapByteBufferRingBuffer implemen
         } else {
             wrapHandshake(result);
         }
+        return true;
     }
 
     private void wrapHandshake(SSLEngineResult result) {
@@ -140,6 +219,7 @@ public class SSLWrapRingBuffer extends AbstractWrapByteBufferRingBuffer implemen
         SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
         if (status == SSLEngineResult.HandshakeStatus.FINISHED) {
             assert Logger.lowLevelDebug("handshake finished");
+            handshakeFinished();
             return;
         }
         if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
@@ -0,0 +1,42 @@
+package vproxy.util.ringbuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * the pool for temporary buffers used when wrapping/unwrapping.<br>
+ * the pool is thread local, which means each event loop has its own pool.<br>
+ * buffers are borrowed when handling data, and given back when they are not
+ * used any more, so idle connections will not hold these buffers
+ */
+class TemporaryBufferPool {
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>> pool = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private TemporaryBufferPool() {
+    }
+
+    /**
+     * @param cap minimum capacity of the buffer
+     * @return a cleared buffer, with capacity at least <code>cap</code>
+     */
+    static ByteBuffer borrow(int cap) {
+        ArrayDeque<ByteBuffer> q = pool.get();
+        ByteBuffer b = q.pollLast();
+        if (b == null || b.capacity() < cap) {
+            // usually all buffers are of the same size (the ssl packet/application buffer size)
+            // so we simply drop the small buffer
+            return ByteBuffer.allocate(cap);
+        }
+        b.clear();
+        return b;
+    }
+
+    static void giveBack(ByteBuffer b) {
+        ArrayDeque<ByteBuffer> q = pool.get();
+        if (q.size() >= MAX_POOLED_BUFFERS) {
+            return; // let gc handle it
+        }
+        q.addLast(b);
+    }
+}
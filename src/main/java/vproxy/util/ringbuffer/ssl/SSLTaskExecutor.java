@@ -0,0 +1,205 @@
+package vproxy.util.ringbuffer.ssl;
+
+import vproxy.app.Config;
+import vproxy.util.LogType;
+import vproxy.util.Logger;
+
+import javax.net.ssl.SSLEngine;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * run SSLEngine delegated tasks (the handshake crypto) out of the event loops.<br>
+ * tasks run on a bounded thread pool shared by all loops,
+ * and the number of handshakes running tasks at the same time is limited for each loop,
+ * handshakes exceeding the limit wait in the pending queue of the loop
+ */
+public class SSLTaskExecutor {
+    private static final SSLTaskExecutor instance = new SSLTaskExecutor(
+        Config.sslTaskThreads, Config.sslMaxConcurrentHandshakesPerLoop);
+
+    public static SSLTaskExecutor get() {
+        return instance;
+    }
+
+    private static class Job {
+        final Supplier<Runnable> supplier;
+        final Runnable done;
+        final Consumer<Throwable> failed;
+        final long submitTime;
+
+        Job(Supplier<Runnable> supplier, Runnable done, Consumer<Throwable> failed) {
+            this.supplier = supplier;
+            this.done = done;
+            this.failed = failed;
+            this.submitTime = System.nanoTime();
+        }
+    }
+
+    private static class LoopTasks {
+        int running = 0;
+        final Deque<Job> pending = new LinkedList<>();
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final int maxConcurrentPerLoop;
+    // loop => tasks of the loop, the loop object is only used as a key
+    private final Map<Object, LoopTasks> loopTasks = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // --- START statistics ---
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalRunNanos = new LongAdder();
+    // --- END statistics ---
+
+    public SSLTaskExecutor(int threads, int maxConcurrentPerLoop) {
+        this.maxConcurrentPerLoop = maxConcurrentPerLoop;
+        AtomicInteger threadId = new AtomicInteger(0);
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "ssl-task-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * run all delegated tasks of the engine
+     *
+     * @param loop   the loop which the engine belongs to, used to limit concurrent handshakes, may be null
+     * @param engine the engine
+     * @param done   will be called on the executor thread when all delegated tasks are done
+     * @param failed will be called on the executor thread when a delegated task throws
+     */
+    public void execute(Object loop, SSLEngine engine, Runnable done, Consumer<Throwable> failed) {
+        execute(loop, engine::getDelegatedTask, done, failed);
+    }
+
+    /**
+     * run tasks retrieved from the supplier until it returns null
+     *
+     * @param loop     the loop which the tasks belong to, used to limit concurrent handshakes, may be null
+     * @param supplier the task supplier
+     * @param done     will be called on the executor thread when all tasks are done
+     * @param failed   will be called on the executor thread when a task throws
+     */
+    public void execute(Object loop, Supplier<Runnable> supplier, Runnable done, Consumer<Throwable> failed) {
+        Job job = new Job(supplier, done, failed);
+        waiting.incrementAndGet();
+        if (loop == null) {
+            // cannot limit, directly run
+            submit(null, job);
+            return;
+        }
+        LoopTasks tasks = loopTasks.computeIfAbsent(loop, k -> new LoopTasks());
+        synchronized (tasks) {
+            if (tasks.running >= maxConcurrentPerLoop) {
+                assert Logger.lowLevelDebug("concurrent handshakes of " + loop + " reaches the limit " + maxConcurrentPerLoop + ", pending");
+                tasks.pending.add(job);
+                return;
+            }
+            ++tasks.running;
+        }
+        submit(tasks, job);
+    }
+
+    private void submit(LoopTasks tasks, Job job) {
+        pool.execute(() -> {
+            waiting.decrementAndGet();
+            running.incrementAndGet();
+            long start = System.nanoTime();
+            totalWaitNanos.add(start - job.submitTime);
+            Throwable err = null;
+            try {
+                assert Logger.lowLevelDebug("TASK begins");
+                Runnable r;
+                while ((r = job.supplier.get()) != null) {
+                    r.run();
+                }
+            } catch (Throwable t) {
+                Logger.error(LogType.SSL_ERROR, "got exception when running ssl delegated task", t);
+                err = t;
+                failed.increment();
+            } finally {
+                totalRunNanos.add(System.nanoTime() - start);
+                running.decrementAndGet();
+                completed.increment();
+            }
+            // the slot of the loop must be released whatever the callback does
+            try {
+                if (err == null) {
+                    job.done.run();
+                } else {
+                    job.failed.accept(err);
+                }
+            } catch (Throwable t) {
+                Logger.error(LogType.IMPROPER_USE, "got exception in ssl delegated task callback", t);
+            } finally {
+                if (tasks != null) {
+                    next(tasks);
+                }
+            }
+        });
+    }
+
+    private void next(LoopTasks tasks) {
+        Job job;
+        synchronized (tasks) {
+            job = tasks.pending.poll();
+            if (job == null) {
+                --tasks.running;
+                return;
+            }
+            // keep the running count because the slot is taken by the polled job
+        }
+        submit(tasks, job);
+    }
+
+    /**
+     * @return count of handshakes waiting for running tasks, including those limited by loops
+     */
+    public int getQueueDepth() {
+        return waiting.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.longValue();
+    }
+
+    public long getFailedCount() {
+        return failed.longValue();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.longValue();
+    }
+
+    public long getTotalRunNanos() {
+        return totalRunNanos.longValue();
+    }
+
+    public int getMaxConcurrentHandshakesPerLoop() {
+        return maxConcurrentPerLoop;
+    }
+
+    public int getThreads() {
+        return pool.getMaximumPoolSize();
+    }
+}
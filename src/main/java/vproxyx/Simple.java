@@ -214,7 +214,8 @@ public class Simple {
             4096,
             protocol,
             certpath == null ? null : new CertKey[]{Application.get().certKeyHolder.get("crt")},
-            SecurityGroup.allowAll());
+            SecurityGroup.allowAll(),
+            0);
 
         // might be able to run dns?
         Logger.alert("try to launch dns server on 53 (optional)");
@@ -0,0 +1,84 @@
+package vproxy.poc;
+
+import com.twitter.hpack.Decoder;
+import com.twitter.hpack.Encoder;
+import vproxy.util.ByteArray;
+import vproxy.util.io.ArrayInputStream;
+import vproxy.util.io.ArrayOutputStream;
+
+// measure header blocks encoded and decoded per second on one core, with the original and the table driven huffman coder
+// the dynamic table size is 0, so every header is encoded as a literal and huffman coded each time
+// the coders to run can be specified in args, e.g. fast, default: origin fast
+// run them in separate processes for stable numbers
+public class HPackHuffmanBenchmark {
+    private static final int ROUNDS = 500_000;
+    private static final String[][] HEADERS = {
+        {":method", "POST"},
+        {":scheme", "https"},
+        {":authority", "www.example.com"},
+        {":path", "/api/v1/users/12345/orders?limit=20&offset=40"},
+        {"user-agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/77.0 Safari/537.36"},
+        {"accept", "application/json, text/plain, */*"},
+        {"accept-encoding", "gzip, deflate, br"},
+        {"accept-language", "en-US,en;q=0.9"},
+        {"cookie", "session=0123456789abcdef0123456789abcdef; theme=dark"},
+        {"content-type", "application/json"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        byte[][] names = new byte[HEADERS.length][];
+        byte[][] values = new byte[HEADERS.length][];
+        for (int i = 0; i < HEADERS.length; ++i) {
+            names[i] = HEADERS[i][0].getBytes();
+            values[i] = HEADERS[i][1].getBytes();
+        }
+        if (args.length == 0) {
+            args = new String[]{"origin", "fast"};
+        }
+        for (String arg : args) {
+            boolean fast = arg.equals("fast");
+            Encoder encoder = new Encoder(0, fast);
+            Decoder decoder = new Decoder(65536, 0, fast);
+            ArrayOutputStream out = ArrayOutputStream.to(ByteArray.from(new byte[65536]));
+            ByteArray block = null;
+
+            // warm up
+            for (int i = 0; i < ROUNDS; ++i) {
+                block = encodeBlock(encoder, out, names, values);
+                decodeBlock(decoder, block);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; ++i) {
+                encodeBlock(encoder, out, names, values);
+            }
+            long encodeCost = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; ++i) {
+                decodeBlock(decoder, block);
+            }
+            long decodeCost = System.nanoTime() - start;
+
+            System.out.printf("%-8s encode %10.0f blocks/s %8.1f ns/block, decode %10.0f blocks/s %8.1f ns/block%n",
+                fast ? "fast" : "origin",
+                ROUNDS * 1_000_000_000.0 / encodeCost, encodeCost / (double) ROUNDS,
+                ROUNDS * 1_000_000_000.0 / decodeCost, decodeCost / (double) ROUNDS);
+        }
+    }
+
+    private static ByteArray encodeBlock(Encoder encoder, ArrayOutputStream out, byte[][] names, byte[][] values) throws Exception {
+        for (int i = 0; i < names.length; ++i) {
+            encoder.encodeHeader(out, names[i], values[i], false);
+        }
+        return out.get();
+    }
+
+    private static void decodeBlock(Decoder decoder, ByteArray block) throws Exception {
+        decoder.decode(ArrayInputStream.from(block), (name, value, sensitive) -> {
+        });
+        if (decoder.endHeaderBlock()) {
+            throw new Exception("the header list is truncated");
+        }
+    }
+}
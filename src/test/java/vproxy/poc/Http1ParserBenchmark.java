@@ -0,0 +1,67 @@
+package vproxy.poc;
+
+import vproxy.processor.Processor;
+import vproxy.processor.http1.HttpContext;
+import vproxy.processor.http1.HttpProcessor;
+import vproxy.processor.http1.HttpSubContext;
+import vproxy.util.ByteArray;
+
+import java.net.InetSocketAddress;
+
+// measure requests parsed per second on one core by the http/1.x processor
+// the requests are fed into one frontend sub context as a keep-alive connection,
+// and the pipelined requests are retrieved one by one as the processor lib does
+// the count of requests in each buffer can be specified in args, e.g. 1 16, default: 1 16
+public class Http1ParserBenchmark {
+    private static final int ROUNDS = 1_000_000;
+    private static final String REQUEST = "" +
+        "POST /api/v1/users/12345/orders?limit=20&offset=40 HTTP/1.1\r\n" +
+        "Host: www.example.com\r\n" +
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/77.0 Safari/537.36\r\n" +
+        "Accept: application/json, text/plain, */*\r\n" +
+        "Accept-Encoding: gzip, deflate, br\r\n" +
+        "Accept-Language: en-US,en;q=0.9\r\n" +
+        "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark\r\n" +
+        "Content-Type: application/json\r\n" +
+        "Content-Length: 27\r\n" +
+        "\r\n" +
+        "{\"item\":42,\"quantity\":1024}";
+
+    public static void main(String[] args) throws Exception {
+        int[] pipelined = {1, 16};
+        if (args.length > 0) {
+            pipelined = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                pipelined[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int n : pipelined) {
+            ByteArray data = ByteArray.from(REQUEST.repeat(n).getBytes());
+            Processor<HttpContext, HttpSubContext> p = new HttpProcessor();
+            HttpContext ctx = p.init(new InetSocketAddress("10.0.0.1", 12345));
+            HttpSubContext front = p.initSub(ctx, 0, null);
+
+            ByteArray empty = ByteArray.from(new byte[0]);
+            int rounds = ROUNDS / n;
+            // warm up
+            for (int i = 0; i < rounds; ++i) {
+                front.feed(data);
+                // the pipelined requests are returned one by one
+                while (front.len() == 0) {
+                    front.feed(empty);
+                }
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; ++i) {
+                front.feed(data);
+                while (front.len() == 0) {
+                    front.feed(empty);
+                }
+            }
+            long cost = System.nanoTime() - start;
+            long requests = (long) rounds * n;
+            System.out.printf("requests/buffer=%-4d %10.0f req/s %8.1f ns/req%n",
+                n, requests * 1_000_000_000.0 / cost, cost / (double) requests);
+        }
+    }
+}
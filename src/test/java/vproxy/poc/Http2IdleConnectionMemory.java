@@ -0,0 +1,64 @@
+package vproxy.poc;
+
+import vproxy.processor.Processor;
+import vproxy.processor.http2.Http2Context;
+import vproxy.processor.http2.Http2Processor;
+import vproxy.processor.http2.Http2SubContext;
+import vproxy.util.ByteArray;
+
+import java.net.InetSocketAddress;
+
+// measure the heap retained by the h2 processor for each idle frontend connection
+// each connection finishes the client preface and the first SETTINGS frame, and then stays idle
+// the count of connections can be specified in args, e.g. 10000, default: 10000
+public class Http2IdleConnectionMemory {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+    private static final byte[] SETTINGS = {
+        0, 0, 6, // length
+        0x4, // SETTINGS
+        0, // flags
+        0, 0, 0, 0, // stream id
+        0, 0x4, 0, 0, (byte) 0xff, (byte) 0xff, // SETTINGS_INITIAL_WINDOW_SIZE = 65535
+    };
+
+    public static void main(String[] args) throws Exception {
+        int count = 10000;
+        if (args.length > 0) {
+            count = Integer.parseInt(args[0]);
+        }
+        Processor<Http2Context, Http2SubContext> p = new Http2Processor();
+        // warm up, let the classes and the static fields load
+        handshake(p, 0);
+
+        Object[] holder = new Object[count];
+        long before = usedMemory();
+        for (int i = 0; i < count; ++i) {
+            holder[i] = handshake(p, i);
+        }
+        long after = usedMemory();
+        System.out.printf("connections=%d %10.1f bytes/conn%n", count, (after - before) / (double) count);
+        if (holder[count - 1] == null) { // keep the contexts reachable until measured
+            throw new Error("should not reach here");
+        }
+    }
+
+    private static Http2Context handshake(Processor<Http2Context, Http2SubContext> p, int i) throws Exception {
+        Http2Context ctx = p.init(new InetSocketAddress("10.0.0.1", 10000 + i % 50000));
+        Http2SubContext front = p.initSub(ctx, 0, null);
+        ByteArray head = ByteArray.from(PREFACE).concat(ByteArray.from(SETTINGS).sub(0, 9));
+        ByteArray payload = ByteArray.from(SETTINGS).sub(9, SETTINGS.length - 9);
+        p.feed(ctx, front, head);
+        p.feed(ctx, front, payload);
+        p.produce(ctx, front);
+        return ctx;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,81 @@
+package vproxy.poc;
+
+import vproxy.util.Maglev;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// measure the cost of building the maglev table and looking up, and the disruption when the elements change
+// remap: the fraction of lookups mapped to another element after removing/adding one element, ideally 1/n
+public class MaglevBenchmark {
+    private static final int[] SIZES = {10, 100, 1000, 10000};
+    private static final int LOOKUPS = 200_000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        Random rand = new Random(1);
+        long[] hashes = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; ++i) {
+            int ip = rand.nextInt();
+            hashes[i] = Maglev.hash(new byte[]{(byte) (ip >> 24), (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip});
+        }
+
+        for (int n : SIZES) {
+            long[] keys = keys(n, 0);
+            int[] weights = new int[n];
+            Arrays.fill(weights, 10);
+
+            long start = System.nanoTime();
+            Maglev m = new Maglev(keys, weights);
+            long buildCost = System.nanoTime() - start;
+
+            long sum = 0;
+            // warm up
+            for (long h : hashes) {
+                sum += m.lookup(h);
+            }
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; ++round) {
+                for (long h : hashes) {
+                    sum += m.lookup(h);
+                }
+            }
+            long lookupCost = System.nanoTime() - start;
+
+            // remove one element
+            long[] removedKeys = Arrays.copyOfRange(keys, 1, n);
+            Maglev removed = new Maglev(removedKeys, Arrays.copyOf(weights, n - 1));
+            // add one element
+            long[] addedKeys = Arrays.copyOf(keys, n + 1);
+            addedKeys[n] = keys(1, n)[0];
+            int[] addedWeights = Arrays.copyOf(weights, n + 1);
+            addedWeights[n] = 10;
+            Maglev added = new Maglev(addedKeys, addedWeights);
+
+            System.out.printf("n=%-6d table=%-6d build %8.2fms lookup %6.2fns/op remap: remove one %.4f%% add one %.4f%% ideal %.4f%% (%d)%n",
+                n, m.size(), buildCost / 1_000_000.0, lookupCost / (double) ROUNDS / hashes.length,
+                remapFraction(hashes, keys, m, removedKeys, removed) * 100,
+                remapFraction(hashes, keys, m, addedKeys, added) * 100,
+                100.0 / n, sum);
+        }
+    }
+
+    private static long[] keys(int n, int start) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; ++i) {
+            int ip = start + i;
+            keys[i] = Maglev.hash(new byte[]{10, (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip, 0x1f, (byte) 0x90});
+        }
+        return keys;
+    }
+
+    private static double remapFraction(long[] hashes, long[] keysA, Maglev a, long[] keysB, Maglev b) {
+        int moved = 0;
+        for (long h : hashes) {
+            if (keysA[a.lookup(h)] != keysB[b.lookup(h)]) {
+                ++moved;
+            }
+        }
+        return moved / (double) hashes.length;
+    }
+}
@@ -0,0 +1,169 @@
+package vproxy.poc;
+
+import vproxy.component.ssl.CertKey;
+import vproxy.openssl.OpenSSL;
+import vproxy.openssl.OpenSSLContext;
+import vproxy.test.cases.TestSSL;
+
+import javax.net.ssl.*;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+
+// compare the jdk engine and the openssl engine (make openssl, then run with -Djava.library.path=src/main/c)
+// handshakes/s: full handshakes on one core, delegated tasks run in the same thread
+// throughput: 16K records wrapped by the client and unwrapped by the server, between direct buffers as ring buffers do
+// the protocol can be specified in args, e.g. TLSv1.2, default: TLSv1.3
+public class SSLEngineBenchmark {
+    private static final int HANDSHAKES = 2_000;
+    private static final long BYTES = 1024L * 1024 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    public static void main(String[] args) throws Exception {
+        String protocol = args.length > 0 ? args[0] : "TLSv1.3";
+
+        SSLContext jdkServer = new CertKey("bench", new String[]{TestSSL.TEST_CERT}, TestSSL.TEST_KEY).buildSSLContext();
+        SSLContext jdkClient = SSLContext.getInstance("TLS");
+        jdkClient.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        run("jdk", jdkServer, jdkClient, protocol);
+
+        if (!OpenSSL.isAvailable()) {
+            System.out.println("openssl engine is skipped: vopenssl lib not found on java.library.path");
+            return;
+        }
+        SSLContext opensslServer = OpenSSLContext.create(new String[]{TestSSL.TEST_CERT}, TestSSL.TEST_KEY);
+        SSLContext opensslClient = OpenSSLContext.create(null, null);
+        run("openssl", opensslServer, opensslClient, protocol);
+    }
+
+    private static void run(String name, SSLContext serverCtx, SSLContext clientCtx, String protocol) throws Exception {
+        ByteBuffer c2s = ByteBuffer.allocateDirect(65536);
+        ByteBuffer s2c = ByteBuffer.allocateDirect(65536);
+        ByteBuffer app = ByteBuffer.allocateDirect(65536);
+
+        // warm up
+        for (int i = 0; i < HANDSHAKES / 2; ++i) {
+            handshake(serverCtx, clientCtx, protocol, c2s, s2c, app);
+        }
+        long start = System.nanoTime();
+        SSLEngine[] pair = null;
+        for (int i = 0; i < HANDSHAKES; ++i) {
+            pair = handshake(serverCtx, clientCtx, protocol, c2s, s2c, app);
+        }
+        long handshakeCost = System.nanoTime() - start;
+
+        SSLEngine server = pair[0];
+        SSLEngine client = pair[1];
+        ByteBuffer plain = ByteBuffer.allocateDirect(16384);
+        while (plain.hasRemaining()) {
+            plain.put((byte) plain.position());
+        }
+        ByteBuffer net = ByteBuffer.allocateDirect(32768);
+        ByteBuffer out = ByteBuffer.allocateDirect(32768);
+        long total = 0;
+        // warm up
+        for (int i = 0; i < 10_000; ++i) {
+            transfer(client, server, plain, net, out);
+        }
+        start = System.nanoTime();
+        while (total < BYTES) {
+            total += transfer(client, server, plain, net, out);
+        }
+        long transferCost = System.nanoTime() - start;
+
+        System.out.printf("engine=%-8s protocol=%s cipher=%-30s %8.0f handshakes/s %8.1f MB/s%n",
+            name, server.getSession().getProtocol(), server.getSession().getCipherSuite(),
+            HANDSHAKES * 1_000_000_000.0 / handshakeCost,
+            total / 1024.0 / 1024.0 * 1_000_000_000.0 / transferCost);
+    }
+
+    private static SSLEngine[] handshake(SSLContext serverCtx, SSLContext clientCtx, String protocol,
+                                         ByteBuffer c2s, ByteBuffer s2c, ByteBuffer app) throws Exception {
+        c2s.clear();
+        s2c.clear();
+        SSLEngine server = serverCtx.createSSLEngine();
+        server.setUseClientMode(false);
+        SSLEngine client = clientCtx.createSSLEngine("vproxy.cassite.net", 443);
+        client.setUseClientMode(true);
+        client.setEnabledProtocols(new String[]{protocol});
+        client.beginHandshake();
+        server.beginHandshake();
+
+        //noinspection StatementWithEmptyBody
+        while (pump(client, c2s, s2c, app) | pump(server, s2c, c2s, app)) {
+        }
+        if (client.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+            || server.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            throw new IllegalStateException("handshake not finished: client=" + client.getHandshakeStatus() + ", server=" + server.getHandshakeStatus());
+        }
+        return new SSLEngine[]{server, client};
+    }
+
+    // run the handshake of the engine until it waits for the peer
+    // returns true if anything is done
+    private static boolean pump(SSLEngine engine, ByteBuffer out, ByteBuffer in, ByteBuffer app) throws SSLException {
+        boolean progress = false;
+        while (true) {
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable r;
+                    while ((r = engine.getDelegatedTask()) != null) {
+                        r.run();
+                    }
+                    progress = true;
+                    continue;
+                case NEED_WRAP:
+                    result = engine.wrap(EMPTY, out);
+                    if (result.bytesProduced() == 0 && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED) {
+                        return progress;
+                    }
+                    progress = true;
+                    continue;
+                case NEED_UNWRAP:
+                    in.flip();
+                    app.clear();
+                    result = engine.unwrap(in, app);
+                    in.compact();
+                    if (result.bytesConsumed() == 0 && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED
+                        && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        return progress;
+                    }
+                    progress = true;
+                    continue;
+                default:
+                    return progress;
+            }
+        }
+    }
+
+    private static int transfer(SSLEngine client, SSLEngine server, ByteBuffer plain, ByteBuffer net, ByteBuffer out) throws SSLException {
+        plain.clear();
+        out.clear();
+        // the jdk engine may split the 16K plain bytes into more than one record
+        while (plain.hasRemaining()) {
+            net.clear();
+            client.wrap(plain, net);
+            net.flip();
+            while (net.hasRemaining()) {
+                server.unwrap(net, out);
+            }
+        }
+        if (out.position() != plain.capacity()) {
+            throw new IllegalStateException("unexpected transfer: out=" + out.position());
+        }
+        return out.position();
+    }
+}
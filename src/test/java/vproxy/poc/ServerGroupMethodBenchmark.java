@@ -0,0 +1,56 @@
+package vproxy.poc;
+
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+
+import java.net.InetSocketAddress;
+
+// measure the cost of selecting a server with different methods and group sizes
+// methods can be specified in args, e.g. wlc p2c-ewma, default: all methods
+public class ServerGroupMethodBenchmark {
+    private static final int[] SIZES = {10, 100, 1000, 2000};
+    private static final int ROUNDS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        EventLoopGroup elg = new EventLoopGroup("elg");
+        InetSocketAddress client = new InetSocketAddress("10.0.0.1", 12345);
+        Method[] methods = Method.values();
+        if (args.length > 0) {
+            methods = new Method[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                methods[i] = Method.of(args[i]);
+            }
+        }
+        for (Method method : methods) {
+            for (int size : SIZES) {
+                ServerGroup sg = new ServerGroup("sg-" + method + "-" + size, elg,
+                    new HealthCheckConfig(1000, /* disable health check */24 * 60 * 60 * 1000, 2, 3), method);
+                for (int i = 0; i < size; ++i) {
+                    sg.add("s" + i, new InetSocketAddress("127.0." + (i / 250) + "." + (i % 250 + 1), 80), 10 + i % 5);
+                }
+                for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+                    h.healthy = true;
+                }
+                // make 1% of the servers down
+                for (int i = 0; i < size; i += 100) {
+                    sg.getServerHandles().get(i).healthy = false;
+                }
+
+                // warm up
+                for (int i = 0; i < ROUNDS; ++i) {
+                    sg.next(client);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < ROUNDS; ++i) {
+                    sg.next(client);
+                }
+                long cost = System.nanoTime() - start;
+                System.out.printf("%-10s servers=%-6d %8.1f ns/op%n", method, size, cost / (double) ROUNDS);
+                sg.clear();
+            }
+        }
+        elg.close();
+    }
+}
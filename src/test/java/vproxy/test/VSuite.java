@@ -15,11 +15,16 @@ import vproxy.test.cases.*;
     TestSocks5.class,
     TestConnectClient.class,
     TestSSL.class,
+    TestSSLTaskExecutor.class,
     TestProtocols.class,
     TestHttp1Parser.class,
+    TestHPackHuffman.class,
     TestHealthCheck.class,
     TestPacket.class,
     TestRouteTable.class,
+    TestMaglev.class,
+    TestServerGroup.class,
+    TestUpstream.class,
 
     AfterAll.class
 })
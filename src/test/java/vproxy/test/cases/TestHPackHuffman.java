@@ -0,0 +1,162 @@
+package vproxy.test.cases;
+
+import com.twitter.hpack.Decoder;
+import com.twitter.hpack.Encoder;
+import org.junit.Test;
+import vproxy.util.ByteArray;
+import vproxy.util.io.ArrayInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// the table driven huffman coder must produce the same results as the original one
+public class TestHPackHuffman {
+    private static final int ROUNDS = 20000;
+    private static final byte[] HEADER_CHARS = ("" +
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789" +
+        "-_.~:/?#[]@!$&'()*+,;=% \"<>{}|\\^`").getBytes();
+
+    private final Random rand = new Random(20191019);
+
+    // the decoder does not emit an empty value at the end of the input until more data comes
+    // so the strings are not empty
+    private byte[] randomString() {
+        int len = 1 + (rand.nextInt(4) == 0 ? rand.nextInt(300) : rand.nextInt(40));
+        byte[] b = new byte[len];
+        boolean binary = rand.nextInt(4) == 0;
+        for (int i = 0; i < len; ++i) {
+            b[i] = binary ? (byte) rand.nextInt(256) : HEADER_CHARS[rand.nextInt(HEADER_CHARS.length)];
+        }
+        return b;
+    }
+
+    private static byte[] encode(Encoder encoder, byte[][] headers) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < headers.length; i += 2) {
+            encoder.encodeHeader(out, headers[i], headers[i + 1], false);
+        }
+        return out.toByteArray();
+    }
+
+    // returns the decoded headers, or the exception message
+    private static List<String> decode(Decoder decoder, byte[] block) {
+        List<String> ret = new ArrayList<>();
+        try {
+            decoder.decode(ArrayInputStream.from(ByteArray.from(block)), (name, value, sensitive) -> {
+                ret.add(ByteArray.from(name).toHexString());
+                ret.add(ByteArray.from(value).toHexString());
+            });
+            decoder.endHeaderBlock();
+        } catch (IOException e) {
+            ret.add("exception: " + e.getMessage());
+        }
+        return ret;
+    }
+
+    // a literal header field without indexing: name "x", and the value as a huffman coded string
+    private static byte[] huffmanLiteral(byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x00);
+        out.write(0x01);
+        out.write('x');
+        int len = value.length;
+        if (len < 127) {
+            out.write(0x80 | len);
+        } else {
+            out.write(0xFF);
+            len -= 127;
+            while (len >= 128) {
+                out.write((len & 0x7F) | 0x80);
+                len >>>= 7;
+            }
+            out.write(len);
+        }
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void encode() throws Exception {
+        Encoder origin = new Encoder(4096, false);
+        Encoder fast = new Encoder(4096, true);
+        for (int i = 0; i < ROUNDS; ++i) {
+            byte[][] headers = new byte[2 + 2 * rand.nextInt(4)][];
+            for (int j = 0; j < headers.length; ++j) {
+                headers[j] = randomString();
+            }
+            assertArrayEquals(encode(origin, headers), encode(fast, headers));
+        }
+    }
+
+    @Test
+    public void decode() throws Exception {
+        Encoder encoder = new Encoder(4096);
+        Decoder origin = new Decoder(65536, 4096, false);
+        Decoder fast = new Decoder(65536, 4096, true);
+        for (int i = 0; i < ROUNDS; ++i) {
+            byte[][] headers = new byte[2 + 2 * rand.nextInt(4)][];
+            for (int j = 0; j < headers.length; ++j) {
+                headers[j] = randomString();
+            }
+            byte[] block = encode(encoder, headers);
+            List<String> expected = decode(origin, block);
+            assertEquals(expected, decode(fast, block));
+            // check the result as well
+            assertEquals(headers.length, expected.size());
+            for (int j = 0; j < headers.length; ++j) {
+                assertEquals(ByteArray.from(headers[j]).toHexString(), expected.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void decodeInvalid() {
+        int failures = 0;
+        int successes = 0;
+        for (int i = 0; i < ROUNDS; ++i) {
+            // the decoders are not usable after failing
+            Decoder origin = new Decoder(65536, 0, false);
+            Decoder fast = new Decoder(65536, 0, true);
+            // random bytes, some of them are not valid huffman codes
+            byte[] value = new byte[1 + rand.nextInt(20)];
+            rand.nextBytes(value);
+            if (rand.nextBoolean()) {
+                value[value.length - 1] |= 0x7f; // make valid padding more likely
+            }
+            byte[] block = huffmanLiteral(value);
+            List<String> expected = decode(origin, block);
+            List<String> actual = decode(fast, block);
+            if (actual.get(actual.size() - 1).startsWith("exception")) {
+                ++failures;
+                // the original decoder does not check the padding longer than 7 bits,
+                // so the table driven decoder may fail when the original one succeeds
+                if (!expected.get(expected.size() - 1).startsWith("exception")) {
+                    assertEquals("exception: Invalid Padding", actual.get(actual.size() - 1));
+                }
+            } else {
+                assertEquals(expected, actual);
+                ++successes;
+            }
+        }
+        assertTrue(failures > 0);
+        assertTrue(successes > 0);
+    }
+
+    @Test
+    public void decodeExamples() {
+        // RFC 7541 C.4.1
+        byte[] www = {(byte) 0xf1, (byte) 0xe3, (byte) 0xc2, (byte) 0xe5, (byte) 0xf2, 0x3a, 0x6b, (byte) 0xa0, (byte) 0xab, (byte) 0x90, (byte) 0xf4, (byte) 0xff};
+        List<String> expected = List.of(ByteArray.from("x".getBytes()).toHexString(), ByteArray.from("www.example.com".getBytes()).toHexString());
+        assertEquals(expected, decode(new Decoder(65536, 0, false), huffmanLiteral(www)));
+        assertEquals(expected, decode(new Decoder(65536, 0, true), huffmanLiteral(www)));
+
+        // 16 bits of padding
+        byte[] longPadding = {(byte) 0xff, (byte) 0xff};
+        assertEquals(List.of("exception: Invalid Padding"), decode(new Decoder(65536, 0, true), huffmanLiteral(longPadding)));
+    }
+}
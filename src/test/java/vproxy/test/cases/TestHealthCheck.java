@@ -3,20 +3,35 @@ package vproxy.test.cases;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import vproxy.component.check.CheckProtocol;
-import vproxy.component.check.HealthCheckConfig;
+import vproxy.app.util.AnnotationKeys;
+import vproxy.component.check.*;
 import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.elgroup.EventLoopWrapper;
 import vproxy.component.svrgroup.Method;
 import vproxy.component.svrgroup.ServerGroup;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.*;
 
 public class TestHealthCheck {
     private EventLoopGroup eventLoopGroup;
     private ServerGroup serverGroup;
+    private ServerSocket httpServer;
+    private final AtomicInteger httpConnections = new AtomicInteger(0);
+    private final AtomicInteger httpRequests = new AtomicInteger(0);
+    private volatile int httpDelay = 0; // milliseconds before responding
 
     @Before
     public void setUp() throws Exception {
@@ -25,13 +40,81 @@ public class TestHealthCheck {
     }
 
     @After
-    public void tearDown() {
+    public void tearDown() throws IOException {
         if (serverGroup != null) {
             serverGroup.clear();
         }
         if (eventLoopGroup != null) {
             eventLoopGroup.close();
         }
+        if (httpServer != null) {
+            httpServer.close();
+        }
+    }
+
+    // a blocking http server which responds 200 to every request and keeps the connection
+    private void startHttpServer(int port) throws IOException {
+        httpServer = new ServerSocket(port);
+        new Thread(() -> {
+            while (true) {
+                Socket sock;
+                try {
+                    sock = httpServer.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                httpConnections.incrementAndGet();
+                new Thread(() -> {
+                    try (sock) {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (!line.isEmpty())
+                                continue;
+                            // end of the request headers
+                            httpRequests.incrementAndGet();
+                            if (httpDelay > 0) {
+                                try {
+                                    Thread.sleep(httpDelay);
+                                } catch (InterruptedException ignore) {
+                                }
+                            }
+                            sock.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+                        }
+                    } catch (IOException ignore) {
+                    }
+                }).start();
+            }
+        }).start();
+    }
+
+    private void checkHttp(boolean keepAlive) throws Exception {
+        startHttpServer(33242);
+        serverGroup = new ServerGroup("sg0", eventLoopGroup, new HealthCheckConfig(1000, 100, 2, 3, CheckProtocol.http), Method.wrr);
+        if (keepAlive) {
+            serverGroup.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HCKeepAlive, "true"));
+        }
+        ServerGroup.ServerHandle h = serverGroup.add("a", new InetSocketAddress("127.0.0.1", 33242), 10);
+        Thread.sleep(1500);
+        assertTrue(h.healthy);
+        assertTrue("requests: " + httpRequests.get(), httpRequests.get() >= 5);
+        if (keepAlive) {
+            assertEquals(1, httpConnections.get());
+        } else {
+            assertEquals(httpRequests.get(), httpConnections.get());
+        }
+        // all successful checks are recorded
+        assertTrue(h.getHcLatency().total() >= httpRequests.get() - 1);
+    }
+
+    @Test
+    public void http() throws Exception {
+        checkHttp(false);
+    }
+
+    @Test
+    public void httpKeepAlive() throws Exception {
+        checkHttp(true);
     }
 
     @Test
@@ -56,4 +139,47 @@ public class TestHealthCheck {
         assertNotNull(h);
         assertEquals(33241, h.server.getPort());
     }
+
+    @Test
+    public void restartClient() throws Exception {
+        startHttpServer(33243);
+        httpDelay = 50;
+        EventLoopWrapper el = eventLoopGroup.next();
+        HealthCheckClient client = new HealthCheckClient(el, new InetSocketAddress("127.0.0.1", 33243),
+            new HealthCheckConfig(1000, 200, 2, 3, CheckProtocol.http), new AnnotatedHcConfig(), false, new HealthCheckHandler() {
+            @Override
+            public void up(SocketAddress remote) {
+            }
+
+            @Override
+            public void down(SocketAddress remote, String reason) {
+            }
+
+            @Override
+            public void upOnce(SocketAddress remote, ConnectResult cost) {
+            }
+
+            @Override
+            public void downOnce(SocketAddress remote, String reason) {
+            }
+        });
+        // restart when probes are running, the probes of previous starts must not start new periods
+        for (int i = 0; i < 10; ++i) {
+            CountDownLatch latch = new CountDownLatch(1);
+            el.getSelectorEventLoop().runOnLoop(() -> {
+                client.stop();
+                client.start();
+                latch.countDown();
+            });
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            Thread.sleep(30);
+        }
+        Thread.sleep(1000);
+        int before = httpRequests.get();
+        Thread.sleep(2000);
+        int requests = httpRequests.get() - before;
+        el.getSelectorEventLoop().runOnLoop(client::stop);
+        // one check every 200ms
+        assertTrue("requests in 2 seconds: " + requests, requests >= 5 && requests <= 15);
+    }
 }
@@ -3,6 +3,7 @@ package vproxy.test.cases;
 import org.junit.Test;
 import vproxy.processor.Processor;
 import vproxy.processor.http1.HttpContext;
+import vproxy.processor.http1.HttpHeaderRewrite;
 import vproxy.processor.http1.HttpProcessor;
 import vproxy.processor.http1.HttpSubContext;
 import vproxy.processor.http1.entity.Request;
@@ -569,4 +570,125 @@ public class TestHttp1Parser {
         assertEquals("B-Trail", resp.trailers.get(1).key);
         assertEquals("value2", resp.trailers.get(1).value);
     }
+
+    @Test
+    public void pipelinedRequestsInOneBuffer() throws Exception {
+        Processor<HttpContext, HttpSubContext> p = new HttpProcessor();
+        HttpContext ctx = p.init(address);
+        HttpSubContext front = p.initSub(ctx, 0, null);
+
+        String req1Head = "" +
+            "POST /a HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "Content-Length: 10\r\n";
+        String req1Body = "" +
+            "\r\n" +
+            "0123456789";
+        String req2Head = "" +
+            "POST /b HTTP/1.1\r\n" +
+            "host: www.example.com\r\n" +
+            "X-Forwarded-For: 5.6.7.8\r\n" +
+            "transfer-encoding:  Chunked \r\n";
+        String req2Body = "" +
+            "\r\n" +
+            "3;ext\r\n" +
+            "012\r\n" +
+            "0\r\n" +
+            "A-Trail: value\r\n" +
+            "\r\n";
+        // one request is returned for each feed() call
+        ByteArray r = front.feed(ByteArray.from((req1Head + req1Body + req2Head + req2Body).getBytes()));
+        String expected = "" +
+            req1Head +
+            "x-forwarded-for: " + forwardedFor + "\r\n" +
+            "x-client-port: " + clientPort + "\r\n" +
+            req1Body;
+        assertEquals(expected, new String(r.toJavaArray()));
+        assertTrue(front.isIdle());
+        assertEquals(0, front.len());
+
+        r = front.feed(ByteArray.from(new byte[0]));
+        expected = "" +
+            req2Head +
+            "x-client-port: " + clientPort + "\r\n" +
+            req2Body;
+        assertEquals(expected, new String(r.toJavaArray()));
+        assertTrue(front.isIdle());
+        assertEquals(-1, front.len());
+        assertEquals("example.com", ctx.connectionHint(front).hint);
+    }
+
+    @Test
+    public void requestInPieces() throws Exception {
+        String reqStr = "" +
+            "POST /hello/url HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "Hello:   World\r\n" +
+            "Content-Length: 10\r\n" +
+            "\r\n" +
+            "0123456789";
+        byte[] reqBytes = reqStr.getBytes();
+        for (int size = 1; size <= reqBytes.length; ++size) {
+            Processor<HttpContext, HttpSubContext> p = new HttpProcessor();
+            HttpContext ctx = p.init(address);
+            HttpSubContext front = p.initSub(ctx, 0, null);
+            front.setParserMode();
+
+            for (int off = 0; off < reqBytes.length; off += size) {
+                front.feed(ByteArray.from(reqBytes).sub(off, Math.min(size, reqBytes.length - off)));
+            }
+            assertTrue(front.isIdle());
+            Request req = front.getReq();
+            assertEquals("POST", req.method);
+            assertEquals("/hello/url", req.uri);
+            assertEquals("HTTP/1.1", req.version);
+            assertEquals(3, req.headers.size());
+            assertEquals("Host", req.headers.get(0).key);
+            assertEquals("www.example.com", req.headers.get(0).value);
+            assertEquals("Hello", req.headers.get(1).key);
+            assertEquals("World", req.headers.get(1).value);
+            assertEquals("Content-Length", req.headers.get(2).key);
+            assertEquals("10", req.headers.get(2).value);
+            assertEquals(ByteArray.from("0123456789".getBytes()), req.body);
+        }
+    }
+
+    @Test
+    public void rewriteHeadersInPieces() throws Exception {
+        String reqStr = "" +
+            "POST /hello/url HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "User-Agent: curl\r\n" +
+            "X-Remove: a\r\n" +
+            "user-agent: curl2\r\n" +
+            "Content-Length: 10\r\n" +
+            "\r\n" +
+            "0123456789";
+        String expected = "" +
+            "POST /hello/url HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "user-agent: vproxy\r\n" +
+            "Content-Length: 10\r\n" +
+            "x-forwarded-for: " + forwardedFor + "\r\n" +
+            "x-client-port: " + clientPort + "\r\n" +
+            "\r\n" +
+            "0123456789";
+        byte[] reqBytes = reqStr.getBytes();
+        for (int size = 1; size <= reqBytes.length; ++size) {
+            Processor<HttpContext, HttpSubContext> p = new HttpProcessor(null,
+                new HttpHeaderRewrite().replace("User-Agent", "vproxy").remove("x-remove"));
+            HttpContext ctx = p.init(address);
+            HttpSubContext front = p.initSub(ctx, 0, null);
+
+            StringBuilder sb = new StringBuilder();
+            for (int off = 0; off < reqBytes.length; off += size) {
+                ByteArray r = front.feed(ByteArray.from(reqBytes).sub(off, Math.min(size, reqBytes.length - off)));
+                if (r != null) {
+                    sb.append(new String(r.toJavaArray()));
+                }
+            }
+            assertTrue(front.isIdle());
+            assertEquals("size = " + size, expected, sb.toString());
+        }
+    }
 }
@@ -0,0 +1,153 @@
+package vproxy.test.cases;
+
+import org.junit.Test;
+import vproxy.util.Maglev;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestMaglev {
+    private static final int[] SIZES = {10, 100, 1000, 10000};
+    private static final int LOOKUPS = 200_000;
+
+    private static long[] keys(int n, int start) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; ++i) {
+            int ip = start + i;
+            keys[i] = Maglev.hash(new byte[]{10, (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip, 0x1f, (byte) 0x90});
+        }
+        return keys;
+    }
+
+    private static int[] weights(int n, int w) {
+        int[] weights = new int[n];
+        Arrays.fill(weights, w);
+        return weights;
+    }
+
+    private static long[] hashes() {
+        Random rand = new Random(1);
+        long[] hashes = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; ++i) {
+            int ip = rand.nextInt();
+            hashes[i] = Maglev.hash(new byte[]{(byte) (ip >> 24), (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip});
+        }
+        return hashes;
+    }
+
+    // the fraction of lookups which are mapped to another element
+    private static double remapFraction(long[] hashes, long[] keysA, Maglev a, long[] keysB, Maglev b) {
+        int moved = 0;
+        for (long h : hashes) {
+            if (keysA[a.lookup(h)] != keysB[b.lookup(h)]) {
+                ++moved;
+            }
+        }
+        return moved / (double) hashes.length;
+    }
+
+    @Test
+    public void empty() {
+        Maglev m = new Maglev(new long[0], new int[0]);
+        assertEquals(0, m.size());
+        assertEquals(-1, m.lookup(123));
+    }
+
+    @Test
+    public void stable() {
+        long[] keys = keys(100, 0);
+        Maglev a = new Maglev(keys, weights(100, 10));
+        Maglev b = new Maglev(keys, weights(100, 10));
+        for (long h : hashes()) {
+            assertEquals(a.lookup(h), b.lookup(h));
+        }
+    }
+
+    @Test
+    public void distribution() {
+        for (int n : SIZES) {
+            Maglev m = new Maglev(keys(n, 0), weights(n, 10));
+            int[] slots = new int[n];
+            for (int i = 0; i < m.size(); ++i) {
+                ++slots[m.get(i)];
+            }
+            double expected = m.size() / (double) n;
+            for (int i = 0; i < n; ++i) {
+                assertTrue("n=" + n + ", element " + i + " owns " + slots[i] + " slots, expected " + expected,
+                    Math.abs(slots[i] - expected) <= expected * 0.05 + 1);
+            }
+        }
+    }
+
+    @Test
+    public void weighted() {
+        int n = 10;
+        int[] weights = weights(n, 10);
+        weights[0] = 20;
+        weights[1] = 5;
+        Maglev m = new Maglev(keys(n, 0), weights);
+        int[] slots = new int[n];
+        for (int i = 0; i < m.size(); ++i) {
+            ++slots[m.get(i)];
+        }
+        double unit = m.size() / 105.0; // total weight = 20 + 5 + 8 * 10
+        assertEquals(20 * unit, slots[0], unit);
+        assertEquals(5 * unit, slots[1], unit);
+        for (int i = 2; i < n; ++i) {
+            assertEquals(10 * unit, slots[i], unit);
+        }
+    }
+
+    @Test
+    public void remap() {
+        long[] hashes = hashes();
+        for (int n : SIZES) {
+            long[] keys = keys(n, 0);
+            Maglev m = new Maglev(keys, weights(n, 10));
+
+            // remove one element
+            long[] removedKeys = Arrays.copyOfRange(keys, 1, n);
+            Maglev removed = new Maglev(removedKeys, weights(n - 1, 10));
+            double removedFraction = remapFraction(hashes, keys, m, removedKeys, removed);
+
+            // add one element
+            long[] addedKeys = Arrays.copyOf(keys, n + 1);
+            addedKeys[n] = keys(1, n)[0];
+            Maglev added = new Maglev(addedKeys, weights(n + 1, 10));
+            double addedFraction = remapFraction(hashes, keys, m, addedKeys, added);
+
+            // ideally 1/n of the lookups are moved, allow some extra disruption
+            // the sample count limits the precision for large n
+            double limit = 2.0 / n + 0.002;
+            assertTrue("n=" + n + " remove one remapped " + removedFraction, removedFraction <= limit);
+            assertTrue("n=" + n + " add one remapped " + addedFraction, addedFraction <= limit);
+        }
+    }
+
+    @Test
+    public void lookupCost() {
+        long[] hashes = hashes();
+        for (int n : SIZES) {
+            Maglev m = new Maglev(keys(n, 0), weights(n, 10));
+
+            long sum = 0;
+            // warm up
+            for (long h : hashes) {
+                sum += m.lookup(h);
+            }
+            long start = System.nanoTime();
+            for (int round = 0; round < 10; ++round) {
+                for (long h : hashes) {
+                    sum += m.lookup(h);
+                }
+            }
+            long cost = System.nanoTime() - start;
+            double perLookup = cost / (10.0 * hashes.length);
+            assertTrue(sum >= 0);
+            // O(1), should not grow with n, the limit is very loose for slow test machines
+            assertTrue("n=" + n + " lookup costs " + perLookup + "ns", perLookup < 1000);
+        }
+    }
+}
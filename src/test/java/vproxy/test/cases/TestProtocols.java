@@ -7,7 +7,9 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.stub.StreamObserver;
 import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.*;
 import org.apache.thrift.TProcessor;
 import org.apache.thrift.protocol.TBinaryProtocol;
@@ -21,6 +23,7 @@ import org.apache.thrift.transport.TTransport;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import vproxy.app.Config;
 import vproxy.app.util.AnnotationKeys;
 import vproxy.component.app.TcpLB;
 import vproxy.component.check.CheckProtocol;
@@ -37,11 +40,18 @@ import vproxy.poc.grpc.HelloResponse;
 import vproxy.poc.thrift.HelloWorldService;
 import vproxy.util.Utils;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 public class TestProtocols {
@@ -56,6 +66,7 @@ public class TestProtocols {
     private TcpLB lb;
     private EventLoopGroup elg;
     private Upstream ups;
+    private ServerGroup sg1;
     private int step = 0;
 
     @Before
@@ -63,7 +74,7 @@ public class TestProtocols {
         elg = new EventLoopGroup("elg0");
         elg.add("el0");
 
-        ServerGroup sg1 = new ServerGroup("test-s1", elg,
+        sg1 = new ServerGroup("test-s1", elg,
             new HealthCheckConfig(1000, 10000, 1, 3, CheckProtocol.tcpDelay), Method.wrr);
         sg1.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "s1.test.com"));
         sg1.add("svr1", new InetSocketAddress(Utils.l3addr("127.0.0.1"), port1), 10);
@@ -92,8 +103,12 @@ public class TestProtocols {
     }
 
     private void initLb(String protocol) throws Exception {
+        initLb(protocol, 0);
+    }
+
+    private void initLb(String protocol, long httpCacheSize) throws Exception {
         lb = new TcpLB(
-            "tl0", elg, elg, new InetSocketAddress("0.0.0.0", lbPort), ups, 10000, 16384, 16384, protocol, null, null, SecurityGroup.allowAll()
+            "tl0", elg, elg, new InetSocketAddress("0.0.0.0", lbPort), ups, 10000, 16384, 16384, protocol, null, null, SecurityGroup.allowAll(), httpCacheSize
         );
         lb.start();
     }
@@ -110,6 +125,20 @@ public class TestProtocols {
         sg.add("svr4", new InetSocketAddress(Utils.l3addr("127.0.0.1"), port4dubbo), 10);
     }
 
+    // wait until the server is bound, otherwise the requests may reach the port before it's listening
+    private static void listen(HttpServer server, int port) throws Throwable {
+        CountDownLatch latch = new CountDownLatch(1);
+        Throwable[] err = {null};
+        server.listen(port, r -> {
+            err[0] = r.cause();
+            latch.countDown();
+        });
+        assertTrue("listen " + port + " timeout", latch.await(5, TimeUnit.SECONDS));
+        if (err[0] != null) {
+            throw err[0];
+        }
+    }
+
     @SuppressWarnings("deprecation")
     @Test
     public void h2() throws Throwable {
@@ -232,6 +261,200 @@ public class TestProtocols {
         }
     }
 
+    @SuppressWarnings("deprecation")
+    @Test
+    public void h2FlowControl() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            Throwable[] err = new Throwable[]{null};
+            int size = 1024 * 1024; // much bigger than the windows
+
+            // respond with the request body and a big body
+            Handler<HttpServerRequest> handler = req -> req.bodyHandler(body -> {
+                Buffer buf = Buffer.buffer(body.length() + size);
+                buf.appendBuffer(body);
+                for (int i = 0; i < size; ++i) {
+                    buf.appendByte((byte) (i % 128));
+                }
+                req.response().end(buf);
+            });
+            vertx.createHttpServer().requestHandler(handler).listen(port1);
+            vertx.createHttpServer().requestHandler(handler).listen(port2);
+
+            initLb("h2");
+
+            HttpClient client = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(false));
+
+            int reqCount = 4;
+            for (int n = 0; n < reqCount; ++n) {
+                Buffer reqBody = Buffer.buffer(size);
+                for (int i = 0; i < size; ++i) {
+                    reqBody.appendByte((byte) ((i + n) % 128));
+                }
+                HttpClientRequest req = client.post(lbPort, "127.0.0.1", "/");
+                req.handler(resp -> {
+                    // the client reads slowly, so the data from servers is held in vproxy
+                    resp.pause();
+                    vertx.setTimer(500, l -> resp.resume());
+                    resp.bodyHandler(buf -> {
+                        try {
+                            assertEquals(size + size, buf.length());
+                            assertEquals(reqBody, buf.getBuffer(0, size));
+                            for (int i = 0; i < size; ++i) {
+                                assertEquals((byte) (i % 128), buf.getByte(size + i));
+                            }
+                            ++step;
+                        } catch (Throwable t) {
+                            err[0] = t;
+                        }
+                    });
+                });
+                req.end(reqBody);
+            }
+
+            while (step != reqCount && err[0] == null) {
+                Thread.sleep(1);
+            }
+            if (err[0] != null)
+                throw err[0];
+            assertEquals(reqCount, step);
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void h2DynamicTable() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            Throwable[] err = new Throwable[]{null};
+            // the same headers are sent in every request and response, so they are indexed in the dynamic tables,
+            // and the big header is not compressible enough to fit in one frame, so CONTINUATION frames are used
+            String repeated = "repeated-header-value-".repeat(8);
+            StringBuilder sb = new StringBuilder();
+            String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+            for (int i = 0; i < 30000; ++i) {
+                sb.append(chars.charAt((i * 7) % chars.length()));
+            }
+            String big = sb.toString();
+
+            Handler<HttpServerRequest> handler = req -> {
+                String id = req.getHeader("x-id");
+                boolean withBig = Integer.parseInt(id) / 2 % 2 == 1;
+                if (!repeated.equals(req.getHeader("x-repeated")) || (withBig && !big.equals(req.getHeader("x-big")))) {
+                    req.response().setStatusCode(500).end("unexpected request headers");
+                    return;
+                }
+                String port = "" + req.localAddress().port();
+                MultiMap pushHeaders = MultiMap.caseInsensitiveMultiMap().add("x-repeated", repeated);
+                if (withBig) {
+                    pushHeaders.add("x-big", big);
+                }
+                req.response().push(HttpMethod.GET, "127.0.0.1", "/push-" + id, pushHeaders, r -> {
+                    if (r.failed()) {
+                        err[0] = r.cause();
+                    } else {
+                        r.result().putHeader("x-repeated", repeated).end("push-" + id);
+                    }
+                });
+                req.response().putHeader("x-repeated", repeated).putHeader("x-id", id);
+                if (withBig) {
+                    req.response().putHeader("x-big", big);
+                }
+                req.response().end("resp-" + port);
+            };
+            // the default limit (8192) is smaller than the big header
+            Http2Settings settings = new Http2Settings().setMaxHeaderListSize(65536);
+            listen(vertx.createHttpServer(new HttpServerOptions().setInitialSettings(settings)).requestHandler(handler), port1);
+            listen(vertx.createHttpServer(new HttpServerOptions().setInitialSettings(settings)).requestHandler(handler), port2);
+
+            initLb("h2");
+
+            int[] conn = {0};
+            HttpClient client = vertx.createHttpClient(new HttpClientOptions()
+                .setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(false)
+                .setInitialSettings(settings));
+            client.connectionHandler(connV -> ++conn[0]);
+
+            int svr1 = 0;
+            int svr2 = 0;
+            int reqCount = 8;
+            for (int n = 0; n < reqCount; ++n) {
+                String id = "" + n;
+                // the backends are chosen in turn, so each of them gets blocks with and without the big header
+                boolean withBig = n / 2 % 2 == 1;
+                String[] body = {null};
+                CountDownLatch latch = new CountDownLatch(2);
+
+                HttpClientRequest req = client.get(lbPort, "127.0.0.1", "/");
+                req.putHeader("x-repeated", repeated).putHeader("x-id", id);
+                if (withBig) {
+                    req.putHeader("x-big", big);
+                }
+                req.pushHandler(pushReq -> {
+                    try {
+                        assertEquals("/push-" + id, pushReq.uri());
+                        assertEquals(repeated, pushReq.headers().get("x-repeated"));
+                        assertEquals(withBig ? big : null, pushReq.headers().get("x-big"));
+                    } catch (Throwable t) {
+                        err[0] = t;
+                    }
+                    pushReq.handler(resp -> resp.bodyHandler(buf -> {
+                        try {
+                            assertEquals(repeated, resp.getHeader("x-repeated"));
+                            assertEquals("push-" + id, buf.toString());
+                        } catch (Throwable t) {
+                            err[0] = t;
+                        }
+                        latch.countDown();
+                    }));
+                });
+                req.handler(resp -> resp.bodyHandler(buf -> {
+                    try {
+                        assertEquals(buf.toString(), 200, resp.statusCode());
+                        assertEquals(repeated, resp.getHeader("x-repeated"));
+                        assertEquals(id, resp.getHeader("x-id"));
+                        assertEquals(withBig ? big : null, resp.getHeader("x-big"));
+                        body[0] = buf.toString();
+                    } catch (Throwable t) {
+                        err[0] = t;
+                    }
+                    latch.countDown();
+                }));
+                req.end();
+
+                boolean done = latch.await(5, TimeUnit.SECONDS);
+                if (err[0] != null)
+                    throw err[0];
+                assertTrue("request " + id + " timed out", done);
+                if (body[0].equals("resp-" + port1)) {
+                    ++svr1;
+                } else {
+                    assertEquals("resp-" + port2, body[0]);
+                    ++svr2;
+                }
+            }
+            assertEquals(reqCount / 2, svr1);
+            assertEquals(reqCount / 2, svr2);
+            assertEquals(1, conn[0]);
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
     @Test
     public void grpcOverH2() throws Exception {
         class GreeterImpl extends GreeterGrpc.GreeterImplBase {
@@ -574,6 +797,530 @@ public class TestProtocols {
         }
     }
 
+    @Test
+    public void h1BackendPool() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            int[] svrConn = {0};
+            vertx.createHttpServer()
+                .connectionHandler(c -> ++svrConn[0])
+                .requestHandler(req -> req.response().end("resp-" + req.localAddress().port()))
+                .listen(port1);
+
+            initLb("http/1.x");
+
+            // each request uses a new frontend connection
+            for (int i = 0; i < 10; ++i) {
+                try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                    sock.getOutputStream().write(("" +
+                        "GET / HTTP/1.1\r\n" +
+                        "Host: s1.test.com\r\n" +
+                        "\r\n").getBytes());
+                    InputStream in = sock.getInputStream();
+                    StringBuilder sb = new StringBuilder();
+                    byte[] buf = new byte[1024];
+                    while (!sb.toString().endsWith("resp-" + port1)) {
+                        int n = in.read(buf);
+                        assertTrue(n > 0);
+                        sb.append(new String(buf, 0, n));
+                    }
+                    assertTrue(sb.toString().startsWith("HTTP/1.1 200"));
+                }
+            }
+            // the backend connection is returned to the pool and used by the next frontend connection
+            assertEquals(1, svrConn[0]);
+            // the idle connection is not counted for the server
+            ServerGroup.ServerHandle h = sg1.getServerHandles().get(0);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (h.connectionCount() != 0) {
+                assertTrue("idle connections are counted: " + h.connectionCount(), System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void h1BackendPoolStale() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            // the server closes the connection when the second request comes,
+            // as if the connection is closed for idle timeout just when the request is sent
+            int[] svrConn = {0};
+            Map<HttpConnection, Integer> requests = new HashMap<>();
+            boolean[] listening = {false};
+            vertx.createHttpServer()
+                .connectionHandler(c -> ++svrConn[0])
+                .requestHandler(req -> {
+                    int n = requests.merge(req.connection(), 1, Integer::sum);
+                    if (n == 1) {
+                        req.response().end("resp-" + req.localAddress().port());
+                    } else {
+                        req.connection().close();
+                    }
+                })
+                .listen(port1, r -> listening[0] = true);
+            while (!listening[0]) {
+                Thread.sleep(1);
+            }
+
+            initLb("http/1.x");
+
+            for (int i = 0; i < 4; ++i) {
+                try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                    sock.getOutputStream().write(("" +
+                        "GET / HTTP/1.1\r\n" +
+                        "Host: s1.test.com\r\n" +
+                        "\r\n").getBytes());
+                    InputStream in = sock.getInputStream();
+                    StringBuilder sb = new StringBuilder();
+                    byte[] buf = new byte[1024];
+                    while (!sb.toString().endsWith("resp-" + port1)) {
+                        int n = in.read(buf);
+                        assertTrue("request " + i + " failed: " + sb, n > 0);
+                        sb.append(new String(buf, 0, n));
+                    }
+                    assertTrue(sb.toString().startsWith("HTTP/1.1 200"));
+                }
+            }
+            // the borrowed connection is closed for each request except the first one, and the request is sent again
+            assertEquals(4, svrConn[0]);
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void h1BackendPoolStalePost() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            // same as h1BackendPoolStale, but the second request is not idempotent
+            int[] svrConn = {0};
+            int[] posts = {0};
+            Map<HttpConnection, Integer> requests = new HashMap<>();
+            boolean[] listening = {false};
+            vertx.createHttpServer()
+                .connectionHandler(c -> ++svrConn[0])
+                .requestHandler(req -> {
+                    if (req.method() == HttpMethod.POST) {
+                        ++posts[0];
+                    }
+                    int n = requests.merge(req.connection(), 1, Integer::sum);
+                    if (n == 1) {
+                        req.response().end("resp-" + req.localAddress().port());
+                    } else {
+                        req.connection().close();
+                    }
+                })
+                .listen(port1, r -> listening[0] = true);
+            while (!listening[0]) {
+                Thread.sleep(1);
+            }
+
+            initLb("http/1.x");
+
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.getOutputStream().write(("" +
+                    "GET / HTTP/1.1\r\n" +
+                    "Host: s1.test.com\r\n" +
+                    "\r\n").getBytes());
+                InputStream in = sock.getInputStream();
+                StringBuilder sb = new StringBuilder();
+                byte[] buf = new byte[1024];
+                while (!sb.toString().endsWith("resp-" + port1)) {
+                    int n = in.read(buf);
+                    assertTrue("request failed: " + sb, n > 0);
+                    sb.append(new String(buf, 0, n));
+                }
+            }
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.setSoTimeout(5000);
+                sock.getOutputStream().write(("" +
+                    "POST / HTTP/1.1\r\n" +
+                    "Host: s1.test.com\r\n" +
+                    "Content-Length: 5\r\n" +
+                    "\r\n" +
+                    "hello").getBytes());
+                InputStream in = sock.getInputStream();
+                byte[] buf = new byte[1024];
+                int n;
+                try {
+                    n = in.read(buf);
+                } catch (IOException e) {
+                    n = -1; // reset
+                }
+                // the frontend is closed without any response
+                assertEquals(-1, n);
+            }
+            // the POST request is not sent again with a new connection
+            assertEquals(1, posts[0]);
+            assertEquals(1, svrConn[0]);
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void h1Pipelining() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            // the latter requests are responded earlier
+            Handler<HttpServerRequest> handler = req -> {
+                int n = Integer.parseInt(req.uri().substring(1));
+                vertx.setTimer((5 - n) * 100, l -> req.response().end("resp-" + n));
+            };
+            listen(vertx.createHttpServer().requestHandler(handler), port1);
+            listen(vertx.createHttpServer().requestHandler(handler), port2);
+
+            initLb("http/1.x");
+
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                // no hint for ip, so the requests are dispatched to both servers
+                StringBuilder requests = new StringBuilder();
+                for (int i = 1; i <= 4; ++i) {
+                    requests.append("" +
+                        "GET /").append(i).append(" HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "\r\n");
+                }
+                sock.getOutputStream().write(requests.toString().getBytes());
+                InputStream in = sock.getInputStream();
+                StringBuilder sb = new StringBuilder();
+                byte[] buf = new byte[1024];
+                while (sb.indexOf("resp-1") == -1 || sb.indexOf("resp-2") == -1 || sb.indexOf("resp-3") == -1 || sb.indexOf("resp-4") == -1) {
+                    int n = in.read(buf);
+                    assertTrue(n > 0);
+                    sb.append(new String(buf, 0, n));
+                }
+                String resp = sb.toString();
+                assertTrue(resp.indexOf("resp-1") < resp.indexOf("resp-2"));
+                assertTrue(resp.indexOf("resp-2") < resp.indexOf("resp-3"));
+                assertTrue(resp.indexOf("resp-3") < resp.indexOf("resp-4"));
+            }
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void h1ToH2() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            Throwable[] err = new Throwable[]{null};
+            int[] conns = {0};
+            int[] reqs = {0};
+
+            Handler<HttpServerRequest> handler = req -> {
+                try {
+                    assertEquals(HttpVersion.HTTP_2, req.version());
+                    assertEquals("127.0.0.1", req.getHeader("x-forwarded-for"));
+                } catch (Throwable t) {
+                    err[0] = t;
+                }
+                synchronized (reqs) {
+                    ++reqs[0];
+                }
+                if (req.uri().equals("/big")) {
+                    // larger than the initial stream window
+                    req.response().end(Buffer.buffer(new byte[1024 * 1024]));
+                    return;
+                }
+                req.bodyHandler(body -> req.response().end("resp" + req.uri().replace('/', '-') + body.toString()));
+            };
+            Handler<HttpConnection> connHandler = c -> {
+                synchronized (conns) {
+                    ++conns[0];
+                }
+            };
+            vertx.createHttpServer().connectionHandler(connHandler).requestHandler(handler).listen(port1);
+            vertx.createHttpServer().connectionHandler(connHandler).requestHandler(handler).listen(port2);
+
+            initLb("h1-to-h2");
+
+            Socket[] socks = new Socket[3];
+            for (int i = 0; i < socks.length; ++i) {
+                socks[i] = new Socket("127.0.0.1", lbPort);
+                socks[i].setSoTimeout(5000);
+            }
+            try {
+                for (int i = 0; i < socks.length; ++i) {
+                    // pipelined requests, with a body in the last one
+                    String requests = "" +
+                        "GET /" + i + "/a HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "\r\n" +
+                        "GET /" + i + "/b HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "\r\n" +
+                        "POST /" + i + "/c HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "Content-Length: 5\r\n" +
+                        "\r\n" +
+                        "hello";
+                    socks[i].getOutputStream().write(requests.getBytes());
+                }
+                for (int i = 0; i < socks.length; ++i) {
+                    InputStream in = socks[i].getInputStream();
+                    StringBuilder sb = new StringBuilder();
+                    byte[] buf = new byte[1024];
+                    while (sb.indexOf("resp-" + i + "-c" + "hello") == -1) {
+                        int n = in.read(buf);
+                        assertTrue(n > 0);
+                        sb.append(new String(buf, 0, n));
+                    }
+                    String resp = sb.toString();
+                    assertTrue(resp.startsWith("HTTP/1.1 200 OK\r\n"));
+                    assertTrue(resp.indexOf("resp-" + i + "-a") < resp.indexOf("resp-" + i + "-b"));
+                    assertTrue(resp.indexOf("resp-" + i + "-b") < resp.indexOf("resp-" + i + "-c"));
+                }
+            } finally {
+                for (Socket sock : socks) {
+                    sock.close();
+                }
+            }
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.setSoTimeout(5000);
+                sock.getOutputStream().write(("" +
+                    "GET /big HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1\r\n" +
+                    "\r\n").getBytes());
+                InputStream in = sock.getInputStream();
+                byte[] buf = new byte[65536];
+                int total = 0;
+                String head = null;
+                while (head == null || total < head.length() + 1024 * 1024) {
+                    int n = in.read(buf);
+                    assertTrue(n > 0);
+                    if (head == null) {
+                        String s = new String(buf, 0, n);
+                        assertTrue(s.contains("\r\n\r\n"));
+                        head = s.substring(0, s.indexOf("\r\n\r\n") + 4);
+                        assertTrue(head, head.contains("content-length: 1048576\r\n"));
+                    }
+                    total += n;
+                }
+                assertEquals(head.length() + 1024 * 1024, total);
+            }
+            if (err[0] != null)
+                throw err[0];
+            assertEquals(10, reqs[0]);
+            // the requests of all frontends are sent over at most one connection for each server
+            assertTrue("connections: " + conns[0], conns[0] <= 2);
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    @Test
+    public void h1ToH2ResponseHead() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            Handler<HttpServerRequest> handler = req -> {
+                switch (req.uri()) {
+                    case "/stream":
+                        // no content-length in the h2 response
+                        req.response().setChunked(true).write("part1");
+                        vertx.setTimer(100, l -> req.response().end("part2"));
+                        break;
+                    case "/crlf":
+                        // a folded value passes the check of vertx, but it's not allowed in http/2
+                        req.response().putHeader("x-bad", "a\r\n x-injected: 1").end("bad");
+                        break;
+                    case "/huge":
+                        // sent with CONTINUATION frames
+                        req.response().putHeader("x-huge", "a".repeat(200 * 1024)).end("huge");
+                        break;
+                    default:
+                        req.response().end("ok");
+                }
+            };
+            listen(vertx.createHttpServer().requestHandler(handler), port1);
+            listen(vertx.createHttpServer().requestHandler(handler), port2);
+
+            initLb("h1-to-h2");
+
+            // http/1.0 client asking to keep alive, the body can only end by closing the connection
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.setSoTimeout(5000);
+                sock.getOutputStream().write(("" +
+                    "GET /stream HTTP/1.0\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n").getBytes());
+                InputStream in = sock.getInputStream();
+                StringBuilder sb = new StringBuilder();
+                byte[] buf = new byte[1024];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    sb.append(new String(buf, 0, n));
+                }
+                String resp = sb.toString();
+                assertTrue(resp, resp.startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(resp, resp.contains("connection: close\r\n"));
+                assertTrue(resp, resp.endsWith("\r\n\r\npart1part2"));
+            }
+
+            // CR and LF in the header value must not split the http/1.x response
+            // and a header block larger than the limit is rejected
+            for (String uri : new String[]{"/crlf", "/huge"}) {
+                try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                    sock.setSoTimeout(5000);
+                    sock.getOutputStream().write(("" +
+                        "GET " + uri + " HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "\r\n").getBytes());
+                    String resp = readResponses(sock.getInputStream(), "\r\n\r\n");
+                    assertTrue(resp, resp.startsWith("HTTP/1.1 502 "));
+                    assertTrue(resp, !resp.contains("x-injected"));
+                }
+            }
+
+            // the server is still usable
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.setSoTimeout(5000);
+                sock.getOutputStream().write(("" +
+                    "GET / HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1\r\n" +
+                    "\r\n").getBytes());
+                String resp = readResponses(sock.getInputStream(), "ok");
+                assertTrue(resp, resp.startsWith("HTTP/1.1 200 OK\r\n"));
+            }
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    private static String readResponses(InputStream in, String... expected) throws Exception {
+        // read until the expected strings appear in order
+        StringBuilder sb = new StringBuilder();
+        byte[] buf = new byte[1024];
+        int from = 0;
+        for (String s : expected) {
+            while (sb.indexOf(s, from) == -1) {
+                int n = in.read(buf);
+                assertTrue(n > 0);
+                sb.append(new String(buf, 0, n));
+            }
+            from = sb.indexOf(s, from) + s.length();
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void h1Cache() throws Throwable {
+        Vertx vertx = Vertx.vertx();
+        try {
+            Map<String, Integer> reqs = new HashMap<>();
+
+            Handler<HttpServerRequest> handler = req -> {
+                String key = req.uri() + (req.getHeader("accept-language") == null ? "" : ":" + req.getHeader("accept-language"));
+                synchronized (reqs) {
+                    reqs.merge(key, 1, Integer::sum);
+                }
+                if (req.uri().equals("/cached")) {
+                    req.response().putHeader("Cache-Control", "max-age=60").putHeader("ETag", "\"v1\"").end("cached-body");
+                } else if (req.uri().equals("/vary")) {
+                    req.response().putHeader("Cache-Control", "max-age=60").putHeader("Vary", "Accept-Language")
+                        .end("lang-" + req.getHeader("accept-language"));
+                } else {
+                    req.response().putHeader("Cache-Control", "no-store").end("no-store-body");
+                }
+            };
+            vertx.createHttpServer().requestHandler(handler).listen(port1);
+            vertx.createHttpServer().requestHandler(handler).listen(port2);
+
+            initLb("http/1.x", 1024 * 1024);
+            assertNotNull(lb.httpCache);
+
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.setSoTimeout(5000);
+                sock.getOutputStream().write(("" +
+                    "GET /cached HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1\r\n" +
+                    "\r\n").getBytes());
+                String resp = readResponses(sock.getInputStream(), "cached-body");
+                assertTrue(resp, resp.startsWith("HTTP/1.1 200 OK\r\n"));
+            }
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.setSoTimeout(5000);
+                // the cached response is written after the response of the former request
+                sock.getOutputStream().write(("" +
+                    "GET /no-store HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1\r\n" +
+                    "\r\n" +
+                    "GET /cached HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1\r\n" +
+                    "\r\n" +
+                    "GET /cached HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1\r\n" +
+                    "If-None-Match: \"v1\"\r\n" +
+                    "\r\n" +
+                    "GET /no-store HTTP/1.1\r\n" +
+                    "Host: 127.0.0.1\r\n" +
+                    "\r\n").getBytes());
+                String resp = readResponses(sock.getInputStream(), "no-store-body", "cached-body", "304 Not Modified", "no-store-body");
+                int cached = resp.indexOf("cached-body");
+                assertTrue(resp, resp.indexOf("no-store-body") < cached);
+                assertTrue(resp, cached < resp.indexOf("304 Not Modified"));
+                assertTrue(resp, resp.indexOf("304 Not Modified") < resp.lastIndexOf("no-store-body"));
+                assertTrue(resp, resp.contains("Age: "));
+            }
+            try (Socket sock = new Socket("127.0.0.1", lbPort)) {
+                sock.setSoTimeout(5000);
+                for (String lang : new String[]{"en", "en", "fr"}) {
+                    sock.getOutputStream().write(("" +
+                        "GET /vary HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "Accept-Language: " + lang + "\r\n" +
+                        "\r\n").getBytes());
+                    readResponses(sock.getInputStream(), "lang-" + lang);
+                }
+            }
+
+            assertEquals(Map.of("/cached", 1, "/no-store", 2, "/vary:en", 1, "/vary:fr", 1), reqs);
+            assertEquals(3, lb.httpCache.hits());
+            assertTrue(lb.httpCache.bytes() > 0);
+            assertEquals(0, lb.httpCache.evictions());
+        } finally {
+            boolean[] closeDone = {false};
+            vertx.close(v -> closeDone[0] = true);
+            while (!closeDone[0]) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+        }
+    }
+
     @SuppressWarnings("deprecation")
     @Test
     public void generalHttp() throws Throwable {
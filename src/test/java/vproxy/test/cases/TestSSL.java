@@ -4,8 +4,10 @@ import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import vproxy.app.util.AnnotationKeys;
 import vproxy.component.app.TcpLB;
 import vproxy.component.check.CheckProtocol;
 import vproxy.component.check.HealthCheckConfig;
@@ -17,6 +19,8 @@ import vproxy.component.svrgroup.ServerGroup;
 import vproxy.component.svrgroup.Upstream;
 import vproxy.connection.*;
 import vproxy.dns.Resolver;
+import vproxy.openssl.OpenSSL;
+import vproxy.openssl.OpenSSLContext;
 import vproxy.http.HttpRespParser;
 import vproxy.processor.http1.entity.Response;
 import vproxy.selector.SelectorEventLoop;
@@ -35,6 +39,8 @@ import javax.net.ssl.*;
 import java.io.IOException;
 import java.net.*;
 import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static org.junit.Assert.*;
@@ -277,6 +283,70 @@ public class TestSSL {
         SSLEngine clientEngine = context.createSSLEngine("cassite.net", 443);
         clientEngine.setUseClientMode(true);
 
+        exchangeMessages(serverEngine, clientEngine);
+    }
+
+    private static SSLContext trustAllClientContext() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    @Test
+    public void openSSLWrapThenUnwrap() throws Exception {
+        Assume.assumeTrue("requires the vopenssl lib", OpenSSL.isAvailable());
+
+        SSLEngine serverEngine = OpenSSLContext.create(new String[]{TEST_CERT}, TEST_KEY).createSSLEngine();
+        serverEngine.setUseClientMode(false);
+
+        SSLEngine clientEngine = OpenSSLContext.create(null, null).createSSLEngine("vproxy.cassite.net", 443);
+        clientEngine.setUseClientMode(true);
+
+        exchangeMessages(serverEngine, clientEngine);
+
+        assertEquals("TLSv1.3", serverEngine.getSession().getProtocol());
+        assertEquals(serverEngine.getSession().getCipherSuite(), clientEngine.getSession().getCipherSuite());
+        X509Certificate peer = (X509Certificate) clientEngine.getSession().getPeerCertificates()[0];
+        assertTrue(peer.getSubjectX500Principal().getName().contains("CN=vproxy.cassite.net"));
+    }
+
+    @Test
+    public void openSSLWithJdkClient() throws Exception {
+        Assume.assumeTrue("requires the vopenssl lib", OpenSSL.isAvailable());
+
+        SSLEngine serverEngine = OpenSSLContext.create(new String[]{TEST_CERT}, TEST_KEY).createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.setHandshakeApplicationProtocolSelector((e, ls) -> ls.contains("http/1.1") ? "http/1.1" : null);
+
+        SSLEngine clientEngine = trustAllClientContext().createSSLEngine("vproxy.cassite.net", 443);
+        clientEngine.setUseClientMode(true);
+        SSLParameters params = clientEngine.getSSLParameters();
+        params.setProtocols(new String[]{"TLSv1.2"});
+        params.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+        clientEngine.setSSLParameters(params);
+
+        exchangeMessages(serverEngine, clientEngine);
+
+        assertEquals("TLSv1.2", serverEngine.getSession().getProtocol());
+        assertEquals("http/1.1", serverEngine.getApplicationProtocol());
+        assertEquals("http/1.1", clientEngine.getApplicationProtocol());
+        assertEquals(clientEngine.getSession().getCipherSuite(), serverEngine.getSession().getCipherSuite());
+    }
+
+    private void exchangeMessages(SSLEngine serverEngine, SSLEngine clientEngine) throws Exception {
         // init buffers
 
         SSLUtils.SSLBufferPair tuple = SSLUtils.genbuf(serverEngine, serverInputData, serverOutputData, q::add);
@@ -384,9 +454,32 @@ public class TestSSL {
         socket.close();
     }
 
-    @SuppressWarnings("deprecation")
     @Test
     public void sslProxy() throws Exception {
+        // build ssl context if needed
+        // create ctx
+        VSSLContext sslContext = new VSSLContext();
+        CertKey ck = new CertKey("ck", new String[]{TEST_CERT}, TEST_KEY);
+        ck.setInto(sslContext);
+
+        sslProxy(sslContext);
+    }
+
+    @Test
+    public void openSSLProxy() throws Exception {
+        Assume.assumeTrue("requires the vopenssl lib", OpenSSL.isAvailable());
+
+        VSSLContext sslContext = new VSSLContext();
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null);
+        X509Certificate[] certs = new CertKey("ck", new String[]{TEST_CERT}, TEST_KEY).setInto(keyStore);
+        sslContext.sslContextHolder.add(OpenSSLContext.create(new String[]{TEST_CERT}, TEST_KEY), certs);
+
+        sslProxy(sslContext);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void sslProxy(VSSLContext sslContext) throws Exception {
         Vertx vertx = Vertx.vertx();
         EventLoopGroup elg = new EventLoopGroup("elg0");
 
@@ -394,12 +487,6 @@ public class TestSSL {
             // start backend
             vertx.createHttpServer().requestHandler(req -> req.response().end("hello")).listen(39999);
 
-            // build ssl context if needed
-            // create ctx
-            VSSLContext sslContext = new VSSLContext();
-            CertKey ck = new CertKey("ck", new String[]{TEST_CERT}, TEST_KEY);
-            ck.setInto(sslContext);
-
             elg.add("el");
             Upstream ups = new Upstream("ups");
             ServerGroup sg = new ServerGroup("sg", elg, new HealthCheckConfig(400, 2000, 1, 2, CheckProtocol.tcpDelay), Method.wrr);
@@ -447,4 +534,128 @@ public class TestSSL {
             elg.close();
         }
     }
+
+    @Test
+    public void backendTls() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        EventLoopGroup elg = new EventLoopGroup("elg0");
+
+        try {
+            // start backend
+            vertx.createHttpServer().requestHandler(req -> req.response().end("hello")).listen(39998);
+
+            VSSLContext sslContext = new VSSLContext();
+            CertKey ck = new CertKey("ck", new String[]{TEST_CERT}, TEST_KEY);
+            ck.setInto(sslContext);
+
+            elg.add("el");
+            // the lb which terminates tls
+            Upstream tlsUps = new Upstream("tlsUps");
+            ServerGroup tlsSg = new ServerGroup("tlsSg", elg, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 1, 2), Method.wrr);
+            tlsUps.add(tlsSg, 10);
+            tlsSg.add("svr", new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 39998), 10);
+            tlsSg.getServerHandles().forEach(h -> h.healthy = true);
+            TcpLB tlsLb = new TcpLB("tlsLb", elg, elg,
+                new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 19998), tlsUps,
+                1000, 16384, 16384, "tcp", sslContext, null, SecurityGroup.allowAll());
+            tlsLb.start();
+
+            // the lb which re-encrypts
+            Upstream ups = new Upstream("ups");
+            ServerGroup sg = new ServerGroup("sg", elg, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 1, 2), Method.wrr);
+            sg.setAnnotations(Map.of(AnnotationKeys.ServerGroup_BackendTls, "insecure"));
+            ups.add(sg, 10);
+            ServerGroup.ServerHandle svr = sg.add("svr", new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 19998), 10);
+            svr.healthy = true;
+            TcpLB lb = new TcpLB("lb", elg, elg,
+                new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 19997), ups,
+                1000, 16384, 16384, SecurityGroup.allowAll());
+            lb.start();
+
+            for (int i = 0; i < 3; ++i) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress("127.0.0.1", 19997));
+                    socket.getOutputStream().write(("" +
+                        "GET / HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "Connection: close\r\n" +
+                        "\r\n").getBytes());
+                    String resp = new String(socket.getInputStream().readAllBytes());
+                    assertTrue("response should contain body, but got " + resp, resp.endsWith("hello"));
+                }
+            }
+
+            assertEquals(3, svr.getTlsHandshakeCount());
+            assertTrue("reconnecting should resume the session", svr.getTlsResumedHandshakeCount() >= 1);
+        } finally {
+            vertx.close();
+            elg.close();
+        }
+    }
+
+    @Test
+    public void backendTlsWarmPool() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        EventLoopGroup elg = new EventLoopGroup("elg0");
+
+        try {
+            // start backend
+            vertx.createHttpServer().requestHandler(req -> req.response().end("hello")).listen(39997);
+
+            VSSLContext sslContext = new VSSLContext();
+            CertKey ck = new CertKey("ck", new String[]{TEST_CERT}, TEST_KEY);
+            ck.setInto(sslContext);
+
+            elg.add("el");
+            // the lb which terminates tls
+            Upstream tlsUps = new Upstream("tlsUps");
+            ServerGroup tlsSg = new ServerGroup("tlsSg", elg, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 1, 2), Method.wrr);
+            tlsUps.add(tlsSg, 10);
+            tlsSg.add("svr", new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 39997), 10);
+            tlsSg.getServerHandles().forEach(h -> h.healthy = true);
+            TcpLB tlsLb = new TcpLB("tlsLb", elg, elg,
+                new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 19996), tlsUps,
+                1000, 16384, 16384, "tcp", sslContext, null, SecurityGroup.allowAll());
+            tlsLb.start();
+
+            // the lb which re-encrypts with pooled connections
+            Upstream ups = new Upstream("ups");
+            ServerGroup sg = new ServerGroup("sg", elg, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 1, 2), Method.wrr);
+            sg.setAnnotations(Map.of(
+                AnnotationKeys.ServerGroup_BackendTls, "insecure",
+                AnnotationKeys.ServerGroup_WarmPoolSize, "2"));
+            ups.add(sg, 10);
+            ServerGroup.ServerHandle svr = sg.add("svr", new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 19996), 10);
+            svr.healthy = true;
+            TcpLB lb = new TcpLB("lb", elg, elg,
+                new InetSocketAddress(Utils.l3addr(new byte[]{127, 0, 0, 1}), 19995), ups,
+                1000, 16384, 16384, SecurityGroup.allowAll());
+            lb.start();
+
+            // the connections can be retrieved after the tls handshake
+            for (int i = 0; i < 30 && svr.getTlsHandshakeCount() < 2; ++i) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, svr.getTlsHandshakeCount());
+            assertEquals(2, svr.getWarmPoolIdleCount());
+
+            for (int i = 0; i < 2; ++i) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress("127.0.0.1", 19995));
+                    socket.getOutputStream().write(("" +
+                        "GET / HTTP/1.1\r\n" +
+                        "Host: 127.0.0.1\r\n" +
+                        "Connection: close\r\n" +
+                        "\r\n").getBytes());
+                    String resp = new String(socket.getInputStream().readAllBytes());
+                    assertTrue("response should contain body, but got " + resp, resp.endsWith("hello"));
+                }
+            }
+            assertEquals(2, svr.getWarmPoolHitCount());
+            assertEquals(0, svr.getWarmPoolMissCount());
+        } finally {
+            vertx.close();
+            elg.close();
+        }
+    }
 }
@@ -0,0 +1,114 @@
+package vproxy.test.cases;
+
+import org.junit.Test;
+import vproxy.util.ringbuffer.ssl.SSLTaskExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class TestSSLTaskExecutor {
+    // a supplier providing only one task
+    private static Supplier<Runnable> once(Runnable r) {
+        boolean[] provided = {false};
+        return () -> {
+            if (provided[0]) {
+                return null;
+            }
+            provided[0] = true;
+            return r;
+        };
+    }
+
+    private static void waitUntil(Supplier<Boolean> cond) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cond.get()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("condition not met in time");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void limitPerLoop() throws Exception {
+        SSLTaskExecutor executor = new SSLTaskExecutor(4, 2);
+        Object loop1 = new Object();
+        Object loop2 = new Object();
+
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger concurrent = new AtomicInteger(0);
+        AtomicInteger maxConcurrent = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(6);
+        Runnable task = () -> {
+            int n = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(n, Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+            }
+            concurrent.decrementAndGet();
+        };
+        for (int i = 0; i < 5; ++i) {
+            executor.execute(loop1, once(task), done::countDown, err -> fail("should not fail"));
+        }
+        // at most 2 handshakes of loop1 are running, the others are queued
+        waitUntil(() -> executor.getRunning() == 2);
+        Thread.sleep(100);
+        assertEquals(2, executor.getRunning());
+        assertEquals(3, executor.getQueueDepth());
+
+        // another loop is not limited by loop1
+        executor.execute(loop2, once(task), done::countDown, err -> fail("should not fail"));
+        waitUntil(() -> executor.getRunning() == 3);
+        assertEquals(3, executor.getQueueDepth());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, maxConcurrent.get());
+        assertEquals(6, executor.getCompletedCount());
+        assertEquals(0, executor.getFailedCount());
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(0, executor.getRunning());
+    }
+
+    @Test
+    public void failingTask() throws Exception {
+        SSLTaskExecutor executor = new SSLTaskExecutor(2, 1);
+        Object loop = new Object();
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch failed = new CountDownLatch(1);
+        executor.execute(loop, once(() -> {
+            throw new RuntimeException("mock task failure");
+        }), () -> fail("should not succeed"), err -> {
+            failure.set(err);
+            failed.countDown();
+        });
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertEquals("mock task failure", failure.get().getMessage());
+
+        // a callback throwing exception
+        CountDownLatch called = new CountDownLatch(1);
+        executor.execute(loop, once(() -> {
+        }), () -> {
+            called.countDown();
+            throw new RuntimeException("mock callback failure");
+        }, err -> fail("should not fail"));
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+
+        // the only slot of the loop is released, so following handshakes can run
+        CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; ++i) {
+            executor.execute(loop, once(() -> {
+            }), done::countDown, err -> fail("should not fail"));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(5, executor.getCompletedCount());
+        assertEquals(1, executor.getFailedCount());
+    }
+}
@@ -0,0 +1,177 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.SvrHandleConnector;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TestServerGroup {
+    private EventLoopGroup elg;
+
+    @Before
+    public void setUp() {
+        elg = new EventLoopGroup("elg0");
+    }
+
+    @After
+    public void tearDown() {
+        elg.close();
+    }
+
+    private ServerGroup newGroup(String alias, Method method) throws Exception {
+        // disable health check, the tests set the health state directly
+        return new ServerGroup(alias, elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), method);
+    }
+
+    private static InetSocketAddress address(int i) {
+        return new InetSocketAddress("127.0." + (i / 250) + "." + (i % 250 + 1), 80);
+    }
+
+    private static InetSocketAddress randomClient(Random rand) {
+        int ip = rand.nextInt();
+        return new InetSocketAddress("10." + ((ip >> 16) & 0xff) + "." + ((ip >> 8) & 0xff) + "." + (ip & 0xff), 12345);
+    }
+
+    // addresses of servers selected by the clients
+    private static Set<InetSocketAddress> selected(ServerGroup sg, int clients) {
+        Random rand = new Random(1);
+        Set<InetSocketAddress> set = new HashSet<>();
+        for (int i = 0; i < clients; ++i) {
+            SvrHandleConnector c = sg.next(randomClient(rand));
+            if (c != null) {
+                set.add(c.remote);
+            }
+        }
+        return set;
+    }
+
+    @Test
+    public void sourceAddServersOneByOne() throws Exception {
+        ServerGroup sg = newGroup("sg0", Method.source);
+        int n = 2000;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < n; ++i) {
+            sg.add("s" + i, address(i), 10).healthy = true;
+        }
+        long cost = System.currentTimeMillis() - start;
+        // each table of a large group costs about 100ms to build,
+        // building it for every server would take minutes
+        assertTrue("adding " + n + " servers costs " + cost + "ms", cost < 10_000);
+
+        // the table is built in background, and will contain all servers
+        long deadline = System.currentTimeMillis() + 10_000;
+        int count;
+        while ((count = selected(sg, 20_000).size()) < n * 9 / 10) {
+            assertTrue("only " + count + " servers are selected", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+
+        // removed servers are not selected even if the table is not rebuilt yet
+        Set<InetSocketAddress> removed = new HashSet<>();
+        for (int i = 0; i < n; i += 10) {
+            sg.remove("s" + i);
+            removed.add(address(i));
+        }
+        for (InetSocketAddress addr : selected(sg, 20_000)) {
+            assertFalse(addr + " is removed", removed.contains(addr));
+        }
+        sg.clear();
+    }
+
+    @Test
+    public void sourceRestartHealthCheck() throws Exception {
+        elg.add("el0");
+        ServerGroup sg = newGroup("sg0", Method.source);
+        int n = 10;
+        for (int i = 0; i < n; ++i) {
+            sg.add("s" + i, address(i), 10).healthy = true;
+        }
+        assertEquals(n, selected(sg, 1000).size());
+        // restart the health checks of all servers
+        sg.setHealthCheckConfig(new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3));
+        assertEquals(n, selected(sg, 1000).size());
+        sg.clear();
+    }
+
+    @Test
+    public void wlcHealthChanges() throws Exception {
+        ServerGroup sg = newGroup("sg0", Method.wlc);
+        int n = 100;
+        for (int i = 0; i < n; ++i) {
+            sg.add("s" + i, address(i), 10);
+        }
+        InetSocketAddress client = new InetSocketAddress("10.0.0.1", 12345);
+        assertNull("all servers are down", sg.next(client));
+
+        // servers turning UP without notification are found by the selections
+        ServerGroup.ServerHandle h = sg.getServerHandles().get(n / 2);
+        h.healthy = true;
+        SvrHandleConnector c = null;
+        for (int i = 0; i < n && c == null; ++i) {
+            c = sg.next(client);
+        }
+        assertNotNull("the UP server should be found", c);
+        assertEquals(h.server, c.remote);
+
+        // down servers are never selected
+        h.healthy = false;
+        for (int i = 0; i < n; ++i) {
+            assertNull(sg.next(client));
+        }
+        sg.clear();
+    }
+
+    @Test
+    public void wrrHeavyDownServer() throws Exception {
+        ServerGroup sg = newGroup("sg0", Method.wrr);
+        ServerGroup.ServerHandle heavy = sg.add("heavy", address(0), 100);
+        ServerGroup.ServerHandle light = sg.add("light", address(1), 1);
+        heavy.healthy = false;
+        light.healthy = true;
+        InetSocketAddress client = new InetSocketAddress("10.0.0.1", 12345);
+        for (int i = 0; i < 1000; ++i) {
+            SvrHandleConnector c = sg.next(client);
+            assertNotNull("the UP server should be selected", c);
+            assertEquals(light.server, c.remote);
+        }
+
+        // the DOWN server is selected again when it's UP, and does not take all connections to catch up
+        heavy.healthy = true;
+        int heavyCount = 0;
+        int lightCount = 0;
+        for (int i = 0; i < 1010; ++i) {
+            SvrHandleConnector c = sg.next(client);
+            assertNotNull(c);
+            if (c.remote.equals(heavy.server)) {
+                ++heavyCount;
+            } else {
+                ++lightCount;
+            }
+        }
+        assertTrue("heavy " + heavyCount, heavyCount >= 990);
+        assertTrue("light " + lightCount, lightCount >= 5);
+
+        // all servers DOWN, and one of them UP again
+        heavy.healthy = false;
+        light.healthy = false;
+        for (int i = 0; i < 10; ++i) {
+            assertNull(sg.next(client));
+        }
+        light.healthy = true;
+        SvrHandleConnector c = sg.next(client);
+        assertNotNull(c);
+        assertEquals(light.server, c.remote);
+        sg.clear();
+    }
+}
@@ -2,6 +2,7 @@ package vproxy.test.cases;
 
 import org.junit.*;
 import vproxy.app.Config;
+import vproxy.app.util.AnnotationKeys;
 import vproxy.component.app.TcpLB;
 import vproxy.component.check.HealthCheckConfig;
 import vproxy.component.elgroup.EventLoopGroup;
@@ -23,10 +24,18 @@ import vproxy.test.tool.IdServer;
 import vproxy.util.Network;
 import vproxy.util.Utils;
 
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -71,6 +80,8 @@ public class TestTcpLB {
 
     private ServerGroup sgEcho;
 
+    private final int proxyConnectAttempts = Config.proxyConnectAttempts;
+
     private SelectorEventLoop loop;
 
     private List<Client> clients = new LinkedList<>();
@@ -111,6 +122,7 @@ public class TestTcpLB {
 
     @After
     public void tearDown() throws Throwable {
+        Config.proxyConnectAttempts = proxyConnectAttempts;
         loop.close();
         elg0.close();
         for (Client c : clients) {
@@ -403,6 +415,200 @@ public class TestTcpLB {
         }
     }
 
+    @Test
+    public void proxyP2CEwma() throws Exception {
+        upstream0.add(sg0, 10);
+        sg0.setMethod(Method.p2cEwma);
+        ServerGroup.ServerHandle h = sg0.getServerHandles().stream().filter(s -> s.alias.equals("svr0")).findFirst().get();
+        h.healthy = false;
+
+        // make connections
+        for (int i = 0; i < 10; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            clients.add(client);
+            String recv = client.sendAndRecv("anything", 1);
+            assertEquals("response should be 1 because 0 is down", "1", recv);
+            // and we do not release the connections
+        }
+        assertTrue("latency should be recorded", sg0.getServerHandles().stream()
+            .filter(s -> s.alias.equals("svr1")).findFirst().get().getLatencyEwmaNanos() > 0);
+
+        // then set it the svr0 to healthy
+        h.healthy = true;
+        // svr1 has 10 connections, so the new connections should be sent to svr0 for most of the time
+        int zero = 0;
+        for (int i = 0; i < 10; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            clients.add(client);
+            String recv = client.sendAndRecv("anything", 1);
+            if (recv.equals("0")) {
+                ++zero;
+            }
+        }
+        assertTrue("most connections should be sent to svr0, but got " + zero, zero >= 5);
+    }
+
+    @Test
+    public void proxySlowStart() throws Exception {
+        ServerGroup sg = new ServerGroup("sgSlowStart", elg0, new HealthCheckConfig(400, 200, 1, 3), Method.wrr);
+        sg.setAnnotations(Map.of(
+            AnnotationKeys.ServerGroup_SlowStart, "10",
+            AnnotationKeys.ServerGroup_SlowStartFloor, "10"));
+        upstream0.add(sg, 10);
+
+        // svr0 turns UP before slow start is enabled, so it gets the full weight
+        Map<String, String> anno = sg.getAnnotations();
+        sg.setAnnotations(null);
+        ServerGroup.ServerHandle svr0 = sg.add("svr0", new InetSocketAddress("127.0.0.1", 19080), 10);
+        for (int i = 0; i < 100 && !svr0.healthy; ++i) {
+            Thread.sleep(50);
+        }
+        assertTrue(svr0.healthy);
+        sg.setAnnotations(anno);
+        ServerGroup.ServerHandle svr1 = sg.add("svr1", new InetSocketAddress("127.0.0.1", 19081), 10);
+        for (int i = 0; i < 100 && !svr1.healthy; ++i) {
+            Thread.sleep(50);
+        }
+        assertTrue(svr1.healthy);
+
+        // svr1 just turns UP, its weight is about 10% now
+        int zero = 0;
+        int one = 0;
+        for (int i = 0; i < 40; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            String recv = client.sendAndRecv("anything", 1);
+            if (recv.equals("0")) {
+                ++zero;
+            } else {
+                ++one;
+            }
+            client.close();
+        }
+        assertTrue("svr1 is slow starting, zero=" + zero + ", one=" + one, one > 0 && one * 3 < zero);
+    }
+
+    @Test
+    public void proxyOutlierEjection() throws Exception {
+        Config.proxyConnectAttempts = 3; // retry is disabled by default
+        ServerGroup sg = new ServerGroup("sgOutlier", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.setAnnotations(Map.of(
+            AnnotationKeys.ServerGroup_OutlierConsecutiveFailures, "2",
+            AnnotationKeys.ServerGroup_OutlierBaseEjectionTime, "1",
+            AnnotationKeys.ServerGroup_OutlierMaxEjectionPercent, "50"));
+        ServerGroup.ServerHandle svr0 = sg.add("svr0", new InetSocketAddress("127.0.0.1", 19080), 10);
+        // nothing is listening on these ports
+        ServerGroup.ServerHandle bad0 = sg.add("bad0", new InetSocketAddress("127.0.0.1", 19098), 10);
+        ServerGroup.ServerHandle bad1 = sg.add("bad1", new InetSocketAddress("127.0.0.1", 19099), 10);
+        // manually set to healthy, so only the outlier detection can take them away
+        for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+            h.healthy = true;
+        }
+        upstream0.add(sg, 10);
+
+        for (int i = 0; i < 12; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            // the failed connections are retried on svr0
+            assertEquals("0", client.sendAndRecv("anything", 1));
+            client.close();
+        }
+        long failed = bad0.getConnectFailureCount() + bad1.getConnectFailureCount();
+        assertTrue("some connections should go to the bad servers", failed >= 4);
+
+        // only one of the 3 servers can be ejected with 50%
+        assertTrue(bad0.isEjected() ^ bad1.isEjected());
+        assertFalse(svr0.isEjected());
+        assertEquals(1, bad0.getEjectionCount() + bad1.getEjectionCount());
+        ServerGroup.ServerHandle ejected = bad0.isEjected() ? bad0 : bad1;
+        ServerGroup.ServerHandle notEjected = bad0.isEjected() ? bad1 : bad0;
+        assertTrue(ejected.getEjectionRemainingMillis() > 0 && ejected.getEjectionRemainingMillis() <= 1000);
+        assertTrue(notEjected.getConsecutiveFailures() >= 2);
+        assertEquals(0, svr0.getConnectFailureCount());
+
+        // the ejected server does not receive connections
+        long failures = ejected.getConnectFailureCount();
+        for (int i = 0; i < 6; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            try {
+                client.sendAndRecv("anything", 1);
+            } catch (IOException ignore) {
+            }
+            client.close();
+        }
+        assertEquals(failures, ejected.getConnectFailureCount());
+
+        // the ejection ends
+        Thread.sleep(1100);
+        assertFalse(ejected.isEjected());
+        assertEquals(0, ejected.getEjectionRemainingMillis());
+    }
+
+    @Test
+    public void proxyWarmPool() throws Exception {
+        ServerGroup sg = new ServerGroup("sgWarmPool", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+        sg.setAnnotations(Map.of(AnnotationKeys.ServerGroup_WarmPoolSize, "4"));
+        ServerGroup.ServerHandle svr0 = sg.add("svr0", new InetSocketAddress("127.0.0.1", 19080), 10);
+        svr0.healthy = true;
+        upstream0.add(sg, 10);
+
+        // wait for the pool to fill
+        for (int i = 0; i < 30 && svr0.getWarmPoolIdleCount() < 4; ++i) {
+            Thread.sleep(100);
+        }
+        assertEquals(4, svr0.getWarmPoolIdleCount());
+        assertEquals(0, svr0.connectionCount()); // pooled connections are not counted
+        assertEquals(4, svr0.getWarmPoolHitCount() + svr0.getWarmPoolMissCount() + svr0.getWarmPoolIdleCount());
+
+        for (int i = 0; i < 3; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            assertEquals("0", client.sendAndRecv("anything", 1));
+            client.close();
+        }
+        assertEquals(3, svr0.getWarmPoolHitCount());
+        assertEquals(0, svr0.getWarmPoolMissCount());
+        assertTrue(svr0.getAvgWarmPoolGetMicros() >= 0);
+        assertTrue(svr0.getAvgDialMicros() >= 0);
+
+        // disable the pool
+        sg.setAnnotations(Map.of());
+        assertEquals(-1, svr0.getWarmPoolIdleCount());
+        Client client = new Client(lbPort);
+        client.connect();
+        assertEquals("0", client.sendAndRecv("anything", 1));
+        client.close();
+        assertEquals(3, svr0.getWarmPoolHitCount());
+    }
+
+    @Test
+    public void proxyConnectRetry() throws Exception {
+        Config.proxyConnectAttempts = 3; // retry is disabled by default
+        ServerGroup sg = new ServerGroup("sgRetry", elg0, new HealthCheckConfig(400, /* disable health check */24 * 60 * 60 * 1000, 2, 100), Method.wrr);
+        ServerGroup.ServerHandle svr0 = sg.add("svr0", new InetSocketAddress("127.0.0.1", 19080), 10);
+        // nothing is listening on these ports
+        ServerGroup.ServerHandle bad0 = sg.add("bad0", new InetSocketAddress("127.0.0.1", 19098), 10);
+        ServerGroup.ServerHandle bad1 = sg.add("bad1", new InetSocketAddress("127.0.0.1", 19099), 10);
+        // manually set to healthy, the bad servers will not be marked DOWN during the test
+        for (ServerGroup.ServerHandle h : sg.getServerHandles()) {
+            h.healthy = true;
+        }
+        upstream0.add(sg, 10);
+
+        // the client does not see the failures
+        for (int i = 0; i < 9; ++i) {
+            Client client = new Client(lbPort);
+            client.connect();
+            assertEquals("0", client.sendAndRecv("anything", 1));
+            client.close();
+        }
+        assertTrue("some connections should be retried", bad0.getConnectFailureCount() + bad1.getConnectFailureCount() >= 3);
+        assertEquals(0, svr0.getConnectFailureCount());
+    }
+
     @Test
     public void changeHealthCheckOnRunning() throws Exception {
         ServerGroup.ServerHandle h = sg0.getServerHandles().stream().findFirst().get();
@@ -713,4 +919,58 @@ public class TestTcpLB {
         assertNotSame("the old server is removed", old, list.get(0));
         assertFalse("the new server is not logic deleted", list.get(0).isLogicDelete());
     }
+
+    private static byte[] clientHello(String sni) throws Exception {
+        SSLEngine engine = SSLContext.getDefault().createSSLEngine();
+        engine.setUseClientMode(true);
+        SSLParameters params = engine.getSSLParameters();
+        params.setServerNames(Collections.singletonList(new SNIHostName(sni)));
+        engine.setSSLParameters(params);
+        ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.wrap(ByteBuffer.allocate(0), out);
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return bytes;
+    }
+
+    private static String sendAndRecvId(byte[] data) throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", lbPort + 1));
+            // send the CLIENT_HELLO in two parts to check the handler waits for the full record
+            socket.getOutputStream().write(data, 0, 3);
+            socket.getOutputStream().flush();
+            Thread.sleep(50);
+            socket.getOutputStream().write(data, 3, data.length - 3);
+            int b = socket.getInputStream().read();
+            if (b == -1)
+                throw new IOException("remote closed");
+            return "" + (char) b;
+        }
+    }
+
+    @Test
+    public void tlsPassthroughRouteBySNI() throws Exception {
+        sg0.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "s0.test.com"));
+        sg1.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "s1.test.com"));
+        upstream0.add(sg0, 10);
+        upstream0.add(sg1, 10);
+
+        TcpLB lb1 = new TcpLB("lb1", elg0, elg0,
+            new InetSocketAddress("127.0.0.1", lbPort + 1), upstream0,
+            Config.tcpTimeout, 16384, 16384, "tls-passthrough", null, null, secg0);
+        lb1.start();
+        try {
+            byte[] s0 = clientHello("s0.test.com");
+            byte[] s1 = clientHello("s1.test.com");
+            for (int i = 0; i < 5; ++i) {
+                String recv = sendAndRecvId(s0);
+                assertTrue("s0.test.com should be routed to sg0", recv.equals("0") || recv.equals("1"));
+                recv = sendAndRecvId(s1);
+                assertEquals("s1.test.com should be routed to sg1", "2", recv);
+            }
+        } finally {
+            lb1.destroy();
+        }
+    }
 }
@@ -0,0 +1,164 @@
+package vproxy.test.cases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import vproxy.app.util.AnnotationKeys;
+import vproxy.component.check.HealthCheckConfig;
+import vproxy.component.elgroup.EventLoopGroup;
+import vproxy.component.svrgroup.Method;
+import vproxy.component.svrgroup.ServerGroup;
+import vproxy.component.svrgroup.Upstream;
+import vproxy.processor.Hint;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestUpstream {
+    private static final String[] LABELS = {"a", "b", "example", "com", "test", ""};
+    private static final String[] PORTS = {null, "80", "443"};
+
+    private EventLoopGroup elg;
+    private Random rand;
+
+    @Before
+    public void setUp() {
+        elg = new EventLoopGroup("elg0");
+        rand = new Random(1);
+    }
+
+    @After
+    public void tearDown() {
+        elg.close();
+    }
+
+    private ServerGroup newGroup(String alias) throws Exception {
+        return new ServerGroup(alias, elg, new HealthCheckConfig(400, 24 * 60 * 60 * 1000, 2, 3), Method.wrr);
+    }
+
+    private String randomHost() {
+        int n = rand.nextInt(4) + 1;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            if (i != 0) {
+                sb.append(".");
+            }
+            sb.append(LABELS[rand.nextInt(LABELS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private Map<String, String> randomAnnotations() {
+        Map<String, String> anno = new HashMap<>();
+        if (rand.nextInt(5) != 0) {
+            anno.put(AnnotationKeys.ServerGroup_HintHost, randomHost());
+        }
+        String port = PORTS[rand.nextInt(PORTS.length)];
+        if (port != null) {
+            anno.put(AnnotationKeys.ServerGroup_HintPort, port);
+        }
+        return anno;
+    }
+
+    private Hint randomHint() {
+        String port = PORTS[rand.nextInt(PORTS.length)];
+        return new Hint(randomHost() + (port == null ? "" : ":" + port));
+    }
+
+    // check all groups one by one
+    @SuppressWarnings("unchecked")
+    private static Upstream.ServerGroupHandle linearSearch(Upstream ups, Hint hint) {
+        int level = 0;
+        Upstream.ServerGroupHandle lastMax = null;
+        for (Upstream.ServerGroupHandle h : ups.getServerGroupHandles()) {
+            int l = hint.matchLevel(h.getAnnotations(), h.group.getAnnotations());
+            if (l > level) {
+                level = l;
+                lastMax = h;
+            }
+        }
+        return lastMax;
+    }
+
+    @Test
+    public void sameAsLinearSearch() throws Exception {
+        Upstream ups = new Upstream("ups0");
+        for (int i = 0; i < 200; ++i) {
+            ServerGroup g = newGroup("sg" + i);
+            g.setAnnotations(randomAnnotations());
+            Upstream.ServerGroupHandle h = ups.add(g, 10);
+            if (rand.nextInt(3) == 0) {
+                h.setAnnotations(randomAnnotations());
+            }
+        }
+        for (int i = 0; i < 10000; ++i) {
+            Hint hint = randomHint();
+            Upstream.ServerGroupHandle expected = linearSearch(ups, hint);
+            Upstream.ServerGroupHandle actual = ups.searchForGroup(hint);
+            assertSame("search " + hint, expected, actual);
+            // search again with the cached result
+            assertSame("search again " + hint, expected, ups.searchForGroup(hint));
+        }
+    }
+
+    @Test
+    public void annotationsChange() throws Exception {
+        Upstream ups = new Upstream("ups0");
+        ServerGroup g0 = newGroup("sg0");
+        g0.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "example.com"));
+        ServerGroup g1 = newGroup("sg1");
+        Upstream.ServerGroupHandle h0 = ups.add(g0, 10);
+        Upstream.ServerGroupHandle h1 = ups.add(g1, 10);
+
+        Hint hint = new Hint("www.example.com");
+        assertSame(h0, ups.searchForGroup(hint));
+
+        g1.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "www.example.com"));
+        assertSame(h1, ups.searchForGroup(hint));
+
+        h0.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "www.example.com"));
+        assertSame("the first group wins when levels are the same", h0, ups.searchForGroup(hint));
+
+        ups.remove(g0);
+        assertSame(h1, ups.searchForGroup(hint));
+
+        List<Upstream.ServerGroupHandle> handles = ups.getServerGroupHandles();
+        assertEquals(1, handles.size());
+        assertNull(ups.searchForGroup(new Hint("example.org")));
+    }
+
+    @Test
+    public void annotationsChangeInSharedGroup() throws Exception {
+        Upstream ups0 = new Upstream("ups0");
+        Upstream ups1 = new Upstream("ups1");
+        ServerGroup g0 = newGroup("sg0");
+        ServerGroup g1 = newGroup("sg1");
+        Upstream.ServerGroupHandle h00 = ups0.add(g0, 10);
+        Upstream.ServerGroupHandle h01 = ups0.add(g1, 10);
+        Upstream.ServerGroupHandle h11 = ups1.add(g1, 10);
+
+        Hint hint = new Hint("www.example.com");
+        assertNull(ups0.searchForGroup(hint));
+        assertNull(ups1.searchForGroup(hint));
+
+        // the group is in both upstreams
+        g1.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "example.com"));
+        assertSame(h01, ups0.searchForGroup(hint));
+        assertSame(h11, ups1.searchForGroup(hint));
+
+        // the group is only in ups0
+        g0.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "www.example.com"));
+        assertSame(h00, ups0.searchForGroup(hint));
+        assertSame(h11, ups1.searchForGroup(hint));
+
+        // the group is removed from ups1
+        ups1.remove(g1);
+        g1.setAnnotations(Map.of(AnnotationKeys.ServerGroup_HintHost, "www.example.com"));
+        assertNull(ups1.searchForGroup(hint));
+        assertSame("the first group wins when levels are the same", h00, ups0.searchForGroup(hint));
+    }
+}